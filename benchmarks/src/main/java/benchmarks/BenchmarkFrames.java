@@ -0,0 +1,163 @@
+package benchmarks;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import maixsense.a010.MaixSenseA010DataLogReader;
+import maixsense.a010.MaixSenseA010Image;
+import util.MaixSenseA010DepthImageAdapter;
+
+
+
+/**
+ * Generates the frames used by the benchmarks, as raw pixel values in row-major order.
+ * <p>
+ * Two sources are available:
+ * <ul>
+ *  <li> {@link #SOURCE_SYNTHETIC}: a tilted plane with a sphere in front of it, with noise and some invalid pixels.
+ *  <li> {@link #SOURCE_LOG}: the frames of a log recorded with the camera, resampled to the requested size.
+ *       The log is taken from the "benchmark.log" system property.
+ * </ul>
+ * Frames are generated deterministically, so that results can be compared between runs.
+ */
+public class BenchmarkFrames
+{
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Synthetic frames.
+     */
+    public static final String SOURCE_SYNTHETIC = "synthetic";
+    
+    /**
+     * Frames taken from a log.
+     */
+    public static final String SOURCE_LOG = "log";
+    
+    /**
+     * System property that holds the path to the log.
+     */
+    public static final String LOG_PROPERTY = "benchmark.log";
+    
+    /**
+     * Log used if {@link #LOG_PROPERTY} is not set.
+     */
+    public static final String DEFAULT_LOG_FILE = "../maixSenseA010_25x25_20250614_135010.log";
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns a number of frames of a given size.
+     * 
+     * @param source    {@link #SOURCE_SYNTHETIC} or {@link #SOURCE_LOG}.
+     * @param size      number of rows and columns of the frames.
+     * @param count     maximum number of frames; frames of a log are limited to the length of the log.
+     * @return  raw pixel values of the frames in row-major order.
+     * @throws IOException  if the log can not be read.
+     */
+    public static List<byte[]> frames( String source , int size , int count ) throws IOException
+    {
+        if( SOURCE_SYNTHETIC.equals( source ) ) {
+            return syntheticFrames( size , count );
+        } else if( SOURCE_LOG.equals( source ) ) {
+            return logFrames( System.getProperty( LOG_PROPERTY , DEFAULT_LOG_FILE ) , size , count );
+        }
+        throw new IllegalArgumentException( "Unknown frame source: " + source );
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Generates synthetic frames.
+     * 
+     * @param size      number of rows and columns of the frames.
+     * @param count     number of frames.
+     * @return  raw pixel values of the frames in row-major order.
+     */
+    private static List<byte[]> syntheticFrames( int size , int count )
+    {
+        Random random = new Random( 0 );
+        List<byte[]> frames = new ArrayList<byte[]>();
+        for( int f=0; f<count; f++ ) {
+            byte[] frame = new byte[ size*size ];
+            // The sphere moves across the image from frame to frame.
+            double sphereRow = size * ( 0.3 + 0.4 * f / Math.max( count-1 , 1 ) );
+            double sphereCol = size * 0.5;
+            double sphereRadius = size * 0.2;
+            int k = 0;
+            for( int i=0; i<size; i++ ) {
+                for( int j=0; j<size; j++ ) {
+                    double value = 120.0 + 80.0 * i / size;
+                    double di = i - sphereRow;
+                    double dj = j - sphereCol;
+                    double d2 = di*di + dj*dj;
+                    if( d2 < sphereRadius*sphereRadius ) {
+                        value = 60.0 - 30.0 * Math.sqrt( 1.0 - d2 / ( sphereRadius*sphereRadius ) );
+                    }
+                    value += 2.0 * random.nextGaussian();
+                    double r = random.nextDouble();
+                    if( r < 0.02 ) {
+                        value = 0.0;
+                    } else if( r < 0.03 ) {
+                        value = 255.0;
+                    }
+                    frame[k++] = (byte)Math.max( 0 , Math.min( 255 , (int)Math.round( value ) ) );
+                }
+            }
+            frames.add( frame );
+        }
+        return frames;
+    }
+    
+    
+    /**
+     * Reads frames from a log, resampling them to a given size with nearest neighbor interpolation.
+     * 
+     * @param path      path to the log.
+     * @param size      number of rows and columns of the frames.
+     * @param count     maximum number of frames.
+     * @return  raw pixel values of the frames in row-major order.
+     * @throws IOException  if the log can not be read.
+     */
+    private static List<byte[]> logFrames( String path , int size , int count ) throws IOException
+    {
+        MaixSenseA010DataLogReader reader = new MaixSenseA010DataLogReader( path );
+        reader.initialize();
+        MaixSenseA010DepthImageAdapter adapter = new MaixSenseA010DepthImageAdapter();
+        List<byte[]> frames = new ArrayList<byte[]>();
+        MaixSenseA010Image image;
+        while(  frames.size() < count  &&  ( image = reader.nextImage() ) != null  ) {
+            adapter.setImage( image );
+            int rows = adapter.rows();
+            int cols = adapter.cols();
+            byte[] original = adapter.pixelsInto( new byte[ rows*cols ] );
+            byte[] frame = new byte[ size*size ];
+            int k = 0;
+            for( int i=0; i<size; i++ ) {
+                int row = i * rows / size;
+                for( int j=0; j<size; j++ ) {
+                    frame[k++] = original[ row*cols + j * cols / size ];
+                }
+            }
+            frames.add( frame );
+        }
+        if( frames.isEmpty() ) {
+            throw new IllegalStateException( "No frames found in " + path + "." );
+        }
+        return frames;
+    }
+    
+}
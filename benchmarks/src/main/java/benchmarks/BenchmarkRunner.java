@@ -0,0 +1,41 @@
+package benchmarks;
+
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+
+/**
+ * Runs the benchmarks with the GC profiler, so that the allocation rate per operation ("gc.alloc.rate.norm") is reported along with the throughput.
+ * <p>
+ * Accepts the usual JMH command line options; for example, "-p size=100 FrameStagesBenchmark.depth".
+ */
+public class BenchmarkRunner
+{
+    ////////////////////////////////////////////////////////////////
+    // MAIN: ENTRY POINT
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Entry point.
+     * 
+     * @param args  JMH command line options.
+     * @throws CommandLineOptionException   if the options can not be parsed.
+     * @throws RunnerException  if the benchmarks fail.
+     */
+    public static void main( String[] args ) throws CommandLineOptionException, RunnerException
+    {
+        Options options = new OptionsBuilder()
+                .parent( new CommandLineOptions( args ) )
+                .addProfiler( GCProfiler.class )
+                .build();
+        new Runner( options ).run();
+    }
+    
+}
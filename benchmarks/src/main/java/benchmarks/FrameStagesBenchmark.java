@@ -0,0 +1,267 @@
+package benchmarks;
+
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import numericalLibrary.types.Vector3;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import processing.core.PConstants;
+import processing.core.PImage;
+import sensorCalibrationLibrary.depthCameras.maixSenseA010.MaixSenseA010DefaultCalibration;
+import util.DepthGridMesh;
+import util.DepthImageRenderer;
+import util.MaixSenseA010DepthImageAdapter;
+import util.MaixSenseA010PointCloudProjector;
+
+
+
+/**
+ * Benchmarks of the stages applied to every frame by the viewers, for each binning of the MaixSense-A010.
+ * <p>
+ * Every invocation processes the next frame of a sequence, so that the stages see changing data.
+ * Run it through {@link BenchmarkRunner} so that the allocation rate per operation ("gc.alloc.rate.norm") is also reported.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5 , time = 1 )
+@Measurement( iterations = 5 , time = 1 )
+@Fork( 1 )
+public class FrameStagesBenchmark
+{
+    ////////////////////////////////////////////////////////////////
+    // PARAMETERS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Number of rows and columns of the frames; one per binning.
+     */
+    @Param( { "25" , "50" , "100" } )
+    public int size;
+    
+    /**
+     * Source of the frames.
+     * 
+     * @see BenchmarkFrames
+     */
+    @Param( { BenchmarkFrames.SOURCE_SYNTHETIC , BenchmarkFrames.SOURCE_LOG } )
+    public String source;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Maximum number of frames in the sequence.
+     */
+    private static final int FRAMES = 64;
+    
+    /**
+     * Maximum depth in meters, as used by the viewers.
+     */
+    private static final double DEPTH_RANGE_MAX = 2.5;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Raw pixel values of the frames.
+     */
+    private List<byte[]> frames;
+    
+    /**
+     * Index of the next frame.
+     */
+    private int frameIndex;
+    
+    /**
+     * Adapter that interprets the frames as depth images.
+     */
+    private MaixSenseA010DepthImageAdapter adaptedImage;
+    
+    /**
+     * Calibration used to generate point clouds directly.
+     */
+    private MaixSenseA010DefaultCalibration calibration;
+    
+    /**
+     * Generates point clouds into {@link #pointCloud}.
+     */
+    private MaixSenseA010PointCloudProjector pointCloudProjector;
+    
+    /**
+     * Point cloud coordinates.
+     */
+    private float[] pointCloud;
+    
+    /**
+     * Depths of the pixels.
+     */
+    private float[] depths;
+    
+    /**
+     * Mesh updated with each frame.
+     */
+    private DepthGridMesh mesh;
+    
+    /**
+     * Colorizes the frames into {@link #depthImage}.
+     */
+    private DepthImageRenderer depthImageRenderer;
+    
+    /**
+     * Colorized frame.
+     */
+    private PImage depthImage;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Creates the frames and the objects used by the stages.
+     * 
+     * @throws IOException  if the log can not be read.
+     */
+    @Setup
+    public void setup() throws IOException
+    {
+        this.frames = BenchmarkFrames.frames( this.source , this.size , FRAMES );
+        this.frameIndex = 0;
+        this.adaptedImage = new MaixSenseA010DepthImageAdapter();
+        this.adaptedImage.setQuantizationUnit( 0 );
+        this.calibration = new MaixSenseA010DefaultCalibration();
+        this.calibration.setImageSize( this.size );
+        this.pointCloudProjector = new MaixSenseA010PointCloudProjector( new MaixSenseA010DefaultCalibration() );
+        this.pointCloud = new float[ MaixSenseA010PointCloudProjector.pointCloudLength( this.size , this.size ) ];
+        this.depths = new float[ this.size * this.size ];
+        this.mesh = new DepthGridMesh( 1.0e-2f , (float)DEPTH_RANGE_MAX );
+        this.depthImageRenderer = new DepthImageRenderer( DepthImageRenderer.COLORMAP_TURBO , 0.0 , DEPTH_RANGE_MAX );
+        this.depthImage = new PImage( this.size , this.size , PConstants.RGB );
+    }
+    
+    
+    /**
+     * Decodes the depth of every pixel one at a time with {@link MaixSenseA010DepthImageAdapter#depth(int, int)}.
+     * 
+     * @return  sum of the depths.
+     */
+    @Benchmark
+    public double depthPerPixel()
+    {
+        this.nextFrame();
+        double sum = 0.0;
+        for( int i=0; i<this.size; i++ ) {
+            for( int j=0; j<this.size; j++ ) {
+                sum += this.adaptedImage.depth( i , j );
+            }
+        }
+        return sum;
+    }
+    
+    
+    /**
+     * Decodes the depth of every pixel at once with {@link MaixSenseA010DepthImageAdapter#depthsInto(float[])}.
+     * 
+     * @return  depths of the pixels.
+     */
+    @Benchmark
+    public float[] depthsInto()
+    {
+        this.nextFrame();
+        return this.adaptedImage.depthsInto( this.depths );
+    }
+    
+    
+    /**
+     * Generates the point cloud with {@link MaixSenseA010DefaultCalibration#imageToPointCloud(sensorCalibrationLibrary.depthCameras.DepthImage)}.
+     * 
+     * @return  point cloud.
+     */
+    @Benchmark
+    public List<Vector3> imageToPointCloud()
+    {
+        this.nextFrame();
+        return this.calibration.imageToPointCloud( this.adaptedImage );
+    }
+    
+    
+    /**
+     * Generates the point cloud with {@link MaixSenseA010PointCloudProjector#pointCloudInto(MaixSenseA010DepthImageAdapter, float[])}.
+     * 
+     * @return  number of points.
+     */
+    @Benchmark
+    public int pointCloudInto()
+    {
+        this.nextFrame();
+        return this.pointCloudProjector.pointCloudInto( this.adaptedImage , this.pointCloud );
+    }
+    
+    
+    /**
+     * Updates the mesh as done in {@code MaixSenseA010Mesh3dViewer.consumeImage}.
+     * 
+     * @return  updated mesh.
+     */
+    @Benchmark
+    public DepthGridMesh meshUpdate()
+    {
+        this.nextFrame();
+        this.adaptedImage.depthsInto( this.depths );
+        this.mesh.update( this.depths , this.size , this.size );
+        return this.mesh;
+    }
+    
+    
+    /**
+     * Colorizes the frame into a {@link PImage} as done by the image viewers.
+     * 
+     * @return  colorized frame.
+     */
+    @Benchmark
+    public PImage colorize()
+    {
+        this.nextFrame();
+        this.depthImageRenderer.render( this.adaptedImage , this.depthImage );
+        return this.depthImage;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Sets the next frame of the sequence in {@link #adaptedImage}.
+     */
+    private void nextFrame()
+    {
+        this.adaptedImage.setPixels( this.frames.get( this.frameIndex ) , this.size , this.size );
+        this.frameIndex++;
+        if( this.frameIndex == this.frames.size() ) {
+            this.frameIndex = 0;
+        }
+    }
+    
+}
@@ -0,0 +1,359 @@
+package MaixSenseA010;
+
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import maixsense.a010.MaixSenseA010DataLogReader;
+import maixsense.a010.MaixSenseA010Image;
+import util.CompressedFrameLogReader;
+import util.CompressedFrameLogWriter;
+import util.MaixSenseA010DepthImageAdapter;
+
+
+
+/**
+ * Checks that the frames written by {@link CompressedFrameLogWriter} are read back unchanged by {@link CompressedFrameLogReader},
+ * and reports the compression ratio, without camera nor window.
+ * <p>
+ * The frames are those of a log recorded with the MaixSenseA010 ToF camera if its path is given,
+ * or synthetic frames otherwise: a noisy scene with a moving object, invalid corners, and a saturated region,
+ * whose size changes towards the end, so that key frames, delta frames, and a change of size are written.
+ * The frames are written to a temporary file and read back both in order and in reverse order.
+ * Then, the last bytes of the file are removed, and the log must still be read without its truncated last record.
+ * <p>
+ * Arguments:
+ * <ul>
+ *  <li> Path to the log file (optional).
+ * </ul>
+ */
+public class CompressedFrameLogCheck
+{
+    ////////////////////////////////////////////////////////////////
+    // PARAMETERS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Number of rows of the synthetic frames, as the largest images of the MaixSenseA010.
+     */
+    static final int ROWS = 100;
+    
+    /**
+     * Number of columns of the synthetic frames.
+     */
+    static final int COLS = 100;
+    
+    /**
+     * Number of synthetic frames of {@link #ROWS}x{@link #COLS}, which spans several key frames.
+     */
+    static final int FRAME_COUNT = 250;
+    
+    /**
+     * Number of rows of the synthetic frames written after the first {@link #FRAME_COUNT} ones.
+     */
+    static final int SMALL_ROWS = 50;
+    
+    /**
+     * Number of columns of the synthetic frames written after the first {@link #FRAME_COUNT} ones.
+     */
+    static final int SMALL_COLS = 50;
+    
+    /**
+     * Number of synthetic frames of {@link #SMALL_ROWS}x{@link #SMALL_COLS}.
+     */
+    static final int SMALL_FRAME_COUNT = 30;
+    
+    /**
+     * Standard deviation of the noise of the synthetic frames, in raw pixel values.
+     */
+    static final double NOISE = 1.0;
+    
+    /**
+     * Time between synthetic frames in nanoseconds.
+     */
+    static final long FRAME_INTERVAL = 50000000L;
+    
+    /**
+     * Number of bytes removed from the end of the file to truncate its last record.
+     */
+    static final int TRUNCATED_BYTES = 3;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // MAIN: ENTRY POINT
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Entry point; exits with status 1 if a check fails.
+     * 
+     * @param args  path to the log file; optional.
+     */
+    public static void main( String[] args )
+    {
+        boolean passed;
+        try {
+            passed = ( args.length > 0 )? checkLog( args[0] ) : checkSyntheticFrames();
+        } catch( IOException e ) {
+            e.printStackTrace();
+            passed = false;
+        }
+        System.out.println( ( passed )? "All checks passed." : "Some checks failed." );
+        if( !passed ) {
+            System.exit( 1 );
+        }
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Writes the images of a log recorded with the camera, and checks that they are read back unchanged.
+     * <p>
+     * The images are timestamped on arrival by the writer, so their timestamps are not checked.
+     * 
+     * @param path  path to the log file.
+     * @return  true if all the checks passed; false otherwise.
+     * @throws IOException  if a file can not be read or written.
+     */
+    private static boolean checkLog( String path ) throws IOException
+    {
+        MaixSenseA010DataLogReader reader = new MaixSenseA010DataLogReader( path );
+        reader.initialize();
+        List<Frame> frames = new ArrayList<Frame>();
+        Path file = Files.createTempFile( "check" , CompressedFrameLogWriter.EXTENSION );
+        try {
+            CompressedFrameLogWriter writer = new CompressedFrameLogWriter( file.toString() );
+            MaixSenseA010Image image;
+            while( ( image = reader.nextImage() ) != null ) {
+                writer.consumeImage( image );
+                frames.add( new Frame( MaixSenseA010DepthImageAdapter.pixelsOf( image , new byte[ image.rows()*image.cols() ] ) , image.rows() , image.cols() , -1 ) );
+            }
+            writer.close();
+            System.out.println( "Read " + frames.size() + " images from " + path + "." );
+            return check( writer , file , frames );
+        } finally {
+            Files.deleteIfExists( file );
+        }
+    }
+    
+    
+    /**
+     * Writes synthetic frames, and checks that they are read back unchanged.
+     * 
+     * @return  true if all the checks passed; false otherwise.
+     * @throws IOException  if the file can not be read or written.
+     */
+    private static boolean checkSyntheticFrames() throws IOException
+    {
+        Random random = new Random( 0 );
+        List<Frame> frames = new ArrayList<Frame>();
+        for( int k=0; k<FRAME_COUNT+SMALL_FRAME_COUNT; k++ ) {
+            int rows = ( k < FRAME_COUNT )? ROWS : SMALL_ROWS;
+            int cols = ( k < FRAME_COUNT )? COLS : SMALL_COLS;
+            frames.add( new Frame( syntheticFrame( rows , cols , k , random ) , rows , cols , k * FRAME_INTERVAL ) );
+        }
+        Path file = Files.createTempFile( "check" , CompressedFrameLogWriter.EXTENSION );
+        try {
+            CompressedFrameLogWriter writer = new CompressedFrameLogWriter( file.toString() );
+            for( Frame frame : frames ) {
+                writer.consumeFrame( frame.pixels , frame.rows , frame.cols , frame.timestamp );
+            }
+            writer.close();
+            System.out.println( String.format( "Generated %d synthetic frames with noise of %.1f." , frames.size() , NOISE ) );
+            return check( writer , file , frames );
+        } finally {
+            Files.deleteIfExists( file );
+        }
+    }
+    
+    
+    /**
+     * Checks a written log against the frames given to the writer, before and after truncating its last record.
+     * 
+     * @param writer    closed writer of the log.
+     * @param file      path to the log.
+     * @param frames    frames given to the writer.
+     * @return  true if all the checks passed; false otherwise.
+     * @throws IOException  if the log can not be read or truncated.
+     */
+    private static boolean check( CompressedFrameLogWriter writer , Path file , List<Frame> frames ) throws IOException
+    {
+        boolean passed = true;
+        if(  writer.framesWritten() != frames.size()  ||  writer.droppedCount() != 0  ) {
+            System.out.println( "Written " + writer.framesWritten() + " frames and dropped " + writer.droppedCount() + " out of " + frames.size() + "." );
+            passed = false;
+        }
+        System.out.println( String.format( "Wrote %d bytes (compression ratio %.2f)." , writer.bytesWritten() , writer.compressionRatio() ) );
+        passed &= checkFrames( file.toString() , frames , frames.size() );
+        // Cut the last record, which must be ignored.
+        try( FileChannel channel = FileChannel.open( file , StandardOpenOption.WRITE ) ) {
+            channel.truncate( channel.size() - TRUNCATED_BYTES );
+        }
+        System.out.println( "Removed the last " + TRUNCATED_BYTES + " bytes." );
+        passed &= checkFrames( file.toString() , frames , frames.size() - 1 );
+        return passed;
+    }
+    
+    
+    /**
+     * Reads a log in order and in reverse order, and compares its frames with the frames given to the writer.
+     * 
+     * @param path      path to the log.
+     * @param frames    frames given to the writer.
+     * @param expectedCount     number of frames that the log must hold.
+     * @return  true if the log holds the expected frames; false otherwise.
+     * @throws IOException  if the log can not be read.
+     */
+    private static boolean checkFrames( String path , List<Frame> frames , int expectedCount ) throws IOException
+    {
+        CompressedFrameLogReader reader = new CompressedFrameLogReader( path );
+        try {
+            if( reader.frameCount() != expectedCount ) {
+                System.out.println( "The log holds " + reader.frameCount() + " frames instead of " + expectedCount + "." );
+                return false;
+            }
+            int keyFrames = 0;
+            int errors = 0;
+            byte[] pixels = new byte[0];
+            for( int pass=0; pass<2; pass++ ) {
+                for( int n=0; n<expectedCount; n++ ) {
+                    int k = ( pass == 0 )? n : expectedCount - 1 - n;
+                    Frame frame = frames.get( k );
+                    if(  reader.rows( k ) != frame.rows  ||  reader.cols( k ) != frame.cols  ) {
+                        System.out.println( "Frame " + k + " is " + reader.rows( k ) + "x" + reader.cols( k ) + " instead of " + frame.rows + "x" + frame.cols + "." );
+                        errors++;
+                        continue;
+                    }
+                    if(  frame.timestamp >= 0  &&  reader.timestamp( k ) != frame.timestamp  ) {
+                        System.out.println( "Frame " + k + " has timestamp " + reader.timestamp( k ) + " instead of " + frame.timestamp + "." );
+                        errors++;
+                    }
+                    if( pixels.length < frame.rows*frame.cols ) {
+                        pixels = new byte[ frame.rows*frame.cols ];
+                    }
+                    reader.frameInto( k , pixels );
+                    for( int p=0; p<frame.rows*frame.cols; p++ ) {
+                        if( pixels[p] != frame.pixels[p] ) {
+                            System.out.println( "Frame " + k + " differs at pixel " + p + "." );
+                            errors++;
+                            break;
+                        }
+                    }
+                    keyFrames += ( pass == 0  &&  reader.isKeyFrame( k ) )? 1 : 0;
+                }
+            }
+            System.out.println( "Read " + expectedCount + " frames (" + keyFrames + " key frames) in order and in reverse order: " + errors + " errors." );
+            return ( errors == 0 );
+        } finally {
+            reader.close();
+        }
+    }
+    
+    
+    /**
+     * Generates a synthetic frame: a tilted floor with a box moving across it, seen through a circular field of view,
+     * with a saturated region, noise, and flickering invalid pixels, mostly on the edges of the box.
+     * 
+     * @param rows      number of rows.
+     * @param cols      number of columns.
+     * @param k         index of the frame, which sets the position of the box.
+     * @param random    source of the noise.
+     * @return  raw pixel values in row-major order.
+     */
+    private static byte[] syntheticFrame( int rows , int cols , int k , Random random )
+    {
+        byte[] pixels = new byte[ rows*cols ];
+        double radius = 0.55 * Math.min( rows , cols );
+        int boxTop = rows * 3 / 10;
+        int boxBottom = boxTop + rows / 4;
+        int boxLeft = cols / 5 + ( k / 5 ) % ( cols / 2 );
+        int boxRight = boxLeft + cols / 5;
+        for( int i=0; i<rows; i++ ) {
+            for( int j=0; j<cols; j++ ) {
+                double di = i - 0.5 * ( rows - 1 );
+                double dj = j - 0.5 * ( cols - 1 );
+                int value;
+                if( di*di + dj*dj > radius*radius ) {
+                    // Outside the field of view.
+                    value = 0;
+                } else if(  i > rows * 85 / 100  &&  j > cols * 2 / 5  &&  j < cols * 11 / 20  ) {
+                    // Saturated.
+                    value = 255;
+                } else {
+                    boolean inBox = (  i >= boxTop  &&  i < boxBottom  &&  j >= boxLeft  &&  j < boxRight  );
+                    boolean onEdge = (  i >= boxTop-1  &&  i <= boxBottom  &&  j >= boxLeft-1  &&  j <= boxRight  )  &&  !(  i > boxTop  &&  i < boxBottom-1  &&  j > boxLeft  &&  j < boxRight-1  );
+                    double depth = ( inBox )? 60 : 90 + 80.0 * i / rows + 20.0 * j / cols;
+                    depth += NOISE * random.nextGaussian();
+                    boolean flicker = random.nextDouble() < ( ( onEdge )? 0.3 : 0.003 );
+                    value = ( flicker )? 0 : (int)Math.max( 1 , Math.min( 254 , Math.round( depth ) ) );
+                }
+                pixels[ i*cols + j ] = (byte)value;
+            }
+        }
+        return pixels;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CLASSES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Frame given to the writer.
+     */
+    private static class Frame
+    {
+        // PRIVATE VARIABLES
+        
+        /**
+         * Raw pixel values in row-major order.
+         */
+        private byte[] pixels;
+        
+        /**
+         * Number of rows.
+         */
+        private int rows;
+        
+        /**
+         * Number of columns.
+         */
+        private int cols;
+        
+        /**
+         * Timestamp in nanoseconds relative to the first frame, or -1 if it is not known.
+         */
+        private long timestamp;
+        
+        
+        // PRIVATE CONSTRUCTORS
+        
+        /**
+         * Constructs a {@link Frame}.
+         * 
+         * @param pixels    raw pixel values in row-major order.
+         * @param rows      number of rows.
+         * @param cols      number of columns.
+         * @param timestamp     timestamp in nanoseconds, or -1 if it is not known.
+         */
+        private Frame( byte[] pixels , int rows , int cols , long timestamp )
+        {
+            this.pixels = pixels;
+            this.rows = rows;
+            this.cols = cols;
+            this.timestamp = timestamp;
+        }
+    }
+    
+}
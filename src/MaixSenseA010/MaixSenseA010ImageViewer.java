@@ -1,6 +1,10 @@
 package MaixSenseA010;
 
 
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
 import jssc.SerialPortException;
 import maixsense.a010.MaixSenseA010Driver;
 import maixsense.a010.MaixSenseA010Image;
@@ -9,12 +13,36 @@ import maixsense.a010.MaixSenseA010ImageEnqueuerStrategy;
 import maixsense.a010.MaixSenseA010ImagePublisherQueue;
 import processing.core.PApplet;
 import processing.core.PImage;
+import util.CompressedFrameLogWriter;
+import util.DepthFilterStage;
+import util.DepthImageRenderer;
+import util.LatencyProfiler;
 import util.MaixSenseA010DepthImageAdapter;
+import util.SpatialDepthFilter;
+import util.StripeExecutor;
+import util.TemporalDepthFilter;
+import util.TripleBuffer;
 
 
 
 /**
  * Example on how to plot a depth image captured with the MaixSenseA010 ToF camera.
+ * <p>
+ * The received images can be recorded in a compressed frame log with {@link CompressedFrameLogWriter},
+ * that can be played with {@link MaixSenseA010ImageViewerFromFile}.
+ * <p>
+ * Controls:
+ * <ul>
+ *  <li> Key 'c': change colormap.
+ *  <li> Key 'r': start / stop recording.
+ *  <li> Key 'f': change spatial filter.
+ *  <li> Key 'h': enable / disable hole filling.
+ *  <li> Key 't': change temporal filter.
+ *  <li> Key 'o': show / hide the latency overlay.
+ *  <li> Key 'e': start / stop exporting the latency statistics.
+ * </ul>
+ * <p>
+ * The latency of each stage of the processing of the images is measured with {@link LatencyProfiler}; its statistics can be exported to {@link #LATENCY_CSV_FILE} with key 'e'.
  */
 public class MaixSenseA010ImageViewer
     extends PApplet
@@ -29,11 +57,41 @@ public class MaixSenseA010ImageViewer
      */
     static final int QUANTIZATION_UNIT = 0;
     
+    /**
+     * Minimum depth in meters represented in the depth image.
+     */
+    static final double DEPTH_RANGE_MIN = 0.0;
+    
     /**
      * Maximum depth that the sensor can measure in meters.
      */
     static final double DEPTH_RANGE_MAX = 2.5;
     
+    /**
+     * Colormap used initially to represent the depth image.
+     */
+    static final int COLORMAP = DepthImageRenderer.COLORMAP_GRAYSCALE;
+    
+    /**
+     * Prefix of the path of the recorded logs, which is completed with the date and time at which the recording starts.
+     */
+    static final String RECORDING_PREFIX = "maixSenseA010_";
+    
+    /**
+     * Maximum number of row stripes in which each image is split to be processed in parallel; 1 processes images in the thread that receives them.
+     */
+    static final int PROCESSING_STRIPES = 4;
+    
+    /**
+     * Path of the CSV file where the latency statistics are exported while the export is enabled.
+     */
+    static final String LATENCY_CSV_FILE = "latency_imageViewer.csv";
+    
+    /**
+     * Period in seconds over which the latency statistics are computed.
+     */
+    static final double LATENCY_PERIOD = 1.0;
+    
     
     
     ////////////////////////////////////////////////////////////////
@@ -41,9 +99,59 @@ public class MaixSenseA010ImageViewer
     ////////////////////////////////////////////////////////////////
     
     /**
-     * {@link PImage} that holds the last depth image received from the last received depth image.
+     * {@link PImage}s that hold the depth images, exchanged between the thread that receives the images and the animation thread.
      */
-    PImage depthImage;
+    TripleBuffer<PImage> depthImages;
+    
+    /**
+     * Adapter reused to interpret every received {@link MaixSenseA010Image} as a depth image.
+     */
+    MaixSenseA010DepthImageAdapter adaptedImage;
+    
+    /**
+     * Spatial filter applied to the received images, before {@link #temporalFilter}.
+     */
+    SpatialDepthFilter spatialFilter;
+    
+    /**
+     * Temporal filter applied to the received images.
+     */
+    TemporalDepthFilter temporalFilter;
+    
+    /**
+     * Applies {@link #spatialFilter} and {@link #temporalFilter} to {@link #adaptedImage}.
+     */
+    DepthFilterStage filterStage;
+    
+    /**
+     * Splits the processing of each image in stripes of rows processed in parallel.
+     */
+    StripeExecutor stripeExecutor;
+    
+    /**
+     * Renders the received images into {@link #depthImage}.
+     */
+    DepthImageRenderer depthImageRenderer;
+    
+    /**
+     * Records the received images, or null if they are not being recorded.
+     */
+    volatile CompressedFrameLogWriter recorder;
+    
+    /**
+     * Measures the latency of each stage of the processing of the images.
+     */
+    LatencyProfiler profiler;
+    
+    /**
+     * Whether the latency overlay is shown.
+     */
+    volatile boolean showLatency;
+    
+    /**
+     * Whether the latency statistics are exported to {@link #LATENCY_CSV_FILE}; set with key 'e'.
+     */
+    boolean exportLatency;
     
     
     
@@ -88,6 +196,22 @@ public class MaixSenseA010ImageViewer
      */
     public void setup()
     {
+        // Create the adapter used to interpret the received images.
+        this.adaptedImage = new MaixSenseA010DepthImageAdapter();
+        this.adaptedImage.setQuantizationUnit( QUANTIZATION_UNIT );
+        // the filters applied to them,
+        this.spatialFilter = new SpatialDepthFilter();
+        this.temporalFilter = new TemporalDepthFilter();
+        this.filterStage = new DepthFilterStage( this.spatialFilter , this.temporalFilter );
+        // and the renderer used to represent them.
+        this.depthImageRenderer = new DepthImageRenderer( COLORMAP , DEPTH_RANGE_MIN , DEPTH_RANGE_MAX );
+        this.stripeExecutor = new StripeExecutor( PROCESSING_STRIPES );
+        this.depthImageRenderer.setStripeExecutor( this.stripeExecutor );
+        // Create the buffers that will hold the depth images; they are created when the first image is received.
+        this.depthImages = new TripleBuffer<PImage>( null , null , null );
+        // Create the profiler that measures the latencies.
+        this.profiler = new LatencyProfiler( LATENCY_PERIOD );
+        
         // Create the image queue,
         MaixSenseA010ImagePublisherQueue imageQueue = new MaixSenseA010ImagePublisherQueue();
         // and add the listener; in this case it is the MaixSenseA010PointCloudViewer itself.
@@ -134,9 +258,24 @@ public class MaixSenseA010ImageViewer
      */
     public void draw()
     {
-        if( this.depthImage != null ) {
-            image( this.depthImage.copy() , 0 , 0 , width , height );
+        long drawStart = System.nanoTime();
+        // Take the last received image; its texture is only uploaded again if it is new.
+        boolean updated = this.depthImages.update();
+        PImage depthImage = this.depthImages.front();
+        if( depthImage != null ) {
+            long uploadStart = System.nanoTime();
+            image( depthImage , 0 , 0 , width , height );
+            if( updated ) {
+                this.profiler.record( LatencyProfiler.STAGE_UPLOAD , uploadStart );
+            }
         }
+        if( this.showLatency ) {
+            this.profiler.drawOverlay( this );
+        }
+        if( updated ) {
+            this.profiler.record( LatencyProfiler.STAGE_END_TO_END , this.depthImages.frontTimestamp() );
+        }
+        this.profiler.frameDrawn( drawStart );
     }
     
     
@@ -145,22 +284,121 @@ public class MaixSenseA010ImageViewer
      */
     public void consumeImage( MaixSenseA010Image image )
     {
+        long receiveTime = System.nanoTime();
+        this.profiler.frameReceived();
+        // Record the image; it is only copied, and written in another thread.
+        CompressedFrameLogWriter currentRecorder = this.recorder;
+        if( currentRecorder != null ) {
+            currentRecorder.consumeImage( image );
+        }
         // Adapt MaixSenseA010Image to be a DepthImage.
-        MaixSenseA010DepthImageAdapter adaptedImage = new MaixSenseA010DepthImageAdapter( image );
-        adaptedImage.setQuantizationUnit( QUANTIZATION_UNIT );
+        long projectionStart = System.nanoTime();
+        this.adaptedImage.setImage( image );
+        // Filter it.
+        this.filterStage.apply( this.adaptedImage );
+        long meshStart = this.profiler.record( LatencyProfiler.STAGE_PROJECTION , projectionStart );
         // Update PImage.
-        if(  this.depthImage == null  ||  this.depthImage.width != adaptedImage.cols()  ||  this.depthImage.height != adaptedImage.rows()  ) {
-            this.depthImage = createImage( adaptedImage.cols() , adaptedImage.rows() , RGB );
+        int rows = this.adaptedImage.rows();
+        int cols = this.adaptedImage.cols();
+        PImage depthImage = this.depthImages.back();
+        if(  depthImage == null  ||  depthImage.width != cols  ||  depthImage.height != rows  ) {
+            depthImage = createImage( cols , rows , RGB );
+            this.depthImages.replaceBack( depthImage );
         }
-        colorMode( RGB , (float)DEPTH_RANGE_MAX );
-        for( int i=0; i<adaptedImage.rows(); i++ ) {
-            for( int j=0; j<adaptedImage.cols(); j++ ) {
-                // Get depth value.
-                double depth = adaptedImage.depth( i , j );
-                // Set color in depth image.
-                this.depthImage.set( j,i , color( (float)(DEPTH_RANGE_MAX-depth) ) );
+        this.depthImageRenderer.render( this.adaptedImage , depthImage );
+        this.profiler.record( LatencyProfiler.STAGE_MESH , meshStart );
+        // Hand the image over to the animation thread.
+        this.depthImages.publish( receiveTime );
+        this.profiler.record( LatencyProfiler.STAGE_CONSUME , receiveTime );
+    }
+    
+    
+    /**
+     * Behavior when a key is pressed.
+     * <p>
+     * Key 'c' cycles through the available colormaps.
+     * Key 'r' starts or stops recording.
+     * Key 'f' cycles through the spatial filter modes.
+     * Key 'h' enables or disables hole filling.
+     * Key 't' cycles through the temporal filter modes.
+     * Key 'o' shows or hides the latency overlay.
+     * Key 'e' starts or stops exporting the latency statistics.
+     */
+    public void keyPressed()
+    {
+        if( key == 'c' ) {
+            this.depthImageRenderer.setColormap( ( this.depthImageRenderer.getColormap() + 1 ) % DepthImageRenderer.COLORMAPS );
+        } else if( key == 'r' ) {
+            if( this.recorder == null ) {
+                this.startRecording();
+            } else {
+                this.stopRecording();
             }
+        } else if( key == 'f' ) {
+            System.out.println( "Spatial filter: " + SpatialDepthFilter.modeName( this.spatialFilter.nextMode() ) );
+        } else if( key == 'h' ) {
+            this.spatialFilter.setHoleFilling( !this.spatialFilter.isHoleFilling() );
+            System.out.println( "Hole filling: " + ( this.spatialFilter.isHoleFilling()? "on" : "off" ) );
+        } else if( key == 't' ) {
+            System.out.println( "Temporal filter: " + TemporalDepthFilter.modeName( this.temporalFilter.nextMode() ) );
+        } else if( key == 'o' ) {
+            this.showLatency = !this.showLatency;
+            System.out.println( "Latency overlay: " + ( this.showLatency? "on" : "off" ) );
+        } else if( key == 'e' ) {
+            this.exportLatency = !this.exportLatency;
+            this.profiler.setCsvExport( this.exportLatency? LATENCY_CSV_FILE : null );
+            System.out.println( "Latency export: " + ( this.exportLatency? "on, to " + LATENCY_CSV_FILE : "off" ) );
+        }
+    }
+    
+    
+    /**
+     * Stops recording, if needed, and closes the latency CSV file before closing the window.
+     */
+    public void dispose()
+    {
+        this.stopRecording();
+        if( this.profiler != null ) {
+            this.profiler.close();
+        }
+        super.dispose();
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Starts recording the received images in a new compressed frame log.
+     */
+    private void startRecording()
+    {
+        String path = RECORDING_PREFIX + new SimpleDateFormat( "yyyyMMdd_HHmmss" ).format( new Date() ) + CompressedFrameLogWriter.EXTENSION;
+        try {
+            this.recorder = new CompressedFrameLogWriter( path );
+            System.out.println( "Recording " + path + "..." );
+        } catch( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+    
+    
+    /**
+     * Stops recording, writing the images that are still pending.
+     */
+    private void stopRecording()
+    {
+        CompressedFrameLogWriter currentRecorder = this.recorder;
+        if( currentRecorder == null ) {
+            return;
         }
+        // The acquisition thread may still hold the recorder; the images it hands over once it is closing are counted as dropped.
+        this.recorder = null;
+        currentRecorder.close();
+        System.out.println( String.format( "Recorded %d frames in %d bytes (compression ratio %.1f); %d frames dropped." ,
+                currentRecorder.framesWritten() , currentRecorder.bytesWritten() , currentRecorder.compressionRatio() , currentRecorder.droppedCount() ) );
     }
     
 }
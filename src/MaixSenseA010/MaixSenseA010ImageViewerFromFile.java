@@ -1,24 +1,52 @@
 package MaixSenseA010;
 
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 
-import maixsense.a010.MaixSenseA010Image;
-import maixsense.a010.MaixSenseA010ImageConsumer;
-import maixsense.a010.MaixSenseA010DataLogReader;
 import processing.core.PApplet;
 import processing.core.PImage;
+import util.DepthFilterStage;
+import util.DepthFrameConsumer;
+import util.DepthImageRenderer;
+import util.FrameLog;
+import util.IndexedFrameLog;
+import util.LatencyProfiler;
+import util.LogPlayer;
 import util.MaixSenseA010DepthImageAdapter;
+import util.SpatialDepthFilter;
+import util.StripeExecutor;
+import util.TemporalDepthFilter;
+import util.TripleBuffer;
 
 
 
 /**
  * Example on how to plot a depth image captured with the MaixSenseA010 ToF camera.
+ * <p>
+ * The log is opened with {@link FrameLog#open(String, double)}: logs recorded with the camera are read with {@link IndexedFrameLog},
+ * and compressed frame logs with {@link util.CompressedFrameLogReader}; in both cases any frame can be shown quickly,
+ * and it is played by a {@link LogPlayer} in its own thread, paced by the timestamps of the frames.
+ * The frame index, the speed, and the drift of the pacing are shown in the window title.
+ * The latency of each stage of the processing of the frames is measured with {@link LatencyProfiler}; its statistics can be exported to {@link #LATENCY_CSV_FILE} with key 'e'.
+ * <p>
+ * Controls:
+ * <ul>
+ *  <li> Key 'c': change colormap.
+ *  <li> Key 'f': change spatial filter.
+ *  <li> Key 'h': enable / disable hole filling.
+ *  <li> Key 't': change temporal filter.
+ *  <li> Space bar: play / pause.
+ *  <li> Left / right arrows: pause, and show the previous / next frame.
+ *  <li> Down / up arrows: jump {@link #SEEK_SECONDS} backward / forward.
+ *  <li> Keys '0' to '9': jump to 0%, 10%, ..., 90% of the log.
+ *  <li> Keys '-' / '+': decrease / increase the playback speed.
+ *  <li> Key 'o': show / hide the latency overlay.
+ *  <li> Key 'e': start / stop exporting the latency statistics.
+ * </ul>
  */
 public class MaixSenseA010ImageViewerFromFile
     extends PApplet
-    implements MaixSenseA010ImageConsumer
+    implements DepthFrameConsumer
 {
     ////////////////////////////////////////////////////////////////
     // PARAMETERS
@@ -29,24 +57,126 @@ public class MaixSenseA010ImageViewerFromFile
      */
     static final int QUANTIZATION_UNIT = 0;
     
+    /**
+     * Minimum depth in meters represented in the depth image.
+     */
+    static final double DEPTH_RANGE_MIN = 0.0;
+    
     /**
      * Maximum depth that the sensor can measure in meters.
      */
     static final double DEPTH_RANGE_MAX = 2.5;
     
+    /**
+     * Colormap used initially to represent the depth image.
+     */
+    static final int COLORMAP = DepthImageRenderer.COLORMAP_GRAYSCALE;
+    
+    /**
+     * Log to be shown.
+     */
+    static final String LOG_FILE = "maixSenseA010_25x25_20250614_135010.log";
+    
+    /**
+     * Frame rate in Hz at which the log was recorded, used to timestamp its frames.
+     */
+    static final double FPS = 20.0;
+    
+    /**
+     * Playback speeds selected with the '-' and '+' keys.
+     */
+    static final double[] SPEEDS = { 0.25 , 0.5 , 1.0 , 2.0 , 4.0 , 8.0 , LogPlayer.MAX_SPEED };
+    
+    /**
+     * Time in seconds jumped with the up and down arrows.
+     */
+    static final double SEEK_SECONDS = 5.0;
+    
+    /**
+     * Maximum number of row stripes in which each image is split to be processed in parallel; 1 processes images in the thread that receives them.
+     */
+    static final int PROCESSING_STRIPES = 4;
+    
+    /**
+     * Path of the CSV file where the latency statistics are exported while the export is enabled.
+     */
+    static final String LATENCY_CSV_FILE = "latency_imageViewerFromFile.csv";
+    
+    /**
+     * Period in seconds over which the latency statistics are computed.
+     */
+    static final double LATENCY_PERIOD = 1.0;
+    
     
     
     ////////////////////////////////////////////////////////////////
     // VARIABLES
     ////////////////////////////////////////////////////////////////
     
-    MaixSenseA010DataLogReader source;
+    /**
+     * Source of images, with random access to its frames.
+     */
+    FrameLog source;
+    
+    /**
+     * Plays {@link #source}, delivering its frames to this viewer.
+     */
+    LogPlayer player;
+    
+    /**
+     * Index in {@link #SPEEDS} of the playback speed.
+     */
+    int speedIndex;
+    
+    /**
+     * {@link PImage}s that hold the depth images, exchanged between the thread that receives the images and the animation thread.
+     */
+    TripleBuffer<PImage> depthImages;
+    
+    /**
+     * Adapter reused to interpret every frame delivered by {@link #player} as a depth image.
+     */
+    MaixSenseA010DepthImageAdapter adaptedImage;
     
+    /**
+     * Spatial filter applied to the received images, before {@link #temporalFilter}.
+     */
+    SpatialDepthFilter spatialFilter;
     
     /**
-     * {@link PImage} that holds the last depth image received from the last received depth image.
+     * Temporal filter applied to the images.
      */
-    PImage depthImage;
+    TemporalDepthFilter temporalFilter;
+    
+    /**
+     * Applies {@link #spatialFilter} and {@link #temporalFilter} to {@link #adaptedImage}.
+     */
+    DepthFilterStage filterStage;
+    
+    /**
+     * Splits the processing of each image in stripes of rows processed in parallel.
+     */
+    StripeExecutor stripeExecutor;
+    
+    /**
+     * Renders the received images into {@link #depthImages}.
+     */
+    DepthImageRenderer depthImageRenderer;
+    
+    /**
+     * Measures the latency of each stage of the processing of the frames.
+     */
+    LatencyProfiler profiler;
+    
+    /**
+     * Whether the latency overlay is shown.
+     */
+    volatile boolean showLatency;
+    
+    /**
+     * Whether the latency statistics are exported to {@link #LATENCY_CSV_FILE}; set with key 'e'.
+     */
+    boolean exportLatency;
     
     
     
@@ -91,16 +221,37 @@ public class MaixSenseA010ImageViewerFromFile
      */
     public void setup()
     {
-        // Create the source of images,
-        source = new MaixSenseA010DataLogReader( "maixSenseA010_25x25_20250614_135010.log" );
+        // Create the adapter used to interpret the images,
+        this.adaptedImage = new MaixSenseA010DepthImageAdapter();
+        this.adaptedImage.setQuantizationUnit( QUANTIZATION_UNIT );
+        // the filters applied to them,
+        this.spatialFilter = new SpatialDepthFilter();
+        this.temporalFilter = new TemporalDepthFilter();
+        this.filterStage = new DepthFilterStage( this.spatialFilter , this.temporalFilter );
+        // and the renderer used to represent them.
+        this.depthImageRenderer = new DepthImageRenderer( COLORMAP , DEPTH_RANGE_MIN , DEPTH_RANGE_MAX );
+        this.stripeExecutor = new StripeExecutor( PROCESSING_STRIPES );
+        this.depthImageRenderer.setStripeExecutor( this.stripeExecutor );
+        // Create the buffers that will hold the depth images; they are created when the first image is received.
+        this.depthImages = new TripleBuffer<PImage>( null , null , null );
+        // Create the profiler that measures the latencies.
+        this.profiler = new LatencyProfiler( LATENCY_PERIOD );
         
-        // Initialize the source.
+        // Open the source of images; the index file of logs recorded with the camera is built the first time.
         try {
-            source.initialize();
-        } catch( FileNotFoundException e ) {
+            this.source = FrameLog.open( LOG_FILE , FPS );
+        } catch( IOException e ) {
             e.printStackTrace();
             return;
         }
+        
+        // Create the player, add the listener; in this case it is the MaixSenseA010ImageViewerFromFile itself,
+        this.player = new LogPlayer( this.source );
+        this.player.addListener( this );
+        this.speedIndex = 2;
+        this.player.setSpeed( SPEEDS[ this.speedIndex ] );
+        // and start playing from the first frame.
+        this.player.start();
     }
     
     
@@ -109,54 +260,154 @@ public class MaixSenseA010ImageViewerFromFile
      */
     public void draw()
     {
-    	try {
-    		// Get next image.
-			MaixSenseA010Image image = source.nextImage();
-			// Handle the end of the log.
-			if( image == null ) {
-				System.out.println( "Reached end of log." );
-				exit();
-				return;
-			}
-			// Consume the image.
-			consumeImage( image );
-			// Adapt to a frequency of 20Hz.
-			Thread.sleep( (long) (1.0/20.0 * 1.0e3) );
-		} catch( IOException e ) {
-			e.printStackTrace();
-		} catch( InterruptedException e ) {
-			e.printStackTrace();
-		}
-    	// Plot the image.
-        if( this.depthImage != null ) {
-            image( this.depthImage.copy() , 0 , 0 , width , height );
+        long drawStart = System.nanoTime();
+        // Plot the image; its texture is only uploaded again if it is new.
+        boolean updated = this.depthImages.update();
+        PImage depthImage = this.depthImages.front();
+        if( depthImage != null ) {
+            long uploadStart = System.nanoTime();
+            image( depthImage , 0 , 0 , width , height );
+            if( updated ) {
+                this.profiler.record( LatencyProfiler.STAGE_UPLOAD , uploadStart );
+            }
+        }
+        // Report the state of the player.
+        if(  this.player != null  &&  frameCount % 10 == 0  ) {
+            int k = Math.max( this.player.currentFrame() , 0 );
+            surface.setTitle( String.format( "Frame %d / %d (%.2f s) - speed %s - drift %.2f ms (max %.2f ms)" ,
+                    k , this.source.frameCount() , this.source.timestamp( k ) * 1.0e-9 ,
+                    ( this.player.getSpeed() == LogPlayer.MAX_SPEED )? "max" : this.player.getSpeed() + "x" ,
+                    this.player.lastDriftNanos() * 1.0e-6 , this.player.maxDriftNanos() * 1.0e-6 ) );
+        }
+        if( this.showLatency ) {
+            this.profiler.drawOverlay( this );
+        }
+        if( updated ) {
+            this.profiler.record( LatencyProfiler.STAGE_END_TO_END , this.depthImages.frontTimestamp() );
         }
+        this.profiler.frameDrawn( drawStart );
     }
     
     
     /**
      * {@inheritDoc}
      * <p>
-     * In particular, here we get the {@link MaixSenseA010Image} and copy the information into a {@link PImage}.
+     * In particular, here we get the frames delivered by {@link #player} and copy the information into a {@link PImage}.
      */
-    public void consumeImage( MaixSenseA010Image image )
+    public void consumeFrame( byte[] pixels , int rows , int cols , long timestamp )
     {
-        // Adapt MaixSenseA010Image to be a DepthImage.
-        MaixSenseA010DepthImageAdapter adaptedImage = new MaixSenseA010DepthImageAdapter( image );
-        adaptedImage.setQuantizationUnit( QUANTIZATION_UNIT );
+        long receiveTime = System.nanoTime();
+        this.profiler.frameReceived();
+        // Adapt the raw pixel values to be a DepthImage.
+        this.adaptedImage.setPixels( pixels , rows , cols );
         // Update PImage.
-        if(  this.depthImage == null  ||  this.depthImage.width != adaptedImage.cols()  ||  this.depthImage.height != adaptedImage.rows()  ) {
-            this.depthImage = createImage( adaptedImage.cols() , adaptedImage.rows() , RGB );
+        this.renderAdaptedImage( receiveTime );
+    }
+    
+    
+    /**
+     * Behavior when a key is pressed.
+     * <p>
+     * Key 'c' cycles through the available colormaps, keys 'f', 'h', and 't' change the filters, key 'o' shows or hides the latency overlay, key 'e' starts or stops the latency export;
+     * the rest of keys navigate the log.
+     */
+    public void keyPressed()
+    {
+        if( key == 'c' ) {
+            this.depthImageRenderer.setColormap( ( this.depthImageRenderer.getColormap() + 1 ) % DepthImageRenderer.COLORMAPS );
+        } else if( key == 'f' ) {
+            System.out.println( "Spatial filter: " + SpatialDepthFilter.modeName( this.spatialFilter.nextMode() ) );
+        } else if( key == 'h' ) {
+            this.spatialFilter.setHoleFilling( !this.spatialFilter.isHoleFilling() );
+            System.out.println( "Hole filling: " + ( this.spatialFilter.isHoleFilling()? "on" : "off" ) );
+        } else if( key == 't' ) {
+            System.out.println( "Temporal filter: " + TemporalDepthFilter.modeName( this.temporalFilter.nextMode() ) );
+        } else if( key == 'o' ) {
+            this.showLatency = !this.showLatency;
+            System.out.println( "Latency overlay: " + ( this.showLatency? "on" : "off" ) );
+        } else if( key == 'e' ) {
+            this.exportLatency = !this.exportLatency;
+            this.profiler.setCsvExport( this.exportLatency? LATENCY_CSV_FILE : null );
+            System.out.println( "Latency export: " + ( this.exportLatency? "on, to " + LATENCY_CSV_FILE : "off" ) );
+        }
+        if( this.player == null ) {
+            return;
         }
-        colorMode( RGB , (float)DEPTH_RANGE_MAX );
-        for( int i=0; i<adaptedImage.rows(); i++ ) {
-            for( int j=0; j<adaptedImage.cols(); j++ ) {
-                // Get depth value.
-                double depth = adaptedImage.depth( i , j );
-                // Set color in depth image.
-                this.depthImage.set( j,i , color( (float)(DEPTH_RANGE_MAX-depth) ) );
+        int k = Math.max( this.player.currentFrame() , 0 );
+        if( key == ' ' ) {
+            if( this.player.isPaused() ) {
+                this.player.resume();
+            } else {
+                this.player.pause();
             }
+        } else if(  '0' <= key  &&  key <= '9'  ) {
+            this.player.seek( (int)( (long)( key - '0' ) * this.source.frameCount() / 10 ) );
+        } else if(  key == '-'  ||  key == '+'  ) {
+            this.speedIndex = Math.max( 0 , Math.min( SPEEDS.length - 1 , this.speedIndex + ( ( key == '+' )? 1 : -1 ) ) );
+            this.player.setSpeed( SPEEDS[ this.speedIndex ] );
+            this.player.resetDriftStatistics();
+        } else if( key == CODED ) {
+            long seek = (long)( SEEK_SECONDS * 1.0e9 );
+            switch( keyCode ) {
+                case LEFT:
+                    this.player.pause();
+                    this.player.seek( k - 1 );
+                    break;
+                case RIGHT:
+                    this.player.pause();
+                    this.player.seek( k + 1 );
+                    break;
+                case UP:
+                    this.player.seek( this.source.frameAt( this.source.timestamp( k ) + seek ) );
+                    break;
+                case DOWN:
+                    this.player.seek( this.source.frameAt( this.source.timestamp( k ) - seek ) );
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+    
+    
+    /**
+     * Closes the latency CSV file before closing the window.
+     */
+    public void dispose()
+    {
+        if( this.profiler != null ) {
+            this.profiler.close();
+        }
+        super.dispose();
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Filters and renders the image held by {@link #adaptedImage}, and hands it over to the animation thread.
+     * 
+     * @param receiveTime   time at which the image was received, as given by {@link System#nanoTime()}.
+     */
+    private void renderAdaptedImage( long receiveTime )
+    {
+        this.filterStage.apply( this.adaptedImage );
+        long meshStart = this.profiler.record( LatencyProfiler.STAGE_PROJECTION , receiveTime );
+        int rows = this.adaptedImage.rows();
+        int cols = this.adaptedImage.cols();
+        PImage depthImage = this.depthImages.back();
+        if(  depthImage == null  ||  depthImage.width != cols  ||  depthImage.height != rows  ) {
+            depthImage = createImage( cols , rows , RGB );
+            this.depthImages.replaceBack( depthImage );
         }
+        this.depthImageRenderer.render( this.adaptedImage , depthImage );
+        this.profiler.record( LatencyProfiler.STAGE_MESH , meshStart );
+        // Hand the image over to the animation thread.
+        this.depthImages.publish( receiveTime );
+        this.profiler.record( LatencyProfiler.STAGE_CONSUME , receiveTime );
     }
     
 }
@@ -0,0 +1,353 @@
+package MaixSenseA010;
+
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import maixsense.a010.MaixSenseA010DataLogReader;
+import maixsense.a010.MaixSenseA010Image;
+import processing.core.PConstants;
+import processing.core.PImage;
+import sensorCalibrationLibrary.depthCameras.maixSenseA010.MaixSenseA010DefaultCalibration;
+import util.DepthGridMesh;
+import util.DepthImageRenderer;
+import util.MaixSenseA010DepthImageAdapter;
+import util.MaixSenseA010PointCloudProjector;
+import util.PointCloudBuffer;
+
+
+
+/**
+ * Replays a log recorded with the MaixSenseA010 ToF camera as fast as possible, without camera nor window,
+ * and reports the throughput of the processing stages used by the viewers.
+ * <p>
+ * The log is loaded in memory, and every image goes through the same stages used by the viewers:
+ * adaptation and depth decoding, point cloud generation, mesh update, and colorization.
+ * A first pass over the log warms up the JVM and is not measured.
+ * Then, the frames per second, the latency percentiles of each stage, and the bytes allocated per frame are reported.
+ * <p>
+ * Arguments:
+ * <ul>
+ *  <li> Path to the log file (optional).
+ *  <li> Number of measured passes over the log (optional, 1 by default).
+ * </ul>
+ */
+public class MaixSenseA010LogReplayBenchmark
+{
+    ////////////////////////////////////////////////////////////////
+    // PARAMETERS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Log replayed if no path is given.
+     */
+    static final String DEFAULT_LOG_FILE = "maixSenseA010_25x25_20250614_135010.log";
+    
+    /**
+     * Quantization unit used to record the log.
+     */
+    static final int QUANTIZATION_UNIT = 0;
+    
+    /**
+     * Minimum depth in meters represented in the depth image.
+     */
+    static final double DEPTH_RANGE_MIN = 0.0;
+    
+    /**
+     * Maximum depth that the sensor can measure in meters.
+     */
+    static final double DEPTH_RANGE_MAX = 2.5;
+    
+    /**
+     * Factor used to scale the pixel indices in the mesh.
+     */
+    static final float XY_FACTOR = 1.0e-2f;
+    
+    /**
+     * Percentiles reported for each stage.
+     */
+    static final double[] PERCENTILES = { 0.5 , 0.9 , 0.99 };
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Names of the measured stages.
+     */
+    private static final String[] STAGE_NAMES = { "adapt" , "pointCloud" , "mesh" , "colorize" };
+    
+    /**
+     * Index of the adaptation and depth decoding stage.
+     */
+    private static final int STAGE_ADAPT = 0;
+    
+    /**
+     * Index of the point cloud generation stage.
+     */
+    private static final int STAGE_POINT_CLOUD = 1;
+    
+    /**
+     * Index of the mesh update stage.
+     */
+    private static final int STAGE_MESH = 2;
+    
+    /**
+     * Index of the colorization stage.
+     */
+    private static final int STAGE_COLORIZE = 3;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Adapter used to interpret the images as depth images.
+     */
+    private MaixSenseA010DepthImageAdapter adaptedImage;
+    
+    /**
+     * Depths in meters of the current image, stored in row-major order.
+     */
+    private float[] depths;
+    
+    /**
+     * Generates the point clouds.
+     */
+    private MaixSenseA010PointCloudProjector pointCloudProjector;
+    
+    /**
+     * Point cloud of the current image.
+     */
+    private PointCloudBuffer pointCloud;
+    
+    /**
+     * Mesh of the current image.
+     */
+    private DepthGridMesh mesh;
+    
+    /**
+     * Colorizes the images.
+     */
+    private DepthImageRenderer depthImageRenderer;
+    
+    /**
+     * Colorized current image.
+     */
+    private PImage depthImage;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // MAIN: ENTRY POINT
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Entry point.
+     * 
+     * @param args  path to the log file, and number of measured passes over the log; both optional.
+     */
+    public static void main( String[] args )
+    {
+        String path = ( args.length > 0 )? args[0] : DEFAULT_LOG_FILE;
+        int passes = ( args.length > 1 )? Integer.parseInt( args[1] ) : 1;
+        if( passes < 1 ) {
+            throw new IllegalArgumentException( "The number of passes must be positive." );
+        }
+        // Load the log in memory so that reading the file is not measured.
+        List<MaixSenseA010Image> images;
+        try {
+            images = readLog( path );
+        } catch( IOException e ) {
+            e.printStackTrace();
+            return;
+        }
+        if( images.isEmpty() ) {
+            System.out.println( "The log is empty." );
+            return;
+        }
+        System.out.println( "Loaded " + images.size() + " images from " + path + "." );
+        // Replay it.
+        MaixSenseA010LogReplayBenchmark benchmark = new MaixSenseA010LogReplayBenchmark();
+        benchmark.run( images , passes );
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link MaixSenseA010LogReplayBenchmark}.
+     */
+    public MaixSenseA010LogReplayBenchmark()
+    {
+        this.adaptedImage = new MaixSenseA010DepthImageAdapter();
+        this.adaptedImage.setQuantizationUnit( QUANTIZATION_UNIT );
+        this.pointCloudProjector = new MaixSenseA010PointCloudProjector( new MaixSenseA010DefaultCalibration() );
+        this.pointCloud = new PointCloudBuffer();
+        this.mesh = new DepthGridMesh( XY_FACTOR , (float)DEPTH_RANGE_MAX );
+        this.depthImageRenderer = new DepthImageRenderer( DepthImageRenderer.COLORMAP_TURBO , DEPTH_RANGE_MIN , DEPTH_RANGE_MAX );
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Processes the images a number of times and prints the results.
+     * 
+     * @param images    images to be processed.
+     * @param passes    number of measured passes over the images.
+     */
+    public void run( List<MaixSenseA010Image> images , int passes )
+    {
+        // Warm up.
+        long[][] latencies = new long[ STAGE_NAMES.length ][ images.size() ];
+        for( int k=0; k<images.size(); k++ ) {
+            this.process( images.get( k ) , latencies , k );
+        }
+        // Measure.
+        int frames = images.size() * passes;
+        latencies = new long[ STAGE_NAMES.length ][ frames ];
+        long allocatedStart = allocatedBytes();
+        long timeStart = System.nanoTime();
+        int frame = 0;
+        for( int pass=0; pass<passes; pass++ ) {
+            for( int k=0; k<images.size(); k++ ) {
+                this.process( images.get( k ) , latencies , frame++ );
+            }
+        }
+        long elapsed = System.nanoTime() - timeStart;
+        long allocatedEnd = allocatedBytes();
+        // Report.
+        System.out.println( String.format( "%d frames in %.3f s: %.1f frames/s" , frames , elapsed * 1.0e-9 , frames / ( elapsed * 1.0e-9 ) ) );
+        StringBuilder header = new StringBuilder( String.format( "%-12s" , "stage (us)" ) );
+        for( double p : PERCENTILES ) {
+            header.append( String.format( "%10s" , "p" + (int)Math.round( p * 100 ) ) );
+        }
+        header.append( String.format( "%10s" , "max" ) );
+        System.out.println( header );
+        for( int s=0; s<STAGE_NAMES.length; s++ ) {
+            long[] sorted = latencies[s];
+            Arrays.sort( sorted );
+            StringBuilder line = new StringBuilder( String.format( "%-12s" , STAGE_NAMES[s] ) );
+            for( double p : PERCENTILES ) {
+                line.append( String.format( "%10.1f" , percentile( sorted , p ) * 1.0e-3 ) );
+            }
+            line.append( String.format( "%10.1f" , sorted[ sorted.length-1 ] * 1.0e-3 ) );
+            System.out.println( line );
+        }
+        if(  allocatedStart >= 0  &&  allocatedEnd >= 0  ) {
+            System.out.println( String.format( "Allocated %.1f bytes/frame." , (double)( allocatedEnd - allocatedStart ) / frames ) );
+        } else {
+            System.out.println( "Allocation per frame not available in this JVM." );
+        }
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Processes an image through all the stages, measuring the latency of each one.
+     * 
+     * @param image     image to be processed.
+     * @param latencies     latencies in nanoseconds, indexed by stage and frame.
+     * @param frame     index of the frame in {@code latencies}.
+     */
+    private void process( MaixSenseA010Image image , long[][] latencies , int frame )
+    {
+        // Adapt the image and decode its depths.
+        long t0 = System.nanoTime();
+        this.adaptedImage.setImage( image );
+        int rows = this.adaptedImage.rows();
+        int cols = this.adaptedImage.cols();
+        if(  this.depths == null  ||  this.depths.length != rows*cols  ) {
+            this.depths = new float[ rows*cols ];
+        }
+        this.adaptedImage.depthsInto( this.depths );
+        // Generate the point cloud.
+        long t1 = System.nanoTime();
+        this.pointCloud.setCapacity( rows*cols );
+        this.pointCloud.setCount( this.pointCloudProjector.pointCloudInto( this.adaptedImage , this.pointCloud.xyz() ) );
+        // Update the mesh.
+        long t2 = System.nanoTime();
+        this.mesh.update( this.depths , rows , cols );
+        // Colorize the image.
+        long t3 = System.nanoTime();
+        if(  this.depthImage == null  ||  this.depthImage.width != cols  ||  this.depthImage.height != rows  ) {
+            this.depthImage = new PImage( cols , rows , PConstants.RGB );
+        }
+        this.depthImageRenderer.render( this.adaptedImage , this.depthImage );
+        long t4 = System.nanoTime();
+        latencies[STAGE_ADAPT][frame] = t1 - t0;
+        latencies[STAGE_POINT_CLOUD][frame] = t2 - t1;
+        latencies[STAGE_MESH][frame] = t3 - t2;
+        latencies[STAGE_COLORIZE][frame] = t4 - t3;
+    }
+    
+    
+    /**
+     * Reads all the images of a log.
+     * 
+     * @param path  path to the log file.
+     * @return  images of the log.
+     * @throws FileNotFoundException    if the log file does not exist.
+     * @throws IOException  if the log can not be read.
+     */
+    private static List<MaixSenseA010Image> readLog( String path ) throws IOException
+    {
+        MaixSenseA010DataLogReader reader = new MaixSenseA010DataLogReader( path );
+        reader.initialize();
+        List<MaixSenseA010Image> images = new ArrayList<MaixSenseA010Image>();
+        MaixSenseA010Image image;
+        while( ( image = reader.nextImage() ) != null ) {
+            images.add( image );
+        }
+        return images;
+    }
+    
+    
+    /**
+     * Returns a percentile of sorted values.
+     * 
+     * @param sorted    values sorted in ascending order.
+     * @param p     percentile in [0,1].
+     * @return  smallest value greater or equal than a fraction {@code p} of the values.
+     */
+    private static long percentile( long[] sorted , double p )
+    {
+        int index = (int)Math.ceil( p * sorted.length ) - 1;
+        return sorted[ Math.max( 0 , Math.min( sorted.length-1 , index ) ) ];
+    }
+    
+    
+    /**
+     * Returns the number of bytes allocated so far by the current thread.
+     * 
+     * @return  number of bytes allocated by the current thread, or -1 if the JVM does not support it.
+     */
+    private static long allocatedBytes()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if( bean instanceof com.sun.management.ThreadMXBean ) {
+            return ( (com.sun.management.ThreadMXBean)bean ).getThreadAllocatedBytes( Thread.currentThread().getId() );
+        }
+        return -1;
+    }
+    
+}
@@ -4,28 +4,55 @@ package MaixSenseA010;
 import jssc.SerialPortException;
 import maixsense.a010.MaixSenseA010Driver;
 import maixsense.a010.MaixSenseA010Image;
-import maixsense.a010.MaixSenseA010ImageConsumer;
 import maixsense.a010.MaixSenseA010ImageEnqueuerStrategy;
 import maixsense.a010.MaixSenseA010ImagePublisherQueue;
 import processing.core.PApplet;
-import processing.core.PShape;
 import processing.event.MouseEvent;
+import sensorCalibrationLibrary.depthCameras.maixSenseA010.MaixSenseA010DefaultCalibration;
+import util.BackpressureImageConsumer;
+import util.DepthFilterStage;
+import util.DepthFrameConsumer;
+import util.DepthGridMesh;
+import util.DepthGridMeshRenderer;
+import util.DepthGridQuadtree;
+import util.DepthNormalEstimator;
+import util.LatencyProfiler;
 import util.MaixSenseA010DepthImageAdapter;
+import util.MaixSenseA010PointCloudProjector;
+import util.SpatialDepthFilter;
+import util.StripeExecutor;
+import util.StripeTask;
+import util.TemporalDepthFilter;
+import util.TripleBuffer;
 
 
 
 /**
  * Example on how to plot a mesh from a depth image captured with the MaixSenseA010 ToF camera.
  * <p>
+ * By default, triangles with invalid pixels or with depth jumps greater than {@link #MAX_DEPTH_JUMP} are dropped;
+ * the number of triangles drawn is shown in the window title.
+ * The mesh can also be decimated, merging the quads of flat regions into larger cells that fit a plane within {@link #DECIMATION_TOLERANCE},
+ * and lit with the normals of the surface, estimated on the depth image with windows of {@link #NORMAL_WINDOW_RADIUS}.
+ * The latency of each stage of the processing of the images is measured with {@link LatencyProfiler}; its statistics can be exported to {@link #LATENCY_CSV_FILE} with key 'e'.
+ * <p>
  * Controls:
  * <ul>
  *  <li> Mouse position: camera viewpoint.
  *  <li> Mouse wheel: zoom.
+ *  <li> Key 'f': change spatial filter.
+ *  <li> Key 'h': enable / disable hole filling.
+ *  <li> Key 't': change temporal filter.
+ *  <li> Key 'd': enable / disable dropping invalid and discontinuous triangles.
+ *  <li> Key 'l': enable / disable decimation of flat regions.
+ *  <li> Key 'n': enable / disable lighting with surface normals.
+ *  <li> Key 'o': show / hide the latency overlay.
+ *  <li> Key 'e': start / stop exporting the latency statistics.
  * </ul>
  */
 public class MaixSenseA010Mesh3dViewer
     extends PApplet
-    implements MaixSenseA010ImageConsumer
+    implements DepthFrameConsumer
 {
     ////////////////////////////////////////////////////////////////
     // PARAMETERS
@@ -46,6 +73,36 @@ public class MaixSenseA010Mesh3dViewer
      */
     static final float XY_FACTOR = 1.0e-2f;
     
+    /**
+     * Maximum number of row stripes in which each image is split to be processed in parallel; 1 processes images in the thread that receives them.
+     */
+    static final int PROCESSING_STRIPES = 4;
+    
+    /**
+     * Maximum difference in meters between the depths of the vertices of a triangle for it to be drawn.
+     */
+    static final float MAX_DEPTH_JUMP = 0.1f;
+    
+    /**
+     * Maximum distance in meters between the depths of the pixels of a decimated cell of the mesh and the plane of the cell.
+     */
+    static final float DECIMATION_TOLERANCE = 0.01f;
+    
+    /**
+     * Half size in pixels of the window used to estimate the normals of the surface.
+     */
+    static final int NORMAL_WINDOW_RADIUS = 3;
+    
+    /**
+     * Path of the CSV file where the latency statistics are exported while the export is enabled.
+     */
+    static final String LATENCY_CSV_FILE = "latency_mesh3dViewer.csv";
+    
+    /**
+     * Period in seconds over which the latency statistics are computed.
+     */
+    static final double LATENCY_PERIOD = 1.0;
+    
     
     
     ////////////////////////////////////////////////////////////////
@@ -53,9 +110,111 @@ public class MaixSenseA010Mesh3dViewer
     ////////////////////////////////////////////////////////////////
     
     /**
-     * {@link PShape} that holds the mesh generated from the last received depth image.
+     * Meshes generated from the received depth images, exchanged between the thread that receives the images and the animation thread.
+     * <p>
+     * Their topology is built once per image size; only depths and colors are updated with each image.
+     */
+    TripleBuffer<DepthGridMesh> meshes;
+    
+    /**
+     * Draws {@link #meshes} keeping its buffers in the GPU between frames.
+     */
+    DepthGridMeshRenderer meshRenderer;
+    
+    /**
+     * Calibration used to compute the points of the pixels, from which the normals are estimated.
+     */
+    MaixSenseA010DefaultCalibration depthCameraCalibration;
+    
+    /**
+     * Provides the unit-depth rays of the pixels, computed with {@link #depthCameraCalibration}.
+     */
+    MaixSenseA010PointCloudProjector pointCloudProjector;
+    
+    /**
+     * Estimates the normals of the surface from the depths of the received images.
+     */
+    DepthNormalEstimator normalEstimator;
+    
+    /**
+     * Normals of the surface of the last received image, three per pixel.
+     */
+    float[] normals;
+    
+    /**
+     * Adapter reused to interpret every received {@link MaixSenseA010Image} as a depth image.
+     */
+    MaixSenseA010DepthImageAdapter adaptedImage;
+    
+    /**
+     * Spatial filter applied to the received images, before {@link #temporalFilter}.
      */
-    PShape meshShape;
+    SpatialDepthFilter spatialFilter;
+    
+    /**
+     * Temporal filter applied to the received images.
+     */
+    TemporalDepthFilter temporalFilter;
+    
+    /**
+     * Applies {@link #spatialFilter} and {@link #temporalFilter} to {@link #adaptedImage}.
+     */
+    DepthFilterStage filterStage;
+    
+    /**
+     * Depths in meters of the last received image, stored in row-major order.
+     */
+    float[] depths;
+    
+    /**
+     * Validity bitset of the last received image.
+     */
+    long[] validityBits;
+    
+    /**
+     * True if triangles with invalid pixels or depth jumps are dropped; set with key 'd'.
+     */
+    volatile boolean dropTriangles;
+    
+    /**
+     * True if the flat regions of the mesh are decimated; set with key 'l'.
+     */
+    volatile boolean decimate;
+    
+    /**
+     * True if the mesh is lit with the normals of the surface; set with key 'n'.
+     */
+    volatile boolean lighting;
+    
+    /**
+     * Splits the processing of each image in stripes of rows processed in parallel.
+     */
+    StripeExecutor stripeExecutor;
+    
+    /**
+     * Decodes the depths of a stripe of {@link #adaptedImage} into {@link #depths}.
+     */
+    StripeTask decodeTask;
+    
+    /**
+     * Delivers the received images to this viewer in its own thread, keeping only the last one.
+     */
+    BackpressureImageConsumer imageWrapper;
+    
+    /**
+     * Measures the latency of each stage of the processing of the images.
+     */
+    LatencyProfiler profiler;
+    
+    /**
+     * Whether the latency overlay is shown; set with key 'o'.
+     */
+    volatile boolean showLatency;
+    
+    /**
+     * Whether the latency statistics are exported to {@link #LATENCY_CSV_FILE}; set with key 'e'.
+     */
+    boolean exportLatency;
     
     /**
      * Zoom set with the mouse wheel.
@@ -67,7 +226,7 @@ public class MaixSenseA010Mesh3dViewer
     ////////////////////////////////////////////////////////////////
     // MAIN: ENTRY POINT
     ////////////////////////////////////////////////////////////////
-
+    
     /**
      * Entry point.
      * <p>
@@ -105,10 +264,44 @@ public class MaixSenseA010Mesh3dViewer
      */
     public void setup()
     {
+        // Create the adapter used to interpret the received images,
+        this.adaptedImage = new MaixSenseA010DepthImageAdapter();
+        this.adaptedImage.setQuantizationUnit( QUANTIZATION_UNIT );
+        // and the filters applied to them.
+        this.spatialFilter = new SpatialDepthFilter();
+        this.temporalFilter = new TemporalDepthFilter();
+        this.filterStage = new DepthFilterStage( this.spatialFilter , this.temporalFilter );
+        
+        // Create the executor used to process the depths, the normals and the meshes in stripes,
+        this.stripeExecutor = new StripeExecutor( PROCESSING_STRIPES );
+        // the estimator of the normals, with the rays of the default calibration,
+        this.depthCameraCalibration = new MaixSenseA010DefaultCalibration();
+        this.pointCloudProjector = new MaixSenseA010PointCloudProjector( this.depthCameraCalibration );
+        this.normalEstimator = new DepthNormalEstimator( NORMAL_WINDOW_RADIUS );
+        this.normalEstimator.setStripeExecutor( this.stripeExecutor );
+        this.decodeTask = ( stripe , rowStart , rowEnd ) -> this.adaptedImage.depthsInto( this.depths , rowStart * this.adaptedImage.cols() , rowEnd * this.adaptedImage.cols() );
+        // and the meshes and their renderer; the meshes share the quadtree that decimates them, so that each frame is compared with the previous one.
+        DepthGridQuadtree quadtree = new DepthGridQuadtree();
+        DepthGridMesh[] meshArray = new DepthGridMesh[3];
+        for( int m=0; m<meshArray.length; m++ ) {
+            meshArray[m] = new DepthGridMesh( XY_FACTOR , (float)DEPTH_RANGE_MAX );
+            meshArray[m].setStripeExecutor( this.stripeExecutor );
+            meshArray[m].setDecimationQuadtree( quadtree );
+        }
+        this.meshes = new TripleBuffer<DepthGridMesh>( meshArray[0] , meshArray[1] , meshArray[2] );
+        this.meshRenderer = new DepthGridMeshRenderer();
+        this.dropTriangles = true;
+        // Create the profiler that measures the latencies.
+        this.profiler = new LatencyProfiler( LATENCY_PERIOD );
+        this.meshRenderer.setLatencyProfiler( this.profiler );
+        
         // Create the image queue,
         MaixSenseA010ImagePublisherQueue imageQueue = new MaixSenseA010ImagePublisherQueue();
-        // and add the listeners; in this case it is the MaixSenseA010ImageViewer itself.
-        imageQueue.addListener( this );
+        // and add the listeners; in this case it is the MaixSenseA010Mesh3dViewer itself,
+        // wrapped so that only the last image is processed when building the mesh is slower than the camera.
+        this.imageWrapper = new BackpressureImageConsumer( this );
+        this.imageWrapper.setLatencyProfiler( this.profiler );
+        imageQueue.addListener( this.imageWrapper );
         
         // Create the MaixSense-A010 data processing strategy.
         MaixSenseA010ImageEnqueuerStrategy imageEnqueuer = new MaixSenseA010ImageEnqueuerStrategy( imageQueue );
@@ -150,6 +343,7 @@ public class MaixSenseA010Mesh3dViewer
      */
     public void draw()
     {
+        long drawStart = System.nanoTime();
         // Background initialization.
         background(0);
         // Set center to origin.
@@ -178,62 +372,66 @@ public class MaixSenseA010Mesh3dViewer
         line( 0 , -100 , 0 , 0 , 100 , 0 );
         stroke( color(0,0,255) );
         line( 0 , 0 , -100 , 0 , 0 , 100 );
-        // Draw point cloud.
-        synchronized( this ) {
-            if( this.meshShape != null ) {
-                shape( this.meshShape );
-            }
+        // Draw mesh; its buffers are only uploaded again if it is new.
+        boolean updated = this.meshes.update();
+        this.meshRenderer.draw( this , this.meshes.front() );
+        // Report the number of triangles,
+        if( frameCount % 10 == 0 ) {
+            surface.setTitle( "Triangles: " + this.meshes.front().indexCount()/3 );
+        }
+        // and the latencies.
+        if( this.showLatency ) {
+            this.profiler.drawOverlay( this );
+        }
+        if( updated ) {
+            this.profiler.record( LatencyProfiler.STAGE_END_TO_END , this.meshes.frontTimestamp() );
         }
+        this.profiler.frameDrawn( drawStart );
     }
     
     
     /**
      * {@inheritDoc}
+     * <p>
+     * In particular, here we get the images copied by {@link #imageWrapper}, timestamped with their arrival time.
      */
-    public void consumeImage( MaixSenseA010Image image )
+    public void consumeFrame( byte[] pixels , int rows , int cols , long timestamp )
     {
-        // Adapt MaixSenseA010Image to be a DepthImage.
-        MaixSenseA010DepthImageAdapter adaptedImage = new MaixSenseA010DepthImageAdapter( image );
-        adaptedImage.setQuantizationUnit( QUANTIZATION_UNIT );
-        // Generate PShape from depth image.
-        PShape newMeshShape = createShape();
-        newMeshShape.beginShape( TRIANGLES );
-        newMeshShape.stroke( 0 );
-        int imageRowsHalf = adaptedImage.rows()/2;
-        int imageColumnsHalf = adaptedImage.cols()/2;
-        for( int i=0; i<adaptedImage.rows()-1; i++ ) {
-            // Create lower triangles of the current strip.
-            for( int j=0; j<adaptedImage.cols()-1; j++ ) {
-                // Take pixel bytes, and convert them to depth in millimeters.
-                double depthA = adaptedImage.depth( i , j );
-                double depthB = adaptedImage.depth( i , j+1 );
-                double depthC = adaptedImage.depth( i+1 , j );
-                // Set triangle color.
-                newMeshShape.fill( (float)( ( DEPTH_RANGE_MAX - ( depthA + depthB + depthC )/3 ) * 255/DEPTH_RANGE_MAX ) );
-                // Create triangle.
-                newMeshShape.vertex( (j-imageColumnsHalf)*XY_FACTOR , (i-imageRowsHalf)*XY_FACTOR , (float)depthA );
-                newMeshShape.vertex( (j+1-imageColumnsHalf)*XY_FACTOR , (i-imageRowsHalf)*XY_FACTOR , (float)depthB );
-                newMeshShape.vertex( (j-imageColumnsHalf)*XY_FACTOR , (i+1-imageRowsHalf)*XY_FACTOR , (float)depthC );
-            }
-            // Create upper triangles of the current strip.
-            for( int j=0; j<image.cols()-1; j++ ) {
-                // Take pixel bytes, and convert them to depth in millimeters.
-                double depthA = adaptedImage.depth( i , j+1 );
-                double depthB = adaptedImage.depth( i+1 , j );
-                double depthC = adaptedImage.depth( i+1 , j+1 );
-                // Set triangle color.
-                newMeshShape.fill( (float)( ( DEPTH_RANGE_MAX - ( depthA + depthB + depthC )/3 ) * 255/DEPTH_RANGE_MAX ) );
-                // Create triangle.
-                newMeshShape.vertex( (j+1-imageColumnsHalf)*XY_FACTOR , (i-imageRowsHalf)*XY_FACTOR , (float)depthA );
-                newMeshShape.vertex( (j-imageColumnsHalf)*XY_FACTOR , (i+1-imageRowsHalf)*XY_FACTOR , (float)depthB );
-                newMeshShape.vertex( (j+1-imageColumnsHalf)*XY_FACTOR , (i+1-imageRowsHalf)*XY_FACTOR , (float)depthC );
+        long projectionStart = System.nanoTime();
+        // Adapt the raw pixel values to be a DepthImage.
+        this.adaptedImage.setPixels( pixels , rows , cols );
+        // Filter it.
+        this.filterStage.apply( this.adaptedImage );
+        // Decode the depth of the whole image.
+        if(  this.depths == null  ||  this.depths.length != rows*cols  ) {
+            this.depths = new float[ rows*cols ];
+        }
+        this.stripeExecutor.execute( rows , this.decodeTask );
+        // Decode the validity if it is needed,
+        boolean dropping = this.dropTriangles;
+        boolean lit = this.lighting;
+        if(  dropping  ||  lit  ) {
+            if(  this.validityBits == null  ||  this.validityBits.length != MaixSenseA010DepthImageAdapter.bitsetLength( rows*cols )  ) {
+                this.validityBits = new long[ MaixSenseA010DepthImageAdapter.bitsetLength( rows*cols ) ];
             }
+            this.adaptedImage.validityBitsInto( this.validityBits );
         }
-        newMeshShape.endShape();
-        // Update PShape.
-        synchronized( this ) {
-            this.meshShape = newMeshShape;
+        // estimate the normals if the mesh is lit,
+        if( lit ) {
+            if(  this.normals == null  ||  this.normals.length != 3*rows*cols  ) {
+                this.normals = new float[ 3*rows*cols ];
+            }
+            this.normalEstimator.estimate( this.depths , this.validityBits , this.pointCloudProjector.unitDepthRays( cols ) , rows , cols , this.normals , null );
         }
+        long meshStart = this.profiler.record( LatencyProfiler.STAGE_PROJECTION , projectionStart );
+        // update the depths, colors and normals of the mesh in place, decimating it and dropping the triangles with invalid pixels or depth jumps if requested,
+        DepthGridMesh mesh = this.meshes.back();
+        mesh.setDecimationTolerance( this.decimate? DECIMATION_TOLERANCE : 0.0f );
+        mesh.setMaxDepthJump( dropping? MAX_DEPTH_JUMP : Float.POSITIVE_INFINITY );
+        mesh.update( this.depths , dropping? this.validityBits : null , lit? this.normals : null , rows , cols );
+        this.profiler.record( LatencyProfiler.STAGE_MESH , meshStart );
+        // and hand it over to the animation thread.
+        this.meshes.publish( timestamp );
     }
     
     
@@ -253,4 +451,57 @@ public class MaixSenseA010Mesh3dViewer
         }
     }
     
+    
+    /**
+     * Behavior when a key is pressed.
+     * <p>
+     * Key 'f' cycles through the spatial filter modes.
+     * Key 'h' enables or disables hole filling.
+     * Key 't' cycles through the temporal filter modes.
+     * Key 'd' enables or disables dropping triangles with invalid pixels or depth jumps.
+     * Key 'l' enables or disables the decimation of flat regions.
+     * Key 'n' enables or disables lighting the mesh with the normals of the surface.
+     * Key 'o' shows or hides the latency overlay.
+     * Key 'e' starts or stops exporting the latency statistics.
+     */
+    public void keyPressed()
+    {
+        if( key == 'f' ) {
+            System.out.println( "Spatial filter: " + SpatialDepthFilter.modeName( this.spatialFilter.nextMode() ) );
+        } else if( key == 'h' ) {
+            this.spatialFilter.setHoleFilling( !this.spatialFilter.isHoleFilling() );
+            System.out.println( "Hole filling: " + ( this.spatialFilter.isHoleFilling()? "on" : "off" ) );
+        } else if( key == 't' ) {
+            System.out.println( "Temporal filter: " + TemporalDepthFilter.modeName( this.temporalFilter.nextMode() ) );
+        } else if( key == 'd' ) {
+            this.dropTriangles = !this.dropTriangles;
+            System.out.println( "Drop invalid and discontinuous triangles: " + ( this.dropTriangles? "on" : "off" ) );
+        } else if( key == 'l' ) {
+            this.decimate = !this.decimate;
+            System.out.println( "Decimation: " + ( this.decimate? "on" : "off" ) );
+        } else if( key == 'n' ) {
+            this.lighting = !this.lighting;
+            System.out.println( "Lighting with surface normals: " + ( this.lighting? "on" : "off" ) );
+        } else if( key == 'o' ) {
+            this.showLatency = !this.showLatency;
+            System.out.println( "Latency overlay: " + ( this.showLatency? "on" : "off" ) );
+        } else if( key == 'e' ) {
+            this.exportLatency = !this.exportLatency;
+            this.profiler.setCsvExport( this.exportLatency? LATENCY_CSV_FILE : null );
+            System.out.println( "Latency export: " + ( this.exportLatency? "on, to " + LATENCY_CSV_FILE : "off" ) );
+        }
+    }
+    
+    
+    /**
+     * Closes the latency CSV file before closing the window.
+     */
+    public void dispose()
+    {
+        if( this.profiler != null ) {
+            this.profiler.close();
+        }
+        super.dispose();
+    }
+    
 }
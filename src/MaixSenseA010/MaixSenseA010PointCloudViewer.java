@@ -1,35 +1,60 @@
 package MaixSenseA010;
 
 
-import java.util.List;
-
 import jssc.SerialPortException;
 import maixsense.a010.MaixSenseA010Driver;
 import maixsense.a010.MaixSenseA010Image;
-import maixsense.a010.MaixSenseA010ImageConsumer;
 import maixsense.a010.MaixSenseA010ImageEnqueuerStrategy;
 import maixsense.a010.MaixSenseA010ImagePublisherQueue;
-import numericalLibrary.types.Vector3;
 import processing.core.PApplet;
+import processing.core.PMatrix3D;
 import processing.core.PShape;
 import processing.event.MouseEvent;
 import sensorCalibrationLibrary.depthCameras.maixSenseA010.MaixSenseA010DefaultCalibration;
+import util.BackpressureImageConsumer;
+import util.DepthFilterStage;
+import util.DepthFrameConsumer;
+import util.LatencyProfiler;
 import util.MaixSenseA010DepthImageAdapter;
+import util.MaixSenseA010PointCloudProjector;
+import util.PointCloudBuffer;
+import util.PointCloudIndex;
+import util.PointCloudShape;
+import util.SpatialDepthFilter;
+import util.StripeExecutor;
+import util.TemporalDepthFilter;
+import util.TripleBuffer;
+import util.TsdfVolume;
 
 
 
 /**
  * Example on how to plot a point cloud from a depth image captured with the MaixSenseA010 ToF camera.
  * <p>
+ * In fusion mode, the images are integrated into a {@link TsdfVolume} instead, and the points of the fused surface are plotted;
+ * the camera must stay still, since the volume is fixed in its reference frame.
+ * <p>
+ * Clicking on the view picks the point under the mouse that is closest to the viewer, using a {@link PointCloudIndex} rebuilt for every point cloud;
+ * the picked point and its distance to the camera are printed.
+ * <p>
+ * The latency of each stage of the processing of the images is measured with {@link LatencyProfiler}; its statistics can be exported to {@link #LATENCY_CSV_FILE} with key 'e'.
+ * <p>
  * Controls:
  * <ul>
  *  <li> Mouse position: camera viewpoint.
  *  <li> Mouse wheel: zoom.
+ *  <li> Mouse click: pick point.
+ *  <li> Key 'f': change spatial filter.
+ *  <li> Key 'h': enable / disable hole filling.
+ *  <li> Key 't': change temporal filter.
+ *  <li> Key 'u': enable / disable fusion mode; the volume is emptied every time it is enabled.
+ *  <li> Key 'o': show / hide the latency overlay.
+ *  <li> Key 'e': start / stop exporting the latency statistics.
  * </ul>
  */
 public class MaixSenseA010PointCloudViewer
     extends PApplet
-    implements MaixSenseA010ImageConsumer
+    implements DepthFrameConsumer
 {
     ////////////////////////////////////////////////////////////////
     // PARAMETERS
@@ -40,6 +65,61 @@ public class MaixSenseA010PointCloudViewer
      */
     static final int QUANTIZATION_UNIT = 0;
     
+    /**
+     * Maximum number of row stripes in which each image is split to be processed in parallel; 1 processes images in the thread that receives them.
+     */
+    static final int PROCESSING_STRIPES = 4;
+    
+    /**
+     * Number of voxels along each axis of the fusion volume.
+     */
+    static final int FUSION_RESOLUTION = 128;
+    
+    /**
+     * Edge length in meters of the voxels of the fusion volume.
+     */
+    static final float FUSION_VOXEL_SIZE = 0.02f;
+    
+    /**
+     * Minimum x coordinate in meters of the fusion volume; it is centered in x.
+     */
+    static final float FUSION_ORIGIN_X = -0.5f * FUSION_RESOLUTION * FUSION_VOXEL_SIZE;
+    
+    /**
+     * Minimum y coordinate in meters of the fusion volume; it is centered in y.
+     */
+    static final float FUSION_ORIGIN_Y = -0.5f * FUSION_RESOLUTION * FUSION_VOXEL_SIZE;
+    
+    /**
+     * Minimum z coordinate in meters of the fusion volume; it spans the depths up to {@code FUSION_ORIGIN_Z + FUSION_RESOLUTION*FUSION_VOXEL_SIZE}.
+     */
+    static final float FUSION_ORIGIN_Z = 0.0f;
+    
+    /**
+     * Maximum number of points of the fused surface that are plotted.
+     */
+    static final int SURFACE_CAPACITY = ( 1 << 16 );
+    
+    /**
+     * Edge length in meters of the cells of the index used to pick points.
+     */
+    static final float INDEX_CELL_SIZE = 0.05f;
+    
+    /**
+     * Maximum distance in pixels, at the zoom of the origin, between the mouse and a picked point.
+     */
+    static final float PICK_TOLERANCE = 5.0f;
+    
+    /**
+     * Path of the CSV file where the latency statistics are exported while the export is enabled.
+     */
+    static final String LATENCY_CSV_FILE = "latency_pointCloudViewer.csv";
+    
+    /**
+     * Period in seconds over which the latency statistics are computed.
+     */
+    static final double LATENCY_PERIOD = 1.0;
+    
     
     
     ////////////////////////////////////////////////////////////////
@@ -51,10 +131,110 @@ public class MaixSenseA010PointCloudViewer
      */
     MaixSenseA010DefaultCalibration depthCameraCalibration;
     
+    /**
+     * Transforms depth images to point clouds using {@link #depthCameraCalibration}.
+     */
+    MaixSenseA010PointCloudProjector pointCloudProjector;
+    
+    /**
+     * Splits the processing of each image in stripes of rows processed in parallel.
+     */
+    StripeExecutor stripeExecutor;
+    
+    /**
+     * Adapter reused to interpret every received {@link MaixSenseA010Image} as a depth image.
+     */
+    MaixSenseA010DepthImageAdapter adaptedImage;
+    
+    /**
+     * Spatial filter applied to the received images, before {@link #temporalFilter}.
+     */
+    SpatialDepthFilter spatialFilter;
+    
+    /**
+     * Temporal filter applied to the received images.
+     */
+    TemporalDepthFilter temporalFilter;
+    
+    /**
+     * Applies {@link #spatialFilter} and {@link #temporalFilter} to {@link #adaptedImage}.
+     */
+    DepthFilterStage filterStage;
+    
+    /**
+     * Volume into which the received images are integrated in fusion mode.
+     */
+    TsdfVolume tsdfVolume;
+    
+    /**
+     * True if the received images are integrated into {@link #tsdfVolume}; set with key 'u'.
+     */
+    volatile boolean fusing;
+    
+    /**
+     * True if {@link #tsdfVolume} holds images received since fusion mode was last enabled; only used by the thread that receives the images.
+     */
+    boolean volumeInUse;
+    
+    /**
+     * Point clouds generated from the received depth images, exchanged between the thread that receives the images and the animation thread.
+     */
+    TripleBuffer<PointCloudBuffer> pointClouds;
+    
     /**
      * {@link PShape} that holds the point cloud generated from the last received depth image.
      */
-    PShape pointCloudShape;
+    PointCloudShape pointCloudShape;
+    
+    /**
+     * Index of the point cloud drawn last, used to pick points.
+     */
+    PointCloudIndex pointCloudIndex;
+    
+    /**
+     * Transformation from the reference frame of the point clouds to the screen, without the camera, applied in the last frame.
+     */
+    PMatrix3D viewMatrix;
+    
+    /**
+     * Inverse of {@link #viewMatrix}, used to transform the mouse position to the reference frame of the point clouds.
+     */
+    PMatrix3D inverseViewMatrix;
+    
+    /**
+     * Origin of the ray under the mouse: the eye, in screen coordinates and then in the reference frame of the point clouds.
+     */
+    float[] rayStart;
+    
+    /**
+     * End of the ray under the mouse: the mouse position on the screen plane, in screen coordinates and then in the reference frame of the point clouds.
+     */
+    float[] rayEnd;
+    
+    /**
+     * Coordinates of the picked point, or null if no point has been picked.
+     */
+    float[] pickedPoint;
+    
+    /**
+     * Delivers the received images to this viewer in its own thread, keeping only the last one.
+     */
+    BackpressureImageConsumer imageWrapper;
+    
+    /**
+     * Measures the latency of each stage of the processing of the images.
+     */
+    LatencyProfiler profiler;
+    
+    /**
+     * Whether the latency overlay is shown; set with key 'o'.
+     */
+    volatile boolean showLatency;
+    
+    /**
+     * Whether the latency statistics are exported to {@link #LATENCY_CSV_FILE}; set with key 'e'.
+     */
+    boolean exportLatency;
     
     /**
      * Zoom set with the mouse wheel.
@@ -66,7 +246,7 @@ public class MaixSenseA010PointCloudViewer
     ////////////////////////////////////////////////////////////////
     // MAIN: ENTRY POINT
     ////////////////////////////////////////////////////////////////
-
+    
     /**
      * Entry point.
      * <p>
@@ -106,11 +286,43 @@ public class MaixSenseA010PointCloudViewer
     {
         // Create DepthCameraCalibration; we take the default one.
         this.depthCameraCalibration = new MaixSenseA010DefaultCalibration();
+        this.pointCloudProjector = new MaixSenseA010PointCloudProjector( this.depthCameraCalibration );
+        this.stripeExecutor = new StripeExecutor( PROCESSING_STRIPES );
+        this.pointCloudProjector.setStripeExecutor( this.stripeExecutor );
+        
+        // Create the adapter used to interpret the received images,
+        this.adaptedImage = new MaixSenseA010DepthImageAdapter();
+        this.adaptedImage.setQuantizationUnit( QUANTIZATION_UNIT );
+        // the filters applied to them,
+        this.spatialFilter = new SpatialDepthFilter();
+        this.temporalFilter = new TemporalDepthFilter();
+        this.filterStage = new DepthFilterStage( this.spatialFilter , this.temporalFilter );
+        // the volume used in fusion mode,
+        this.tsdfVolume = new TsdfVolume( FUSION_RESOLUTION , FUSION_VOXEL_SIZE , FUSION_ORIGIN_X , FUSION_ORIGIN_Y , FUSION_ORIGIN_Z );
+        this.tsdfVolume.setStripeExecutor( this.stripeExecutor );
+        this.fusing = false;
+        this.volumeInUse = false;
+        // the buffers that will hold the point clouds,
+        this.pointClouds = new TripleBuffer<PointCloudBuffer>( new PointCloudBuffer() , new PointCloudBuffer() , new PointCloudBuffer() );
+        // and the shape that will hold the point cloud.
+        this.pointCloudShape = new PointCloudShape( color(255) , (float)2.0e0 );
+        // Create the index used to pick points, and the transformations used to cast rays from the mouse.
+        this.pointCloudIndex = new PointCloudIndex( INDEX_CELL_SIZE );
+        this.viewMatrix = new PMatrix3D();
+        this.inverseViewMatrix = new PMatrix3D();
+        this.rayStart = new float[3];
+        this.rayEnd = new float[3];
+        this.pickedPoint = null;
+        // Create the profiler that measures the latencies.
+        this.profiler = new LatencyProfiler( LATENCY_PERIOD );
         
         // Create the image queue,
         MaixSenseA010ImagePublisherQueue imageQueue = new MaixSenseA010ImagePublisherQueue();
-        // and add the listener; in this case it is the MaixSenseA010PointCloudViewer itself.
-        imageQueue.addListener( this );
+        // and add the listener; in this case it is the MaixSenseA010PointCloudViewer itself,
+        // wrapped so that only the last image is processed when generating the point cloud is slower than the camera.
+        this.imageWrapper = new BackpressureImageConsumer( this );
+        this.imageWrapper.setLatencyProfiler( this.profiler );
+        imageQueue.addListener( this.imageWrapper );
         
         // Create the MaixSense-A010 data processing strategy.
         MaixSenseA010ImageEnqueuerStrategy imageEnqueuer = new MaixSenseA010ImageEnqueuerStrategy( imageQueue );
@@ -154,20 +366,24 @@ public class MaixSenseA010PointCloudViewer
      */
     public void draw()
     {
+        long drawStart = System.nanoTime();
         // Background initialization.
         background(0);
+        // The transformations are kept in a matrix, so that the mouse position can be transformed back to pick points.
+        this.viewMatrix.reset();
         // Set center to origin.
-        translate( width/2 , height/2 , 0 );
+        this.viewMatrix.translate( width/2 , height/2 , 0 );
         // Make reference frame right-handed.
-        scale( 1 , -1 , 1 );
+        this.viewMatrix.scale( 1 , -1 , 1 );
         // Scale using the zoom variable (controlled with mouse wheel).
-        scale( this.zoom );
+        this.viewMatrix.scale( this.zoom );
         // Rotate scene using the mouse position.
-        rotateX( (float)Math.PI );
+        this.viewMatrix.rotateX( (float)Math.PI );
         double theta = -( mouseY - height/2 ) * Math.PI / height;
-        rotateX( (float)theta );
+        this.viewMatrix.rotateX( (float)theta );
         double phi = ( mouseX - width/2 ) * Math.PI / width;
-        rotateY( (float)phi );
+        this.viewMatrix.rotateY( (float)phi );
+        applyMatrix( this.viewMatrix );
         // Draw reference frame lines.
         strokeWeight( 1.0e-4f );
         stroke( color(255,0,0) );
@@ -177,38 +393,69 @@ public class MaixSenseA010PointCloudViewer
         stroke( color(0,0,255) );
         line( 0 , 0 , -100 , 0 , 0 , 100 );
         // Draw point cloud.
-        synchronized( this ) {
-            if( this.pointCloudShape != null ) {
-                shape( this.pointCloudShape );
-            }
+        boolean updated = this.pointClouds.update();
+        if( updated ) {
+            PointCloudBuffer pointCloud = this.pointClouds.front();
+            long uploadStart = System.nanoTime();
+            this.pointCloudShape.update( this , pointCloud.xyz() , pointCloud.count() );
+            this.profiler.record( LatencyProfiler.STAGE_UPLOAD , uploadStart );
+            this.pointCloudIndex.build( pointCloud.xyz() , pointCloud.count() );
+        }
+        PShape shape = this.pointCloudShape.shape();
+        if( shape != null ) {
+            shape( shape );
         }
+        // Draw picked point.
+        if( this.pickedPoint != null ) {
+            strokeWeight( 1.0e1f );
+            stroke( color(255,255,0) );
+            point( this.pickedPoint[0] , this.pickedPoint[1] , this.pickedPoint[2] );
+        }
+        // Draw the latencies.
+        if( this.showLatency ) {
+            this.profiler.drawOverlay( this );
+        }
+        if( updated ) {
+            this.profiler.record( LatencyProfiler.STAGE_END_TO_END , this.pointClouds.frontTimestamp() );
+        }
+        this.profiler.frameDrawn( drawStart );
     }
     
     
     /**
      * {@inheritDoc}
+     * <p>
+     * In particular, here we get the images copied by {@link #imageWrapper}, timestamped with their arrival time.
      */
-    public void consumeImage( MaixSenseA010Image image )
+    public void consumeFrame( byte[] pixels , int rows , int cols , long timestamp )
     {
-        // Adapt MaixSenseA010Image to be a DepthImage.
-        MaixSenseA010DepthImageAdapter adaptedImage = new MaixSenseA010DepthImageAdapter( image );
-        adaptedImage.setQuantizationUnit( QUANTIZATION_UNIT );
-        // Generate point cloud from image.
-        this.depthCameraCalibration.setImageSize( adaptedImage.cols() );
-        List<Vector3> pointCloud = this.depthCameraCalibration.imageToPointCloud( adaptedImage );
-        // Generate PShape from point cloud.
-        PShape newPointCloudShape = createShape();
-        newPointCloudShape.beginShape( POINTS );
-        newPointCloudShape.strokeWeight( (float)2.0e0 );
-        newPointCloudShape.stroke( 255 );
-        for( Vector3 point : pointCloud ) {
-            newPointCloudShape.vertex( (float)point.x() , (float)point.y() , (float)point.z() );
-        }
-        newPointCloudShape.endShape();
-        // Update PShape.
-        synchronized( this ) {
-            this.pointCloudShape = newPointCloudShape;
+        long projectionStart = System.nanoTime();
+        // Adapt the raw pixel values to be a DepthImage.
+        this.adaptedImage.setPixels( pixels , rows , cols );
+        // Filter it.
+        this.filterStage.apply( this.adaptedImage );
+        PointCloudBuffer pointCloud = this.pointClouds.back();
+        if( this.fusing ) {
+            // Integrate the image into the volume, emptied when fusion mode is enabled,
+            if( !this.volumeInUse ) {
+                this.tsdfVolume.reset();
+                this.volumeInUse = true;
+            }
+            this.tsdfVolume.integrate( this.adaptedImage , this.pointCloudProjector.unitDepthRays( this.adaptedImage.cols() ) );
+            long surfaceStart = this.profiler.record( LatencyProfiler.STAGE_PROJECTION , projectionStart );
+            // and extract the fused surface,
+            pointCloud.setCapacity( SURFACE_CAPACITY );
+            pointCloud.setCount( this.tsdfVolume.surfaceInto( pointCloud.xyz() ) );
+            this.profiler.record( LatencyProfiler.STAGE_MESH , surfaceStart );
+        } else {
+            // or generate point cloud from image,
+            this.volumeInUse = false;
+            pointCloud.setCapacity( this.adaptedImage.rows() * this.adaptedImage.cols() );
+            pointCloud.setCount( this.pointCloudProjector.pointCloudInto( this.adaptedImage , pointCloud.xyz() ) );
+            this.profiler.record( LatencyProfiler.STAGE_PROJECTION , projectionStart );
         }
+        // and hand it over to the animation thread.
+        this.pointClouds.publish( timestamp );
     }
     
     
@@ -228,4 +475,85 @@ public class MaixSenseA010PointCloudViewer
         }
     }
     
+    
+    /**
+     * Behavior when a mouse button is pressed.
+     * <p>
+     * Casts a ray from the viewer through the mouse position, and picks the point of the last drawn point cloud that is closest to the viewer among those near the ray.
+     */
+    public void mousePressed()
+    {
+        // Transform the eye of the default camera and the mouse position on the screen plane to the reference frame of the point clouds.
+        this.inverseViewMatrix.set( this.viewMatrix );
+        if( !this.inverseViewMatrix.invert() ) {
+            return;
+        }
+        this.rayStart[0] = width/2.0f;
+        this.rayStart[1] = height/2.0f;
+        this.rayStart[2] = ( height/2.0f ) / (float)Math.tan( Math.PI/6.0 );
+        this.inverseViewMatrix.mult( this.rayStart , this.rayStart );
+        this.rayEnd[0] = mouseX;
+        this.rayEnd[1] = mouseY;
+        this.rayEnd[2] = 0.0f;
+        this.inverseViewMatrix.mult( this.rayEnd , this.rayEnd );
+        // Pick the point, with the tolerance scaled to the reference frame of the point clouds.
+        int picked = this.pointCloudIndex.pick( this.rayStart[0] , this.rayStart[1] , this.rayStart[2] ,
+                                                this.rayEnd[0] - this.rayStart[0] , this.rayEnd[1] - this.rayStart[1] , this.rayEnd[2] - this.rayStart[2] ,
+                                                PICK_TOLERANCE / this.zoom );
+        if( picked < 0 ) {
+            this.pickedPoint = null;
+            System.out.println( "No point picked." );
+            return;
+        }
+        float[] xyz = this.pointClouds.front().xyz();
+        this.pickedPoint = new float[]{ xyz[3*picked] , xyz[3*picked+1] , xyz[3*picked+2] };
+        double distance = Math.sqrt( this.pickedPoint[0]*this.pickedPoint[0] + this.pickedPoint[1]*this.pickedPoint[1] + this.pickedPoint[2]*this.pickedPoint[2] );
+        System.out.println( String.format( "Picked point (%.3f, %.3f, %.3f) at %.3f m from the camera." , this.pickedPoint[0] , this.pickedPoint[1] , this.pickedPoint[2] , distance ) );
+    }
+    
+    
+    /**
+     * Behavior when a key is pressed.
+     * <p>
+     * Key 'f' cycles through the spatial filter modes.
+     * Key 'h' enables or disables hole filling.
+     * Key 't' cycles through the temporal filter modes.
+     * Key 'u' enables or disables fusion mode.
+     * Key 'o' shows or hides the latency overlay.
+     * Key 'e' starts or stops exporting the latency statistics.
+     */
+    public void keyPressed()
+    {
+        if( key == 'f' ) {
+            System.out.println( "Spatial filter: " + SpatialDepthFilter.modeName( this.spatialFilter.nextMode() ) );
+        } else if( key == 'h' ) {
+            this.spatialFilter.setHoleFilling( !this.spatialFilter.isHoleFilling() );
+            System.out.println( "Hole filling: " + ( this.spatialFilter.isHoleFilling()? "on" : "off" ) );
+        } else if( key == 't' ) {
+            System.out.println( "Temporal filter: " + TemporalDepthFilter.modeName( this.temporalFilter.nextMode() ) );
+        } else if( key == 'u' ) {
+            this.fusing = !this.fusing;
+            System.out.println( "Fusion: " + ( this.fusing? "on" : "off" ) );
+        } else if( key == 'o' ) {
+            this.showLatency = !this.showLatency;
+            System.out.println( "Latency overlay: " + ( this.showLatency? "on" : "off" ) );
+        } else if( key == 'e' ) {
+            this.exportLatency = !this.exportLatency;
+            this.profiler.setCsvExport( this.exportLatency? LATENCY_CSV_FILE : null );
+            System.out.println( "Latency export: " + ( this.exportLatency? "on, to " + LATENCY_CSV_FILE : "off" ) );
+        }
+    }
+    
+    
+    /**
+     * Closes the latency CSV file before closing the window.
+     */
+    public void dispose()
+    {
+        if( this.profiler != null ) {
+            this.profiler.close();
+        }
+        super.dispose();
+    }
+    
 }
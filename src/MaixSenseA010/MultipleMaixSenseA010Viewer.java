@@ -1,21 +1,44 @@
 package MaixSenseA010;
 
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import jssc.SerialPortException;
 import maixsense.a010.MaixSenseA010Driver;
 import maixsense.a010.MaixSenseA010Image;
-import maixsense.a010.MaixSenseA010ImageConsumer;
 import maixsense.a010.MaixSenseA010ImageEnqueuerStrategy;
 import maixsense.a010.MaixSenseA010ImagePublisherQueue;
-import numericalLibrary.types.Vector3;
 import processing.core.PApplet;
 import processing.core.PImage;
 import processing.core.PShape;
 import processing.event.MouseEvent;
 import sensorCalibrationLibrary.depthCameras.maixSenseA010.MaixSenseA010DefaultCalibration;
+import util.DepthFilterStage;
+import util.DepthFrameConsumer;
+import util.DepthImageRenderer;
+import util.FrameSynchronizer;
+import util.FusedPointCloud;
+import util.LatencyProfiler;
+import util.MaixSenseA010CameraSpec;
 import util.MaixSenseA010DepthImageAdapter;
+import util.MaixSenseA010PointCloudProjector;
+import util.PointCloudBuffer;
+import util.PointCloudShape;
+import util.RigidTransform;
+import util.SpatialDepthFilter;
+import util.StripeExecutor;
+import util.TemporalDepthFilter;
+import util.TripleBuffer;
+import util.VoxelGridFilter;
 
 
 
@@ -24,10 +47,33 @@ import util.MaixSenseA010DepthImageAdapter;
  * <p>
  * In this example we can observe the effect of multi-machine interference.
  * <p>
+ * The cameras are read from {@link #CAMERAS_FILE} (see {@link MaixSenseA010CameraSpec} for its format).
+ * Their drivers are initialized and configured concurrently, so the startup time barely grows with the number of cameras;
+ * a camera that can not be initialized is reported and skipped.
+ * <p>
+ * The images of the cameras are grouped by a {@link FrameSynchronizer} into sets of images that arrived within {@link #SYNC_TOLERANCE} seconds,
+ * so that the point clouds drawn together were captured at the same time;
+ * each set is processed once, and the number of matched sets and discarded images is shown in the window title.
+ * <p>
+ * The point cloud of each camera is transformed to a common reference frame with the transformation given in {@link #EXTRINSICS_FILE}
+ * (see {@link RigidTransform} for its format; cameras not listed there are left in their own reference frame),
+ * and written in its slice of a {@link FusedPointCloud}, that is drawn as a single shape.
+ * The fused point cloud can be downsampled with a {@link VoxelGridFilter} of leaf size {@link #VOXEL_LEAF_SIZE},
+ * which merges the points of overlapping cameras; the downsampled point cloud is drawn with a single color.
+ * <p>
+ * The latency of each stage of the processing of the sets of images is measured with {@link LatencyProfiler}; its statistics can be exported to {@link #LATENCY_CSV_FILE} with key 'e';
+ * the acquisition frame rate counts the matched sets, and their end-to-end latency starts when their oldest image arrived.
+ * <p>
  * Controls:
  * <ul>
  *  <li> Mouse position: camera viewpoint.
  *  <li> Mouse wheel: zoom.
+ *  <li> Key 'f': change spatial filter of every camera.
+ *  <li> Key 'h': enable / disable hole filling of every camera.
+ *  <li> Key 't': change temporal filter of every camera.
+ *  <li> Key 'v': enable / disable voxel grid downsampling of the fused point cloud.
+ *  <li> Key 'o': show / hide the latency overlay.
+ *  <li> Key 'e': start / stop exporting the latency statistics.
  * </ul>
  */
 public class MultipleMaixSenseA010Viewer
@@ -42,11 +88,71 @@ public class MultipleMaixSenseA010Viewer
      */
     static final int QUANTIZATION_UNIT = 0;
     
+    /**
+     * Minimum depth in meters represented in the depth image.
+     */
+    static final double DEPTH_RANGE_MIN = 0.0;
+    
     /**
      * Maximum depth that the sensor can measure in meters.
      */
     static final double DEPTH_RANGE_MAX = 2.5;
     
+    /**
+     * Colormap used initially to represent the depth image.
+     */
+    static final int COLORMAP = DepthImageRenderer.COLORMAP_GRAYSCALE;
+    
+    /**
+     * File with the specifications of the cameras.
+     */
+    static final String CAMERAS_FILE = "multipleMaixSenseA010Viewer.cfg";
+    
+    /**
+     * Maximum number of cameras initialized at the same time.
+     */
+    static final int MAX_INITIALIZATION_THREADS = 8;
+    
+    /**
+     * Maximum difference in seconds between the arrival times of the images processed together.
+     */
+    static final double SYNC_TOLERANCE = 0.025;
+    
+    /**
+     * Number of images of each camera that can wait to be matched.
+     */
+    static final int SYNC_CAPACITY = 4;
+    
+    /**
+     * Maximum number of row stripes in which each image is split to be processed in parallel, on a pool shared by all the cameras; 1 processes images in the thread that receives them.
+     */
+    static final int PROCESSING_STRIPES = 4;
+    
+    /**
+     * File with the transformation from the reference frame of each camera to the common reference frame.
+     */
+    static final String EXTRINSICS_FILE = "multipleMaixSenseA010Viewer_extrinsics.cfg";
+    
+    /**
+     * Edge length in meters of the voxels used to downsample the fused point cloud.
+     */
+    static final float VOXEL_LEAF_SIZE = 0.02f;
+    
+    /**
+     * Point kept for each voxel when downsampling the fused point cloud.
+     */
+    static final int VOXEL_POLICY = VoxelGridFilter.POLICY_CENTROID;
+    
+    /**
+     * Path of the CSV file where the latency statistics are exported while the export is enabled.
+     */
+    static final String LATENCY_CSV_FILE = "latency_multipleMaixSenseA010Viewer.csv";
+    
+    /**
+     * Period in seconds over which the latency statistics are computed.
+     */
+    static final double LATENCY_PERIOD = 1.0;
+    
     
     
     ////////////////////////////////////////////////////////////////
@@ -54,34 +160,74 @@ public class MultipleMaixSenseA010Viewer
     ////////////////////////////////////////////////////////////////
     
     /**
-     * Driver that receives the images from the first MaixSense-A010 and stores them in {@link #imageQueue1}.
+     * Drivers that receive the images from the cameras, and store them in {@link #imageQueues}.
      */
-    MaixSenseA010Driver tofCamera1;
+    List<MaixSenseA010Driver> tofCameras;
     
     /**
-     * Driver that receives the images from the second MaixSense-A010 and stores them in {@link #imageQueue2}.
+     * Queues that store the images received by each camera.
      */
-    MaixSenseA010Driver tofCamera2;
+    List<MaixSenseA010ImagePublisherQueue> imageQueues;
     
     /**
-     * Queue that stores the images received by the first MaixSense-A010.
+     * Consume the images delivered by {@link #synchronizer} and transform them to a {@link PImage} and a point cloud; one per camera.
      */
-    MaixSenseA010ImagePublisherQueue imageQueue1;
+    List<DepthImageDataHolder> dataHolders;
     
     /**
-     * Queue that stores the images received by the second MaixSense-A010.
+     * Groups the images of the cameras into sets of images captured at the same time, and delivers them to {@link #dataHolders}.
      */
-    MaixSenseA010ImagePublisherQueue imageQueue2;
+    FrameSynchronizer synchronizer;
     
     /**
-     * Consumes images from {@link #imageQueue1} and transforms them to a {@link PImage} and a point cloud.
+     * Transformation from the reference frame of each camera to the common reference frame.
      */
-    DepthImageDataHolder dataHolder1;
+    RigidTransform[] extrinsics;
     
     /**
-     * Consumes images from {@link #imageQueue1} and transforms them to a {@link PImage} and a point cloud.
+     * Point clouds of all the cameras in the common reference frame, exchanged between the synchronizer thread and the animation thread.
      */
-    DepthImageDataHolder dataHolder2;
+    TripleBuffer<FusedPointCloud> fusedPointClouds;
+    
+    /**
+     * {@link PShape} that holds the last fused point cloud, with the color of each camera.
+     */
+    PointCloudShape fusedPointCloudShape;
+    
+    /**
+     * Downsamples the fused point cloud in the synchronizer thread.
+     */
+    VoxelGridFilter voxelGridFilter;
+    
+    /**
+     * Downsampled point clouds, exchanged between the synchronizer thread and the animation thread.
+     */
+    TripleBuffer<PointCloudBuffer> downsampledPointClouds;
+    
+    /**
+     * {@link PShape} that holds the last downsampled point cloud.
+     */
+    PointCloudShape downsampledPointCloudShape;
+    
+    /**
+     * True if the fused point cloud is downsampled before being drawn; set with key 'v'.
+     */
+    volatile boolean downsampling;
+    
+    /**
+     * Measures the latency of each stage of the processing of the sets of images.
+     */
+    LatencyProfiler profiler;
+    
+    /**
+     * Whether the latency overlay is shown; set with key 'o'.
+     */
+    volatile boolean showLatency;
+    
+    /**
+     * Whether the latency statistics are exported to {@link #LATENCY_CSV_FILE}; set with key 'e'.
+     */
+    boolean exportLatency;
     
     /**
      * Zoom set with the mouse wheel.
@@ -93,7 +239,7 @@ public class MultipleMaixSenseA010Viewer
     ////////////////////////////////////////////////////////////////
     // MAIN: ENTRY POINT
     ////////////////////////////////////////////////////////////////
-
+    
     /**
      * Entry point.
      * <p>
@@ -131,44 +277,104 @@ public class MultipleMaixSenseA010Viewer
      */
     public void setup()
     {
-        // Create data holders.
-        this.dataHolder1 = new DepthImageDataHolder( color(0,255,0) );
-        this.dataHolder2 = new DepthImageDataHolder( color(0,0,255) );
-        
-        // Create the image queues,
-        this.imageQueue1 = new MaixSenseA010ImagePublisherQueue();
-        this.imageQueue2 = new MaixSenseA010ImagePublisherQueue();
-        // and add the listeners.
-        this.imageQueue1.addListener( this.dataHolder1 );
-        this.imageQueue2.addListener( this.dataHolder2 );
-        
-        // Create the MaixSense-A010 data processing strategies.
-        MaixSenseA010ImageEnqueuerStrategy imageEnqueuer1 = new MaixSenseA010ImageEnqueuerStrategy( imageQueue1 );
-        MaixSenseA010ImageEnqueuerStrategy imageEnqueuer2 = new MaixSenseA010ImageEnqueuerStrategy( imageQueue2 );
-        
-        // Create the drivers,
-        this.tofCamera1 = new MaixSenseA010Driver( "/dev/ttyUSB0" );
-        this.tofCamera2 = new MaixSenseA010Driver( "/dev/ttyUSB2" );
-        
-        // initialize the drivers communication,
+        // Read the specifications of the cameras.
+        List<MaixSenseA010CameraSpec> specs;
         try {
-            this.tofCamera1.initialize();
-        } catch( SerialPortException e ) {
+            specs = MaixSenseA010CameraSpec.readAll( CAMERAS_FILE );
+        } catch( IOException e ) {
             e.printStackTrace();
+            specs = new ArrayList<MaixSenseA010CameraSpec>();
+        } catch( IllegalArgumentException e ) {
+            System.out.println( e.getMessage() );
+            specs = new ArrayList<MaixSenseA010CameraSpec>();
+        }
+        
+        // Initialize the cameras concurrently, since most of the time is spent waiting for the serial communication.
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1 , Math.min( specs.size() , MAX_INITIALIZATION_THREADS ) ) );
+        List<Future<MaixSenseA010Driver>> drivers = new ArrayList<Future<MaixSenseA010Driver>>();
+        for( MaixSenseA010CameraSpec spec : specs ) {
+            drivers.add( executor.submit( () -> this.initializeCamera( spec ) ) );
         }
+        executor.shutdown();
+        
+        // Wait until every camera is ready.
+        this.tofCameras = new ArrayList<MaixSenseA010Driver>();
+        List<MaixSenseA010CameraSpec> readySpecs = new ArrayList<MaixSenseA010CameraSpec>();
+        for( int c=0; c<specs.size(); c++ ) {
+            try {
+                this.tofCameras.add( drivers.get( c ).get() );
+                readySpecs.add( specs.get( c ) );
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch( ExecutionException e ) {
+                System.out.println( "Camera " + specs.get( c ) + " could not be initialized." );
+                e.getCause().printStackTrace();
+            }
+        }
+        
+        // Read the transformation of each camera.
+        Map<String,RigidTransform> transforms;
         try {
-            this.tofCamera2.initialize();
-        } catch( SerialPortException e ) {
-            e.printStackTrace();
+            transforms = RigidTransform.readAll( EXTRINSICS_FILE );
+        } catch( IOException e ) {
+            System.out.println( "Extrinsics not available; every camera is left in its own reference frame." );
+            transforms = new HashMap<String,RigidTransform>();
+        } catch( IllegalArgumentException e ) {
+            System.out.println( e.getMessage() );
+            System.out.println( "Extrinsics not available; every camera is left in its own reference frame." );
+            transforms = new HashMap<String,RigidTransform>();
         }
+        this.extrinsics = new RigidTransform[ readySpecs.size() ];
+        for( int c=0; c<readySpecs.size(); c++ ) {
+            this.extrinsics[c] = transforms.getOrDefault( readySpecs.get( c ).port() , RigidTransform.identity() );
+        }
+        
+        // Create the data holders, and the fused point clouds with a slice per camera, colored as the camera.
+        this.dataHolders = new ArrayList<DepthImageDataHolder>();
+        int[] sliceCapacities = new int[ readySpecs.size() ];
+        for( int c=0; c<readySpecs.size(); c++ ) {
+            this.dataHolders.add( new DepthImageDataHolder() );
+            sliceCapacities[c] = readySpecs.get( c ).binning() * readySpecs.get( c ).binning();
+        }
+        this.fusedPointClouds = new TripleBuffer<FusedPointCloud>( new FusedPointCloud( sliceCapacities ) , new FusedPointCloud( sliceCapacities ) , new FusedPointCloud( sliceCapacities ) );
+        FusedPointCloud layout = this.fusedPointClouds.front();
+        int[] vertexColors = new int[ layout.capacity() ];
+        for( int c=0; c<readySpecs.size(); c++ ) {
+            Arrays.fill( vertexColors , layout.sliceOffset( c ) , layout.sliceOffset( c ) + layout.sliceCapacity( c ) , readySpecs.get( c ).color() );
+        }
+        this.fusedPointCloudShape = new PointCloudShape( vertexColors , (float)2.0e0 );
+        
+        // Create the voxel grid filter, and the downsampled point clouds, which can hold as many points as the fused ones.
+        this.voxelGridFilter = new VoxelGridFilter( VOXEL_LEAF_SIZE , VOXEL_POLICY );
+        PointCloudBuffer[] downsampledBuffers = new PointCloudBuffer[3];
+        for( int k=0; k<downsampledBuffers.length; k++ ) {
+            downsampledBuffers[k] = new PointCloudBuffer();
+            downsampledBuffers[k].setCapacity( layout.capacity() );
+        }
+        this.downsampledPointClouds = new TripleBuffer<PointCloudBuffer>( downsampledBuffers[0] , downsampledBuffers[1] , downsampledBuffers[2] );
+        this.downsampledPointCloudShape = new PointCloudShape( color(255) , (float)2.0e0 );
+        this.downsampling = false;
         
-        // configure the MaixSense-A010 ToF cameras,
-        configureCamera( this.tofCamera1 );
-        configureCamera( this.tofCamera2 );
+        // Create the profiler that measures the latencies.
+        this.profiler = new LatencyProfiler( LATENCY_PERIOD );
         
-        // and set the data processing strategies.
-        tofCamera1.setDataProcessingStrategy( imageEnqueuer1 );
-        tofCamera2.setDataProcessingStrategy( imageEnqueuer2 );
+        // Create the synchronizer that delivers the images captured at the same time, which are fused once per set.
+        this.imageQueues = new ArrayList<MaixSenseA010ImagePublisherQueue>();
+        if( !this.tofCameras.isEmpty() ) {
+            this.synchronizer = new FrameSynchronizer( this.tofCameras.size() , (long)( SYNC_TOLERANCE * 1.0e9 ) , SYNC_CAPACITY );
+            this.synchronizer.addListener( ( pixels , rows , cols , timestamps ) -> this.fuse( pixels , rows , cols , timestamps ) );
+        }
+        
+        // Create the image queue of each camera, add the synchronizer as listener, and start receiving images.
+        for( int c=0; c<this.tofCameras.size(); c++ ) {
+            MaixSenseA010ImagePublisherQueue imageQueue = new MaixSenseA010ImagePublisherQueue();
+            imageQueue.addListener( this.synchronizer.consumer( c ) );
+            this.tofCameras.get( c ).setDataProcessingStrategy( new MaixSenseA010ImageEnqueuerStrategy( imageQueue ) );
+            this.imageQueues.add( imageQueue );
+        }
+        System.out.println( String.format( "%d of %d cameras initialized in %.2f s." , this.tofCameras.size() , specs.size() , ( System.nanoTime() - start ) * 1.0e-9 ) );
         
         // Initialize zoom variable.
         this.zoom = ( 1 << 8 );
@@ -179,9 +385,9 @@ public class MultipleMaixSenseA010Viewer
      * Sets the configuration of a MaixSenseA010Driver.
      * 
      * @param driver    {@link MaixSenseA010Driver} to be configured.
-     * @throws SerialPortException  from {@link MaixSenseA010Driver} methods.
+     * @param spec      specification of the camera.
      */
-    public void configureCamera( MaixSenseA010Driver driver )
+    public void configureCamera( MaixSenseA010Driver driver , MaixSenseA010CameraSpec spec )
     {
         driver.setImageSignalProcessorOn();
         
@@ -189,8 +395,17 @@ public class MultipleMaixSenseA010Viewer
         driver.setUsbDisplayOn();
         driver.setUartDisplayOff();
         
-        driver.setBinning100x100();
-        driver.setFps( 20 );
+        switch( spec.binning() ) {
+            case 50:
+                driver.setBinning50x50();
+                break;
+            case 25:
+                driver.setBinning25x25();
+                break;
+            default:
+                driver.setBinning100x100();
+        }
+        driver.setFps( spec.fps() );
         
         driver.setQuantizationUnit( QUANTIZATION_UNIT );
         driver.setAntiMultiMachineInterferenceOff();
@@ -204,6 +419,7 @@ public class MultipleMaixSenseA010Viewer
      */
     public void draw()
     {
+        long drawStart = System.nanoTime();
         // Background initialization.
         background(0);
         
@@ -229,30 +445,50 @@ public class MultipleMaixSenseA010Viewer
         line( 0 , -100 , 0 , 0 , 100 , 0 );
         stroke( color(0,0,255) );
         line( 0 , 0 , -100 , 0 , 0 , 100 );
-        // Draw point cloud shape from first image.
-        PShape shape1 = this.dataHolder1.pointCloudShape();
-        if( shape1 != null ) {
-            shape( shape1 );
+        // Draw the fused point cloud with a single shape; it is only updated if there is a new one.
+        long uploadStart = System.nanoTime();
+        boolean updated = this.fusedPointClouds.update();
+        if( updated ) {
+            FusedPointCloud fusedPointCloud = this.fusedPointClouds.front();
+            this.fusedPointCloudShape.update( this , fusedPointCloud.xyz() , fusedPointCloud.capacity() );
+            this.fusedPointCloudShape.shape().setVisible( fusedPointCloud.totalCount() > 0 );
         }
-        // Draw point cloud shape from second image.
-        PShape shape2 = this.dataHolder2.pointCloudShape();
-        if( shape2 != null ) {
-            shape( shape2 );
+        boolean downsampledUpdated = this.downsampledPointClouds.update();
+        if( downsampledUpdated ) {
+            PointCloudBuffer downsampledPointCloud = this.downsampledPointClouds.front();
+            this.downsampledPointCloudShape.update( this , downsampledPointCloud.xyz() , downsampledPointCloud.count() );
+        }
+        if(  updated  ||  downsampledUpdated  ) {
+            this.profiler.record( LatencyProfiler.STAGE_UPLOAD , uploadStart );
+        }
+        PShape shape = ( this.downsampling )? this.downsampledPointCloudShape.shape() : this.fusedPointCloudShape.shape();
+        if( shape != null ) {
+            shape( shape );
         }
         // Here ends the scope of the transformations made after pushMatrix.
         popMatrix();
         
-        // Draw images on the corners of the drawing window.
-        //  Draw image1.
-        PImage image1 = this.dataHolder1.depthImage();
-        if( image1 != null ) {
-            image( image1 , 0 , height-height/4 , width/4 , height/4 );
+        // Draw the images side by side along the bottom of the drawing window.
+        int imageSize = Math.min( width/4 , width / Math.max( 1 , this.dataHolders.size() ) );
+        for( int c=0; c<this.dataHolders.size(); c++ ) {
+            PImage image = this.dataHolders.get( c ).depthImage();
+            if( image != null ) {
+                image( image , c * imageSize , height-imageSize , imageSize , imageSize );
+            }
         }
-        //  Draw image 2.
-        PImage image2 = this.dataHolder2.depthImage();
-        if( image2 != null ) {
-            image( image2 , width-width/4 , height-height/4 , width/4 , height/4 );
+        // Report the state of the synchronization.
+        if(  this.synchronizer != null  &&  frameCount % 10 == 0  ) {
+            surface.setTitle( String.format( "Matched %d - unmatched %d - dropped %d" ,
+                    this.synchronizer.matchedCount() , this.synchronizer.unmatchedCount() , this.synchronizer.droppedCount() ) );
         }
+        // Draw the latencies.
+        if( this.showLatency ) {
+            this.profiler.drawOverlay( this );
+        }
+        if( updated ) {
+            this.profiler.record( LatencyProfiler.STAGE_END_TO_END , this.fusedPointClouds.frontTimestamp() );
+        }
+        this.profiler.frameDrawn( drawStart );
     }
     
     
@@ -274,35 +510,161 @@ public class MultipleMaixSenseA010Viewer
     
     
     /**
-     * Overrides {@link PApplet#exit()} so that {@link MaixSenseA010Driver} is terminated and {@link MaixSenseA010ImagePublisherQueue} is stopped.
+     * Behavior when a key is pressed.
+     * <p>
+     * Key 'f' cycles through the spatial filter modes, key 'h' enables or disables hole filling,
+     * and key 't' cycles through the temporal filter modes; they are applied to the images of every camera.
+     * Key 'v' enables or disables the voxel grid downsampling of the fused point cloud.
+     * Key 'o' shows or hides the latency overlay.
+     * Key 'e' starts or stops exporting the latency statistics.
+     */
+    public void keyPressed()
+    {
+        if( key == 'v' ) {
+            this.downsampling = !this.downsampling;
+            System.out.println( "Voxel grid downsampling: " + ( this.downsampling? "on" : "off" ) );
+            return;
+        }
+        if( key == 'o' ) {
+            this.showLatency = !this.showLatency;
+            System.out.println( "Latency overlay: " + ( this.showLatency? "on" : "off" ) );
+            return;
+        }
+        if( key == 'e' ) {
+            this.exportLatency = !this.exportLatency;
+            this.profiler.setCsvExport( this.exportLatency? LATENCY_CSV_FILE : null );
+            System.out.println( "Latency export: " + ( this.exportLatency? "on, to " + LATENCY_CSV_FILE : "off" ) );
+            return;
+        }
+        if( this.dataHolders.isEmpty() ) {
+            return;
+        }
+        SpatialDepthFilter firstSpatialFilter = this.dataHolders.get( 0 ).spatialFilter();
+        if( key == 'f' ) {
+            int mode = ( firstSpatialFilter.getMode() + 1 ) % SpatialDepthFilter.MODES;
+            for( DepthImageDataHolder dataHolder : this.dataHolders ) {
+                dataHolder.spatialFilter().setMode( mode );
+            }
+            System.out.println( "Spatial filter: " + SpatialDepthFilter.modeName( mode ) );
+        } else if( key == 'h' ) {
+            boolean enabled = !firstSpatialFilter.isHoleFilling();
+            for( DepthImageDataHolder dataHolder : this.dataHolders ) {
+                dataHolder.spatialFilter().setHoleFilling( enabled );
+            }
+            System.out.println( "Hole filling: " + ( enabled? "on" : "off" ) );
+        } else if( key == 't' ) {
+            int mode = ( this.dataHolders.get( 0 ).temporalFilter().getMode() + 1 ) % TemporalDepthFilter.MODES;
+            for( DepthImageDataHolder dataHolder : this.dataHolders ) {
+                dataHolder.temporalFilter().setMode( mode );
+            }
+            System.out.println( "Temporal filter: " + TemporalDepthFilter.modeName( mode ) );
+        }
+    }
+    
+    
+    /**
+     * Overrides {@link PApplet#exit()} so that {@link MaixSenseA010Driver} is terminated, {@link MaixSenseA010ImagePublisherQueue} is stopped,
+     * and the latency CSV file is closed.
      */
     public void exit()
     {
         // Terminate serial communication.
-        try {
-            this.tofCamera1.terminate();
-            this.tofCamera2.terminate();
-        } catch( SerialPortException e ) {
-            e.printStackTrace();
+        for( MaixSenseA010Driver tofCamera : this.tofCameras ) {
+            try {
+                tofCamera.terminate();
+            } catch( SerialPortException e ) {
+                e.printStackTrace();
+            }
         }
         // Stop threads running in MaixSenseA010ImageQueue.
-        this.imageQueue1.stop();
-        this.imageQueue2.stop();
+        for( MaixSenseA010ImagePublisherQueue imageQueue : this.imageQueues ) {
+            imageQueue.stop();
+        }
+        // Stop the synchronizer.
+        if( this.synchronizer != null ) {
+            this.synchronizer.stop();
+        }
+        // Close the latency CSV file.
+        if( this.profiler != null ) {
+            this.profiler.close();
+        }
         // Finally, call the exit method of PApplet.
         super.exit();
     }
     
     
     
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Processes a set of images captured at the same time, and hands the fused point cloud over to the animation thread.
+     * 
+     * @param pixels    raw pixel values of the image of each camera.
+     * @param rows      number of rows of the image of each camera.
+     * @param cols      number of columns of the image of each camera.
+     * @param timestamps    time at which each image arrived, as given by {@link System#nanoTime()}.
+     */
+    private void fuse( byte[][] pixels , int[] rows , int[] cols , long[] timestamps )
+    {
+        // Record how long the images waited to be matched, and the arrival of the oldest one.
+        long fuseStart = System.nanoTime();
+        long receiveTime = fuseStart;
+        this.profiler.frameReceived();
+        for( int c=0; c<pixels.length; c++ ) {
+            this.profiler.recordDuration( LatencyProfiler.STAGE_ENQUEUE , fuseStart - timestamps[c] );
+            receiveTime = Math.min( receiveTime , timestamps[c] );
+        }
+        FusedPointCloud fusedPointCloud = this.fusedPointClouds.back();
+        for( int c=0; c<pixels.length; c++ ) {
+            DepthImageDataHolder dataHolder = this.dataHolders.get( c );
+            dataHolder.consumeFrame( pixels[c] , rows[c] , cols[c] , timestamps[c] );
+            PointCloudBuffer pointCloud = dataHolder.pointCloud();
+            fusedPointCloud.setSlice( c , pointCloud.xyz() , pointCloud.count() , this.extrinsics[c] );
+        }
+        fusedPointCloud.collapseUnused();
+        // Downsample the valid points of every slice together, so that the points of overlapping cameras are merged.
+        if( this.downsampling ) {
+            PointCloudBuffer downsampledPointCloud = this.downsampledPointClouds.back();
+            this.voxelGridFilter.clear();
+            for( int c=0; c<pixels.length; c++ ) {
+                this.voxelGridFilter.add( fusedPointCloud.xyz() , fusedPointCloud.sliceOffset( c ) , fusedPointCloud.count( c ) );
+            }
+            downsampledPointCloud.setCount( this.voxelGridFilter.pointsInto( downsampledPointCloud.xyz() ) );
+            this.downsampledPointClouds.publish( receiveTime );
+        }
+        this.fusedPointClouds.publish( receiveTime );
+        this.profiler.record( LatencyProfiler.STAGE_CONSUME , fuseStart );
+    }
+    
+    
+    /**
+     * Creates, initializes, and configures the driver of a camera.
+     * 
+     * @param spec  specification of the camera.
+     * @return  driver of the camera, ready to receive images.
+     * @throws SerialPortException  if the communication with the camera can not be initialized.
+     */
+    private MaixSenseA010Driver initializeCamera( MaixSenseA010CameraSpec spec ) throws SerialPortException
+    {
+        MaixSenseA010Driver driver = new MaixSenseA010Driver( spec.port() );
+        driver.initialize();
+        this.configureCamera( driver , spec );
+        return driver;
+    }
+    
+    
+    
     ////////////////////////////////////////////////////////////////
     // INNER CLASSES
     ////////////////////////////////////////////////////////////////
     
     /**
-     * Holds image data received through {@link MaixSenseA010ImageConsumer#consumeImage(MaixSenseA010Image)}.
+     * Holds image data received through {@link DepthFrameConsumer#consumeFrame(byte[], int, int, long)}.
      */
     class DepthImageDataHolder
-        implements MaixSenseA010ImageConsumer
+        implements DepthFrameConsumer
     {
         // PRIVATE VARIABLES
         
@@ -312,33 +674,78 @@ public class MultipleMaixSenseA010Viewer
         private MaixSenseA010DefaultCalibration depthCameraCalibration;
         
         /**
-         * {@link PImage} that holds the last depth image received from the last received depth image.
+         * Transforms depth images to point clouds using {@link #depthCameraCalibration}.
          */
-        private PImage depthImage;
+        private MaixSenseA010PointCloudProjector pointCloudProjector;
         
         /**
-         * {@link PShape} that holds the point cloud generated from the last received depth image.
+         * Adapter reused to interpret every received {@link MaixSenseA010Image} as a depth image.
          */
-        private PShape pointCloudShape;
+        private MaixSenseA010DepthImageAdapter adaptedImage;
         
         /**
-         * Color used to draw the point cloud.
+         * Spatial filter applied to the received images, before {@link #temporalFilter}.
          */
-        int color;
+        private SpatialDepthFilter spatialFilter;
+        
+        /**
+         * Temporal filter applied to the received images; each camera has its own, since it holds the state of its pixels.
+         */
+        private TemporalDepthFilter temporalFilter;
+        
+        /**
+         * Applies {@link #spatialFilter} and {@link #temporalFilter} to {@link #adaptedImage}.
+         */
+        private DepthFilterStage filterStage;
+        
+        /**
+         * Splits the processing of each image in stripes of rows processed in parallel.
+         */
+        private StripeExecutor stripeExecutor;
+        
+        /**
+         * Renders the received images into {@link #depthImage}.
+         */
+        private DepthImageRenderer depthImageRenderer;
+        
+        /**
+         * {@link PImage}s that hold the depth images, exchanged between the thread that receives the images and the animation thread.
+         */
+        private TripleBuffer<PImage> depthImages;
+        
+        /**
+         * Point cloud generated from the last received depth image, in the reference frame of the camera.
+         */
+        private PointCloudBuffer pointCloud;
         
         
         // PUBLIC CONSTRUCTORS
         
         /**
-         * Constructs a {@link DepthImageDataHolder} whose point cloud is drawn with a specific color.
-         * 
-         * @param c     color used to draw the point cloud.
+         * Constructs a {@link DepthImageDataHolder}.
          */
-        public DepthImageDataHolder( int c )
+        public DepthImageDataHolder()
         {
             // Create DepthCameraCalibration; we take the default one.
             this.depthCameraCalibration = new MaixSenseA010DefaultCalibration();
-            this.color = c;
+            this.pointCloudProjector = new MaixSenseA010PointCloudProjector( this.depthCameraCalibration );
+            // Create the adapter used to interpret the received images,
+            this.adaptedImage = new MaixSenseA010DepthImageAdapter();
+            this.adaptedImage.setQuantizationUnit( QUANTIZATION_UNIT );
+            // the filters applied to them,
+            this.spatialFilter = new SpatialDepthFilter();
+            this.temporalFilter = new TemporalDepthFilter();
+            this.filterStage = new DepthFilterStage( this.spatialFilter , this.temporalFilter );
+            // and the renderer used to represent them.
+            this.depthImageRenderer = new DepthImageRenderer( COLORMAP , DEPTH_RANGE_MIN , DEPTH_RANGE_MAX );
+            // Both the point cloud and the image are processed in stripes.
+            this.stripeExecutor = new StripeExecutor( PROCESSING_STRIPES );
+            this.pointCloudProjector.setStripeExecutor( this.stripeExecutor );
+            this.depthImageRenderer.setStripeExecutor( this.stripeExecutor );
+            // Create the buffers exchanged with the animation thread,
+            this.depthImages = new TripleBuffer<PImage>( null , null , null );
+            // and the one that holds the point cloud until it is fused.
+            this.pointCloud = new PointCloudBuffer();
         }
         
         
@@ -348,65 +755,70 @@ public class MultipleMaixSenseA010Viewer
          * Returns a {@link PImage} that contains the last received image.
          * <p>
          * If no image has been received so far, null is returned.
+         * Must be called from the animation thread; the returned {@link PImage} is valid until the next call.
          * 
          * @return  {@link PImage} that contains the last received image.
          */
         public PImage depthImage()
         {
-            if( this.depthImage != null ) {
-                return this.depthImage.copy();
-            } else {
-                return null;
-            }
+            this.depthImages.update();
+            return this.depthImages.front();
         }
         
         /**
-         * Returns the point cloud shape generated from the last received image.
+         * Returns the point cloud generated from the last received image, in the reference frame of the camera.
          * <p>
-         * If no image has been received so far, null is returned.
+         * Must be called from the thread that delivers the images, since it is overwritten by the next one.
+         * 
+         * @return  point cloud generated from the last received image.
+         */
+        public PointCloudBuffer pointCloud()
+        {
+            return this.pointCloud;
+        }
+        
+        /**
+         * Returns the spatial filter applied to the received images.
+         * 
+         * @return  spatial filter applied to the received images.
+         */
+        public SpatialDepthFilter spatialFilter()
+        {
+            return this.spatialFilter;
+        }
+        
+        /**
+         * Returns the temporal filter applied to the received images.
          * 
-         * @return  point cloud shape generated from the last received image.
+         * @return  temporal filter applied to the received images.
          */
-        public PShape pointCloudShape()
+        public TemporalDepthFilter temporalFilter()
         {
-            return this.pointCloudShape;
+            return this.temporalFilter;
         }
         
         /**
          * {@inheritDoc}
          */
-        public void consumeImage( MaixSenseA010Image image )
+        public void consumeFrame( byte[] pixels , int rows , int cols , long timestamp )
         {
-            // Adapt MaixSenseA010Image to be a DepthImage.
-            MaixSenseA010DepthImageAdapter adaptedImage = new MaixSenseA010DepthImageAdapter( image );
-            adaptedImage.setQuantizationUnit( QUANTIZATION_UNIT );
+            long projectionStart = System.nanoTime();
+            // Adapt the raw pixel values to be a DepthImage, and filter it.
+            this.adaptedImage.setPixels( pixels , rows , cols );
+            this.filterStage.apply( this.adaptedImage );
             // Generate point cloud from image.
-            this.depthCameraCalibration.setImageSize( adaptedImage.cols() );
-            List<Vector3> pointCloud = this.depthCameraCalibration.imageToPointCloud( adaptedImage );
-            // Generate PShape from point cloud.
-            PShape newPointCloudShape = createShape();
-            newPointCloudShape.beginShape( POINTS );
-            newPointCloudShape.strokeWeight( (float)2.0e0 );
-            newPointCloudShape.stroke( this.color );
-            for( Vector3 point : pointCloud ) {
-                newPointCloudShape.vertex( (float)point.x() , (float)point.y() , (float)point.z() );
-            }
-            newPointCloudShape.endShape();
-            // Update point cloud shape.
-            this.pointCloudShape = newPointCloudShape;
+            this.pointCloud.setCapacity( this.adaptedImage.rows() * this.adaptedImage.cols() );
+            this.pointCloud.setCount( this.pointCloudProjector.pointCloudInto( this.adaptedImage , this.pointCloud.xyz() ) );
+            long meshStart = profiler.record( LatencyProfiler.STAGE_PROJECTION , projectionStart );
             // Update image.
-            if(  this.depthImage == null  ||  this.depthImage.width != image.cols()  ||  this.depthImage.height != image.rows()  ) {
-                this.depthImage = createImage( image.cols() , image.rows() , RGB );
-            }
-            colorMode( RGB , (float)DEPTH_RANGE_MAX );
-            for( int i=0; i<image.rows(); i++ ) {
-                for( int j=0; j<image.cols(); j++ ) {
-                    // Get depth value.
-                    double depth = adaptedImage.depth( i , j );
-                    // Set color in depth image.
-                    this.depthImage.set( j,i , color( (float)(DEPTH_RANGE_MAX-depth) ) );
-                }
+            PImage depthImage = this.depthImages.back();
+            if(  depthImage == null  ||  depthImage.width != cols  ||  depthImage.height != rows  ) {
+                depthImage = createImage( cols , rows , RGB );
+                this.depthImages.replaceBack( depthImage );
             }
+            this.depthImageRenderer.render( this.adaptedImage , depthImage );
+            profiler.record( LatencyProfiler.STAGE_MESH , meshStart );
+            this.depthImages.publish();
         }
         
     }
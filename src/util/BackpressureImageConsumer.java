@@ -0,0 +1,344 @@
+package util;
+
+
+import maixsense.a010.MaixSenseA010Image;
+import maixsense.a010.MaixSenseA010ImageConsumer;
+
+
+
+/**
+ * {@link MaixSenseA010ImageConsumer} that delivers the received images to a {@link DepthFrameConsumer} in its own thread,
+ * applying a backpressure policy when that consumer is slower than the images arrive.
+ * <p>
+ * The pixel values of each image are copied when it arrives into buffers owned by this object, which are reused,
+ * so no reference to the images of the driver is kept after {@link #consumeImage(MaixSenseA010Image)} returns,
+ * whether or not the driver reuses them.
+ * <p>
+ * The available policies are:
+ * <ul>
+ *  <li> {@link #POLICY_KEEP_LATEST}: only the last received image is kept; stale images are dropped.
+ *  <li> {@link #POLICY_DROP_OLDEST}: up to a given number of images are kept; the oldest one is dropped when a new image arrives and there is no room.
+ *  <li> {@link #POLICY_BLOCK}: up to a given number of images are kept; the thread that delivers a new image waits until there is room.
+ * </ul>
+ * With {@link #POLICY_KEEP_LATEST}, the latency added is at most one frame no matter how expensive the wrapped consumer is.
+ * <p>
+ * The number of delivered and dropped images is counted.
+ * Each image is delivered with the time at which it arrived as timestamp;
+ * if a {@link LatencyProfiler} is set, the time images wait to be delivered and the time the wrapped consumer takes are recorded.
+ */
+public class BackpressureImageConsumer
+    implements MaixSenseA010ImageConsumer
+{
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Policy that keeps only the last received image.
+     */
+    public static final int POLICY_KEEP_LATEST = 0;
+    
+    /**
+     * Policy that drops the oldest pending image when a new one arrives and there is no room.
+     */
+    public static final int POLICY_DROP_OLDEST = 1;
+    
+    /**
+     * Policy that makes the delivering thread wait until there is room for a new image.
+     */
+    public static final int POLICY_BLOCK = 2;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Consumer to which the images are delivered.
+     */
+    private DepthFrameConsumer consumer;
+    
+    /**
+     * Backpressure policy.
+     */
+    private int policy;
+    
+    /**
+     * Ring buffer holding the pixel values of the pending images.
+     */
+    private byte[][] pending;
+    
+    /**
+     * Number of rows of each pending image.
+     */
+    private int[] pendingRows;
+    
+    /**
+     * Number of columns of each pending image.
+     */
+    private int[] pendingCols;
+    
+    /**
+     * Time at which each pending image arrived, as given by {@link System#nanoTime()}.
+     */
+    private long[] pendingReceiveTimes;
+    
+    /**
+     * Pixel values of the image being delivered; exchanged with the slot of {@link #pending} that is taken.
+     */
+    private byte[] delivering;
+    
+    /**
+     * Index in {@link #pending} of the oldest pending image.
+     */
+    private int head;
+    
+    /**
+     * Number of pending images.
+     */
+    private int size;
+    
+    /**
+     * Number of images delivered to {@link #consumer}.
+     */
+    private long delivered;
+    
+    /**
+     * Number of images dropped.
+     */
+    private long dropped;
+    
+    /**
+     * True while images are being delivered.
+     */
+    private boolean running;
+    
+    /**
+     * Thread that delivers the images to {@link #consumer}.
+     */
+    private Thread thread;
+    
+    /**
+     * Profiler where latencies are recorded, or null.
+     */
+    private volatile LatencyProfiler profiler;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link BackpressureImageConsumer} with the {@link #POLICY_KEEP_LATEST} policy, and starts delivering images.
+     * 
+     * @param frameConsumer     consumer to which the images are delivered.
+     */
+    public BackpressureImageConsumer( DepthFrameConsumer frameConsumer )
+    {
+        this( frameConsumer , POLICY_KEEP_LATEST , 1 );
+    }
+    
+    
+    /**
+     * Constructs a {@link BackpressureImageConsumer}, and starts delivering images.
+     * 
+     * @param frameConsumer     consumer to which the images are delivered.
+     * @param backpressurePolicy    {@link #POLICY_KEEP_LATEST}, {@link #POLICY_DROP_OLDEST}, or {@link #POLICY_BLOCK}.
+     * @param capacity      maximum number of pending images; ignored with {@link #POLICY_KEEP_LATEST}.
+     */
+    public BackpressureImageConsumer( DepthFrameConsumer frameConsumer , int backpressurePolicy , int capacity )
+    {
+        if(  backpressurePolicy < POLICY_KEEP_LATEST  ||  backpressurePolicy > POLICY_BLOCK  ) {
+            throw new IllegalArgumentException( "Unknown backpressure policy: " + backpressurePolicy );
+        }
+        if( capacity < 1 ) {
+            throw new IllegalArgumentException( "The capacity must be positive." );
+        }
+        this.consumer = frameConsumer;
+        this.policy = backpressurePolicy;
+        int slots = ( backpressurePolicy == POLICY_KEEP_LATEST )? 1 : capacity;
+        this.pending = new byte[ slots ][ 0 ];
+        this.pendingRows = new int[ slots ];
+        this.pendingCols = new int[ slots ];
+        this.pendingReceiveTimes = new long[ slots ];
+        this.delivering = new byte[0];
+        this.running = true;
+        this.thread = new Thread( this::deliverImages , "BackpressureImageConsumer" );
+        this.thread.setDaemon( true );
+        this.thread.start();
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Returns immediately unless the policy is {@link #POLICY_BLOCK} and there is no room for the image.
+     * The pixel values of the image are copied before returning, so the image is not used afterwards.
+     */
+    public synchronized void consumeImage( MaixSenseA010Image image )
+    {
+        long arrival = System.nanoTime();
+        LatencyProfiler latencyProfiler = this.profiler;
+        if( latencyProfiler != null ) {
+            latencyProfiler.frameReceived();
+        }
+        if( this.size == this.pending.length ) {
+            if( this.policy == POLICY_BLOCK ) {
+                while(  this.running  &&  this.size == this.pending.length  ) {
+                    try {
+                        this.wait();
+                    } catch( InterruptedException e ) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if( !this.running ) {
+                    return;
+                }
+            } else {
+                // Drop the oldest pending image; its buffer is reused.
+                this.head = ( this.head + 1 ) % this.pending.length;
+                this.size--;
+                this.dropped++;
+            }
+        }
+        // Copy the image into the free slot.
+        int slot = ( this.head + this.size ) % this.pending.length;
+        int pixels = image.rows() * image.cols();
+        if( this.pending[slot].length < pixels ) {
+            this.pending[slot] = new byte[ pixels ];
+        }
+        MaixSenseA010DepthImageAdapter.pixelsOf( image , this.pending[slot] );
+        this.pendingRows[slot] = image.rows();
+        this.pendingCols[slot] = image.cols();
+        this.pendingReceiveTimes[slot] = arrival;
+        this.size++;
+        this.notifyAll();
+    }
+    
+    
+    /**
+     * Stops delivering images and waits for the delivering thread to finish.
+     * <p>
+     * Pending images are discarded without being counted as dropped.
+     */
+    public void stop()
+    {
+        synchronized( this ) {
+            this.running = false;
+            this.notifyAll();
+        }
+        try {
+            this.thread.join();
+        } catch( InterruptedException e ) {
+            e.printStackTrace();
+        }
+    }
+    
+    
+    /**
+     * Sets the profiler where the latencies are recorded.
+     * <p>
+     * The arrival of each image is counted, and the time from its arrival until it is delivered is recorded as {@link LatencyProfiler#STAGE_ENQUEUE},
+     * and the time the wrapped consumer takes as {@link LatencyProfiler#STAGE_CONSUME}.
+     * 
+     * @param latencyProfiler   profiler where the latencies are recorded, or null to record none.
+     */
+    public void setLatencyProfiler( LatencyProfiler latencyProfiler )
+    {
+        this.profiler = latencyProfiler;
+    }
+    
+    
+    /**
+     * Returns the number of images delivered to the wrapped consumer.
+     * 
+     * @return  number of images delivered to the wrapped consumer.
+     */
+    public synchronized long deliveredCount()
+    {
+        return this.delivered;
+    }
+    
+    
+    /**
+     * Returns the number of images dropped because the wrapped consumer was not fast enough.
+     * 
+     * @return  number of images dropped.
+     */
+    public synchronized long droppedCount()
+    {
+        return this.dropped;
+    }
+    
+    
+    /**
+     * Returns the number of images waiting to be delivered.
+     * 
+     * @return  number of images waiting to be delivered.
+     */
+    public synchronized int pendingCount()
+    {
+        return this.size;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Delivers the pending images to {@link #consumer} until {@link #stop()} is called.
+     */
+    private void deliverImages()
+    {
+        while( true ) {
+            // Take the oldest pending image, exchanging its buffer with the one delivered before,
+            byte[] pixels;
+            int rows;
+            int cols;
+            long arrival;
+            synchronized( this ) {
+                while(  this.running  &&  this.size == 0  ) {
+                    try {
+                        this.wait();
+                    } catch( InterruptedException e ) {
+                        return;
+                    }
+                }
+                if( !this.running ) {
+                    return;
+                }
+                pixels = this.pending[ this.head ];
+                this.pending[ this.head ] = this.delivering;
+                this.delivering = pixels;
+                rows = this.pendingRows[ this.head ];
+                cols = this.pendingCols[ this.head ];
+                arrival = this.pendingReceiveTimes[ this.head ];
+                this.head = ( this.head + 1 ) % this.pending.length;
+                this.size--;
+                this.notifyAll();
+            }
+            // and deliver it without holding the lock.
+            LatencyProfiler latencyProfiler = this.profiler;
+            long start = System.nanoTime();
+            this.consumer.consumeFrame( pixels , rows , cols , arrival );
+            if( latencyProfiler != null ) {
+                latencyProfiler.recordDuration( LatencyProfiler.STAGE_ENQUEUE , start - arrival );
+                latencyProfiler.record( LatencyProfiler.STAGE_CONSUME , start );
+            }
+            synchronized( this ) {
+                this.delivered++;
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,499 @@
+package util;
+
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+
+
+/**
+ * Random access to the frames of a compressed frame log written by {@link CompressedFrameLogWriter}.
+ * <p>
+ * When the log is opened, its records are scanned to index the offset, size, timestamp, and type of every frame,
+ * without decoding them.
+ * Frames read in order are decoded from the previous one; any other frame is decoded from the closest previous key frame,
+ * since frames that are not key frames are predicted from the previous frame and from the running averages of the pixels.
+ * A record truncated at the end of the file (e.g. because the recording was interrupted) is ignored.
+ */
+public class CompressedFrameLogReader
+    implements FrameLog
+{
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Channel of the log.
+     */
+    private FileChannel channel;
+    
+    /**
+     * Timestamp in nanoseconds of each frame, relative to the first one.
+     */
+    private long[] timestamps;
+    
+    /**
+     * Offset in the log of the compressed residuals of each frame.
+     */
+    private long[] offsets;
+    
+    /**
+     * Number of bytes of the compressed residuals of each frame.
+     */
+    private int[] lengths;
+    
+    /**
+     * Number of rows of each frame.
+     */
+    private short[] rows;
+    
+    /**
+     * Number of columns of each frame.
+     */
+    private short[] cols;
+    
+    /**
+     * Index of the closest key frame at or before each frame.
+     */
+    private int[] keyFrames;
+    
+    /**
+     * Pixel values of the last decoded frame.
+     */
+    private byte[] decoded;
+    
+    /**
+     * Index of the last decoded frame, or -1 if none has been decoded.
+     */
+    private int decodedFrame;
+    
+    /**
+     * Pixel values of the frame before the last decoded one.
+     */
+    private byte[] previous;
+    
+    /**
+     * Running averages of the pixels up to the last decoded frame (see {@link CompressedFrameLogWriter#updateAverage(int[], byte[], int, boolean)}).
+     */
+    private int[] average;
+    
+    /**
+     * Predictors and run-length coded residuals of the frame being decoded.
+     */
+    private byte[] stream;
+    
+    /**
+     * Compressed residuals of the frame being decoded.
+     */
+    private byte[] coded;
+    
+    /**
+     * Decompresses the residuals.
+     */
+    private Inflater inflater;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link CompressedFrameLogReader}, opening and indexing a compressed frame log.
+     * 
+     * @param path  path to the log.
+     * @throws IOException  if the log can not be read or is not a compressed frame log.
+     */
+    public CompressedFrameLogReader( String path ) throws IOException
+    {
+        this.channel = FileChannel.open( Paths.get( path ) , StandardOpenOption.READ );
+        try {
+            this.index( path );
+        } catch( IOException e ) {
+            this.channel.close();
+            throw e;
+        }
+        this.decoded = new byte[0];
+        this.previous = new byte[0];
+        this.average = new int[0];
+        this.stream = new byte[0];
+        this.decodedFrame = -1;
+        this.coded = new byte[0];
+        this.inflater = new Inflater( true );
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * {@inheritDoc}
+     */
+    public int frameCount()
+    {
+        return this.timestamps.length;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public int rows( int k )
+    {
+        return this.rows[k];
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public int cols( int k )
+    {
+        return this.cols[k];
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public long timestamp( int k )
+    {
+        return this.timestamps[k];
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Reading the frame that follows the last one read only decodes that frame.
+     */
+    public synchronized byte[] frameInto( int k , byte[] out )
+    {
+        if(  k < 0  ||  k >= this.timestamps.length  ) {
+            throw new IndexOutOfBoundsException( "Frame " + k + " is not in the log." );
+        }
+        // Continue from the last decoded frame if possible, or from the closest key frame otherwise.
+        int first = ( this.keyFrames[k] <= this.decodedFrame  &&  this.decodedFrame <= k )? this.decodedFrame + 1 : this.keyFrames[k];
+        try {
+            for( int f=first; f<=k; f++ ) {
+                this.decode( f );
+            }
+        } catch( IOException e ) {
+            // The frame was indexed, so this only happens if the file changes or fails while it is open.
+            this.decodedFrame = -1;
+            throw new IllegalStateException( "Frame " + k + " can not be read." , e );
+        }
+        System.arraycopy( this.decoded , 0 , out , 0 , this.rows[k] * this.cols[k] );
+        return out;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public int frameAt( long timestamp )
+    {
+        int low = 0;
+        int high = this.timestamps.length - 1;
+        if( high < 0 ) {
+            return -1;
+        }
+        while( low < high ) {
+            int middle = ( low + high + 1 ) >>> 1;
+            if( this.timestamps[middle] <= timestamp ) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+    
+    
+    /**
+     * Returns true if a frame is a key frame, which is decoded without the previous frames.
+     * 
+     * @param k     index of the frame.
+     * @return  true if the frame is a key frame; false otherwise.
+     */
+    public boolean isKeyFrame( int k )
+    {
+        return ( this.keyFrames[k] == k );
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void close()
+    {
+        this.inflater.end();
+        try {
+            this.channel.close();
+        } catch( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Scans the records of the log, filling the index.
+     * 
+     * @param path  path to the log, used in error messages.
+     * @throws IOException  if the log can not be read or is not a compressed frame log.
+     */
+    private void index( String path ) throws IOException
+    {
+        long size = this.channel.size();
+        DataInputStream in = new DataInputStream( new BufferedInputStream( Channels.newInputStream( this.channel ) , 1 << 16 ) );
+        if(  size < 2 * Integer.BYTES  ||  in.readInt() != CompressedFrameLogWriter.MAGIC  ||  in.readInt() != CompressedFrameLogWriter.VERSION  ) {
+            throw new IOException( path + " is not a compressed frame log of version " + CompressedFrameLogWriter.VERSION + "." );
+        }
+        long position = 2 * Integer.BYTES;
+        int capacity = 1024;
+        this.timestamps = new long[ capacity ];
+        this.offsets = new long[ capacity ];
+        this.lengths = new int[ capacity ];
+        this.rows = new short[ capacity ];
+        this.cols = new short[ capacity ];
+        this.keyFrames = new int[ capacity ];
+        int count = 0;
+        long timestamp = 0;
+        int lastKeyFrame = -1;
+        int[] consumed = new int[1];
+        while( position < size ) {
+            // Read the header of the record,
+            long recordLength;
+            int flags;
+            long interval;
+            long frameRows;
+            long frameCols;
+            int headerLength;
+            try {
+                consumed[0] = 0;
+                recordLength = readVarint( in , consumed );
+                int lengthLength = consumed[0];
+                consumed[0] = 0;
+                flags = in.readUnsignedByte();
+                interval = readVarint( in , consumed );
+                frameRows = readVarint( in , consumed );
+                frameCols = readVarint( in , consumed );
+                headerLength = 1 + consumed[0];
+                position += lengthLength;
+            } catch( EOFException e ) {
+                break;
+            }
+            if(  recordLength < headerLength  ||  frameRows > Short.MAX_VALUE  ||  frameCols > Short.MAX_VALUE  ) {
+                throw new IOException( path + " has a corrupted record at offset " + position + "." );
+            }
+            if( position + recordLength > size ) {
+                // Truncated record.
+                break;
+            }
+            boolean keyFrame = ( flags & CompressedFrameLogWriter.FLAG_KEY_FRAME ) != 0;
+            if(  !keyFrame  &&  ( lastKeyFrame < 0  ||  this.rows[count-1] != frameRows  ||  this.cols[count-1] != frameCols )  ) {
+                throw new IOException( path + " has a frame without reference at offset " + position + "." );
+            }
+            // index it,
+            if( count == capacity ) {
+                capacity *= 2;
+                this.grow( capacity );
+            }
+            timestamp += ( count > 0 )? interval : 0;
+            lastKeyFrame = ( keyFrame )? count : lastKeyFrame;
+            this.timestamps[count] = timestamp;
+            this.offsets[count] = position + headerLength;
+            this.lengths[count] = (int)( recordLength - headerLength );
+            this.rows[count] = (short)frameRows;
+            this.cols[count] = (short)frameCols;
+            this.keyFrames[count] = lastKeyFrame;
+            count++;
+            // and skip its residuals.
+            long remaining = recordLength - headerLength;
+            while( remaining > 0 ) {
+                int skipped = in.skipBytes( (int)Math.min( remaining , Integer.MAX_VALUE ) );
+                if( skipped <= 0 ) {
+                    break;
+                }
+                remaining -= skipped;
+            }
+            position += recordLength;
+        }
+        this.grow( count );
+    }
+    
+    
+    /**
+     * Resizes the arrays of the index.
+     * 
+     * @param capacity  new number of frames of the index.
+     */
+    private void grow( int capacity )
+    {
+        this.timestamps = Arrays.copyOf( this.timestamps , capacity );
+        this.offsets = Arrays.copyOf( this.offsets , capacity );
+        this.lengths = Arrays.copyOf( this.lengths , capacity );
+        this.rows = Arrays.copyOf( this.rows , capacity );
+        this.cols = Arrays.copyOf( this.cols , capacity );
+        this.keyFrames = Arrays.copyOf( this.keyFrames , capacity );
+    }
+    
+    
+    /**
+     * Decodes a frame into {@link #decoded}, which must hold the previous frame unless it is a key frame;
+     * the previous frame is kept in {@link #previous}, and {@link #average} is updated.
+     * 
+     * @param k     index of the frame.
+     * @throws IOException  if the frame can not be read or decoded.
+     */
+    private void decode( int k ) throws IOException
+    {
+        // Read the compressed residuals,
+        int length = this.lengths[k];
+        if( this.coded.length < length ) {
+            this.coded = new byte[ length ];
+        }
+        ByteBuffer buffer = ByteBuffer.wrap( this.coded , 0 , length );
+        long offset = this.offsets[k];
+        while( buffer.hasRemaining() ) {
+            if( this.channel.read( buffer , offset + buffer.position() ) < 0 ) {
+                throw new EOFException();
+            }
+        }
+        // decompress them,
+        int frameRows = this.rows[k];
+        int frameCols = this.cols[k];
+        int pixelCount = frameRows * frameCols;
+        boolean keyFrame = ( this.keyFrames[k] == k );
+        this.decodedFrame = -1;
+        int capacity = frameRows * ( 1 + 2*frameCols ) + 1;
+        if( this.stream.length < capacity ) {
+            this.stream = new byte[ capacity ];
+        }
+        byte[] stream = this.stream;
+        int streamLength = 0;
+        this.inflater.reset();
+        this.inflater.setInput( this.coded , 0 , length );
+        try {
+            while( !this.inflater.finished() ) {
+                int n = this.inflater.inflate( stream , streamLength , capacity - streamLength );
+                if(  n == 0  &&  ( streamLength == capacity  ||  this.inflater.needsInput()  ||  this.inflater.needsDictionary() )  ) {
+                    throw corrupted( k );
+                }
+                streamLength += n;
+            }
+        } catch( DataFormatException e ) {
+            throw new IOException( "Frame " + k + " is corrupted." , e );
+        }
+        // The last decoded frame becomes the previous one,
+        byte[] reference = this.decoded;
+        this.decoded = this.previous;
+        this.previous = reference;
+        if( this.decoded.length != pixelCount ) {
+            this.decoded = new byte[ pixelCount ];
+        }
+        // and the residuals are added to the predictions, row by row.
+        byte[] pixels = this.decoded;
+        int position = 0;
+        for( int i=0; i<frameRows; i++ ) {
+            if( position >= streamLength ) {
+                throw corrupted( k );
+            }
+            int predictor = stream[position++];
+            if(  predictor < 0  ||  predictor >= CompressedFrameLogWriter.PREDICTOR_COUNT  ||  ( keyFrame  &&  predictor != CompressedFrameLogWriter.PREDICTOR_SPATIAL )  ) {
+                throw corrupted( k );
+            }
+            int p = i * frameCols;
+            int rowEnd = p + frameCols;
+            while( p < rowEnd ) {
+                if( position >= streamLength ) {
+                    throw corrupted( k );
+                }
+                byte residual = stream[position++];
+                int run = 1;
+                if( residual == CompressedFrameLogWriter.RUN_MARKER ) {
+                    if( position >= streamLength ) {
+                        throw corrupted( k );
+                    }
+                    int runLength = stream[position++] & 0xFF;
+                    if( runLength > 0 ) {
+                        residual = 0;
+                        run = runLength;
+                    }
+                    if( p + run > rowEnd ) {
+                        throw corrupted( k );
+                    }
+                }
+                for( int r=0; r<run; r++ , p++ ) {
+                    pixels[p] = (byte)( CompressedFrameLogWriter.prediction( predictor , pixels , p , frameCols , this.previous , this.average ) + residual );
+                }
+            }
+        }
+        if( position != streamLength ) {
+            throw corrupted( k );
+        }
+        if( this.average.length != pixelCount ) {
+            this.average = new int[ pixelCount ];
+        }
+        CompressedFrameLogWriter.updateAverage( this.average , pixels , pixelCount , keyFrame );
+        this.decodedFrame = k;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns the exception thrown when the residuals of a frame can not be decoded.
+     * 
+     * @param k     index of the frame.
+     * @return  exception describing the error.
+     */
+    private static IOException corrupted( int k )
+    {
+        return new IOException( "Frame " + k + " is corrupted." );
+    }
+    
+    
+    /**
+     * Reads an unsigned varint from a stream.
+     * 
+     * @param in    stream.
+     * @param consumed  array whose first element is incremented by the number of bytes read.
+     * @return  value of the varint.
+     * @throws IOException  if the stream ends or the varint is too long.
+     */
+    private static long readVarint( DataInputStream in , int[] consumed ) throws IOException
+    {
+        long value = 0;
+        for( int shift=0; shift<64; shift+=7 ) {
+            int b = in.readUnsignedByte();
+            consumed[0]++;
+            value |= (long)( b & 0x7F ) << shift;
+            if( ( b & 0x80 ) == 0 ) {
+                return value;
+            }
+        }
+        throw new IOException( "Varint too long." );
+    }
+    
+}
@@ -0,0 +1,809 @@
+package util;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import maixsense.a010.MaixSenseA010Image;
+import maixsense.a010.MaixSenseA010ImageConsumer;
+
+
+
+/**
+ * Records the received images in a compressed frame log, that can be read with {@link CompressedFrameLogReader}.
+ * <p>
+ * The acquisition thread only copies the pixel values of each image into a pooled buffer, and hands it over to a writer thread.
+ * The writer thread predicts every row of pixels with the predictor that gives the smallest residuals:
+ * the running average of each pixel over the previous frames, which smooths the noise of static scenes,
+ * the same pixel in the previous frame, or its neighbor in the same frame (the only one used in key frames).
+ * Runs of zero residuals, such as those of invalid or saturated regions, are run-length coded,
+ * and the result is compressed with a Huffman-only {@link Deflater}, that codes the frequent small residuals in few bits.
+ * The coded frames are written in batches through a {@link FileChannel}.
+ * <p>
+ * Frames can also be given with {@link #consumeFrame(byte[], int, int, long)}, e.g. to compress a log replayed by {@link LogPlayer};
+ * a writer should only be fed with images or with frames, since their timestamps are not comparable.
+ * <p>
+ * {@link #close()} must be called to write the last frames, since the writer thread does not keep the JVM alive.
+ * Images are accepted until {@link #close()} starts, and every accepted image is written;
+ * images received afterwards, or after the writer thread stopped because of an error, are counted as dropped (see {@link #droppedCount()}).
+ * <p>
+ * The file starts with a header (magic number and version), followed by a record per frame:
+ * <ul>
+ *  <li> varint: number of bytes of the rest of the record.
+ *  <li> byte: flags ({@link #FLAG_KEY_FRAME}).
+ *  <li> varint: nanoseconds since the previous frame (0 for the first one); images are timestamped with {@link System#nanoTime()} on arrival.
+ *  <li> varint: rows; varint: columns.
+ *  <li> rows of residuals, compressed as a raw deflate stream; each row is a byte with its predictor,
+ *       followed by its residuals, where {@link #RUN_MARKER} is followed by a byte with the length of a run of zeros (0 for a residual equal to the marker).
+ * </ul>
+ */
+public class CompressedFrameLogWriter
+    implements MaixSenseA010ImageConsumer , DepthFrameConsumer
+{
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Extension of compressed frame logs.
+     */
+    public static final String EXTENSION = ".msac";
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PACKAGE-PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Identifies compressed frame logs ("MSAC").
+     */
+    static final int MAGIC = 0x4D534143;
+    
+    /**
+     * Version of the format.
+     */
+    static final int VERSION = 2;
+    
+    /**
+     * Flag set in key frames, whose pixels are predicted from their neighbors instead of the previous frames.
+     */
+    static final int FLAG_KEY_FRAME = 1;
+    
+    /**
+     * Predictor of a row from the running average of each pixel over the previous frames.
+     */
+    static final int PREDICTOR_AVERAGE = 0;
+    
+    /**
+     * Predictor of a row from the previous frame.
+     */
+    static final int PREDICTOR_PREVIOUS = 1;
+    
+    /**
+     * Predictor of a row from the neighbors of each pixel in the same frame.
+     */
+    static final int PREDICTOR_SPATIAL = 2;
+    
+    /**
+     * Number of predictors.
+     */
+    static final int PREDICTOR_COUNT = 3;
+    
+    /**
+     * Residual that starts a run of zeros, or that is followed by 0 when it is an actual residual.
+     */
+    static final byte RUN_MARKER = (byte)0x80;
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Maximum number of frames between key frames, so that random access only decodes a bounded number of frames.
+     */
+    private static final int KEY_FRAME_INTERVAL = 100;
+    
+    /**
+     * Number of bytes accumulated before they are written to the file.
+     */
+    private static final int BATCH_BYTES = 1 << 18;
+    
+    /**
+     * Time in milliseconds after which the accumulated bytes are written even if the batch is not full.
+     */
+    private static final long FLUSH_INTERVAL = 1000;
+    
+    /**
+     * Maximum number of frames waiting to be coded.
+     */
+    private static final int QUEUE_CAPACITY = 1024;
+    
+    /**
+     * Time in milliseconds that the acquisition thread waits for room in the queue before checking again whether the writer thread is still running.
+     */
+    private static final long OFFER_TIMEOUT = 100;
+    
+    /**
+     * Maximum number of bytes of a varint holding a long.
+     */
+    private static final int MAX_VARINT_BYTES = 10;
+    
+    /**
+     * Minimum number of zero residuals that are coded as a run.
+     */
+    private static final int MIN_RUN = 8;
+    
+    /**
+     * Maximum number of zero residuals in a run.
+     */
+    private static final int MAX_RUN = 255;
+    
+    /**
+     * Number of fractional bits of the running averages.
+     */
+    private static final int AVERAGE_FRACTION_BITS = 4;
+    
+    /**
+     * Each frame moves the running average of a pixel by 1/2^{@value #AVERAGE_WEIGHT_BITS} of its distance to the pixel value.
+     */
+    private static final int AVERAGE_WEIGHT_BITS = 3;
+    
+    /**
+     * Distance between a pixel value and its running average beyond which the average is reset to the value, since the scene changed.
+     */
+    private static final int AVERAGE_RESET_DISTANCE = 8;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Channel of the file.
+     */
+    private FileChannel channel;
+    
+    /**
+     * Frames waiting to be coded.
+     */
+    private BlockingQueue<PendingFrame> pending;
+    
+    /**
+     * Frames already coded, reused to hold new images.
+     */
+    private BlockingQueue<PendingFrame> free;
+    
+    /**
+     * Thread that codes and writes the frames.
+     */
+    private Thread thread;
+    
+    /**
+     * True until {@link #close()} is called, which sets it while holding the lock of this writer, or until the writer thread stops.
+     */
+    private volatile boolean running;
+    
+    /**
+     * Number of images that were not written because the writer was closed or its thread had stopped.
+     */
+    private volatile long dropped;
+    
+    /**
+     * Timestamp of the previous image or frame in nanoseconds; only accessed by the acquisition thread.
+     */
+    private long lastTimestamp;
+    
+    /**
+     * Number of times the acquisition thread had to wait because the queue was full.
+     */
+    private volatile long stalls;
+    
+    /**
+     * Bytes waiting to be written.
+     */
+    private ByteBuffer batch;
+    
+    /**
+     * Pixel values of the previous frame.
+     */
+    private byte[] previous;
+    
+    /**
+     * Number of rows of the previous frame, or 0 if there is none.
+     */
+    private int previousRows;
+    
+    /**
+     * Number of columns of the previous frame, or 0 if there is none.
+     */
+    private int previousCols;
+    
+    /**
+     * Running average of each pixel over the previous frames (see {@link #updateAverage(int[], byte[], int, boolean)}).
+     */
+    private int[] average;
+    
+    /**
+     * Residuals of the row being coded with each predictor.
+     */
+    private byte[][] rowResiduals;
+    
+    /**
+     * Predictors and run-length coded residuals of the frame being coded.
+     */
+    private byte[] stream;
+    
+    /**
+     * Compressed residuals of the frame being coded.
+     */
+    private byte[] coded;
+    
+    /**
+     * Compresses the residuals.
+     */
+    private Deflater deflater;
+    
+    /**
+     * Header of the record being written: flags, interval, rows, and columns.
+     */
+    private byte[] recordHeader;
+    
+    /**
+     * Varint with the length of the record being written.
+     */
+    private byte[] recordLength;
+    
+    /**
+     * Number of frames since the last key frame.
+     */
+    private int framesSinceKeyFrame;
+    
+    /**
+     * Number of frames written.
+     */
+    private volatile long framesWritten;
+    
+    /**
+     * Number of bytes written, including the header.
+     */
+    private volatile long bytesWritten;
+    
+    /**
+     * Number of bytes that the pixel values of the written frames take uncompressed.
+     */
+    private volatile long rawBytes;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link CompressedFrameLogWriter}, creating the file and starting the writer thread.
+     * 
+     * @param path  path to the file; it is replaced if it exists.
+     * @throws IOException  if the file can not be created.
+     */
+    public CompressedFrameLogWriter( String path ) throws IOException
+    {
+        this.channel = FileChannel.open( Paths.get( path ) , StandardOpenOption.CREATE , StandardOpenOption.WRITE , StandardOpenOption.TRUNCATE_EXISTING );
+        this.pending = new ArrayBlockingQueue<PendingFrame>( QUEUE_CAPACITY );
+        this.free = new ArrayBlockingQueue<PendingFrame>( QUEUE_CAPACITY );
+        this.batch = ByteBuffer.allocateDirect( 2 * BATCH_BYTES );
+        this.previous = new byte[0];
+        this.average = new int[0];
+        this.rowResiduals = new byte[ PREDICTOR_COUNT ][0];
+        this.stream = new byte[0];
+        this.coded = new byte[ 1 << 10 ];
+        this.deflater = new Deflater( Deflater.BEST_SPEED , true );
+        this.deflater.setStrategy( Deflater.HUFFMAN_ONLY );
+        this.recordHeader = new byte[ 4 * MAX_VARINT_BYTES ];
+        this.recordLength = new byte[ MAX_VARINT_BYTES ];
+        this.lastTimestamp = -1;
+        // Write the header.
+        this.batch.putInt( MAGIC );
+        this.batch.putInt( VERSION );
+        // Start the writer thread.
+        this.running = true;
+        this.thread = new Thread( this::writeFrames , "CompressedFrameLogWriter" );
+        this.thread.setDaemon( true );
+        this.thread.start();
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The pixel values are copied into a pooled buffer, and the image is queued to be written.
+     * It only waits if {@value #QUEUE_CAPACITY} images are already waiting to be written, and never after the writer thread stopped.
+     * Images received once {@link #close()} has started are dropped.
+     */
+    public synchronized void consumeImage( MaixSenseA010Image image )
+    {
+        if( !this.running ) {
+            this.dropped++;
+            return;
+        }
+        long arrival = System.nanoTime();
+        PendingFrame frame = this.takeBuffer( image.rows() , image.cols() );
+        MaixSenseA010DepthImageAdapter.pixelsOf( image , frame.pixels );
+        this.queue( frame , arrival );
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     * <p>
+     * As {@link #consumeImage(MaixSenseA010Image)}, but the frame is timestamped with the given timestamp instead of its arrival time.
+     */
+    public synchronized void consumeFrame( byte[] pixels , int rows , int cols , long timestamp )
+    {
+        if( !this.running ) {
+            this.dropped++;
+            return;
+        }
+        PendingFrame frame = this.takeBuffer( rows , cols );
+        System.arraycopy( pixels , 0 , frame.pixels , 0 , rows*cols );
+        this.queue( frame , timestamp );
+    }
+    
+    
+    /**
+     * Writes the images still queued, and closes the file.
+     * <p>
+     * Images being queued when it is called are written; images received afterwards are dropped.
+     */
+    public void close()
+    {
+        synchronized( this ) {
+            this.running = false;
+        }
+        try {
+            this.thread.join();
+        } catch( InterruptedException e ) {
+            e.printStackTrace();
+        }
+    }
+    
+    
+    /**
+     * Returns the number of frames written.
+     * 
+     * @return  number of frames written.
+     */
+    public long framesWritten()
+    {
+        return this.framesWritten;
+    }
+    
+    
+    /**
+     * Returns the number of bytes written to the file.
+     * 
+     * @return  number of bytes written to the file.
+     */
+    public long bytesWritten()
+    {
+        return this.bytesWritten;
+    }
+    
+    
+    /**
+     * Returns the ratio between the uncompressed size of the written frames and the size of the file.
+     * 
+     * @return  compression ratio, or 0 if nothing has been written.
+     */
+    public double compressionRatio()
+    {
+        long written = this.bytesWritten;
+        return ( written > 0 )? (double)this.rawBytes / written : 0.0;
+    }
+    
+    
+    /**
+     * Returns the number of images that were not written because the writer was closed, or its thread had stopped because of an error.
+     * 
+     * @return  number of images dropped.
+     */
+    public long droppedCount()
+    {
+        return this.dropped;
+    }
+    
+    
+    /**
+     * Returns the number of times the acquisition thread had to wait because too many images were waiting to be written.
+     * 
+     * @return  number of times the acquisition thread had to wait.
+     */
+    public long stallCount()
+    {
+        return this.stalls;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PACKAGE-PRIVATE STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Writes an unsigned varint: 7 bits per byte, least significant first, with the high bit set in all bytes but the last.
+     * 
+     * @param value     non-negative value.
+     * @param out       array where the varint is written.
+     * @param position  position of the first byte.
+     * @return  position after the last byte.
+     */
+    static int putVarint( long value , byte[] out , int position )
+    {
+        while( ( value & ~0x7FL ) != 0 ) {
+            out[position++] = (byte)( ( value & 0x7F ) | 0x80 );
+            value >>>= 7;
+        }
+        out[position++] = (byte)value;
+        return position;
+    }
+    
+    
+    /**
+     * Returns the prediction of a pixel from its neighbors, used in key frames.
+     * <p>
+     * The prediction is the pixel to the left, or the pixel above for the first column.
+     * 
+     * @param pixels    pixel values in row-major order; only the pixels before {@code k} are used.
+     * @param k         index of the pixel.
+     * @param cols      number of columns.
+     * @return  prediction of the pixel.
+     */
+    static byte spatialPrediction( byte[] pixels , int k , int cols )
+    {
+        if( k % cols != 0 ) {
+            return pixels[k-1];
+        }
+        return ( k >= cols )? pixels[k-cols] : 0;
+    }
+    
+    
+    /**
+     * Returns the prediction of a pixel with a predictor.
+     * 
+     * @param predictor     {@link #PREDICTOR_AVERAGE}, {@link #PREDICTOR_PREVIOUS}, or {@link #PREDICTOR_SPATIAL}.
+     * @param pixels    pixel values of the frame in row-major order; only the pixels before {@code k} are used.
+     * @param k         index of the pixel.
+     * @param cols      number of columns.
+     * @param previous  pixel values of the previous frame, used by {@link #PREDICTOR_PREVIOUS}.
+     * @param average   running averages of the pixels, used by {@link #PREDICTOR_AVERAGE}.
+     * @return  prediction of the pixel.
+     */
+    static byte prediction( int predictor , byte[] pixels , int k , int cols , byte[] previous , int[] average )
+    {
+        switch( predictor ) {
+            case PREDICTOR_AVERAGE:
+                return (byte)( ( average[k] + ( 1 << ( AVERAGE_FRACTION_BITS - 1 ) ) ) >> AVERAGE_FRACTION_BITS );
+            case PREDICTOR_PREVIOUS:
+                return previous[k];
+            default:
+                return spatialPrediction( pixels , k , cols );
+        }
+    }
+    
+    
+    /**
+     * Updates the running averages of the pixels with a new frame.
+     * <p>
+     * The average of a pixel is reset to its value in key frames, when the pixel is invalid (0 or 255),
+     * or when its value is more than {@value #AVERAGE_RESET_DISTANCE} away from the average;
+     * otherwise, it moves towards the value, so that it follows static pixels with less noise than the previous frame.
+     * 
+     * @param average   running averages, with {@value #AVERAGE_FRACTION_BITS} fractional bits.
+     * @param pixels    pixel values of the frame in row-major order.
+     * @param pixelCount    number of pixels of the frame.
+     * @param reset     true to reset all the averages to the pixel values.
+     */
+    static void updateAverage( int[] average , byte[] pixels , int pixelCount , boolean reset )
+    {
+        for( int k=0; k<pixelCount; k++ ) {
+            int value = pixels[k] & 0xFF;
+            int target = value << AVERAGE_FRACTION_BITS;
+            if(  reset  ||  value == 0  ||  value == 255  ||  Math.abs( target - average[k] ) > ( AVERAGE_RESET_DISTANCE << AVERAGE_FRACTION_BITS )  ) {
+                average[k] = target;
+            } else {
+                average[k] += ( target - average[k] ) >> AVERAGE_WEIGHT_BITS;
+            }
+        }
+    }
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Takes a buffer from the pool, or creates one, to hold a frame.
+     * 
+     * @param rows  number of rows of the frame.
+     * @param cols  number of columns of the frame.
+     * @return  buffer whose pixel array holds exactly {@code rows*cols} values.
+     */
+    private PendingFrame takeBuffer( int rows , int cols )
+    {
+        PendingFrame frame = this.free.poll();
+        if( frame == null ) {
+            frame = new PendingFrame();
+        }
+        if(  frame.pixels == null  ||  frame.pixels.length != rows*cols  ) {
+            frame.pixels = new byte[ rows*cols ];
+        }
+        frame.rows = rows;
+        frame.cols = cols;
+        return frame;
+    }
+    
+    
+    /**
+     * Queues a frame to be written, waiting for room only while the writer thread is running.
+     * 
+     * @param frame     frame holding a copy of the pixel values.
+     * @param timestamp     timestamp of the frame in nanoseconds.
+     */
+    private void queue( PendingFrame frame , long timestamp )
+    {
+        frame.interval = ( this.lastTimestamp < 0 )? 0 : Math.max( 0 , timestamp - this.lastTimestamp );
+        this.lastTimestamp = timestamp;
+        if( !this.pending.offer( frame ) ) {
+            this.stalls++;
+            try {
+                while( !this.pending.offer( frame , OFFER_TIMEOUT , TimeUnit.MILLISECONDS ) ) {
+                    if( !this.running ) {
+                        this.dropped++;
+                        return;
+                    }
+                }
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                this.dropped++;
+            }
+        }
+    }
+    
+    
+    /**
+     * Codes and writes the queued frames until {@link #close()} is called and the queue is empty.
+     */
+    private void writeFrames()
+    {
+        try {
+            long lastFlush = System.currentTimeMillis();
+            while(  this.running  ||  !this.pending.isEmpty()  ) {
+                PendingFrame frame;
+                try {
+                    frame = this.pending.poll( FLUSH_INTERVAL , TimeUnit.MILLISECONDS );
+                } catch( InterruptedException e ) {
+                    break;
+                }
+                if( frame != null ) {
+                    this.encodeFrame( frame );
+                    this.free.offer( frame );
+                }
+                if(  this.batch.position() >= BATCH_BYTES  ||  ( this.batch.position() > 0  &&  System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL )  ) {
+                    this.flush();
+                    lastFlush = System.currentTimeMillis();
+                }
+            }
+            this.flush();
+        } catch( IOException e ) {
+            e.printStackTrace();
+        } finally {
+            // Stop accepting images, so that the acquisition thread never waits for a stopped writer;
+            // the lock is not taken, since the acquisition thread holds it while it waits for room.
+            this.running = false;
+            this.deflater.end();
+            try {
+                this.channel.close();
+            } catch( IOException e ) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    
+    /**
+     * Codes a frame and appends its record to {@link #batch}.
+     * 
+     * @param frame     frame to be coded.
+     * @throws IOException  if the batch must be written and it fails.
+     */
+    private void encodeFrame( PendingFrame frame ) throws IOException
+    {
+        int frameRows = frame.rows;
+        int frameCols = frame.cols;
+        int pixelCount = frameRows * frameCols;
+        byte[] pixels = frame.pixels;
+        // A key frame is coded if the size changes or one is due.
+        boolean keyFrame = (  frameRows != this.previousRows  ||  frameCols != this.previousCols  ||  this.framesSinceKeyFrame >= KEY_FRAME_INTERVAL  );
+        if( this.rowResiduals[0].length < frameCols ) {
+            this.rowResiduals = new byte[ PREDICTOR_COUNT ][ frameCols ];
+        }
+        if( this.stream.length < frameRows * ( 1 + 2*frameCols ) ) {
+            this.stream = new byte[ frameRows * ( 1 + 2*frameCols ) ];
+        }
+        int streamLength = 0;
+        for( int i=0; i<frameRows; i++ ) {
+            // Predict the row with every predictor allowed,
+            int best = PREDICTOR_SPATIAL;
+            long bestCost = Long.MAX_VALUE;
+            for( int predictor=( keyFrame )? PREDICTOR_SPATIAL : 0; predictor<PREDICTOR_COUNT; predictor++ ) {
+                byte[] residuals = this.rowResiduals[predictor];
+                long cost = 0;
+                for( int j=0, k=i*frameCols; j<frameCols; j++, k++ ) {
+                    byte residual = (byte)( pixels[k] - prediction( predictor , pixels , k , frameCols , this.previous , this.average ) );
+                    residuals[j] = residual;
+                    cost += Math.abs( residual );
+                }
+                if( cost < bestCost ) {
+                    best = predictor;
+                    bestCost = cost;
+                }
+            }
+            // and keep the one with the smallest residuals.
+            this.stream[streamLength++] = (byte)best;
+            streamLength = putRow( this.rowResiduals[best] , frameCols , this.stream , streamLength );
+        }
+        // Compress the residuals.
+        this.deflater.reset();
+        this.deflater.setInput( this.stream , 0 , streamLength );
+        this.deflater.finish();
+        int codedLength = 0;
+        while( !this.deflater.finished() ) {
+            if( codedLength == this.coded.length ) {
+                this.coded = Arrays.copyOf( this.coded , 2 * this.coded.length );
+            }
+            codedLength += this.deflater.deflate( this.coded , codedLength , this.coded.length - codedLength );
+        }
+        int flags = ( keyFrame )? FLAG_KEY_FRAME : 0;
+        this.framesSinceKeyFrame = ( keyFrame )? 0 : this.framesSinceKeyFrame + 1;
+        // Build the header of the record,
+        byte[] header = this.recordHeader;
+        int headerLength = 0;
+        header[headerLength++] = (byte)flags;
+        headerLength = putVarint( frame.interval , header , headerLength );
+        headerLength = putVarint( frame.rows , header , headerLength );
+        headerLength = putVarint( frame.cols , header , headerLength );
+        int recordLength = headerLength + codedLength;
+        byte[] length = this.recordLength;
+        int lengthLength = putVarint( recordLength , length , 0 );
+        // and append the record to the batch.
+        if( this.batch.remaining() < lengthLength + recordLength ) {
+            this.flush();
+            if( this.batch.remaining() < lengthLength + recordLength ) {
+                this.batch = ByteBuffer.allocateDirect( Math.max( 2*this.batch.capacity() , lengthLength + recordLength ) );
+            }
+        }
+        this.batch.put( length , 0 , lengthLength );
+        this.batch.put( header , 0 , headerLength );
+        this.batch.put( this.coded , 0 , codedLength );
+        // Keep the frame as reference for the next one.
+        if( this.previous.length != pixelCount ) {
+            this.previous = new byte[ pixelCount ];
+            this.average = new int[ pixelCount ];
+        }
+        System.arraycopy( pixels , 0 , this.previous , 0 , pixelCount );
+        updateAverage( this.average , pixels , pixelCount , keyFrame );
+        this.previousRows = frameRows;
+        this.previousCols = frameCols;
+        this.framesWritten++;
+        this.rawBytes += pixelCount;
+    }
+    
+    
+    /**
+     * Writes the bytes accumulated in {@link #batch} to the file.
+     * 
+     * @throws IOException  if the bytes can not be written.
+     */
+    private void flush() throws IOException
+    {
+        this.batch.flip();
+        while( this.batch.hasRemaining() ) {
+            this.bytesWritten += this.channel.write( this.batch );
+        }
+        this.batch.clear();
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Writes the residuals of a row, coding the runs of at least {@value #MIN_RUN} zeros as {@link #RUN_MARKER} followed by their length.
+     * 
+     * @param residuals     residuals of the row.
+     * @param count     number of residuals.
+     * @param out       array where the coded residuals are written; it must have room for {@code 2*count} bytes.
+     * @param position  position of the first byte.
+     * @return  position after the last byte.
+     */
+    private static int putRow( byte[] residuals , int count , byte[] out , int position )
+    {
+        int j = 0;
+        while( j < count ) {
+            if( residuals[j] == 0 ) {
+                int end = j + 1;
+                while(  end < count  &&  end - j < MAX_RUN  &&  residuals[end] == 0  ) {
+                    end++;
+                }
+                if( end - j >= MIN_RUN ) {
+                    out[position++] = RUN_MARKER;
+                    out[position++] = (byte)( end - j );
+                } else {
+                    while( j < end ) {
+                        out[position++] = 0;
+                        j++;
+                    }
+                }
+                j = end;
+            } else if( residuals[j] == RUN_MARKER ) {
+                out[position++] = RUN_MARKER;
+                out[position++] = 0;
+                j++;
+            } else {
+                out[position++] = residuals[j++];
+            }
+        }
+        return position;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CLASSES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Copy of an image waiting to be coded.
+     */
+    private static class PendingFrame
+    {
+        // PRIVATE VARIABLES
+        
+        /**
+         * Pixel values in row-major order.
+         */
+        private byte[] pixels;
+        
+        /**
+         * Number of rows.
+         */
+        private int rows;
+        
+        /**
+         * Number of columns.
+         */
+        private int cols;
+        
+        /**
+         * Nanoseconds since the previous frame.
+         */
+        private long interval;
+    }
+    
+}
@@ -0,0 +1,117 @@
+package util;
+
+
+
+/**
+ * Chain of {@link DepthFrameFilter}s applied to the images adapted by a {@link MaixSenseA010DepthImageAdapter}.
+ * <p>
+ * It is placed between the reception of an image and its processing:
+ * after {@link MaixSenseA010DepthImageAdapter#setImage(maixsense.a010.MaixSenseA010Image)} or {@link MaixSenseA010DepthImageAdapter#setPixels(byte[], int, int)},
+ * {@link #apply(MaixSenseA010DepthImageAdapter)} makes the adapter use the filtered pixel values instead.
+ * The filters are applied in order, alternating between two buffers owned by the stage, which are only reallocated if the image size changes.
+ * Disabled filters are skipped, and the image is not even copied when all of them are disabled, so the stage then costs nothing.
+ */
+public class DepthFilterStage
+{
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Filters applied in order.
+     */
+    private DepthFrameFilter[] filters;
+    
+    /**
+     * Buffers that hold the input and the output of each filter.
+     */
+    private byte[][] buffers;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link DepthFilterStage}.
+     * 
+     * @param depthFrameFilters     filters applied in order.
+     */
+    public DepthFilterStage( DepthFrameFilter... depthFrameFilters )
+    {
+        this.filters = depthFrameFilters.clone();
+        this.buffers = new byte[][]{ new byte[0] , new byte[0] };
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Filters the image held by an adapter, and makes the adapter hold the filtered image.
+     * <p>
+     * The filtered pixel values are held by the stage until the next call, so the adapter must not be used after that.
+     * 
+     * @param image     adapter that holds the image to be filtered.
+     */
+    public void apply( MaixSenseA010DepthImageAdapter image )
+    {
+        // Leave the image untouched if every filter is disabled.
+        if( !this.anyEnabled() ) {
+            return;
+        }
+        int rows = image.rows();
+        int cols = image.cols();
+        int pixels = rows * cols;
+        if( this.buffers[0].length != pixels ) {
+            this.buffers[0] = new byte[ pixels ];
+            this.buffers[1] = new byte[ pixels ];
+        }
+        // The input of the first filter is copied, since the adapter may hold an array that it does not own.
+        image.pixelsInto( this.buffers[0] );
+        int current = 0;
+        for( DepthFrameFilter filter : this.filters ) {
+            if(  filter.isEnabled()  &&  filter.filter( this.buffers[current] , rows , cols , this.buffers[1-current] )  ) {
+                current = 1 - current;
+            }
+        }
+        image.setPixels( this.buffers[current] , rows , cols );
+    }
+    
+    
+    /**
+     * Returns a filter of the stage.
+     * 
+     * @param k     index of the filter.
+     * @return  filter applied in the position {@code k}.
+     */
+    public DepthFrameFilter filter( int k )
+    {
+        return this.filters[k];
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns true if any filter is enabled.
+     * 
+     * @return  true if any filter is enabled; false otherwise.
+     */
+    private boolean anyEnabled()
+    {
+        for( DepthFrameFilter filter : this.filters ) {
+            if( filter.isEnabled() ) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+}
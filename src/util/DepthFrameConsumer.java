@@ -0,0 +1,26 @@
+package util;
+
+
+
+/**
+ * Consumer of raw depth frames, as produced by {@link LogPlayer}.
+ * <p>
+ * It is the counterpart of {@code MaixSenseA010ImageConsumer} for frames that are not held in a {@code MaixSenseA010Image},
+ * such as those read from a frame file; they can be adapted with {@link MaixSenseA010DepthImageAdapter#setPixels(byte[], int, int)}.
+ */
+public interface DepthFrameConsumer
+{
+    
+    /**
+     * Consumes a frame.
+     * <p>
+     * The array of pixel values is reused by the producer, so its content is only valid until this method returns.
+     * 
+     * @param pixels    raw pixel values in row-major order.
+     * @param rows      number of rows of the frame.
+     * @param cols      number of columns of the frame.
+     * @param timestamp     timestamp of the frame in nanoseconds.
+     */
+    public void consumeFrame( byte[] pixels , int rows , int cols , long timestamp );
+    
+}
@@ -0,0 +1,36 @@
+package util;
+
+
+
+/**
+ * Filter applied to the raw pixel values of depth frames, as chained by {@link DepthFilterStage}.
+ * <p>
+ * Raw pixel values are those of the MaixSense-A010: 0 means no return and 255 means saturation, so both are invalid.
+ */
+public interface DepthFrameFilter
+{
+    
+    /**
+     * Filters a frame.
+     * <p>
+     * Filters may keep state between calls, so the frames of a sequence must be filtered in order, from a single thread.
+     * 
+     * @param in    raw pixel values in row-major order.
+     * @param rows  number of rows of the frame.
+     * @param cols  number of columns of the frame.
+     * @param out   array where the filtered pixel values are written; its length must be at least {@code rows*cols}, and it must not be {@code in}.
+     * @return  true if the filtered pixel values were written in {@code out}; false if the filter is disabled and {@code out} was not modified.
+     */
+    public boolean filter( byte[] in , int rows , int cols , byte[] out );
+    
+    
+    /**
+     * Returns true if the next call to {@link #filter(byte[], int, int, byte[])} may write filtered pixel values.
+     * <p>
+     * {@link DepthFilterStage} does not call disabled filters, so filters that keep state must stay enabled until they have seen that they were disabled.
+     * 
+     * @return  true if the filter may filter the next frame; false if it would certainly leave it unmodified.
+     */
+    public boolean isEnabled();
+    
+}
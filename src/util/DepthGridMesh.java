@@ -0,0 +1,728 @@
+package util;
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+
+/**
+ * Triangle mesh built on the pixel grid of a depth image, stored in primitive arrays.
+ * <p>
+ * Each pixel is a vertex shared by the triangles around it; triangles are described by an index buffer.
+ * The xy coordinates of the vertices and the index buffer with every triangle (the topology) are built once per image size,
+ * while the z coordinates and the colors of the vertices are updated in place for every new frame,
+ * together with their normals when they are given (see {@link DepthNormalEstimator}), so that the mesh can be lit.
+ * <p>
+ * Each quad of pixels (i,j), (i,j+1), (i+1,j), (i+1,j+1) is split in the lower triangle (i,j), (i,j+1), (i+1,j),
+ * and the upper triangle (i,j+1), (i+1,j), (i+1,j+1).
+ * <p>
+ * Triangles can be dropped for every frame: those with an invalid pixel, when the validity of the pixels is given,
+ * and those whose depths differ more than a threshold (see {@link #setMaxDepthJump(float)}),
+ * which would otherwise join the foreground and the background with long "curtain" triangles.
+ * The remaining triangles are compacted at the start of the index buffer, so fewer indices are uploaded and drawn.
+ * <p>
+ * The mesh can also be decimated (see {@link #setDecimationTolerance(float)}): quads in flat regions are merged
+ * into larger cells of a {@link DepthGridQuadtree}, which only evaluates again the cells whose pixels changed since the previous frame.
+ * The vertices are kept, so only the index buffer changes, and it is only copied from the quadtree when the triangles of the quadtree changed.
+ * Meshes exchanged between a producer and a renderer must share the same quadtree (see {@link #setDecimationQuadtree(DepthGridQuadtree)}),
+ * so that each frame is compared with the previous one and the renderer does not upload the same triangles again when the meshes are swapped.
+ * <p>
+ * With a {@link StripeExecutor}, the vertices of each frame are updated in parallel stripes of rows.
+ */
+public class DepthGridMesh
+{
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Maximum number of vertices, so that vertices can be indexed with unsigned shorts.
+     */
+    public static final int MAX_VERTICES = 1 << 16;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Source of geometry versions, so that versions are unique across meshes.
+     */
+    private static final AtomicInteger GEOMETRY_VERSIONS = new AtomicInteger();
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Factor used to scale the pixel indices to obtain the xy coordinates of the vertices.
+     */
+    private float xyFactor;
+    
+    /**
+     * Maximum depth used to compute the color of the vertices.
+     */
+    private float depthRangeMax;
+    
+    /**
+     * Number of rows of the grid.
+     */
+    private int rows;
+    
+    /**
+     * Number of columns of the grid.
+     */
+    private int cols;
+    
+    /**
+     * xy coordinates of the vertices, two per vertex.
+     */
+    private float[] xy;
+    
+    /**
+     * z coordinate of the vertices.
+     */
+    private float[] z;
+    
+    /**
+     * ARGB color of the vertices.
+     */
+    private int[] colors;
+    
+    /**
+     * Normals of the vertices, three per vertex.
+     */
+    private float[] normals;
+    
+    /**
+     * True if {@link #normals} was updated with the last frame.
+     */
+    private boolean hasNormals;
+    
+    /**
+     * Vertex indices of the triangles, three per triangle, as unsigned shorts.
+     */
+    private short[] indices;
+    
+    /**
+     * Number of indices in use in {@link #indices}.
+     */
+    private int indexCount;
+    
+    /**
+     * Changes every time {@link #xy} changes, i.e. when the grid size changes.
+     * <p>
+     * Grids of the same size share the same topology version,
+     * so a renderer can switch between meshes of the same size without uploading their xy coordinates again.
+     */
+    private int topologyVersion;
+    
+    /**
+     * Changes every time {@link #indices} change.
+     * <p>
+     * Full grids share {@link #topologyVersion}, decimated grids share the index version of {@link #quadtree},
+     * while grids with dropped triangles have a version unique across meshes.
+     */
+    private int indexVersion;
+    
+    /**
+     * True if {@link #indices} holds every triangle of the grid.
+     */
+    private boolean fullGrid;
+    
+    /**
+     * Maximum difference between the depths of the vertices of a triangle for it not to be dropped; infinite to keep every triangle.
+     */
+    private volatile float maxDepthJump;
+    
+    /**
+     * Maximum distance between the depths of the vertices of a merged cell and its plane; 0 to not decimate the mesh.
+     */
+    private volatile float decimationTolerance;
+    
+    /**
+     * Quadtree used to decimate the mesh, possibly shared with other meshes; created the first time it is needed if none was set.
+     */
+    private DepthGridQuadtree quadtree;
+    
+    /**
+     * Changes every time {@link #z}, {@link #colors} or {@link #normals} change; unique across meshes.
+     */
+    private int geometryVersion;
+    
+    /**
+     * Executes {@link #updateTask} on stripes of the grid, or null to update the whole grid in the calling thread.
+     */
+    private StripeExecutor executor;
+    
+    /**
+     * Task that updates the vertices of a stripe of the grid.
+     */
+    private StripeTask updateTask;
+    
+    /**
+     * Depths of the frame being used to update the mesh.
+     */
+    private float[] updateDepths;
+    
+    /**
+     * Normals of the frame being used to update the mesh, or null.
+     */
+    private float[] updateNormals;
+    
+    /**
+     * Validity bitset of the frame being used to update the mesh, or null if every pixel is valid.
+     */
+    private long[] updateValidityBits;
+    
+    /**
+     * Maximum depth difference used with the frame being used to update the mesh.
+     */
+    private float updateMaxDepthJump;
+    
+    /**
+     * True if triangles are dropped in the frame being used to update the mesh.
+     */
+    private boolean updateCulling;
+    
+    /**
+     * Number of indices written by each stripe of the frame being used to update the mesh.
+     */
+    private int[] stripeIndexCounts;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link DepthGridMesh}.
+     * 
+     * @param xyScale       factor used to scale the pixel indices to obtain the xy coordinates of the vertices.
+     * @param depthMax      maximum depth used to compute the color of the vertices.
+     */
+    public DepthGridMesh( float xyScale , float depthMax )
+    {
+        this.xyFactor = xyScale;
+        this.depthRangeMax = depthMax;
+        this.maxDepthJump = Float.POSITIVE_INFINITY;
+        this.updateTask = this::updateStripe;
+        this.stripeIndexCounts = new int[0];
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Updates the mesh with the depths of a new frame, in which every pixel is valid.
+     * <p>
+     * The topology is only rebuilt if the image size changes; triangles are only dropped for their depth jumps.
+     * 
+     * @param depths    depths of the pixels in row-major order.
+     * @param imageRows     number of rows of the image.
+     * @param imageCols     number of columns of the image.
+     */
+    public void update( float[] depths , int imageRows , int imageCols )
+    {
+        this.update( depths , null , imageRows , imageCols );
+    }
+    
+    
+    /**
+     * Updates the mesh with the depths of a new frame, dropping the triangles with invalid pixels or depth jumps.
+     * <p>
+     * The xy coordinates are only rebuilt if the image size changes.
+     * The index buffer is rebuilt if any triangle can be dropped, or if triangles were dropped in the previous frame.
+     * When the mesh is decimated, the index buffer is only rebuilt if the cells of the quadtree changed.
+     * 
+     * @param depths    depths of the pixels in row-major order.
+     * @param validityBits  validity bitset of the pixels, as computed by {@link MaixSenseA010DepthImageAdapter#validityBitsInto(long[])}, or null if every pixel is valid.
+     * @param imageRows     number of rows of the image.
+     * @param imageCols     number of columns of the image.
+     */
+    public void update( float[] depths , long[] validityBits , int imageRows , int imageCols )
+    {
+        this.update( depths , validityBits , null , imageRows , imageCols );
+    }
+    
+    
+    /**
+     * Updates the mesh with the depths and the normals of a new frame, dropping the triangles with invalid pixels or depth jumps.
+     * <p>
+     * The normals are copied to the vertices along with the depths.
+     * 
+     * @param depths    depths of the pixels in row-major order.
+     * @param validityBits  validity bitset of the pixels, as computed by {@link MaixSenseA010DepthImageAdapter#validityBitsInto(long[])}, or null if every pixel is valid.
+     * @param pixelNormals  normals of the pixels, three per pixel, as estimated by {@link DepthNormalEstimator}, or null if the mesh is not lit.
+     * @param imageRows     number of rows of the image.
+     * @param imageCols     number of columns of the image.
+     */
+    public void update( float[] depths , long[] validityBits , float[] pixelNormals , int imageRows , int imageCols )
+    {
+        if(  this.xy == null  ||  this.rows != imageRows  ||  this.cols != imageCols  ) {
+            this.buildTopology( imageRows , imageCols );
+        }
+        float tolerance = this.decimationTolerance;
+        this.updateDepths = depths;
+        this.updateNormals = pixelNormals;
+        this.hasNormals = ( pixelNormals != null );
+        this.updateValidityBits = validityBits;
+        this.updateMaxDepthJump = this.maxDepthJump;
+        this.updateCulling = (  tolerance == 0.0f  &&  (  validityBits != null  ||  this.updateMaxDepthJump != Float.POSITIVE_INFINITY  )  );
+        if( this.stripeIndexCounts.length < Math.max( imageRows , 1 ) ) {
+            this.stripeIndexCounts = new int[ Math.max( imageRows , 1 ) ];
+        }
+        int stripes;
+        if( this.executor == null ) {
+            this.updateStripe( 0 , 0 , imageRows );
+            stripes = 1;
+        } else {
+            stripes = this.executor.execute( imageRows , this.updateTask );
+        }
+        if( this.updateCulling ) {
+            // Move the triangles kept by each stripe together.
+            int n = 0;
+            for( int s=0; s<stripes; s++ ) {
+                int start = 6 * ( s*imageRows/stripes ) * Math.max( imageCols-1 , 0 );
+                int length = this.stripeIndexCounts[s];
+                if( start != n ) {
+                    System.arraycopy( this.indices , start , this.indices , n , length );
+                }
+                n += length;
+            }
+            this.indexCount = n;
+            this.indexVersion = GEOMETRY_VERSIONS.incrementAndGet();
+            this.fullGrid = false;
+        } else if( tolerance != 0.0f ) {
+            // Copy the triangles only if they changed since this mesh last copied them.
+            if( this.quadtree == null ) {
+                this.quadtree = new DepthGridQuadtree();
+            }
+            this.quadtree.update( depths , validityBits , imageRows , imageCols , tolerance , this.updateMaxDepthJump );
+            if( this.indexVersion != this.quadtree.indexVersion() ) {
+                this.indexCount = this.quadtree.indicesInto( this.indices );
+                this.indexVersion = this.quadtree.indexVersion();
+                this.fullGrid = false;
+            }
+        } else if( !this.fullGrid ) {
+            this.buildFullGrid();
+        }
+        this.updateDepths = null;
+        this.updateNormals = null;
+        this.updateValidityBits = null;
+        this.geometryVersion = GEOMETRY_VERSIONS.incrementAndGet();
+    }
+    
+    
+    /**
+     * Sets the maximum difference between the depths of the vertices of a triangle for it not to be dropped; it takes effect in the next frame.
+     * 
+     * @param depthJump     maximum depth difference in meters, or {@link Float#POSITIVE_INFINITY} to keep the triangles regardless of their depths.
+     */
+    public void setMaxDepthJump( float depthJump )
+    {
+        if( !( depthJump >= 0.0f ) ) {
+            throw new IllegalArgumentException( "The maximum depth jump can not be negative." );
+        }
+        this.maxDepthJump = depthJump;
+    }
+    
+    
+    /**
+     * Returns the maximum difference between the depths of the vertices of a triangle for it not to be dropped.
+     * 
+     * @return  maximum depth difference in meters, or {@link Float#POSITIVE_INFINITY} if triangles are not dropped for their depths.
+     */
+    public float getMaxDepthJump()
+    {
+        return this.maxDepthJump;
+    }
+    
+    
+    /**
+     * Sets the maximum distance between the depths of the vertices of a merged cell and the plane of the cell; it takes effect in the next frame.
+     * <p>
+     * When decimating, triangles with invalid pixels or depth jumps are dropped from the quads that are not merged.
+     * 
+     * @param tolerance     maximum distance in meters, or 0 to not decimate the mesh.
+     */
+    public void setDecimationTolerance( float tolerance )
+    {
+        if( !( tolerance >= 0.0f ) ) {
+            throw new IllegalArgumentException( "The decimation tolerance can not be negative." );
+        }
+        this.decimationTolerance = tolerance;
+    }
+    
+    
+    /**
+     * Returns the maximum distance between the depths of the vertices of a merged cell and the plane of the cell.
+     * 
+     * @return  maximum distance in meters, or 0 if the mesh is not decimated.
+     */
+    public float getDecimationTolerance()
+    {
+        return this.decimationTolerance;
+    }
+    
+    
+    /**
+     * Sets the quadtree used to decimate the mesh.
+     * <p>
+     * The meshes exchanged between a producer and a renderer must share the same quadtree, which is updated with every frame,
+     * so that each frame is compared with the previous one instead of with the last frame of the same mesh,
+     * and the meshes that hold the same triangles report the same index version.
+     * It must only be updated from the producer thread.
+     * 
+     * @param sharedQuadtree    quadtree used to decimate the mesh.
+     */
+    public void setDecimationQuadtree( DepthGridQuadtree sharedQuadtree )
+    {
+        this.quadtree = sharedQuadtree;
+    }
+    
+    
+    /**
+     * Sets the executor used to update the mesh in stripes.
+     * <p>
+     * It must not be used by other threads while the mesh is being updated.
+     * 
+     * @param stripeExecutor    executor used to update the mesh in stripes, or null to update it in the calling thread.
+     */
+    public void setStripeExecutor( StripeExecutor stripeExecutor )
+    {
+        this.executor = stripeExecutor;
+    }
+    
+    
+    /**
+     * Returns the number of rows of the grid.
+     * 
+     * @return  number of rows of the grid.
+     */
+    public int rows()
+    {
+        return this.rows;
+    }
+    
+    
+    /**
+     * Returns the number of columns of the grid.
+     * 
+     * @return  number of columns of the grid.
+     */
+    public int cols()
+    {
+        return this.cols;
+    }
+    
+    
+    /**
+     * Returns the number of vertices of the mesh.
+     * 
+     * @return  number of vertices of the mesh.
+     */
+    public int vertexCount()
+    {
+        return ( this.rows * this.cols );
+    }
+    
+    
+    /**
+     * Returns the xy coordinates of the vertices, two per vertex.
+     * 
+     * @return  xy coordinates of the vertices.
+     */
+    public float[] xy()
+    {
+        return this.xy;
+    }
+    
+    
+    /**
+     * Returns the z coordinate of the vertices.
+     * 
+     * @return  z coordinate of the vertices.
+     */
+    public float[] z()
+    {
+        return this.z;
+    }
+    
+    
+    /**
+     * Returns the ARGB color of the vertices.
+     * 
+     * @return  ARGB color of the vertices.
+     */
+    public int[] colors()
+    {
+        return this.colors;
+    }
+    
+    
+    /**
+     * Returns the normals of the vertices, three per vertex.
+     * <p>
+     * They are only meaningful if {@link #hasNormals()} is true.
+     * 
+     * @return  normals of the vertices.
+     */
+    public float[] normals()
+    {
+        return this.normals;
+    }
+    
+    
+    /**
+     * Checks whether the normals of the vertices were updated with the last frame.
+     * 
+     * @return  true if the normals were updated with the last frame.
+     */
+    public boolean hasNormals()
+    {
+        return this.hasNormals;
+    }
+    
+    
+    /**
+     * Returns the vertex indices of the triangles, three per triangle, as unsigned shorts.
+     * <p>
+     * Only the first {@link #indexCount()} indices are in use.
+     * 
+     * @return  vertex indices of the triangles.
+     */
+    public short[] indices()
+    {
+        return this.indices;
+    }
+    
+    
+    /**
+     * Returns the number of indices in use.
+     * 
+     * @return  number of indices in use.
+     */
+    public int indexCount()
+    {
+        return this.indexCount;
+    }
+    
+    
+    /**
+     * Returns a number that changes every time the xy coordinates change.
+     * <p>
+     * Meshes of the same size return the same number.
+     * 
+     * @return  version of the topology.
+     */
+    public int topologyVersion()
+    {
+        return this.topologyVersion;
+    }
+    
+    
+    /**
+     * Returns a number that changes every time the indices change.
+     * <p>
+     * Meshes holding the full grid of the same size return the same number, as well as meshes holding the same triangles of a shared {@link DepthGridQuadtree}.
+     * 
+     * @return  version of the indices.
+     */
+    public int indexVersion()
+    {
+        return this.indexVersion;
+    }
+    
+    
+    /**
+     * Returns a number that changes every time the z coordinates, the colors or the normals change.
+     * <p>
+     * The number is unique across meshes.
+     * 
+     * @return  version of the geometry.
+     */
+    public int geometryVersion()
+    {
+        return this.geometryVersion;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Updates the z coordinate and the color of the vertices of a stripe of the grid with {@link #updateDepths}, and their normals with {@link #updateNormals}.
+     * <p>
+     * If triangles are dropped, the triangles of the quads whose top row is in the stripe are also written,
+     * from the first index of the stripe, and their number is stored in {@link #stripeIndexCounts}.
+     * 
+     * @param stripe    index of the stripe.
+     * @param rowStart  first row of the stripe.
+     * @param rowEnd    row after the last row of the stripe.
+     */
+    private void updateStripe( int stripe , int rowStart , int rowEnd )
+    {
+        float[] depths = this.updateDepths;
+        int end = rowEnd * this.cols;
+        float colorScale = 255.0f / this.depthRangeMax;
+        for( int k = rowStart * this.cols; k<end; k++ ) {
+            float depth = depths[k];
+            this.z[k] = depth;
+            int gray = (int)( ( this.depthRangeMax - depth ) * colorScale );
+            gray = ( gray < 0 )? 0 : ( ( gray > 255 )? 255 : gray );
+            this.colors[k] = 0xFF000000 | ( gray << 16 ) | ( gray << 8 ) | gray;
+        }
+        if( this.updateNormals != null ) {
+            System.arraycopy( this.updateNormals , 3 * rowStart * this.cols , this.normals , 3 * rowStart * this.cols , 3 * ( rowEnd - rowStart ) * this.cols );
+        }
+        if( this.updateCulling ) {
+            this.stripeIndexCounts[stripe] = this.cullStripe( rowStart , Math.min( rowEnd , this.rows-1 ) );
+        }
+    }
+    
+    
+    /**
+     * Writes the triangles kept in the quads whose top row is in a range, from the index of the first quad of the range.
+     * 
+     * @param rowStart  first row of the range.
+     * @param rowEnd    row after the last row of the range.
+     * @return  number of indices written.
+     */
+    private int cullStripe( int rowStart , int rowEnd )
+    {
+        float[] depths = this.updateDepths;
+        long[] valid = this.updateValidityBits;
+        float jump = this.updateMaxDepthJump;
+        int cols = this.cols;
+        int start = 6 * rowStart * Math.max( cols-1 , 0 );
+        int n = start;
+        for( int i=rowStart; i<rowEnd; i++ ) {
+            for( int j=0; j<cols-1; j++ ) {
+                int k = i*cols + j;
+                int k1 = k + 1;
+                int k2 = k + cols;
+                int k3 = k2 + 1;
+                boolean v0 = true;
+                boolean v1 = true;
+                boolean v2 = true;
+                boolean v3 = true;
+                if( valid != null ) {
+                    v0 = ( ( valid[ k >>> 6 ] >>> k ) & 1L ) != 0;
+                    v1 = ( ( valid[ k1 >>> 6 ] >>> k1 ) & 1L ) != 0;
+                    v2 = ( ( valid[ k2 >>> 6 ] >>> k2 ) & 1L ) != 0;
+                    v3 = ( ( valid[ k3 >>> 6 ] >>> k3 ) & 1L ) != 0;
+                }
+                float d0 = depths[k];
+                float d1 = depths[k1];
+                float d2 = depths[k2];
+                float d3 = depths[k3];
+                // The diagonal (i,j+1), (i+1,j) is shared by both triangles.
+                if(  !v1  ||  !v2  ||  Math.abs( d1 - d2 ) > jump  ) {
+                    continue;
+                }
+                // Lower triangle.
+                if(  v0  &&  Math.abs( d0 - d1 ) <= jump  &&  Math.abs( d0 - d2 ) <= jump  ) {
+                    this.indices[n++] = (short)k;
+                    this.indices[n++] = (short)k1;
+                    this.indices[n++] = (short)k2;
+                }
+                // Upper triangle.
+                if(  v3  &&  Math.abs( d3 - d1 ) <= jump  &&  Math.abs( d3 - d2 ) <= jump  ) {
+                    this.indices[n++] = (short)k1;
+                    this.indices[n++] = (short)k2;
+                    this.indices[n++] = (short)k3;
+                }
+            }
+        }
+        return n - start;
+    }
+    
+    
+    /**
+     * Builds the xy coordinates of the vertices and the index buffer with every triangle for a grid of a given size.
+     * 
+     * @param imageRows     number of rows of the image.
+     * @param imageCols     number of columns of the image.
+     */
+    private void buildTopology( int imageRows , int imageCols )
+    {
+        int vertices = imageRows * imageCols;
+        if( vertices > MAX_VERTICES ) {
+            throw new IllegalArgumentException( "Grid of " + imageRows + "x" + imageCols + " exceeds the maximum number of vertices (" + MAX_VERTICES + ")." );
+        }
+        this.rows = imageRows;
+        this.cols = imageCols;
+        this.xy = new float[ 2*vertices ];
+        this.z = new float[ vertices ];
+        this.colors = new int[ vertices ];
+        this.normals = new float[ 3*vertices ];
+        this.indices = new short[ 6 * Math.max( imageRows-1 , 0 ) * Math.max( imageCols-1 , 0 ) ];
+        // Set the xy coordinates centered in the grid.
+        int imageRowsHalf = imageRows/2;
+        int imageColumnsHalf = imageCols/2;
+        int n = 0;
+        for( int i=0; i<imageRows; i++ ) {
+            for( int j=0; j<imageCols; j++ ) {
+                this.xy[n++] = ( j - imageColumnsHalf ) * this.xyFactor;
+                this.xy[n++] = ( i - imageRowsHalf ) * this.xyFactor;
+            }
+        }
+        this.topologyVersion = -( ( imageRows << 16 ) | imageCols ) - 1;
+        this.buildFullGrid();
+    }
+    
+    
+    /**
+     * Builds the index buffer with every triangle of the grid.
+     */
+    private void buildFullGrid()
+    {
+        int imageRows = this.rows;
+        int imageCols = this.cols;
+        // Set two triangles per quad.
+        int n = 0;
+        for( int i=0; i<imageRows-1; i++ ) {
+            for( int j=0; j<imageCols-1; j++ ) {
+                int k = i*imageCols + j;
+                // Lower triangle.
+                this.indices[n++] = (short)k;
+                this.indices[n++] = (short)( k+1 );
+                this.indices[n++] = (short)( k+imageCols );
+                // Upper triangle.
+                this.indices[n++] = (short)( k+1 );
+                this.indices[n++] = (short)( k+imageCols );
+                this.indices[n++] = (short)( k+imageCols+1 );
+            }
+        }
+        this.indexCount = n;
+        this.indexVersion = this.topologyVersion;
+        this.fullGrid = true;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PACKAGE-PRIVATE STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns a new version, unique across meshes and quadtrees.
+     * 
+     * @return  new version.
+     */
+    static int nextVersion()
+    {
+        return GEOMETRY_VERSIONS.incrementAndGet();
+    }
+    
+}
@@ -0,0 +1,430 @@
+package util;
+
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import processing.core.PApplet;
+import processing.opengl.PGL;
+import processing.opengl.PShader;
+
+
+
+/**
+ * Draws a {@link DepthGridMesh} with OpenGL buffers that persist between frames.
+ * <p>
+ * The xy coordinates are uploaded only when the topology of the mesh changes, and the index buffer only when its index version changes,
+ * while the z coordinates and the colors are updated in place when the geometry changes.
+ * Thus swapping meshes of a {@link TripleBuffer} that hold the same triangles (full grids, or decimated grids sharing a {@link DepthGridQuadtree})
+ * does not upload their indices again.
+ * The current transformation of the sketch is applied to the mesh.
+ * <p>
+ * Meshes with normals are lit with the ambient and diffuse terms of the lights of the sketch, on both sides of their triangles;
+ * other meshes are drawn with the colors of their vertices.
+ */
+public class DepthGridMeshRenderer
+{
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Source of the vertex shader.
+     */
+    private static final String[] VERTEX_SHADER = {
+        "#define PROCESSING_COLOR_SHADER",
+        "uniform mat4 transformMatrix;",
+        "attribute vec2 xy;",
+        "attribute float z;",
+        "attribute vec4 color;",
+        "varying vec4 vertColor;",
+        "void main() {",
+        "  gl_Position = transformMatrix * vec4( xy , z , 1.0 );",
+        "  vertColor = color;",
+        "}"
+    };
+    
+    /**
+     * Source of the vertex shader used for meshes with normals.
+     */
+    private static final String[] LIT_VERTEX_SHADER = {
+        "#define PROCESSING_LIGHT_SHADER",
+        "uniform mat4 modelviewMatrix;",
+        "uniform mat4 transformMatrix;",
+        "uniform mat3 normalMatrix;",
+        "uniform int lightCount;",
+        "uniform vec4 lightPosition[8];",
+        "uniform vec3 lightNormal[8];",
+        "uniform vec3 lightAmbient[8];",
+        "uniform vec3 lightDiffuse[8];",
+        "attribute vec2 xy;",
+        "attribute float z;",
+        "attribute vec4 color;",
+        "attribute vec3 normal;",
+        "varying vec4 vertColor;",
+        "void main() {",
+        "  vec4 position = vec4( xy , z , 1.0 );",
+        "  gl_Position = transformMatrix * position;",
+        "  vec3 ecVertex = vec3( modelviewMatrix * position );",
+        "  vec3 ecNormal = normalize( normalMatrix * normal );",
+        "  vec3 light = vec3( 0.0 );",
+        "  for( int i=0; i<8; i++ ) {",
+        "    if( i == lightCount ) break;",
+        "    vec3 direction = ( lightPosition[i].w < 1.0 )? -lightNormal[i] : normalize( lightPosition[i].xyz - ecVertex );",
+        "    light += lightAmbient[i] + lightDiffuse[i] * abs( dot( direction , ecNormal ) );",
+        "  }",
+        "  vertColor = vec4( min( light , 1.0 ) * color.rgb , color.a );",
+        "}"
+    };
+    
+    /**
+     * Source of the fragment shader.
+     */
+    private static final String[] FRAGMENT_SHADER = {
+        "#ifdef GL_ES",
+        "precision mediump float;",
+        "precision mediump int;",
+        "#endif",
+        "varying vec4 vertColor;",
+        "void main() {",
+        "  gl_FragColor = vertColor;",
+        "}"
+    };
+    
+    /**
+     * Index of the xy buffer in {@link #bufferIds}.
+     */
+    private static final int XY_BUFFER = 0;
+    
+    /**
+     * Index of the z buffer in {@link #bufferIds}.
+     */
+    private static final int Z_BUFFER = 1;
+    
+    /**
+     * Index of the color buffer in {@link #bufferIds}.
+     */
+    private static final int COLOR_BUFFER = 2;
+    
+    /**
+     * Index of the index buffer in {@link #bufferIds}.
+     */
+    private static final int INDEX_BUFFER = 3;
+    
+    /**
+     * Index of the normal buffer in {@link #bufferIds}.
+     */
+    private static final int NORMAL_BUFFER = 4;
+    
+    /**
+     * True if the native byte order is little endian.
+     */
+    private static final boolean LITTLE_ENDIAN = ( ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN );
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Shader used to draw meshes without normals.
+     */
+    private PShader shader;
+    
+    /**
+     * Shader used to draw meshes with normals.
+     */
+    private PShader litShader;
+    
+    /**
+     * OpenGL names of the buffers.
+     */
+    private IntBuffer bufferIds;
+    
+    /**
+     * Direct buffer used to upload the xy coordinates.
+     */
+    private FloatBuffer xyBuffer;
+    
+    /**
+     * Direct buffer used to upload the z coordinates.
+     */
+    private FloatBuffer zBuffer;
+    
+    /**
+     * Direct buffer used to upload the colors, in the RGBA byte order expected by OpenGL.
+     */
+    private IntBuffer colorBuffer;
+    
+    /**
+     * Direct buffer used to upload the normals.
+     */
+    private FloatBuffer normalBuffer;
+    
+    /**
+     * Direct buffer used to upload the indices.
+     */
+    private ShortBuffer indexBuffer;
+    
+    /**
+     * Location of the xy attribute in {@link #shader}.
+     */
+    private int xyLocation;
+    
+    /**
+     * Location of the z attribute in {@link #shader}.
+     */
+    private int zLocation;
+    
+    /**
+     * Location of the color attribute in {@link #shader}.
+     */
+    private int colorLocation;
+    
+    /**
+     * Location of the normal attribute in {@link #litShader}, or -1 if the mesh is drawn with {@link #shader}.
+     */
+    private int normalLocation;
+    
+    /**
+     * Topology version of the mesh last uploaded.
+     */
+    private int uploadedTopologyVersion;
+    
+    /**
+     * Index version of the mesh last uploaded.
+     */
+    private int uploadedIndexVersion;
+    
+    /**
+     * Geometry version of the mesh last uploaded.
+     */
+    private int uploadedGeometryVersion;
+    
+    /**
+     * Number of indices last uploaded.
+     */
+    private int uploadedIndexCount;
+    
+    /**
+     * Profiler where the time taken by the uploads is recorded, or null.
+     */
+    private LatencyProfiler profiler;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link DepthGridMeshRenderer}.
+     * <p>
+     * OpenGL resources are created the first time the mesh is drawn.
+     */
+    public DepthGridMeshRenderer()
+    {
+        this.uploadedTopologyVersion = -1;
+        this.uploadedIndexVersion = -1;
+        this.uploadedGeometryVersion = -1;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Draws a mesh, uploading only the parts that changed since the last call.
+     * <p>
+     * Must be called from the animation thread, with no other thread modifying the mesh.
+     * 
+     * @param sketch    {@link PApplet} where the mesh is drawn; it must use the P3D renderer.
+     * @param mesh      mesh to be drawn.
+     */
+    public void draw( PApplet sketch , DepthGridMesh mesh )
+    {
+        if( mesh.xy() == null ) {
+            return;
+        }
+        PGL pgl = sketch.beginPGL();
+        // Create the OpenGL resources the first time.
+        if( this.shader == null ) {
+            this.shader = new PShader( sketch , VERTEX_SHADER , FRAGMENT_SHADER );
+            this.litShader = new PShader( sketch , LIT_VERTEX_SHADER , FRAGMENT_SHADER );
+            this.bufferIds = IntBuffer.allocate( 5 );
+            pgl.genBuffers( 5 , this.bufferIds );
+        }
+        boolean lit = mesh.hasNormals();
+        PShader meshShader = lit? this.litShader : this.shader;
+        meshShader.bind();
+        this.xyLocation = pgl.getAttribLocation( meshShader.glProgram , "xy" );
+        this.zLocation = pgl.getAttribLocation( meshShader.glProgram , "z" );
+        this.colorLocation = pgl.getAttribLocation( meshShader.glProgram , "color" );
+        this.normalLocation = lit? pgl.getAttribLocation( meshShader.glProgram , "normal" ) : -1;
+        // Upload the topology if it changed,
+        int vertices = mesh.vertexCount();
+        long uploadStart = System.nanoTime();
+        boolean uploaded = (  this.uploadedTopologyVersion != mesh.topologyVersion()  ||  this.uploadedIndexVersion != mesh.indexVersion()  ||  this.uploadedGeometryVersion != mesh.geometryVersion()  );
+        if( this.uploadedTopologyVersion != mesh.topologyVersion() ) {
+            this.uploadTopology( pgl , mesh );
+            this.uploadedIndexVersion = -1;
+            this.uploadedGeometryVersion = -1;
+        }
+        // the indices if they changed,
+        if( this.uploadedIndexVersion != mesh.indexVersion() ) {
+            this.uploadIndices( pgl , mesh );
+        }
+        // and the geometry if it changed.
+        if( this.uploadedGeometryVersion != mesh.geometryVersion() ) {
+            this.zBuffer.clear();
+            this.zBuffer.put( mesh.z() , 0 , vertices ).flip();
+            pgl.bindBuffer( PGL.ARRAY_BUFFER , this.bufferIds.get( Z_BUFFER ) );
+            pgl.bufferSubData( PGL.ARRAY_BUFFER , 0 , vertices * Float.BYTES , this.zBuffer );
+            int[] colors = mesh.colors();
+            this.colorBuffer.clear();
+            for( int k=0; k<vertices; k++ ) {
+                this.colorBuffer.put( toRgbaByteOrder( colors[k] ) );
+            }
+            this.colorBuffer.flip();
+            pgl.bindBuffer( PGL.ARRAY_BUFFER , this.bufferIds.get( COLOR_BUFFER ) );
+            pgl.bufferSubData( PGL.ARRAY_BUFFER , 0 , vertices * Integer.BYTES , this.colorBuffer );
+            if( lit ) {
+                this.normalBuffer.clear();
+                this.normalBuffer.put( mesh.normals() , 0 , 3*vertices ).flip();
+                pgl.bindBuffer( PGL.ARRAY_BUFFER , this.bufferIds.get( NORMAL_BUFFER ) );
+                pgl.bufferSubData( PGL.ARRAY_BUFFER , 0 , 3 * vertices * Float.BYTES , this.normalBuffer );
+            }
+            this.uploadedGeometryVersion = mesh.geometryVersion();
+        }
+        if(  uploaded  &&  this.profiler != null  ) {
+            this.profiler.record( LatencyProfiler.STAGE_UPLOAD , uploadStart );
+        }
+        // Draw the triangles.
+        pgl.enableVertexAttribArray( this.xyLocation );
+        pgl.bindBuffer( PGL.ARRAY_BUFFER , this.bufferIds.get( XY_BUFFER ) );
+        pgl.vertexAttribPointer( this.xyLocation , 2 , PGL.FLOAT , false , 0 , 0 );
+        pgl.enableVertexAttribArray( this.zLocation );
+        pgl.bindBuffer( PGL.ARRAY_BUFFER , this.bufferIds.get( Z_BUFFER ) );
+        pgl.vertexAttribPointer( this.zLocation , 1 , PGL.FLOAT , false , 0 , 0 );
+        pgl.enableVertexAttribArray( this.colorLocation );
+        pgl.bindBuffer( PGL.ARRAY_BUFFER , this.bufferIds.get( COLOR_BUFFER ) );
+        pgl.vertexAttribPointer( this.colorLocation , 4 , PGL.UNSIGNED_BYTE , true , 0 , 0 );
+        if( this.normalLocation >= 0 ) {
+            pgl.enableVertexAttribArray( this.normalLocation );
+            pgl.bindBuffer( PGL.ARRAY_BUFFER , this.bufferIds.get( NORMAL_BUFFER ) );
+            pgl.vertexAttribPointer( this.normalLocation , 3 , PGL.FLOAT , false , 0 , 0 );
+        }
+        pgl.bindBuffer( PGL.ELEMENT_ARRAY_BUFFER , this.bufferIds.get( INDEX_BUFFER ) );
+        pgl.drawElements( PGL.TRIANGLES , this.uploadedIndexCount , PGL.UNSIGNED_SHORT , 0 );
+        // Leave the OpenGL state as Processing expects it.
+        pgl.disableVertexAttribArray( this.xyLocation );
+        pgl.disableVertexAttribArray( this.zLocation );
+        pgl.disableVertexAttribArray( this.colorLocation );
+        if( this.normalLocation >= 0 ) {
+            pgl.disableVertexAttribArray( this.normalLocation );
+        }
+        pgl.bindBuffer( PGL.ARRAY_BUFFER , 0 );
+        pgl.bindBuffer( PGL.ELEMENT_ARRAY_BUFFER , 0 );
+        meshShader.unbind();
+        sketch.endPGL();
+    }
+    
+    
+    /**
+     * Sets the profiler where the time taken to upload the parts of the mesh that changed is recorded, as {@link LatencyProfiler#STAGE_UPLOAD}.
+     * <p>
+     * Must be called from the animation thread.
+     * 
+     * @param latencyProfiler   profiler where the time taken by the uploads is recorded, or null to record none.
+     */
+    public void setLatencyProfiler( LatencyProfiler latencyProfiler )
+    {
+        this.profiler = latencyProfiler;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Uploads the xy coordinates of a mesh, and allocates the buffers for its geometry and its normals.
+     * 
+     * @param pgl   {@link PGL} used to upload the buffers.
+     * @param mesh  mesh whose topology is uploaded.
+     */
+    private void uploadTopology( PGL pgl , DepthGridMesh mesh )
+    {
+        int vertices = mesh.vertexCount();
+        // Allocate the direct buffers if they are too small.
+        if(  this.zBuffer == null  ||  this.zBuffer.capacity() < vertices  ) {
+            this.xyBuffer = ByteBuffer.allocateDirect( 2 * vertices * Float.BYTES ).order( ByteOrder.nativeOrder() ).asFloatBuffer();
+            this.zBuffer = ByteBuffer.allocateDirect( vertices * Float.BYTES ).order( ByteOrder.nativeOrder() ).asFloatBuffer();
+            this.colorBuffer = ByteBuffer.allocateDirect( vertices * Integer.BYTES ).order( ByteOrder.nativeOrder() ).asIntBuffer();
+            this.normalBuffer = ByteBuffer.allocateDirect( 3 * vertices * Float.BYTES ).order( ByteOrder.nativeOrder() ).asFloatBuffer();
+        }
+        // Upload the xy coordinates,
+        this.xyBuffer.clear();
+        this.xyBuffer.put( mesh.xy() , 0 , 2*vertices ).flip();
+        pgl.bindBuffer( PGL.ARRAY_BUFFER , this.bufferIds.get( XY_BUFFER ) );
+        pgl.bufferData( PGL.ARRAY_BUFFER , 2 * vertices * Float.BYTES , this.xyBuffer , PGL.STATIC_DRAW );
+        // allocate the geometry buffers,
+        pgl.bindBuffer( PGL.ARRAY_BUFFER , this.bufferIds.get( Z_BUFFER ) );
+        pgl.bufferData( PGL.ARRAY_BUFFER , vertices * Float.BYTES , null , PGL.DYNAMIC_DRAW );
+        pgl.bindBuffer( PGL.ARRAY_BUFFER , this.bufferIds.get( COLOR_BUFFER ) );
+        pgl.bufferData( PGL.ARRAY_BUFFER , vertices * Integer.BYTES , null , PGL.DYNAMIC_DRAW );
+        pgl.bindBuffer( PGL.ARRAY_BUFFER , this.bufferIds.get( NORMAL_BUFFER ) );
+        pgl.bufferData( PGL.ARRAY_BUFFER , 3 * vertices * Float.BYTES , null , PGL.DYNAMIC_DRAW );
+        pgl.bindBuffer( PGL.ARRAY_BUFFER , 0 );
+        this.uploadedTopologyVersion = mesh.topologyVersion();
+    }
+    
+    
+    /**
+     * Uploads the indices in use of a mesh.
+     * <p>
+     * The indices of full grids are uploaded as static data, and those of grids with dropped triangles, which change with every frame, as dynamic data.
+     * 
+     * @param pgl   {@link PGL} used to upload the buffer.
+     * @param mesh  mesh whose indices are uploaded.
+     */
+    private void uploadIndices( PGL pgl , DepthGridMesh mesh )
+    {
+        int indexCount = mesh.indexCount();
+        if(  this.indexBuffer == null  ||  this.indexBuffer.capacity() < indexCount  ) {
+            this.indexBuffer = ByteBuffer.allocateDirect( mesh.indices().length * Short.BYTES ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+        }
+        this.indexBuffer.clear();
+        this.indexBuffer.put( mesh.indices() , 0 , indexCount ).flip();
+        int usage = ( mesh.indexVersion() == mesh.topologyVersion() )? PGL.STATIC_DRAW : PGL.DYNAMIC_DRAW;
+        pgl.bindBuffer( PGL.ELEMENT_ARRAY_BUFFER , this.bufferIds.get( INDEX_BUFFER ) );
+        pgl.bufferData( PGL.ELEMENT_ARRAY_BUFFER , indexCount * Short.BYTES , this.indexBuffer , usage );
+        pgl.bindBuffer( PGL.ELEMENT_ARRAY_BUFFER , 0 );
+        this.uploadedIndexCount = indexCount;
+        this.uploadedIndexVersion = mesh.indexVersion();
+    }
+    
+    
+    /**
+     * Converts an ARGB color to an int whose bytes in native order are R, G, B, A.
+     * 
+     * @param argb  ARGB color.
+     * @return  color whose bytes in native order are R, G, B, A.
+     */
+    private static int toRgbaByteOrder( int argb )
+    {
+        if( LITTLE_ENDIAN ) {
+            return ( ( argb & 0xFF00FF00 ) | ( ( argb >> 16 ) & 0xFF ) | ( ( argb & 0xFF ) << 16 ) );
+        } else {
+            return ( ( argb << 8 ) | ( argb >>> 24 ) );
+        }
+    }
+    
+}
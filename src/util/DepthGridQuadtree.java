@@ -0,0 +1,557 @@
+package util;
+
+
+import java.util.Arrays;
+
+
+
+/**
+ * Quadtree over the quads of a depth grid, used to decimate a {@link DepthGridMesh} in its flat regions.
+ * <p>
+ * Cells of level 0 are the quads of the grid, and each cell of level l covers 2^l x 2^l quads.
+ * A cell is merged into a single leaf when its four children are merged (or are quads with four valid pixels)
+ * and the depth of every vertex of the cell is within a tolerance of the least-squares plane of its four corners.
+ * Cells not fully inside the grid are never merged.
+ * <p>
+ * Leaves are stitched without cracks: a merged leaf with corners of smaller leaves along its edges is triangulated as a fan from its center,
+ * so that it shares those vertices with its neighbors instead of leaving T-junctions; otherwise it is split in two triangles.
+ * <p>
+ * Updates are incremental: the depths of each frame are compared with the reference depths the cells were last evaluated with,
+ * and only the cells with a vertex whose validity changed, or whose depth moved more than half the tolerance, are evaluated again.
+ * Thus the depth of every vertex of a merged leaf is within one and a half times the tolerance of the plane of the leaf.
+ * Quads that are not merged drop their triangles with invalid pixels or depth jumps using the depths of the current frame.
+ * <p>
+ * The quadtree keeps the triangles of its leaves in its own index buffer, rebuilt only when the leaves or the dropped triangles change,
+ * together with an index version that changes every time it is rebuilt.
+ * The meshes exchanged between a producer and a renderer (e.g. through a {@link TripleBuffer}) share a single quadtree,
+ * so that each frame is compared with the previous one, and meshes that copied the same triangles report the same index version.
+ * It must only be updated by the producer.
+ */
+public class DepthGridQuadtree
+{
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Number of rows of vertices of the grid.
+     */
+    private int rows;
+    
+    /**
+     * Number of columns of vertices of the grid.
+     */
+    private int cols;
+    
+    /**
+     * Number of rows of quads of the grid.
+     */
+    private int quadRows;
+    
+    /**
+     * Number of columns of quads of the grid.
+     */
+    private int quadCols;
+    
+    /**
+     * Number of levels of the quadtree; the last one has a single cell.
+     */
+    private int levelCount;
+    
+    /**
+     * Number of rows of cells of each level.
+     */
+    private int[] levelRows;
+    
+    /**
+     * Number of columns of cells of each level.
+     */
+    private int[] levelCols;
+    
+    /**
+     * True for the cells of each level that are merged, in row-major order;
+     * cells of level 0 are merged if their four pixels are valid.
+     */
+    private boolean[][] merged;
+    
+    /**
+     * True for the cells of each level that must be evaluated again, in row-major order.
+     */
+    private boolean[][] dirty;
+    
+    /**
+     * Depths of the vertices the cells were last evaluated with, NaN for invalid pixels.
+     */
+    private float[] referenceDepths;
+    
+    /**
+     * Tolerance the cells were evaluated with.
+     */
+    private float tolerance;
+    
+    /**
+     * Maximum difference between the depths of the vertices of a quad triangle for it not to be dropped.
+     */
+    private float maxDepthJump;
+    
+    /**
+     * True if every cell must be evaluated in the next update.
+     */
+    private boolean reset;
+    
+    /**
+     * Triangles of each quad that are not dropped in the current frame, in row-major order:
+     * bit 0 for the lower triangle, and bit 1 for the upper triangle.
+     */
+    private byte[] quadTriangles;
+    
+    /**
+     * Vertex indices of the triangles of the leaves, three per triangle, as unsigned shorts.
+     */
+    private short[] indices;
+    
+    /**
+     * Number of indices in use in {@link #indices}.
+     */
+    private int indexCount;
+    
+    /**
+     * Changes every time {@link #indices} is rebuilt; unique across meshes and quadtrees.
+     */
+    private int indexVersion;
+    
+    /**
+     * Index of the top-left vertex of the leaves.
+     */
+    private int[] leafOrigins;
+    
+    /**
+     * Level of the leaves.
+     */
+    private byte[] leafLevels;
+    
+    /**
+     * Number of leaves in use in {@link #leafOrigins} and {@link #leafLevels}.
+     */
+    private int leafCount;
+    
+    /**
+     * Value of {@link #cornerStamp} for the vertices that are a corner of a leaf.
+     */
+    private int[] cornerStamps;
+    
+    /**
+     * Stamp of the current leaves, so that {@link #cornerStamps} does not need to be cleared.
+     */
+    private int cornerStamp;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs an empty {@link DepthGridQuadtree}; it is sized with the first update.
+     */
+    public DepthGridQuadtree()
+    {
+        this.reset = true;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Updates the quadtree with the depths of a new frame, evaluating again only the cells whose vertices changed.
+     * <p>
+     * Every cell is evaluated if the grid size, the tolerance or the maximum depth jump change.
+     * The triangles are rebuilt, and the index version changed, only if the leaves or the dropped triangles changed.
+     * 
+     * @param depths    depths of the pixels in row-major order.
+     * @param validityBits  validity bitset of the pixels, or null if every pixel is valid.
+     * @param imageRows     number of rows of the image.
+     * @param imageCols     number of columns of the image.
+     * @param planeTolerance    maximum distance in meters between the depths of the vertices of a merged cell and its plane.
+     * @param depthJump     maximum difference between the depths of the vertices of a quad triangle for it not to be dropped.
+     * @return  true if the leaves or the triangles changed, so that {@link #indicesInto(short[])} must be called again.
+     */
+    public boolean update( float[] depths , long[] validityBits , int imageRows , int imageCols , float planeTolerance , float depthJump )
+    {
+        if(  this.referenceDepths == null  ||  this.rows != imageRows  ||  this.cols != imageCols  ) {
+            this.allocate( imageRows , imageCols );
+        }
+        if(  this.tolerance != planeTolerance  ||  this.maxDepthJump != depthJump  ) {
+            this.tolerance = planeTolerance;
+            this.maxDepthJump = depthJump;
+            this.reset = true;
+        }
+        if( this.levelCount == 0 ) {
+            boolean changed = this.reset;
+            this.reset = false;
+            if( changed ) {
+                this.indexCount = 0;
+                this.indexVersion = DepthGridMesh.nextVersion();
+            }
+            return changed;
+        }
+        // Find the triangles dropped with the current depths,
+        boolean trianglesChanged = this.updateQuadTriangles( depths , validityBits );
+        // and the vertices that changed, and mark the quads around them.
+        boolean[] dirtyQuads = this.dirty[0];
+        float threshold = 0.5f * planeTolerance;
+        boolean changed = false;
+        int k = 0;
+        for( int i=0; i<imageRows; i++ ) {
+            for( int j=0; j<imageCols; j++, k++ ) {
+                boolean valid = (  validityBits == null  ||  ( ( validityBits[ k >>> 6 ] >>> k ) & 1L ) != 0  );
+                float depth = valid? depths[k] : Float.NaN;
+                float reference = this.referenceDepths[k];
+                if(  this.reset  ||  valid == Float.isNaN( reference )  ||  Math.abs( depth - reference ) > threshold  ) {
+                    this.referenceDepths[k] = depth;
+                    changed = true;
+                    for( int qi=Math.max( i-1 , 0 ); qi<=Math.min( i , this.quadRows-1 ); qi++ ) {
+                        for( int qj=Math.max( j-1 , 0 ); qj<=Math.min( j , this.quadCols-1 ); qj++ ) {
+                            dirtyQuads[ qi*this.quadCols + qj ] = true;
+                        }
+                    }
+                }
+            }
+        }
+        this.reset = false;
+        if( !changed ) {
+            if( trianglesChanged ) {
+                this.buildIndices();
+            }
+            return trianglesChanged;
+        }
+        // Evaluate the dirty quads,
+        boolean[] mergedQuads = this.merged[0];
+        for( int qi=0; qi<this.quadRows; qi++ ) {
+            for( int qj=0; qj<this.quadCols; qj++ ) {
+                int q = qi*this.quadCols + qj;
+                if( dirtyQuads[q] ) {
+                    int k00 = qi*imageCols + qj;
+                    mergedQuads[q] = !(  Float.isNaN( this.referenceDepths[k00] )  ||  Float.isNaN( this.referenceDepths[k00+1] )
+                                     ||  Float.isNaN( this.referenceDepths[k00+imageCols] )  ||  Float.isNaN( this.referenceDepths[k00+imageCols+1] )  );
+                }
+            }
+        }
+        // and then the cells of the upper levels with a dirty child.
+        for( int l=1; l<this.levelCount; l++ ) {
+            boolean[] childDirty = this.dirty[l-1];
+            boolean[] childMerged = this.merged[l-1];
+            int childRows = this.levelRows[l-1];
+            int childCols = this.levelCols[l-1];
+            for( int r=0; r<this.levelRows[l]; r++ ) {
+                for( int c=0; c<this.levelCols[l]; c++ ) {
+                    boolean cellDirty = false;
+                    boolean childrenMerged = true;
+                    for( int cr=2*r; cr<Math.min( 2*r+2 , childRows ); cr++ ) {
+                        for( int cc=2*c; cc<Math.min( 2*c+2 , childCols ); cc++ ) {
+                            int child = cr*childCols + cc;
+                            cellDirty |= childDirty[child];
+                            childrenMerged &= childMerged[child];
+                            childDirty[child] = false;
+                        }
+                    }
+                    if( cellDirty ) {
+                        int cell = r*this.levelCols[l] + c;
+                        this.dirty[l][cell] = true;
+                        this.merged[l][cell] = (  childrenMerged  &&  this.isFlat( l , r , c )  );
+                    }
+                }
+            }
+        }
+        Arrays.fill( this.dirty[ this.levelCount-1 ] , false );
+        // Collect the leaves, and stamp their corners.
+        this.leafCount = 0;
+        this.cornerStamp++;
+        this.collectLeaves( this.levelCount-1 , 0 , 0 );
+        this.buildIndices();
+        return true;
+    }
+    
+    
+    /**
+     * Copies the triangles of the leaves, three vertex indices per triangle, as unsigned shorts.
+     * <p>
+     * Quads are split in the same two triangles as in {@link DepthGridMesh}, and dropped in the same way.
+     * The array must hold at least the indices of every triangle of the full grid.
+     * 
+     * @param destination   array where the indices are written from the start.
+     * @return  number of indices written.
+     */
+    public int indicesInto( short[] destination )
+    {
+        System.arraycopy( this.indices , 0 , destination , 0 , this.indexCount );
+        return this.indexCount;
+    }
+    
+    
+    /**
+     * Returns a number that changes every time the triangles of the leaves change.
+     * <p>
+     * The number is unique across meshes and quadtrees, so it can be used as the index version of the meshes that copy the triangles.
+     * 
+     * @return  version of the triangles of the leaves.
+     */
+    public int indexVersion()
+    {
+        return this.indexVersion;
+    }
+    
+    
+    /**
+     * Returns the number of leaves of the quadtree, including the quads that are not merged.
+     * 
+     * @return  number of leaves.
+     */
+    public int leafCount()
+    {
+        return this.leafCount;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Writes the triangles of the leaves in {@link #indices}, and changes the index version.
+     */
+    private void buildIndices()
+    {
+        int cols = this.cols;
+        short[] indices = this.indices;
+        int n = 0;
+        for( int f=0; f<this.leafCount; f++ ) {
+            int k00 = this.leafOrigins[f];
+            int s = 1 << this.leafLevels[f];
+            int k01 = k00 + s;
+            int k10 = k00 + s*cols;
+            int k11 = k10 + s;
+            if( s == 1 ) {
+                // Keep the triangles of the quad that are not dropped in the current frame.
+                int triangles = this.quadTriangles[ ( k00 / cols )*this.quadCols + k00 % cols ];
+                if( ( triangles & 1 ) != 0 ) {
+                    indices[n++] = (short)k00;
+                    indices[n++] = (short)k01;
+                    indices[n++] = (short)k10;
+                }
+                if( ( triangles & 2 ) != 0 ) {
+                    indices[n++] = (short)k01;
+                    indices[n++] = (short)k10;
+                    indices[n++] = (short)k11;
+                }
+                continue;
+            }
+            // Look for corners of smaller leaves along the edges.
+            boolean junctions = false;
+            for( int t=1; t<s  &&  !junctions; t++ ) {
+                junctions = (  this.cornerStamps[ k00 + t ] == this.cornerStamp  ||  this.cornerStamps[ k10 + t ] == this.cornerStamp
+                           ||  this.cornerStamps[ k00 + t*cols ] == this.cornerStamp  ||  this.cornerStamps[ k01 + t*cols ] == this.cornerStamp  );
+            }
+            if( !junctions ) {
+                indices[n++] = (short)k00;
+                indices[n++] = (short)k01;
+                indices[n++] = (short)k10;
+                indices[n++] = (short)k01;
+                indices[n++] = (short)k10;
+                indices[n++] = (short)k11;
+                continue;
+            }
+            // Fan from the center through the corners of the leaf and of its smaller neighbors, going around the edges.
+            int center = k00 + ( s/2 )*cols + s/2;
+            int previous = k00;
+            for( int side=0; side<4; side++ ) {
+                int start = ( side == 0 )? k00 : ( ( side == 1 )? k01 : ( ( side == 2 )? k11 : k10 ) );
+                int step = ( side == 0 )? 1 : ( ( side == 1 )? cols : ( ( side == 2 )? -1 : -cols ) );
+                for( int t=1; t<=s; t++ ) {
+                    int v = start + t*step;
+                    if(  t == s  ||  this.cornerStamps[v] == this.cornerStamp  ) {
+                        indices[n++] = (short)center;
+                        indices[n++] = (short)previous;
+                        indices[n++] = (short)v;
+                        previous = v;
+                    }
+                }
+            }
+        }
+        this.indexCount = n;
+        this.indexVersion = DepthGridMesh.nextVersion();
+    }
+    
+    
+    
+    /**
+     * Finds the triangles of each quad that are not dropped with the depths of the current frame.
+     * <p>
+     * Triangles with an invalid pixel, or whose depths differ more than the maximum depth jump, are dropped.
+     * 
+     * @param depths    depths of the pixels in row-major order.
+     * @param validityBits  validity bitset of the pixels, or null if every pixel is valid.
+     * @return  true if the triangles of any quad changed.
+     */
+    private boolean updateQuadTriangles( float[] depths , long[] validityBits )
+    {
+        int cols = this.cols;
+        float jump = this.maxDepthJump;
+        boolean changed = false;
+        for( int qi=0; qi<this.quadRows; qi++ ) {
+            for( int qj=0; qj<this.quadCols; qj++ ) {
+                int k = qi*cols + qj;
+                int k1 = k + 1;
+                int k2 = k + cols;
+                int k3 = k2 + 1;
+                float d0 = depths[k];
+                float d1 = depths[k1];
+                float d2 = depths[k2];
+                float d3 = depths[k3];
+                if( validityBits != null ) {
+                    // Comparisons with NaN are false, so the triangles with invalid pixels are dropped.
+                    d0 = ( ( ( validityBits[ k >>> 6 ] >>> k ) & 1L ) != 0 )? d0 : Float.NaN;
+                    d1 = ( ( ( validityBits[ k1 >>> 6 ] >>> k1 ) & 1L ) != 0 )? d1 : Float.NaN;
+                    d2 = ( ( ( validityBits[ k2 >>> 6 ] >>> k2 ) & 1L ) != 0 )? d2 : Float.NaN;
+                    d3 = ( ( ( validityBits[ k3 >>> 6 ] >>> k3 ) & 1L ) != 0 )? d3 : Float.NaN;
+                }
+                int triangles = 0;
+                // The diagonal is shared by both triangles.
+                if( Math.abs( d1 - d2 ) <= jump ) {
+                    if(  Math.abs( d0 - d1 ) <= jump  &&  Math.abs( d0 - d2 ) <= jump  ) {
+                        triangles |= 1;
+                    }
+                    if(  Math.abs( d3 - d1 ) <= jump  &&  Math.abs( d3 - d2 ) <= jump  ) {
+                        triangles |= 2;
+                    }
+                }
+                int q = qi*this.quadCols + qj;
+                if( this.quadTriangles[q] != triangles ) {
+                    this.quadTriangles[q] = (byte)triangles;
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+    
+    
+    /**
+     * Allocates the quadtree for a grid of a given size.
+     * 
+     * @param imageRows     number of rows of the image.
+     * @param imageCols     number of columns of the image.
+     */
+    private void allocate( int imageRows , int imageCols )
+    {
+        this.rows = imageRows;
+        this.cols = imageCols;
+        this.quadRows = Math.max( imageRows-1 , 0 );
+        this.quadCols = Math.max( imageCols-1 , 0 );
+        int levels = 0;
+        if(  this.quadRows > 0  &&  this.quadCols > 0  ) {
+            levels = 1;
+            while(  ( ( this.quadRows-1 ) >> ( levels-1 ) ) > 0  ||  ( ( this.quadCols-1 ) >> ( levels-1 ) ) > 0  ) {
+                levels++;
+            }
+        }
+        this.levelCount = levels;
+        this.levelRows = new int[ levels ];
+        this.levelCols = new int[ levels ];
+        this.merged = new boolean[ levels ][];
+        this.dirty = new boolean[ levels ][];
+        for( int l=0; l<levels; l++ ) {
+            this.levelRows[l] = ( ( this.quadRows-1 ) >> l ) + 1;
+            this.levelCols[l] = ( ( this.quadCols-1 ) >> l ) + 1;
+            this.merged[l] = new boolean[ this.levelRows[l] * this.levelCols[l] ];
+            this.dirty[l] = new boolean[ this.levelRows[l] * this.levelCols[l] ];
+        }
+        this.referenceDepths = new float[ imageRows*imageCols ];
+        this.leafOrigins = new int[ this.quadRows*this.quadCols ];
+        this.leafLevels = new byte[ this.quadRows*this.quadCols ];
+        this.leafCount = 0;
+        this.cornerStamps = new int[ imageRows*imageCols ];
+        this.cornerStamp = 0;
+        this.quadTriangles = new byte[ this.quadRows*this.quadCols ];
+        this.indices = new short[ 6*this.quadRows*this.quadCols ];
+        this.indexCount = 0;
+        this.reset = true;
+    }
+    
+    
+    /**
+     * Checks whether a cell fully inside the grid has the depths of all its vertices within the tolerance of the plane of its corners.
+     * <p>
+     * The plane is the least-squares fit of the four corners of the cell.
+     * 
+     * @param level     level of the cell.
+     * @param r     row of the cell in its level.
+     * @param c     column of the cell in its level.
+     * @return  true if the cell is inside the grid and flat.
+     */
+    private boolean isFlat( int level , int r , int c )
+    {
+        int s = 1 << level;
+        int i0 = r << level;
+        int j0 = c << level;
+        if(  i0 + s > this.quadRows  ||  j0 + s > this.quadCols  ) {
+            return false;
+        }
+        float[] depths = this.referenceDepths;
+        int cols = this.cols;
+        int k00 = i0*cols + j0;
+        float z00 = depths[k00];
+        float z01 = depths[k00 + s];
+        float z10 = depths[k00 + s*cols];
+        float z11 = depths[k00 + s*cols + s];
+        float mean = 0.25f * ( z00 + z01 + z10 + z11 );
+        float slopeI = 0.5f * ( ( z10 + z11 ) - ( z00 + z01 ) ) / s;
+        float slopeJ = 0.5f * ( ( z01 + z11 ) - ( z00 + z10 ) ) / s;
+        float half = 0.5f * s;
+        for( int i=0; i<=s; i++ ) {
+            float rowPlane = mean + slopeI * ( i - half ) - slopeJ * half;
+            int k = k00 + i*cols;
+            for( int j=0; j<=s; j++ ) {
+                // False for NaN, so cells with invalid pixels are not flat.
+                if( !( Math.abs( depths[k+j] - ( rowPlane + slopeJ*j ) ) <= this.tolerance ) ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    
+    /**
+     * Adds the leaves under a cell to {@link #leafOrigins} and {@link #leafLevels}, stamping their corners in {@link #cornerStamps}.
+     * 
+     * @param level     level of the cell.
+     * @param r     row of the cell in its level.
+     * @param c     column of the cell in its level.
+     */
+    private void collectLeaves( int level , int r , int c )
+    {
+        if(  level == 0  ||  this.merged[level][ r*this.levelCols[level] + c ]  ) {
+            int s = 1 << level;
+            int k00 = ( r << level )*this.cols + ( c << level );
+            this.leafOrigins[ this.leafCount ] = k00;
+            this.leafLevels[ this.leafCount ] = (byte)level;
+            this.leafCount++;
+            this.cornerStamps[k00] = this.cornerStamp;
+            this.cornerStamps[ k00 + s ] = this.cornerStamp;
+            this.cornerStamps[ k00 + s*this.cols ] = this.cornerStamp;
+            this.cornerStamps[ k00 + s*this.cols + s ] = this.cornerStamp;
+            return;
+        }
+        for( int cr=2*r; cr<Math.min( 2*r+2 , this.levelRows[level-1] ); cr++ ) {
+            for( int cc=2*c; cc<Math.min( 2*c+2 , this.levelCols[level-1] ); cc++ ) {
+                this.collectLeaves( level-1 , cr , cc );
+            }
+        }
+    }
+    
+}
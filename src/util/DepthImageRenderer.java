@@ -0,0 +1,389 @@
+package util;
+
+
+import processing.core.PImage;
+
+
+
+/**
+ * Renders depth images into {@link PImage}s using a precomputed color palette.
+ * <p>
+ * Each of the 256 possible pixel values is mapped to an ARGB color once;
+ * rendering an image is then a palette lookup per pixel written directly into {@link PImage#pixels}.
+ * The palette is recomputed only when the colormap, the depth range, or the quantization unit change.
+ * <p>
+ * With a {@link StripeExecutor}, the palette lookups are done in parallel stripes of rows.
+ * <p>
+ * Closer depths are mapped to the upper end of the colormap (white for {@link #COLORMAP_GRAYSCALE}, red for {@link #COLORMAP_TURBO} and {@link #COLORMAP_JET}).
+ */
+public class DepthImageRenderer
+{
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Grayscale colormap.
+     */
+    public static final int COLORMAP_GRAYSCALE = 0;
+    
+    /**
+     * Turbo colormap.
+     */
+    public static final int COLORMAP_TURBO = 1;
+    
+    /**
+     * Jet colormap.
+     */
+    public static final int COLORMAP_JET = 2;
+    
+    /**
+     * Number of available colormaps.
+     */
+    public static final int COLORMAPS = 3;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Palette used to render the images, together with the colormap, depth range and quantization unit it was computed for.
+     * <p>
+     * It is replaced as a whole, so threads that read it once always see a consistent palette.
+     * Replacements are done while holding the lock of the renderer.
+     */
+    private volatile Palette palette;
+    
+    /**
+     * Executes {@link #renderTask} on stripes of the image, or null to render the whole image in the calling thread.
+     */
+    private StripeExecutor executor;
+    
+    /**
+     * Task that renders a stripe of the image.
+     */
+    private StripeTask renderTask;
+    
+    /**
+     * Raw pixel values of the image being rendered.
+     */
+    private byte[] renderValues;
+    
+    /**
+     * Palette used to render the image being rendered.
+     */
+    private int[] renderPalette;
+    
+    /**
+     * Pixels where the image being rendered is written.
+     */
+    private int[] renderTarget;
+    
+    /**
+     * Number of columns of the image being rendered.
+     */
+    private int renderCols;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link DepthImageRenderer}.
+     * 
+     * @param map   colormap used to render the images.
+     * @param minDepth  depth in meters mapped to the upper end of the colormap.
+     * @param maxDepth  depth in meters mapped to the lower end of the colormap.
+     * @throws IllegalArgumentException if the colormap is unknown.
+     */
+    public DepthImageRenderer( int map , double minDepth , double maxDepth )
+    {
+        checkColormap( map );
+        this.palette = new Palette( map , minDepth , maxDepth , 0 );
+        this.renderTask = this::renderStripe;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Sets the colormap used to render the images.
+     * 
+     * @param map   colormap: {@link #COLORMAP_GRAYSCALE}, {@link #COLORMAP_TURBO}, or {@link #COLORMAP_JET}.
+     * @throws IllegalArgumentException if the colormap is unknown.
+     */
+    public void setColormap( int map )
+    {
+        checkColormap( map );
+        synchronized( this ) {
+            Palette p = this.palette;
+            this.palette = new Palette( map , p.depthMin , p.depthMax , p.unit );
+        }
+    }
+    
+    
+    /**
+     * Returns the colormap used to render the images.
+     * 
+     * @return  colormap used to render the images.
+     */
+    public int getColormap()
+    {
+        return this.palette.colormap;
+    }
+    
+    
+    /**
+     * Sets the range of depths covered by the colormap.
+     * <p>
+     * Depths out of the range take the color of the closest end.
+     * 
+     * @param minDepth  depth in meters mapped to the upper end of the colormap.
+     * @param maxDepth  depth in meters mapped to the lower end of the colormap.
+     */
+    public void setDepthRange( double minDepth , double maxDepth )
+    {
+        synchronized( this ) {
+            Palette p = this.palette;
+            this.palette = new Palette( p.colormap , minDepth , maxDepth , p.unit );
+        }
+    }
+    
+    
+    /**
+     * Sets the executor used to render the images in stripes.
+     * <p>
+     * It must not be used by other threads while images are being rendered.
+     * 
+     * @param stripeExecutor    executor used to render the images in stripes, or null to render them in the calling thread.
+     */
+    public void setStripeExecutor( StripeExecutor stripeExecutor )
+    {
+        this.executor = stripeExecutor;
+    }
+    
+    
+    /**
+     * Renders a depth image into a {@link PImage}.
+     * <p>
+     * The {@link PImage} must have the same size as the depth image.
+     * It does not change the color mode of any sketch, so it can be called from any thread.
+     * 
+     * @param image     depth image to be rendered.
+     * @param target    {@link PImage} where the image is rendered.
+     */
+    public void render( MaixSenseA010DepthImageAdapter image , PImage target )
+    {
+        // The raw pixel values are read in place.
+        this.render( image.pixels() , image.pixelCount() , image.getQuantizationUnit() , target );
+    }
+    
+    
+    /**
+     * Renders raw pixel values into a {@link PImage}.
+     * 
+     * @param values    raw pixel values in row-major order.
+     * @param pixels    number of pixels to render.
+     * @param unit      quantization unit used to compute the depth from the pixel values.
+     * @param target    {@link PImage} where the pixels are rendered.
+     */
+    public void render( byte[] values , int pixels , int unit , PImage target )
+    {
+        // Update the palette if the quantization unit changed; it is read once because the colormap can be changed from another thread,
+        // and the new palette replaces it only if it was not replaced meanwhile.
+        Palette current = this.palette;
+        if( current.unit != unit ) {
+            Palette updated = new Palette( current.colormap , current.depthMin , current.depthMax , unit );
+            synchronized( this ) {
+                if( this.palette == current ) {
+                    this.palette = updated;
+                }
+            }
+            current = updated;
+        }
+        int[] p = current.colors;
+        if(  this.executor == null  ||  target.width <= 0  ||  pixels != target.width*target.height  ) {
+            renderRange( values , p , target.pixels , 0 , pixels );
+        } else {
+            // Render rows of the target in parallel.
+            this.renderValues = values;
+            this.renderPalette = p;
+            this.renderTarget = target.pixels;
+            this.renderCols = target.width;
+            this.executor.execute( target.height , this.renderTask );
+            this.renderValues = null;
+            this.renderTarget = null;
+        }
+        target.updatePixels();
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Renders a stripe of the image being rendered.
+     * 
+     * @param stripe    index of the stripe.
+     * @param rowStart  first row of the stripe.
+     * @param rowEnd    row after the last row of the stripe.
+     */
+    private void renderStripe( int stripe , int rowStart , int rowEnd )
+    {
+        renderRange( this.renderValues , this.renderPalette , this.renderTarget , rowStart * this.renderCols , rowEnd * this.renderCols );
+    }
+    
+    
+    /**
+     * Checks that a colormap is known.
+     * 
+     * @param map   colormap.
+     * @throws IllegalArgumentException if the colormap is unknown.
+     */
+    private static void checkColormap( int map )
+    {
+        if(  map < 0  ||  COLORMAPS <= map  ) {
+            throw new IllegalArgumentException( "Unknown colormap: " + map + "." );
+        }
+    }
+    
+    
+    /**
+     * Returns the color of a colormap at a given position.
+     * 
+     * @param map   colormap.
+     * @param x     position in the colormap, in [0,1].
+     * @return  ARGB color.
+     */
+    private static int colormapColor( int map , double x )
+    {
+        double r;
+        double g;
+        double b;
+        switch( map ) {
+            case COLORMAP_TURBO:
+                // Polynomial approximation of the Turbo colormap.
+                r = 0.13572138 + x*( 4.61539260 + x*( -42.66032258 + x*( 132.13108234 + x*( -152.94239396 + x*59.28637943 ) ) ) );
+                g = 0.09140261 + x*( 2.19418839 + x*( 4.84296658 + x*( -14.18503333 + x*( 4.27729857 + x*2.82956604 ) ) ) );
+                b = 0.10667330 + x*( 12.64194608 + x*( -60.58204836 + x*( 110.36276771 + x*( -89.90310912 + x*27.34824973 ) ) ) );
+                break;
+            case COLORMAP_JET:
+                r = 1.5 - Math.abs( 4.0*x - 3.0 );
+                g = 1.5 - Math.abs( 4.0*x - 2.0 );
+                b = 1.5 - Math.abs( 4.0*x - 1.0 );
+                break;
+            default:
+                r = x;
+                g = x;
+                b = x;
+                break;
+        }
+        return ( 0xFF000000 | ( toByte( r ) << 16 ) | ( toByte( g ) << 8 ) | toByte( b ) );
+    }
+    
+    
+    /**
+     * Maps a range of raw pixel values through a palette.
+     * 
+     * @param values    raw pixel values.
+     * @param palette   ARGB color for each pixel value.
+     * @param out   array where the colors are written.
+     * @param from  index of the first pixel.
+     * @param to    index after the last pixel.
+     */
+    private static void renderRange( byte[] values , int[] palette , int[] out , int from , int to )
+    {
+        for( int k=from; k<to; k++ ) {
+            out[k] = palette[ values[k] & 0xFF ];
+        }
+    }
+    
+    
+    /**
+     * Converts a color component in [0,1] to [0,255], clamping values out of range.
+     * 
+     * @param c     color component.
+     * @return  color component in [0,255].
+     */
+    private static int toByte( double c )
+    {
+        int v = (int)Math.round( c * 255.0 );
+        return ( ( v < 0 )? 0 : ( ( v > 255 )? 255 : v ) );
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CLASSES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Immutable palette with the color of every pixel value.
+     */
+    private static class Palette
+    {
+        // PRIVATE VARIABLES
+        
+        /**
+         * Colormap used to compute the colors.
+         */
+        private final int colormap;
+        
+        /**
+         * Depth mapped to the upper end of the colormap.
+         */
+        private final double depthMin;
+        
+        /**
+         * Depth mapped to the lower end of the colormap.
+         */
+        private final double depthMax;
+        
+        /**
+         * Quantization unit used to compute the depth from the pixel values.
+         */
+        private final int unit;
+        
+        /**
+         * ARGB color for each pixel value.
+         */
+        private final int[] colors;
+        
+        
+        // PRIVATE CONSTRUCTORS
+        
+        /**
+         * Computes the color of every pixel value.
+         * 
+         * @param map   colormap.
+         * @param minDepth  depth in meters mapped to the upper end of the colormap.
+         * @param maxDepth  depth in meters mapped to the lower end of the colormap.
+         * @param quantizationUnit  quantization unit used to compute the depth from the pixel values.
+         */
+        private Palette( int map , double minDepth , double maxDepth , int quantizationUnit )
+        {
+            this.colormap = map;
+            this.depthMin = minDepth;
+            this.depthMax = maxDepth;
+            this.unit = quantizationUnit;
+            this.colors = new int[256];
+            double range = maxDepth - minDepth;
+            for( int value=0; value<256; value++ ) {
+                double depth = MaixSenseA010DepthImageAdapter.pixelValueToDepth( quantizationUnit , value );
+                double x = ( range > 0.0 )? ( maxDepth - depth ) / range : 0.0;
+                x = Math.max( 0.0 , Math.min( 1.0 , x ) );
+                this.colors[value] = colormapColor( map , x );
+            }
+        }
+    }
+    
+}
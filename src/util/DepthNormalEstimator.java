@@ -0,0 +1,428 @@
+package util;
+
+
+import sensorCalibrationLibrary.depthCameras.maixSenseA010.MaixSenseA010DefaultCalibration;
+
+
+
+/**
+ * Estimates the surface normal of every pixel of a depth image on its organized grid, with integral images.
+ * <p>
+ * The point of each valid pixel is its depth times its unit-depth ray (see {@link MaixSenseA010PointCloudProjector#unitDepthRays(int)}),
+ * as {@link MaixSenseA010DefaultCalibration} projects it.
+ * Integral images of the number of valid points, of their coordinates X, Y, Z, and of the products XX, XY, XZ, YY, YZ, ZZ
+ * are built once per frame, so the covariance of the points in a square window around any pixel is obtained in constant time,
+ * whatever the size of the window.
+ * The normal is the eigenvector of the smallest eigenvalue of the covariance, oriented towards the camera.
+ * <p>
+ * The surface variation (smallest eigenvalue over the sum of the eigenvalues) is also provided: it is close to 0 on planes,
+ * and grows on edges and corners, so normals and surface variations can be used together to segment planes.
+ * <p>
+ * Integral images are accumulated in double precision, because the products of the coordinates are subtracted from each other.
+ * With a {@link StripeExecutor}, the normals are estimated in parallel stripes of rows once the integral images are built.
+ */
+public class DepthNormalEstimator
+{
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Default half size of the window, so that windows have 7x7 pixels.
+     */
+    public static final int DEFAULT_WINDOW_RADIUS = 3;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Number of channels of the integral images: count, X, Y, Z, XX, XY, XZ, YY, YZ, ZZ.
+     */
+    private static final int CHANNELS = 10;
+    
+    /**
+     * Maximum number of Newton iterations used to find the smallest eigenvalue of a covariance.
+     */
+    private static final int MAX_EIGENVALUE_ITERATIONS = 8;
+    
+    /**
+     * Newton iterations stop when their step is smaller than this fraction of the trace of the covariance.
+     */
+    private static final double EIGENVALUE_TOLERANCE = 1.0e-9;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Half size of the window in pixels.
+     */
+    private int windowRadius;
+    
+    /**
+     * Minimum number of valid pixels in a window for its normal to be estimated.
+     */
+    private int minWindowPoints;
+    
+    /**
+     * Integral images with {@link #CHANNELS} interleaved channels, with one more row and column than the image.
+     */
+    private double[] integrals;
+    
+    /**
+     * Executes {@link #estimationTask} on stripes of the image, or null to estimate the whole image in the calling thread.
+     */
+    private StripeExecutor executor;
+    
+    /**
+     * Task that estimates the normals of a stripe of the image.
+     */
+    private StripeTask estimationTask;
+    
+    /**
+     * Depths of the image being estimated.
+     */
+    private float[] stripeDepths;
+    
+    /**
+     * Validity bitset of the image being estimated, or null if every pixel is valid.
+     */
+    private long[] stripeValidityBits;
+    
+    /**
+     * Unit-depth rays of the image being estimated.
+     */
+    private float[] stripeRays;
+    
+    /**
+     * Number of rows of the image being estimated.
+     */
+    private int stripeRows;
+    
+    /**
+     * Number of columns of the image being estimated.
+     */
+    private int stripeCols;
+    
+    /**
+     * Array where the normals of the image being estimated are written.
+     */
+    private float[] stripeNormals;
+    
+    /**
+     * Array where the surface variations of the image being estimated are written, or null.
+     */
+    private float[] stripeVariations;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link DepthNormalEstimator} with windows of {@link #DEFAULT_WINDOW_RADIUS}.
+     */
+    public DepthNormalEstimator()
+    {
+        this( DEFAULT_WINDOW_RADIUS );
+    }
+    
+    
+    /**
+     * Constructs a {@link DepthNormalEstimator}.
+     * <p>
+     * The normal of a pixel is estimated if at least half of the pixels of its window are valid.
+     * 
+     * @param radius    half size of the window in pixels, so that windows have (2*radius+1)x(2*radius+1) pixels.
+     */
+    public DepthNormalEstimator( int radius )
+    {
+        if( radius < 1 ) {
+            throw new IllegalArgumentException( "The window radius must be at least 1." );
+        }
+        this.windowRadius = radius;
+        this.minWindowPoints = Math.max( ( 2*radius+1 )*( 2*radius+1 )/2 , 3 );
+        this.integrals = new double[0];
+        this.estimationTask = this::estimateStripe;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Sets the executor used to estimate the normals in stripes.
+     * <p>
+     * It must not be used by other threads while normals are being estimated.
+     * 
+     * @param stripeExecutor    executor used to estimate the normals in stripes, or null to estimate them in the calling thread.
+     */
+    public void setStripeExecutor( StripeExecutor stripeExecutor )
+    {
+        this.executor = stripeExecutor;
+    }
+    
+    
+    /**
+     * Returns the half size of the window.
+     * 
+     * @return  half size of the window in pixels.
+     */
+    public int windowRadius()
+    {
+        return this.windowRadius;
+    }
+    
+    
+    /**
+     * Estimates the normal of every pixel of a depth image.
+     * <p>
+     * The normal of pixel k is written in {@code normals[ 3*k ]}, {@code normals[ 3*k+1 ]}, {@code normals[ 3*k+2 ]}, with unit length and pointing towards the camera.
+     * Invalid pixels, and pixels without enough valid pixels in their window, get a zero normal and a NaN surface variation.
+     * 
+     * @param depths    depths of the pixels in row-major order.
+     * @param validityBits  validity bitset of the pixels, as computed by {@link MaixSenseA010DepthImageAdapter#validityBitsInto(long[])}, or null if every pixel is valid.
+     * @param unitDepthRays     unit-depth rays of the pixels, as returned by {@link MaixSenseA010PointCloudProjector#unitDepthRays(int)}.
+     * @param rows  number of rows of the image.
+     * @param cols  number of columns of the image.
+     * @param normals   array where the normals are written; its length must be at least 3*rows*cols.
+     * @param surfaceVariations     array where the surface variations are written, or null if they are not needed; its length must be at least rows*cols.
+     */
+    public void estimate( float[] depths , long[] validityBits , float[] unitDepthRays , int rows , int cols , float[] normals , float[] surfaceVariations )
+    {
+        int length = CHANNELS * ( rows+1 ) * ( cols+1 );
+        if( this.integrals.length < length ) {
+            this.integrals = new double[ length ];
+        }
+        this.buildIntegrals( depths , validityBits , unitDepthRays , rows , cols );
+        // Estimate the normals in stripes.
+        this.stripeDepths = depths;
+        this.stripeValidityBits = validityBits;
+        this.stripeRays = unitDepthRays;
+        this.stripeRows = rows;
+        this.stripeCols = cols;
+        this.stripeNormals = normals;
+        this.stripeVariations = surfaceVariations;
+        if( this.executor == null ) {
+            this.estimateStripe( 0 , 0 , rows );
+        } else {
+            this.executor.execute( rows , this.estimationTask );
+        }
+        this.stripeDepths = null;
+        this.stripeValidityBits = null;
+        this.stripeRays = null;
+        this.stripeNormals = null;
+        this.stripeVariations = null;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Builds the integral images of the points of a depth image.
+     * <p>
+     * The integral of pixel (i,j) holds the sums over the pixels above and to the left of it, excluding its row and column.
+     * 
+     * @param depths    depths of the pixels in row-major order.
+     * @param validityBits  validity bitset of the pixels, or null if every pixel is valid.
+     * @param rays  unit-depth rays of the pixels.
+     * @param rows  number of rows of the image.
+     * @param cols  number of columns of the image.
+     */
+    private void buildIntegrals( float[] depths , long[] validityBits , float[] rays , int rows , int cols )
+    {
+        double[] s = this.integrals;
+        int stride = CHANNELS * ( cols+1 );
+        // The first row is zero.
+        for( int n=0; n<stride; n++ ) {
+            s[n] = 0.0;
+        }
+        for( int i=0; i<rows; i++ ) {
+            // Sums of the row so far.
+            double count = 0.0;
+            double sx = 0.0;
+            double sy = 0.0;
+            double sz = 0.0;
+            double sxx = 0.0;
+            double sxy = 0.0;
+            double sxz = 0.0;
+            double syy = 0.0;
+            double syz = 0.0;
+            double szz = 0.0;
+            int above = i*stride;
+            int n = above + stride;
+            for( int c=0; c<CHANNELS; c++ ) {
+                s[n++] = 0.0;
+            }
+            above += CHANNELS;
+            int k = i*cols;
+            for( int j=0; j<cols; j++, k++ ) {
+                if(  validityBits == null  ||  ( ( validityBits[ k >>> 6 ] >>> k ) & 1L ) != 0  ) {
+                    double depth = depths[k];
+                    double x = rays[3*k] * depth;
+                    double y = rays[3*k+1] * depth;
+                    double z = rays[3*k+2] * depth;
+                    count += 1.0;
+                    sx += x;
+                    sy += y;
+                    sz += z;
+                    sxx += x*x;
+                    sxy += x*y;
+                    sxz += x*z;
+                    syy += y*y;
+                    syz += y*z;
+                    szz += z*z;
+                }
+                s[n++] = s[above++] + count;
+                s[n++] = s[above++] + sx;
+                s[n++] = s[above++] + sy;
+                s[n++] = s[above++] + sz;
+                s[n++] = s[above++] + sxx;
+                s[n++] = s[above++] + sxy;
+                s[n++] = s[above++] + sxz;
+                s[n++] = s[above++] + syy;
+                s[n++] = s[above++] + syz;
+                s[n++] = s[above++] + szz;
+            }
+        }
+    }
+    
+    
+    /**
+     * Estimates the normals of the pixels of a stripe of the image being estimated from the integral images.
+     * 
+     * @param stripe    index of the stripe.
+     * @param rowStart  first row of the stripe.
+     * @param rowEnd    row after the last row of the stripe.
+     */
+    private void estimateStripe( int stripe , int rowStart , int rowEnd )
+    {
+        double[] s = this.integrals;
+        long[] valid = this.stripeValidityBits;
+        float[] normals = this.stripeNormals;
+        float[] variations = this.stripeVariations;
+        int rows = this.stripeRows;
+        int cols = this.stripeCols;
+        int stride = CHANNELS * ( cols+1 );
+        int radius = this.windowRadius;
+        for( int i=rowStart; i<rowEnd; i++ ) {
+            int top = Math.max( i-radius , 0 ) * stride;
+            int bottom = Math.min( i+radius+1 , rows ) * stride;
+            for( int j=0; j<cols; j++ ) {
+                int k = i*cols + j;
+                int k3 = 3*k;
+                normals[k3] = 0.0f;
+                normals[k3+1] = 0.0f;
+                normals[k3+2] = 0.0f;
+                if( variations != null ) {
+                    variations[k] = Float.NaN;
+                }
+                if(  valid != null  &&  ( ( valid[ k >>> 6 ] >>> k ) & 1L ) == 0  ) {
+                    continue;
+                }
+                // Sums over the window, from its four corners in the integral images.
+                int left = CHANNELS * Math.max( j-radius , 0 );
+                int right = CHANNELS * Math.min( j+radius+1 , cols );
+                int a = top + left;
+                int b = top + right;
+                int c = bottom + left;
+                int d = bottom + right;
+                double count = s[d] - s[b] - s[c] + s[a];
+                if( count < this.minWindowPoints ) {
+                    continue;
+                }
+                double mx = ( s[d+1] - s[b+1] - s[c+1] + s[a+1] ) / count;
+                double my = ( s[d+2] - s[b+2] - s[c+2] + s[a+2] ) / count;
+                double mz = ( s[d+3] - s[b+3] - s[c+3] + s[a+3] ) / count;
+                double cxx = ( s[d+4] - s[b+4] - s[c+4] + s[a+4] ) / count - mx*mx;
+                double cxy = ( s[d+5] - s[b+5] - s[c+5] + s[a+5] ) / count - mx*my;
+                double cxz = ( s[d+6] - s[b+6] - s[c+6] + s[a+6] ) / count - mx*mz;
+                double cyy = ( s[d+7] - s[b+7] - s[c+7] + s[a+7] ) / count - my*my;
+                double cyz = ( s[d+8] - s[b+8] - s[c+8] + s[a+8] ) / count - my*mz;
+                double czz = ( s[d+9] - s[b+9] - s[c+9] + s[a+9] ) / count - mz*mz;
+                // Smallest eigenvalue of the covariance, as the smallest root of its characteristic polynomial.
+                // Newton iterations from 0 converge to it from below, since the covariance is positive semidefinite.
+                double trace = cxx + cyy + czz;
+                if( !( trace > 0.0 ) ) {
+                    continue;
+                }
+                double minors = cxx*cyy + cxx*czz + cyy*czz - cxy*cxy - cxz*cxz - cyz*cyz;
+                double determinant = cxx*( cyy*czz - cyz*cyz ) - cxy*( cxy*czz - cyz*cxz ) + cxz*( cxy*cyz - cyy*cxz );
+                double lambda = 0.0;
+                for( int iteration=0; iteration<MAX_EIGENVALUE_ITERATIONS; iteration++ ) {
+                    double polynomial = ( ( lambda - trace )*lambda + minors )*lambda - determinant;
+                    double derivative = ( 3.0*lambda - 2.0*trace )*lambda + minors;
+                    if( !( derivative > 0.0 ) ) {
+                        break;
+                    }
+                    double step = polynomial / derivative;
+                    lambda -= step;
+                    if( Math.abs( step ) <= EIGENVALUE_TOLERANCE*trace ) {
+                        break;
+                    }
+                }
+                // Its eigenvector is the largest cross product of two rows of the covariance minus lambda.
+                double r0x = cxx - lambda;
+                double r1y = cyy - lambda;
+                double r2z = czz - lambda;
+                double ax = cxy*cyz - cxz*r1y;
+                double ay = cxz*cxy - r0x*cyz;
+                double az = r0x*r1y - cxy*cxy;
+                double bx = cxy*r2z - cxz*cyz;
+                double by = cxz*cxz - r0x*r2z;
+                double bz = r0x*cyz - cxy*cxz;
+                double ex = r1y*r2z - cyz*cyz;
+                double ey = cyz*cxz - cxy*r2z;
+                double ez = cxy*cyz - r1y*cxz;
+                double na = ax*ax + ay*ay + az*az;
+                double nb = bx*bx + by*by + bz*bz;
+                double ne = ex*ex + ey*ey + ez*ez;
+                double nx;
+                double ny;
+                double nz;
+                double norm2;
+                if(  na >= nb  &&  na >= ne  ) {
+                    nx = ax;
+                    ny = ay;
+                    nz = az;
+                    norm2 = na;
+                } else if( nb >= ne ) {
+                    nx = bx;
+                    ny = by;
+                    nz = bz;
+                    norm2 = nb;
+                } else {
+                    nx = ex;
+                    ny = ey;
+                    nz = ez;
+                    norm2 = ne;
+                }
+                if( !( norm2 > 0.0 ) ) {
+                    continue;
+                }
+                // Orient it towards the camera, at the origin.
+                double depth = this.stripeDepths[k];
+                double dot = nx*this.stripeRays[k3]*depth + ny*this.stripeRays[k3+1]*depth + nz*this.stripeRays[k3+2]*depth;
+                double scale = ( ( dot > 0.0 )? -1.0 : 1.0 ) / Math.sqrt( norm2 );
+                normals[k3] = (float)( nx*scale );
+                normals[k3+1] = (float)( ny*scale );
+                normals[k3+2] = (float)( nz*scale );
+                if( variations != null ) {
+                    variations[k] = (float)( lambda/trace );
+                }
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,95 @@
+package util;
+
+
+import java.io.IOException;
+
+
+
+/**
+ * Recorded sequence of depth frames with random access, as played by {@link LogPlayer}.
+ * <p>
+ * Frames are indexed from 0 to {@link #frameCount()}-1, and hold raw pixel values in row-major order.
+ */
+public interface FrameLog
+{
+    
+    /**
+     * Opens a log for random access, choosing the reader by the extension of the file.
+     * <p>
+     * Compressed frame logs ({@link CompressedFrameLogWriter#EXTENSION}) are read with {@link CompressedFrameLogReader};
+     * any other file is taken as a log recorded with the MaixSense-A010, and read with {@link IndexedFrameLog}.
+     * 
+     * @param path  path to the log.
+     * @param fps   nominal frame rate at which the log was recorded, used to timestamp the frames of logs without timestamps.
+     * @return  {@link FrameLog} of the log.
+     * @throws IOException  if the log can not be read.
+     */
+    public static FrameLog open( String path , double fps ) throws IOException
+    {
+        if( path.endsWith( CompressedFrameLogWriter.EXTENSION ) ) {
+            return new CompressedFrameLogReader( path );
+        }
+        return IndexedFrameLog.open( path , fps );
+    }
+    
+    
+    /**
+     * Returns the number of frames.
+     * 
+     * @return  number of frames.
+     */
+    public int frameCount();
+    
+    
+    /**
+     * Returns the number of rows of a frame.
+     * 
+     * @param k     index of the frame.
+     * @return  number of rows of the frame.
+     */
+    public int rows( int k );
+    
+    
+    /**
+     * Returns the number of columns of a frame.
+     * 
+     * @param k     index of the frame.
+     * @return  number of columns of the frame.
+     */
+    public int cols( int k );
+    
+    
+    /**
+     * Returns the timestamp of a frame.
+     * 
+     * @param k     index of the frame.
+     * @return  timestamp of the frame in nanoseconds, relative to the first frame.
+     */
+    public long timestamp( int k );
+    
+    
+    /**
+     * Copies the raw pixel values of a frame, in row-major order.
+     * 
+     * @param k     index of the frame.
+     * @param out   array where the pixel values are written; its length must be at least {@code rows(k)*cols(k)}.
+     * @return  the same array passed as argument.
+     */
+    public byte[] frameInto( int k , byte[] out );
+    
+    
+    /**
+     * Returns the index of the frame shown at a given time: the last frame whose timestamp is not greater than it.
+     * 
+     * @param timestamp     time in nanoseconds, relative to the first frame.
+     * @return  index of the frame shown at the given time; 0 if the time is before the first frame, or -1 if there are no frames.
+     */
+    public int frameAt( long timestamp );
+    
+    
+    /**
+     * Releases the resources held to read the frames.
+     */
+    public void close();
+    
+}
@@ -0,0 +1,23 @@
+package util;
+
+
+
+/**
+ * Consumer of sets of images captured at the same time by multiple cameras, as produced by {@link FrameSynchronizer}.
+ */
+public interface FrameSetConsumer
+{
+    
+    /**
+     * Consumes a set of images, one per camera.
+     * <p>
+     * The arrays, and the arrays of pixel values they hold, are reused by the producer, so their content is only valid until this method returns.
+     * 
+     * @param pixels    raw pixel values of the image of each camera in row-major order, indexed as the cameras of the producer.
+     * @param rows      number of rows of the image of each camera.
+     * @param cols      number of columns of the image of each camera.
+     * @param timestamps    arrival time of each image in nanoseconds, as given by {@link System#nanoTime()}.
+     */
+    public void consumeFrameSet( byte[][] pixels , int[] rows , int[] cols , long[] timestamps );
+    
+}
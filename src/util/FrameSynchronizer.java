@@ -0,0 +1,491 @@
+package util;
+
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import maixsense.a010.MaixSenseA010Image;
+import maixsense.a010.MaixSenseA010ImageConsumer;
+
+
+
+/**
+ * Groups the images of multiple cameras into sets of images captured at the same time.
+ * <p>
+ * Each camera delivers its images to the consumer returned by {@link #consumer(int)}, which stamps them with their arrival time
+ * and copies their pixel values into a ring buffer owned by that camera.
+ * The buffers of the pixel values are reused, and no reference to the images of the driver is kept,
+ * so the images are valid whether or not the driver reuses them.
+ * The ring buffers are lock-free: each one has a single producer (the thread that delivers the images of the camera)
+ * and a single consumer (the matching thread).
+ * <p>
+ * The matching thread looks at the oldest image of every camera.
+ * If all of them arrived within the tolerance, they are delivered together to the {@link FrameSetConsumer}s.
+ * Otherwise, the oldest of them can not be matched anymore, since the following images of the other cameras are even newer,
+ * so it is discarded and counted as unmatched.
+ * Images that arrive when the ring buffer of their camera is full are discarded and counted as dropped.
+ */
+public class FrameSynchronizer
+{
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Maximum time in nanoseconds that the matching thread stays parked without being woken up, so that it notices {@link #stop()}.
+     */
+    private static final long MAX_PARK_NANOS = 10000000;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Ring buffer of each camera.
+     */
+    private CameraRing[] rings;
+    
+    /**
+     * Maximum difference in nanoseconds between the arrival times of the images of a set.
+     */
+    private long tolerance;
+    
+    /**
+     * Consumers to which the sets of images are delivered.
+     */
+    private List<FrameSetConsumer> consumers;
+    
+    /**
+     * Pixel values of the images of the set being delivered; exchanged with the slots of the ring buffers that are taken.
+     */
+    private byte[][] pixels;
+    
+    /**
+     * Number of rows of the images of the set being delivered.
+     */
+    private int[] rows;
+    
+    /**
+     * Number of columns of the images of the set being delivered.
+     */
+    private int[] cols;
+    
+    /**
+     * Arrival times of the images of the set being delivered.
+     */
+    private long[] timestamps;
+    
+    /**
+     * Thread that matches and delivers the images.
+     */
+    private Thread thread;
+    
+    /**
+     * True while the matching thread must keep running.
+     */
+    private volatile boolean running;
+    
+    /**
+     * Number of sets of images delivered.
+     */
+    private volatile long matched;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link FrameSynchronizer}, and starts matching images.
+     * 
+     * @param cameraCount   number of cameras.
+     * @param toleranceNanos    maximum difference in nanoseconds between the arrival times of the images of a set.
+     * @param capacity  number of images that the ring buffer of each camera can hold.
+     */
+    public FrameSynchronizer( int cameraCount , long toleranceNanos , int capacity )
+    {
+        if( cameraCount < 1 ) {
+            throw new IllegalArgumentException( "The number of cameras must be positive." );
+        }
+        if( toleranceNanos < 0 ) {
+            throw new IllegalArgumentException( "The tolerance can not be negative." );
+        }
+        if( capacity < 1 ) {
+            throw new IllegalArgumentException( "The capacity must be positive." );
+        }
+        this.rings = new CameraRing[ cameraCount ];
+        for( int c=0; c<cameraCount; c++ ) {
+            this.rings[c] = new CameraRing( capacity );
+        }
+        this.tolerance = toleranceNanos;
+        this.consumers = new CopyOnWriteArrayList<FrameSetConsumer>();
+        this.pixels = new byte[ cameraCount ][ 0 ];
+        this.rows = new int[ cameraCount ];
+        this.cols = new int[ cameraCount ];
+        this.timestamps = new long[ cameraCount ];
+        this.running = true;
+        this.thread = new Thread( this::matchFrames , "FrameSynchronizer" );
+        this.thread.setDaemon( true );
+        this.thread.start();
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns the consumer to which a camera must deliver its images.
+     * <p>
+     * The returned consumer must be called from a single thread.
+     * 
+     * @param camera    index of the camera.
+     * @return  consumer to which the camera must deliver its images.
+     */
+    public MaixSenseA010ImageConsumer consumer( int camera )
+    {
+        return this.rings[camera];
+    }
+    
+    
+    /**
+     * Adds a consumer to which the sets of images are delivered.
+     * <p>
+     * Consumers are called from the matching thread.
+     * 
+     * @param consumer  consumer to be added.
+     */
+    public void addListener( FrameSetConsumer consumer )
+    {
+        this.consumers.add( consumer );
+    }
+    
+    
+    /**
+     * Stops matching images and waits for the matching thread to finish.
+     */
+    public void stop()
+    {
+        this.running = false;
+        LockSupport.unpark( this.thread );
+        try {
+            this.thread.join();
+        } catch( InterruptedException e ) {
+            e.printStackTrace();
+        }
+    }
+    
+    
+    /**
+     * Returns the number of cameras.
+     * 
+     * @return  number of cameras.
+     */
+    public int cameraCount()
+    {
+        return this.rings.length;
+    }
+    
+    
+    /**
+     * Returns the number of sets of images delivered.
+     * 
+     * @return  number of sets of images delivered.
+     */
+    public long matchedCount()
+    {
+        return this.matched;
+    }
+    
+    
+    /**
+     * Returns the number of images of a camera discarded because no image of the other cameras arrived within the tolerance.
+     * 
+     * @param camera    index of the camera.
+     * @return  number of unmatched images of the camera.
+     */
+    public long unmatchedCount( int camera )
+    {
+        return this.rings[camera].unmatched;
+    }
+    
+    
+    /**
+     * Returns the number of images of a camera discarded because its ring buffer was full.
+     * 
+     * @param camera    index of the camera.
+     * @return  number of dropped images of the camera.
+     */
+    public long droppedCount( int camera )
+    {
+        return this.rings[camera].dropped;
+    }
+    
+    
+    /**
+     * Returns the number of images of all the cameras discarded because no image of the other cameras arrived within the tolerance.
+     * 
+     * @return  number of unmatched images.
+     */
+    public long unmatchedCount()
+    {
+        long count = 0;
+        for( int c=0; c<this.rings.length; c++ ) {
+            count += this.unmatchedCount( c );
+        }
+        return count;
+    }
+    
+    
+    /**
+     * Returns the number of images of all the cameras discarded because their ring buffer was full.
+     * 
+     * @return  number of dropped images.
+     */
+    public long droppedCount()
+    {
+        long count = 0;
+        for( int c=0; c<this.rings.length; c++ ) {
+            count += this.droppedCount( c );
+        }
+        return count;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Matches and delivers the images until {@link #stop()} is called.
+     */
+    private void matchFrames()
+    {
+        while( this.running ) {
+            // Wait until every camera has an image,
+            boolean ready = true;
+            for( int c=0; c<this.rings.length; c++ ) {
+                if( this.rings[c].isEmpty() ) {
+                    ready = false;
+                    break;
+                }
+            }
+            if( !ready ) {
+                LockSupport.parkNanos( this , MAX_PARK_NANOS );
+                continue;
+            }
+            // and compare the arrival times of the oldest ones.
+            int oldest = 0;
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for( int c=0; c<this.rings.length; c++ ) {
+                long timestamp = this.rings[c].peekTimestamp();
+                if( timestamp < min ) {
+                    min = timestamp;
+                    oldest = c;
+                }
+                max = Math.max( max , timestamp );
+            }
+            if( max - min <= this.tolerance ) {
+                // They were captured at the same time: deliver them together.
+                for( int c=0; c<this.rings.length; c++ ) {
+                    this.timestamps[c] = this.rings[c].peekTimestamp();
+                    this.rows[c] = this.rings[c].peekRows();
+                    this.cols[c] = this.rings[c].peekCols();
+                    this.pixels[c] = this.rings[c].take( this.pixels[c] );
+                }
+                for( FrameSetConsumer consumer : this.consumers ) {
+                    consumer.consumeFrameSet( this.pixels , this.rows , this.cols , this.timestamps );
+                }
+                this.matched++;
+            } else {
+                // The oldest one can not be matched anymore.
+                this.pixels[oldest] = this.rings[oldest].take( this.pixels[oldest] );
+                this.rings[oldest].unmatched++;
+            }
+        }
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CLASSES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Single-producer single-consumer ring buffer with the pixel values of the images of a camera and their arrival times.
+     */
+    private class CameraRing
+        implements MaixSenseA010ImageConsumer
+    {
+        // PRIVATE VARIABLES
+        
+        /**
+         * Pixel values of the stored images.
+         */
+        private byte[][] pixels;
+        
+        /**
+         * Number of rows of the stored images.
+         */
+        private int[] rows;
+        
+        /**
+         * Number of columns of the stored images.
+         */
+        private int[] cols;
+        
+        /**
+         * Arrival times of the stored images.
+         */
+        private long[] timestamps;
+        
+        /**
+         * Number of images taken so far; only written by the matching thread.
+         */
+        private AtomicLong head;
+        
+        /**
+         * Number of images stored so far; only written by the producer.
+         */
+        private AtomicLong tail;
+        
+        /**
+         * Number of images discarded because the ring buffer was full; only written by the producer.
+         */
+        private volatile long dropped;
+        
+        /**
+         * Number of images discarded because they could not be matched; only written by the matching thread.
+         */
+        private volatile long unmatched;
+        
+        
+        // PUBLIC CONSTRUCTORS
+        
+        /**
+         * Constructs a {@link CameraRing}.
+         * 
+         * @param capacity  number of images that can be stored.
+         */
+        public CameraRing( int capacity )
+        {
+            this.pixels = new byte[ capacity ][ 0 ];
+            this.rows = new int[ capacity ];
+            this.cols = new int[ capacity ];
+            this.timestamps = new long[ capacity ];
+            this.head = new AtomicLong();
+            this.tail = new AtomicLong();
+        }
+        
+        
+        // PUBLIC METHODS
+        
+        /**
+         * {@inheritDoc}
+         * <p>
+         * Stamps the image with its arrival time and copies its pixel values, or drops it if the ring buffer is full.
+         */
+        public void consumeImage( MaixSenseA010Image image )
+        {
+            long arrival = System.nanoTime();
+            long t = this.tail.get();
+            if( t - this.head.get() == this.pixels.length ) {
+                this.dropped++;
+                return;
+            }
+            int slot = (int)( t % this.pixels.length );
+            int pixelCount = image.rows() * image.cols();
+            if( this.pixels[slot].length < pixelCount ) {
+                this.pixels[slot] = new byte[ pixelCount ];
+            }
+            MaixSenseA010DepthImageAdapter.pixelsOf( image , this.pixels[slot] );
+            this.rows[slot] = image.rows();
+            this.cols[slot] = image.cols();
+            this.timestamps[slot] = arrival;
+            // Publish the slot; the matching thread reads it after seeing the new tail.
+            this.tail.lazySet( t + 1 );
+            LockSupport.unpark( FrameSynchronizer.this.thread );
+        }
+        
+        
+        /**
+         * Returns true if there are no images stored.
+         * 
+         * @return  true if there are no images stored; false otherwise.
+         */
+        public boolean isEmpty()
+        {
+            return ( this.head.get() == this.tail.get() );
+        }
+        
+        
+        /**
+         * Returns the arrival time of the oldest stored image.
+         * <p>
+         * Must be called from the matching thread when the ring buffer is not empty.
+         * 
+         * @return  arrival time of the oldest stored image.
+         */
+        public long peekTimestamp()
+        {
+            return this.timestamps[ (int)( this.head.get() % this.timestamps.length ) ];
+        }
+        
+        
+        /**
+         * Returns the number of rows of the oldest stored image.
+         * <p>
+         * Must be called from the matching thread when the ring buffer is not empty.
+         * 
+         * @return  number of rows of the oldest stored image.
+         */
+        public int peekRows()
+        {
+            return this.rows[ (int)( this.head.get() % this.rows.length ) ];
+        }
+        
+        
+        /**
+         * Returns the number of columns of the oldest stored image.
+         * <p>
+         * Must be called from the matching thread when the ring buffer is not empty.
+         * 
+         * @return  number of columns of the oldest stored image.
+         */
+        public int peekCols()
+        {
+            return this.cols[ (int)( this.head.get() % this.cols.length ) ];
+        }
+        
+        
+        /**
+         * Removes the oldest stored image, and returns its pixel values.
+         * <p>
+         * Must be called from the matching thread when the ring buffer is not empty.
+         * The returned array is exchanged with the given one, which the producer reuses for a later image.
+         * 
+         * @param spare     array of pixel values that is no longer used by the matching thread.
+         * @return  pixel values of the oldest stored image.
+         */
+        public byte[] take( byte[] spare )
+        {
+            long h = this.head.get();
+            int slot = (int)( h % this.pixels.length );
+            byte[] taken = this.pixels[slot];
+            this.pixels[slot] = spare;
+            // Release the slot to the producer.
+            this.head.lazySet( h + 1 );
+            return taken;
+        }
+        
+    }
+    
+}
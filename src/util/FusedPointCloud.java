@@ -0,0 +1,207 @@
+package util;
+
+
+
+/**
+ * Point cloud of multiple cameras expressed in a common reference frame, stored in a single preallocated primitive array.
+ * <p>
+ * The array is divided in a slice per camera, with room for the points of its largest image.
+ * Each slice is updated in place with the transformed point cloud of its camera.
+ * Once all the slices are set, {@link #collapseUnused()} moves the unused points of every slice onto a valid point,
+ * so that the whole array can be drawn at once, as with {@link PointCloudShape}.
+ */
+public class FusedPointCloud
+{
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Coordinates of the points of all the slices, three per point.
+     */
+    private float[] xyz;
+    
+    /**
+     * Index of the first point of each slice.
+     */
+    private int[] offsets;
+    
+    /**
+     * Number of points that each slice can hold.
+     */
+    private int[] capacities;
+    
+    /**
+     * Number of points in each slice.
+     */
+    private int[] counts;
+    
+    /**
+     * Number of points in all the slices, as of the last call to {@link #collapseUnused()}.
+     */
+    private int totalCount;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs an empty {@link FusedPointCloud}.
+     * 
+     * @param sliceCapacities   number of points that the slice of each camera can hold.
+     */
+    public FusedPointCloud( int[] sliceCapacities )
+    {
+        this.offsets = new int[ sliceCapacities.length ];
+        this.capacities = sliceCapacities.clone();
+        this.counts = new int[ sliceCapacities.length ];
+        int total = 0;
+        for( int c=0; c<sliceCapacities.length; c++ ) {
+            this.offsets[c] = total;
+            total += sliceCapacities[c];
+        }
+        this.xyz = new float[ 3*total ];
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Sets the points of a slice, transforming them to the common reference frame.
+     * <p>
+     * Points that do not fit in the slice are discarded.
+     * 
+     * @param slice     index of the slice.
+     * @param points    coordinates of the points in the reference frame of the camera, three per point.
+     * @param count     number of points.
+     * @param transform     transformation from the reference frame of the camera to the common one.
+     */
+    public void setSlice( int slice , float[] points , int count , RigidTransform transform )
+    {
+        int n = Math.min( count , this.capacities[slice] );
+        transform.transform( points , 0 , this.xyz , 3*this.offsets[slice] , n );
+        this.counts[slice] = n;
+    }
+    
+    
+    /**
+     * Moves the unused points of every slice onto a valid point, or onto the origin if there are no valid points.
+     * 
+     * @return  number of valid points.
+     */
+    public int collapseUnused()
+    {
+        // Find a valid point,
+        float x = 0.0f;
+        float y = 0.0f;
+        float z = 0.0f;
+        for( int c=0; c<this.counts.length; c++ ) {
+            if( this.counts[c] > 0 ) {
+                int i = 3*this.offsets[c];
+                x = this.xyz[i];
+                y = this.xyz[i+1];
+                z = this.xyz[i+2];
+                break;
+            }
+        }
+        // and move the unused points onto it.
+        int valid = 0;
+        for( int c=0; c<this.counts.length; c++ ) {
+            int end = 3*( this.offsets[c] + this.capacities[c] );
+            for( int i = 3*( this.offsets[c] + this.counts[c] ); i<end; i+=3 ) {
+                this.xyz[i] = x;
+                this.xyz[i+1] = y;
+                this.xyz[i+2] = z;
+            }
+            valid += this.counts[c];
+        }
+        this.totalCount = valid;
+        return valid;
+    }
+    
+    
+    /**
+     * Returns the coordinates of the points of all the slices.
+     * 
+     * @return  coordinates of the points, three per point.
+     */
+    public float[] xyz()
+    {
+        return this.xyz;
+    }
+    
+    
+    /**
+     * Returns the number of slices.
+     * 
+     * @return  number of slices.
+     */
+    public int sliceCount()
+    {
+        return this.counts.length;
+    }
+    
+    
+    /**
+     * Returns the index of the first point of a slice.
+     * 
+     * @param slice     index of the slice.
+     * @return  index of the first point of the slice.
+     */
+    public int sliceOffset( int slice )
+    {
+        return this.offsets[slice];
+    }
+    
+    
+    /**
+     * Returns the number of points that a slice can hold.
+     * 
+     * @param slice     index of the slice.
+     * @return  number of points that the slice can hold.
+     */
+    public int sliceCapacity( int slice )
+    {
+        return this.capacities[slice];
+    }
+    
+    
+    /**
+     * Returns the number of points in a slice.
+     * 
+     * @param slice     index of the slice.
+     * @return  number of points in the slice.
+     */
+    public int count( int slice )
+    {
+        return this.counts[slice];
+    }
+    
+    
+    /**
+     * Returns the number of points in all the slices, as of the last call to {@link #collapseUnused()}.
+     * 
+     * @return  number of points in all the slices.
+     */
+    public int totalCount()
+    {
+        return this.totalCount;
+    }
+    
+    
+    /**
+     * Returns the number of points that all the slices can hold.
+     * 
+     * @return  number of points that all the slices can hold.
+     */
+    public int capacity()
+    {
+        return ( this.xyz.length / 3 );
+    }
+    
+}
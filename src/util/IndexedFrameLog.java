@@ -0,0 +1,447 @@
+package util;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import maixsense.a010.MaixSenseA010DataLogReader;
+import maixsense.a010.MaixSenseA010Image;
+
+
+
+/**
+ * Random access to the frames of a log recorded with the MaixSense-A010, through a memory-mapped view of the log.
+ * <p>
+ * The first time a log is opened, it is read sequentially with {@link MaixSenseA010DataLogReader},
+ * and the position of the raw pixel values of every frame in the log is located by matching them against the log,
+ * right after the previous frame.
+ * The timestamp, offset and size of every frame are stored next to the log in an index file (same path with the {@link #INDEX_EXTENSION} extension);
+ * the pixel values are never copied.
+ * Later openings reuse the index file while it is newer than the log and the log keeps its size.
+ * <p>
+ * The log is memory-mapped, so any frame is available instantly: {@link #frame(int)} returns a view of the mapped pixel values without copying them.
+ * Since the log does not store timestamps, frames are timestamped at a nominal frame rate.
+ */
+public class IndexedFrameLog
+    implements FrameLog
+{
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Extension appended to the path of the log to obtain the path of the index file.
+     */
+    public static final String INDEX_EXTENSION = ".index";
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Identifies index files ("MSAI").
+     */
+    private static final int MAGIC = 0x4D534149;
+    
+    /**
+     * Version of the index file format.
+     */
+    private static final int VERSION = 1;
+    
+    /**
+     * Maximum number of bytes between the end of a frame and the pixel values of the next one in the log (headers, checksums, and so on).
+     */
+    private static final int MAX_GAP_BYTES = 4096;
+    
+    /**
+     * Maximum size in bytes of each mapped segment of the log.
+     */
+    private static final long SEGMENT_BYTES = 1L << 30;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Channel of the log.
+     */
+    private FileChannel channel;
+    
+    /**
+     * Timestamp in nanoseconds of each frame, relative to the first one.
+     */
+    private long[] timestamps;
+    
+    /**
+     * Offset in the log of the pixel values of each frame.
+     */
+    private long[] offsets;
+    
+    /**
+     * Number of rows of each frame.
+     */
+    private short[] rows;
+    
+    /**
+     * Number of columns of each frame.
+     */
+    private short[] cols;
+    
+    /**
+     * Mapped segments of the log; every frame lies entirely in one of them.
+     */
+    private List<MappedByteBuffer> segments;
+    
+    /**
+     * Offset in the log of the beginning of each segment.
+     */
+    private long[] segmentOffsets;
+    
+    /**
+     * Segment that holds each frame.
+     */
+    private int[] frameSegments;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs an {@link IndexedFrameLog} from a log and its index file.
+     * 
+     * @param log           log.
+     * @param indexFile     index file of the log.
+     * @throws IOException  if the log or the index file can not be read, or the index file is not valid for the log.
+     */
+    private IndexedFrameLog( File log , File indexFile ) throws IOException
+    {
+        // Read the index,
+        try( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( indexFile ) ) ) ) {
+            if(  in.readInt() != MAGIC  ||  in.readInt() != VERSION  ||  in.readLong() != log.length()  ) {
+                throw new IOException( indexFile + " is not a valid index file for " + log + "." );
+            }
+            int frameCount = in.readInt();
+            this.timestamps = new long[ frameCount ];
+            this.offsets = new long[ frameCount ];
+            this.rows = new short[ frameCount ];
+            this.cols = new short[ frameCount ];
+            for( int k=0; k<frameCount; k++ ) {
+                this.timestamps[k] = in.readLong();
+                this.offsets[k] = in.readLong();
+                this.rows[k] = in.readShort();
+                this.cols[k] = in.readShort();
+            }
+        }
+        // and map the log in segments that do not split any frame.
+        RandomAccessFile file = new RandomAccessFile( log , "r" );
+        try {
+            this.channel = file.getChannel();
+            this.mapSegments();
+        } catch( IOException | RuntimeException e ) {
+            file.close();
+            throw e;
+        }
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Opens a log for random access, building its index file if it does not exist, is older than the log, or does not match it.
+     * 
+     * @param logPath   path to the log.
+     * @param fps       nominal frame rate at which the log was recorded, used to timestamp the frames.
+     * @return  {@link IndexedFrameLog} of the log.
+     * @throws IOException  if the log or the index file can not be read or written.
+     */
+    public static IndexedFrameLog open( String logPath , double fps ) throws IOException
+    {
+        File log = new File( logPath );
+        File indexFile = new File( logPath + INDEX_EXTENSION );
+        if(  indexFile.exists()  &&  indexFile.lastModified() >= log.lastModified()  ) {
+            try {
+                return new IndexedFrameLog( log , indexFile );
+            } catch( IOException e ) {
+                // The index file is not valid (e.g. an older format, or the log changed); it is built again.
+            }
+        }
+        buildIndexFile( logPath , indexFile , fps );
+        return new IndexedFrameLog( log , indexFile );
+    }
+    
+    
+    /**
+     * Reads a log sequentially and writes its index file.
+     * <p>
+     * The raw pixel values of every frame are located in the log within {@link #MAX_GAP_BYTES} bytes after the end of the previous frame.
+     * 
+     * @param logPath       path to the log.
+     * @param indexFile     index file to be written.
+     * @param fps           nominal frame rate at which the log was recorded, used to timestamp the frames.
+     * @throws IOException  if the log can not be read, a frame can not be located in it, or the index file can not be written.
+     */
+    public static void buildIndexFile( String logPath , File indexFile , double fps ) throws IOException
+    {
+        // Locate the pixel values of every frame in the log.
+        MaixSenseA010DataLogReader reader = new MaixSenseA010DataLogReader( logPath );
+        reader.initialize();
+        MaixSenseA010DepthImageAdapter adapter = new MaixSenseA010DepthImageAdapter();
+        List<long[]> entries = new ArrayList<long[]>();
+        byte[] pixels = new byte[0];
+        byte[] window = new byte[0];
+        long logLength;
+        try( RandomAccessFile log = new RandomAccessFile( logPath , "r" ) ) {
+            logLength = log.length();
+            long searchStart = 0;
+            MaixSenseA010Image image;
+            while( ( image = reader.nextImage() ) != null ) {
+                adapter.setImage( image );
+                int pixelCount = adapter.rows() * adapter.cols();
+                if( pixels.length != pixelCount ) {
+                    pixels = new byte[ pixelCount ];
+                    window = new byte[ pixelCount + MAX_GAP_BYTES ];
+                }
+                adapter.pixelsInto( pixels );
+                int windowLength = (int)Math.max( 0 , Math.min( window.length , logLength - searchStart ) );
+                log.seek( searchStart );
+                log.readFully( window , 0 , windowLength );
+                int position = find( window , windowLength , pixels , pixelCount );
+                if( position < 0 ) {
+                    throw new IOException( "Frame " + entries.size() + " can not be located in " + logPath + "." );
+                }
+                entries.add( new long[]{ searchStart + position , adapter.rows() , adapter.cols() } );
+                searchStart += position + pixelCount;
+            }
+        }
+        // Write the header and the index.
+        int frameCount = entries.size();
+        long period = Math.round( 1.0e9 / fps );
+        try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( indexFile ) ) ) ) {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeLong( logLength );
+            out.writeInt( frameCount );
+            for( int k=0; k<frameCount; k++ ) {
+                long[] entry = entries.get( k );
+                out.writeLong( k * period );
+                out.writeLong( entry[0] );
+                out.writeShort( (int)entry[1] );
+                out.writeShort( (int)entry[2] );
+            }
+        } catch( IOException e ) {
+            indexFile.delete();
+            throw e;
+        }
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * {@inheritDoc}
+     */
+    public int frameCount()
+    {
+        return this.timestamps.length;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public int rows( int k )
+    {
+        return this.rows[k];
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public int cols( int k )
+    {
+        return this.cols[k];
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public long timestamp( int k )
+    {
+        return this.timestamps[k];
+    }
+    
+    
+    /**
+     * Returns the raw pixel values of a frame, in row-major order, without copying them.
+     * <p>
+     * The returned buffer is a read-only view of the mapped log, positioned at the first pixel and limited to the last one.
+     * 
+     * @param k     index of the frame.
+     * @return  raw pixel values of the frame.
+     */
+    public ByteBuffer frame( int k )
+    {
+        MappedByteBuffer segment = this.segments.get( this.frameSegments[k] );
+        ByteBuffer view = segment.asReadOnlyBuffer();
+        int start = (int)( this.offsets[k] - this.segmentOffsets[ this.frameSegments[k] ] );
+        view.position( start );
+        view.limit( start + this.frameBytes( k ) );
+        return view;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public byte[] frameInto( int k , byte[] out )
+    {
+        this.frame( k ).get( out , 0 , this.frameBytes( k ) );
+        return out;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public int frameAt( long timestamp )
+    {
+        int low = 0;
+        int high = this.timestamps.length - 1;
+        if( high < 0 ) {
+            return -1;
+        }
+        while( low < high ) {
+            int middle = ( low + high + 1 ) >>> 1;
+            if( this.timestamps[middle] <= timestamp ) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Buffers returned by {@link #frame(int)} must not be used afterwards.
+     */
+    public void close()
+    {
+        try {
+            this.channel.close();
+        } catch( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns the number of bytes of a frame.
+     * 
+     * @param k     index of the frame.
+     * @return  number of bytes of the frame.
+     */
+    private int frameBytes( int k )
+    {
+        return ( this.rows[k] * this.cols[k] );
+    }
+    
+    
+    /**
+     * Maps the log in segments of at most {@link #SEGMENT_BYTES} bytes that do not split any frame.
+     * 
+     * @throws IOException  if the log can not be mapped.
+     */
+    private void mapSegments() throws IOException
+    {
+        int frameCount = this.timestamps.length;
+        this.segments = new ArrayList<MappedByteBuffer>();
+        List<Long> segmentStarts = new ArrayList<Long>();
+        this.frameSegments = new int[ frameCount ];
+        long segmentStart = -1;
+        long segmentEnd = -1;
+        for( int k=0; k<frameCount; k++ ) {
+            long frameEnd = this.offsets[k] + this.frameBytes( k );
+            if(  segmentStart < 0  ||  frameEnd - segmentStart > SEGMENT_BYTES  ) {
+                if( segmentStart >= 0 ) {
+                    this.segments.add( this.channel.map( FileChannel.MapMode.READ_ONLY , segmentStart , segmentEnd - segmentStart ) );
+                    segmentStarts.add( segmentStart );
+                }
+                segmentStart = this.offsets[k];
+            }
+            segmentEnd = frameEnd;
+            this.frameSegments[k] = this.segments.size();
+        }
+        if( segmentStart >= 0 ) {
+            this.segments.add( this.channel.map( FileChannel.MapMode.READ_ONLY , segmentStart , segmentEnd - segmentStart ) );
+            segmentStarts.add( segmentStart );
+        }
+        this.segmentOffsets = new long[ segmentStarts.size() ];
+        for( int s=0; s<this.segmentOffsets.length; s++ ) {
+            this.segmentOffsets[s] = segmentStarts.get( s );
+        }
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Finds the first occurrence of a sequence of bytes.
+     * 
+     * @param data          bytes where the sequence is searched.
+     * @param dataLength    number of bytes of {@code data} that are searched.
+     * @param pattern       sequence of bytes to be found.
+     * @param patternLength number of bytes of the sequence.
+     * @return  position of the first occurrence of the sequence in {@code data}, or -1 if it does not occur.
+     */
+    private static int find( byte[] data , int dataLength , byte[] pattern , int patternLength )
+    {
+        for( int p=0; p+patternLength<=dataLength; p++ ) {
+            int k = 0;
+            while(  k < patternLength  &&  data[p+k] == pattern[k]  ) {
+                k++;
+            }
+            if( k == patternLength ) {
+                return p;
+            }
+        }
+        return -1;
+    }
+    
+}
@@ -0,0 +1,202 @@
+package util;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+
+/**
+ * Lock-free histogram of latencies with a fixed set of buckets, which any number of threads can record into concurrently.
+ * <p>
+ * Latencies are counted in microseconds, in buckets with a relative width of at most 1/8:
+ * latencies below 8 us have a bucket each, and each power of two above is split in 8 buckets of the same width.
+ * Latencies of more than 2^36 us are counted in the last bucket.
+ * <p>
+ * Recording a latency only increments a bucket and updates the maximum with atomic operations; it never blocks nor allocates memory.
+ * The counts are cumulative: percentiles over an interval are computed from the difference of two snapshots (see {@link #snapshotInto(long[])}),
+ * so that recording threads never need to be stopped to reset the histogram.
+ */
+public class LatencyHistogram
+{
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Number of buckets.
+     */
+    public static final int BUCKETS = 272;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Number of bits of the buckets within each power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+    
+    /**
+     * Number of buckets within each power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    
+    /**
+     * Largest latency in microseconds that is not counted in the last bucket.
+     */
+    private static final long MAX_MICROSECONDS = ( 1L << 36 ) - 1;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Number of latencies recorded in each bucket.
+     */
+    private AtomicLongArray counts;
+    
+    /**
+     * Largest latency in nanoseconds recorded since the last call to {@link #takeMax()}.
+     */
+    private AtomicLong max;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs an empty {@link LatencyHistogram}.
+     */
+    public LatencyHistogram()
+    {
+        this.counts = new AtomicLongArray( BUCKETS );
+        this.max = new AtomicLong();
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Records a latency.
+     * 
+     * @param nanoseconds   latency in nanoseconds; negative latencies are recorded as 0.
+     */
+    public void record( long nanoseconds )
+    {
+        this.counts.incrementAndGet( bucket( nanoseconds ) );
+        long current = this.max.get();
+        while(  nanoseconds > current  &&  !this.max.compareAndSet( current , nanoseconds )  ) {
+            current = this.max.get();
+        }
+    }
+    
+    
+    /**
+     * Copies the number of latencies recorded so far in each bucket.
+     * <p>
+     * Buckets are read one by one while other threads may be recording, so the snapshot is only approximately consistent.
+     * 
+     * @param snapshot  array where the counts are written; its length must be at least {@link #BUCKETS}.
+     * @return  number of latencies in the snapshot.
+     */
+    public long snapshotInto( long[] snapshot )
+    {
+        long total = 0;
+        for( int b=0; b<BUCKETS; b++ ) {
+            snapshot[b] = this.counts.get( b );
+            total += snapshot[b];
+        }
+        return total;
+    }
+    
+    
+    /**
+     * Returns the largest latency recorded since the last call, and starts tracking a new maximum.
+     * 
+     * @return  largest latency in nanoseconds recorded since the last call, or 0 if none was recorded.
+     */
+    public long takeMax()
+    {
+        return this.max.getAndSet( 0 );
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns the percentile of the latencies counted in the difference of two snapshots.
+     * 
+     * @param current   counts of the later snapshot.
+     * @param previous  counts of the earlier snapshot, or null to use the counts of {@code current} alone.
+     * @param p     percentile in [0,1].
+     * @return  upper bound in nanoseconds of the bucket of the smallest latency greater or equal than a fraction {@code p} of the latencies,
+     *          or 0 if no latency was counted.
+     */
+    public static long percentile( long[] current , long[] previous , double p )
+    {
+        long total = 0;
+        for( int b=0; b<BUCKETS; b++ ) {
+            total += current[b] - ( ( previous != null )? previous[b] : 0 );
+        }
+        if( total <= 0 ) {
+            return 0;
+        }
+        long rank = Math.max( 1 , (long)Math.ceil( p * total ) );
+        long cumulative = 0;
+        for( int b=0; b<BUCKETS; b++ ) {
+            cumulative += current[b] - ( ( previous != null )? previous[b] : 0 );
+            if( cumulative >= rank ) {
+                return bucketUpperBound( b );
+            }
+        }
+        return bucketUpperBound( BUCKETS-1 );
+    }
+    
+    
+    /**
+     * Returns the bucket where a latency is counted.
+     * 
+     * @param nanoseconds   latency in nanoseconds.
+     * @return  index of the bucket.
+     */
+    public static int bucket( long nanoseconds )
+    {
+        long microseconds = Math.min( Math.max( nanoseconds , 0 ) / 1000 , MAX_MICROSECONDS );
+        if( microseconds < SUB_BUCKETS ) {
+            return (int)microseconds;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros( microseconds );
+        return ( exponent - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS + (int)( ( microseconds >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKETS-1 ) );
+    }
+    
+    
+    /**
+     * Returns the smallest latency that is counted in the bucket after a given one.
+     * 
+     * @param bucket    index of the bucket.
+     * @return  upper bound of the bucket in nanoseconds, excluded from it.
+     */
+    public static long bucketUpperBound( int bucket )
+    {
+        if( bucket < SUB_BUCKETS ) {
+            return ( bucket + 1 ) * 1000L;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long mantissa = SUB_BUCKETS + bucket % SUB_BUCKETS + 1;
+        return ( mantissa << shift ) * 1000L;
+    }
+    
+}
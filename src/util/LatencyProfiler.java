@@ -0,0 +1,567 @@
+package util;
+
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import processing.core.PApplet;
+import processing.core.PConstants;
+
+
+
+/**
+ * Measures the latency of the stages that a frame goes through, from its arrival to its drawing, and the frame rates.
+ * <p>
+ * The measured stages are:
+ * <ul>
+ *  <li> {@link #STAGE_ENQUEUE}: time waiting in a queue, from the arrival of the frame until it is taken to be processed.
+ *  <li> {@link #STAGE_CONSUME}: whole processing of the frame by its consumer.
+ *  <li> {@link #STAGE_PROJECTION}: projection of the depths to points, or their decoding.
+ *  <li> {@link #STAGE_MESH}: update of the mesh, or colorization of the image.
+ *  <li> {@link #STAGE_UPLOAD}: update of the data drawn by the animation thread, which is uploaded to the GPU.
+ *  <li> {@link #STAGE_DRAW}: whole "draw" of the sketch.
+ *  <li> {@link #STAGE_END_TO_END}: from the arrival of a frame until the end of the first "draw" that shows it.
+ * </ul>
+ * Each stage has a {@link LatencyHistogram}, so any thread can record latencies without locks nor memory allocation;
+ * recording a latency costs a couple of atomic operations, so the profiler can be always on.
+ * <p>
+ * Statistics are computed once per period in the animation thread (see {@link #frameDrawn(long)}):
+ * the median, the 99th percentile and the maximum latency of each stage over the period, and the frame rates of rendering and acquisition.
+ * They can be drawn over the sketch with {@link #drawOverlay(PApplet)}, and appended to a CSV file (see {@link #setCsvExport(String)}).
+ */
+public class LatencyProfiler
+{
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Stage from the arrival of a frame until it is taken to be processed.
+     */
+    public static final int STAGE_ENQUEUE = 0;
+    
+    /**
+     * Stage of the whole processing of a frame by its consumer.
+     */
+    public static final int STAGE_CONSUME = 1;
+    
+    /**
+     * Stage of projection of the depths to points, or their decoding.
+     */
+    public static final int STAGE_PROJECTION = 2;
+    
+    /**
+     * Stage of update of the mesh, or colorization of the image.
+     */
+    public static final int STAGE_MESH = 3;
+    
+    /**
+     * Stage of update of the data drawn by the animation thread.
+     */
+    public static final int STAGE_UPLOAD = 4;
+    
+    /**
+     * Stage of the whole "draw" of the sketch.
+     */
+    public static final int STAGE_DRAW = 5;
+    
+    /**
+     * Stage from the arrival of a frame until the end of the first "draw" that shows it.
+     */
+    public static final int STAGE_END_TO_END = 6;
+    
+    /**
+     * Number of stages.
+     */
+    public static final int STAGES = 7;
+    
+    /**
+     * Default period in seconds over which the statistics are computed.
+     */
+    public static final double DEFAULT_PERIOD = 1.0;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Names of the stages.
+     */
+    private static final String[] STAGE_NAMES = { "enqueue" , "consume" , "projection" , "mesh/colorize" , "upload" , "draw" , "end-to-end" };
+    
+    /**
+     * Size of the text of the overlay.
+     */
+    private static final float OVERLAY_TEXT_SIZE = 14.0f;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Histogram of each stage.
+     */
+    private LatencyHistogram[] histograms;
+    
+    /**
+     * Period in nanoseconds over which the statistics are computed.
+     */
+    private long period;
+    
+    /**
+     * Number of frames received so far.
+     */
+    private AtomicLong received;
+    
+    /**
+     * Number of frames drawn so far; only accessed by the animation thread.
+     */
+    private long drawn;
+    
+    /**
+     * Time at which the current period started.
+     */
+    private long periodStart;
+    
+    /**
+     * Time at which the profiler was created.
+     */
+    private long creation;
+    
+    /**
+     * {@link #received} at the start of the current period.
+     */
+    private long periodReceived;
+    
+    /**
+     * {@link #drawn} at the start of the current period.
+     */
+    private long periodDrawn;
+    
+    /**
+     * Snapshot of the histogram of each stage at the start of the current period.
+     */
+    private long[][] periodCounts;
+    
+    /**
+     * Number of latencies of each stage recorded before the start of the current period.
+     */
+    private long[] periodTotals;
+    
+    /**
+     * Arrays where the histogram of each stage is copied at the end of the current period.
+     */
+    private long[][] snapshots;
+    
+    /**
+     * Number of latencies of each stage in the last period.
+     */
+    private long[] counts;
+    
+    /**
+     * Median latency in nanoseconds of each stage in the last period.
+     */
+    private long[] medians;
+    
+    /**
+     * 99th percentile of the latency in nanoseconds of each stage in the last period.
+     */
+    private long[] percentiles99;
+    
+    /**
+     * Maximum latency in nanoseconds of each stage in the last period.
+     */
+    private long[] maxima;
+    
+    /**
+     * Frames drawn per second in the last period.
+     */
+    private double renderFps;
+    
+    /**
+     * Frames received per second in the last period.
+     */
+    private double acquireFps;
+    
+    /**
+     * Lines of text of the overlay, built once per period.
+     */
+    private String[] overlayLines;
+    
+    /**
+     * Writer of the CSV file, or null if the statistics are not exported.
+     */
+    private PrintWriter csv;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link LatencyProfiler} whose statistics are computed every {@link #DEFAULT_PERIOD} seconds.
+     */
+    public LatencyProfiler()
+    {
+        this( DEFAULT_PERIOD );
+    }
+    
+    
+    /**
+     * Constructs a {@link LatencyProfiler}.
+     * 
+     * @param periodSeconds     period in seconds over which the statistics are computed.
+     */
+    public LatencyProfiler( double periodSeconds )
+    {
+        if( !( periodSeconds > 0.0 ) ) {
+            throw new IllegalArgumentException( "The period must be positive." );
+        }
+        this.period = (long)( periodSeconds * 1.0e9 );
+        this.histograms = new LatencyHistogram[ STAGES ];
+        this.periodCounts = new long[ STAGES ][ LatencyHistogram.BUCKETS ];
+        this.periodTotals = new long[ STAGES ];
+        this.snapshots = new long[ STAGES ][ LatencyHistogram.BUCKETS ];
+        for( int s=0; s<STAGES; s++ ) {
+            this.histograms[s] = new LatencyHistogram();
+        }
+        this.counts = new long[ STAGES ];
+        this.medians = new long[ STAGES ];
+        this.percentiles99 = new long[ STAGES ];
+        this.maxima = new long[ STAGES ];
+        this.received = new AtomicLong();
+        this.creation = System.nanoTime();
+        this.periodStart = this.creation;
+        this.overlayLines = this.buildOverlayLines();
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Counts a received frame, for the acquisition frame rate.
+     * <p>
+     * Can be called from any thread.
+     */
+    public void frameReceived()
+    {
+        this.received.incrementAndGet();
+    }
+    
+    
+    /**
+     * Records the latency of a stage that started at a given time and ends now.
+     * <p>
+     * Can be called from any thread.
+     * 
+     * @param stage     index of the stage.
+     * @param start     time at which the stage started, as given by {@link System#nanoTime()}.
+     * @return  current time, as given by {@link System#nanoTime()}, so that it can be used as the start of the next stage.
+     */
+    public long record( int stage , long start )
+    {
+        long now = System.nanoTime();
+        this.histograms[stage].record( now - start );
+        return now;
+    }
+    
+    
+    /**
+     * Records the latency of a stage.
+     * <p>
+     * Can be called from any thread.
+     * 
+     * @param stage     index of the stage.
+     * @param nanoseconds   latency in nanoseconds.
+     */
+    public void recordDuration( int stage , long nanoseconds )
+    {
+        this.histograms[stage].record( nanoseconds );
+    }
+    
+    
+    /**
+     * Records the end of a "draw" of the sketch, and computes the statistics if the period is over.
+     * <p>
+     * Must be called from the animation thread, at the end of "draw".
+     * 
+     * @param drawStart     time at which "draw" started, as given by {@link System#nanoTime()}.
+     */
+    public void frameDrawn( long drawStart )
+    {
+        long now = this.record( STAGE_DRAW , drawStart );
+        this.drawn++;
+        if( now - this.periodStart >= this.period ) {
+            this.endPeriod( now );
+        }
+    }
+    
+    
+    /**
+     * Draws the statistics of the last period over the sketch, in its top-left corner.
+     * <p>
+     * Must be called from the animation thread, preferably at the end of "draw".
+     * The style, the transformations and the camera of the sketch are restored; lights are turned off.
+     * 
+     * @param sketch    {@link PApplet} where the statistics are drawn.
+     */
+    public void drawOverlay( PApplet sketch )
+    {
+        String[] lines = this.overlayLines;
+        boolean is3D = sketch.g.is3D();
+        sketch.pushStyle();
+        sketch.pushMatrix();
+        if( is3D ) {
+            sketch.hint( PConstants.DISABLE_DEPTH_TEST );
+            sketch.camera();
+            sketch.noLights();
+        } else {
+            sketch.resetMatrix();
+        }
+        float lineHeight = 1.25f * OVERLAY_TEXT_SIZE;
+        sketch.noStroke();
+        sketch.fill( 0 , 160 );
+        sketch.rect( 0 , 0 , 36 * OVERLAY_TEXT_SIZE , ( lines.length + 0.5f ) * lineHeight );
+        sketch.fill( 255 );
+        sketch.textSize( OVERLAY_TEXT_SIZE );
+        sketch.textAlign( PConstants.LEFT , PConstants.TOP );
+        for( int l=0; l<lines.length; l++ ) {
+            sketch.text( lines[l] , 0.5f * OVERLAY_TEXT_SIZE , ( l + 0.25f ) * lineHeight );
+        }
+        if( is3D ) {
+            sketch.hint( PConstants.ENABLE_DEPTH_TEST );
+        }
+        sketch.popMatrix();
+        sketch.popStyle();
+    }
+    
+    
+    /**
+     * Starts appending the statistics of every period to a CSV file, or stops it.
+     * <p>
+     * The file is overwritten, and starts with a header line; numbers are written with a dot as decimal separator whatever the locale.
+     * Each line holds the time in seconds since the creation of the profiler, the frame rates,
+     * and the count, the median, the 99th percentile and the maximum latency in milliseconds of each stage.
+     * 
+     * @param path  path to the CSV file, or null to stop exporting the statistics.
+     */
+    public synchronized void setCsvExport( String path )
+    {
+        this.close();
+        if( path == null ) {
+            return;
+        }
+        try {
+            this.csv = new PrintWriter( new BufferedWriter( new FileWriter( path ) ) );
+        } catch( IOException e ) {
+            e.printStackTrace();
+            return;
+        }
+        StringBuilder header = new StringBuilder( "time_s,render_fps,acquire_fps" );
+        for( int s=0; s<STAGES; s++ ) {
+            header.append( ',' ).append( STAGE_NAMES[s] ).append( "_count" );
+            header.append( ',' ).append( STAGE_NAMES[s] ).append( "_p50_ms" );
+            header.append( ',' ).append( STAGE_NAMES[s] ).append( "_p99_ms" );
+            header.append( ',' ).append( STAGE_NAMES[s] ).append( "_max_ms" );
+        }
+        this.csv.println( header );
+        this.csv.flush();
+    }
+    
+    
+    /**
+     * Closes the CSV file, if any.
+     */
+    public synchronized void close()
+    {
+        if( this.csv != null ) {
+            this.csv.close();
+            this.csv = null;
+        }
+    }
+    
+    
+    /**
+     * Returns the number of latencies of a stage recorded in the last period.
+     * 
+     * @param stage     index of the stage.
+     * @return  number of latencies recorded in the last period.
+     */
+    public long count( int stage )
+    {
+        return this.counts[stage];
+    }
+    
+    
+    /**
+     * Returns the median latency of a stage in the last period.
+     * <p>
+     * Like every percentile, it is the upper bound of a bucket of {@link LatencyHistogram}, so it exceeds the actual value by at most 1/8.
+     * 
+     * @param stage     index of the stage.
+     * @return  median latency in nanoseconds, or 0 if no latency was recorded.
+     */
+    public long median( int stage )
+    {
+        return this.medians[stage];
+    }
+    
+    
+    /**
+     * Returns the 99th percentile of the latency of a stage in the last period.
+     * 
+     * @param stage     index of the stage.
+     * @return  99th percentile of the latency in nanoseconds, or 0 if no latency was recorded.
+     */
+    public long percentile99( int stage )
+    {
+        return this.percentiles99[stage];
+    }
+    
+    
+    /**
+     * Returns the maximum latency of a stage in the last period.
+     * 
+     * @param stage     index of the stage.
+     * @return  maximum latency in nanoseconds, or 0 if no latency was recorded.
+     */
+    public long max( int stage )
+    {
+        return this.maxima[stage];
+    }
+    
+    
+    /**
+     * Returns the number of frames drawn per second in the last period.
+     * 
+     * @return  frames drawn per second.
+     */
+    public double renderFps()
+    {
+        return this.renderFps;
+    }
+    
+    
+    /**
+     * Returns the number of frames received per second in the last period.
+     * 
+     * @return  frames received per second.
+     */
+    public double acquireFps()
+    {
+        return this.acquireFps;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns the name of a stage.
+     * 
+     * @param stage     index of the stage.
+     * @return  name of the stage.
+     */
+    public static String stageName( int stage )
+    {
+        return STAGE_NAMES[stage];
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Computes the statistics of the period that ends now, exports them, and starts a new period.
+     * 
+     * @param now   current time, as given by {@link System#nanoTime()}.
+     */
+    private void endPeriod( long now )
+    {
+        double seconds = ( now - this.periodStart ) * 1.0e-9;
+        long receivedNow = this.received.get();
+        this.renderFps = ( this.drawn - this.periodDrawn ) / seconds;
+        this.acquireFps = ( receivedNow - this.periodReceived ) / seconds;
+        this.periodDrawn = this.drawn;
+        this.periodReceived = receivedNow;
+        this.periodStart = now;
+        for( int s=0; s<STAGES; s++ ) {
+            long[] snapshot = this.snapshots[s];
+            long[] previous = this.periodCounts[s];
+            long total = this.histograms[s].snapshotInto( snapshot );
+            this.counts[s] = total - this.periodTotals[s];
+            this.medians[s] = LatencyHistogram.percentile( snapshot , previous , 0.5 );
+            this.percentiles99[s] = LatencyHistogram.percentile( snapshot , previous , 0.99 );
+            this.maxima[s] = this.histograms[s].takeMax();
+            // Percentiles are upper bounds of buckets, so they are bounded by the maximum when it is known.
+            if( this.maxima[s] > 0 ) {
+                this.medians[s] = Math.min( this.medians[s] , this.maxima[s] );
+                this.percentiles99[s] = Math.min( this.percentiles99[s] , this.maxima[s] );
+            }
+            // The snapshot just taken is the start of the next period.
+            this.snapshots[s] = previous;
+            this.periodCounts[s] = snapshot;
+            this.periodTotals[s] = total;
+        }
+        this.overlayLines = this.buildOverlayLines();
+        this.export( now );
+    }
+    
+    
+    /**
+     * Appends the statistics of the last period to the CSV file, if any.
+     * 
+     * @param now   current time, as given by {@link System#nanoTime()}.
+     */
+    private synchronized void export( long now )
+    {
+        if( this.csv == null ) {
+            return;
+        }
+        StringBuilder line = new StringBuilder();
+        line.append( String.format( Locale.ROOT , "%.3f,%.2f,%.2f" , ( now - this.creation ) * 1.0e-9 , this.renderFps , this.acquireFps ) );
+        for( int s=0; s<STAGES; s++ ) {
+            line.append( String.format( Locale.ROOT , ",%d,%.3f,%.3f,%.3f" , this.counts[s] , this.medians[s] * 1.0e-6 , this.percentiles99[s] * 1.0e-6 , this.maxima[s] * 1.0e-6 ) );
+        }
+        this.csv.println( line );
+        this.csv.flush();
+    }
+    
+    
+    /**
+     * Builds the lines of text of the overlay with the statistics of the last period.
+     * 
+     * @return  lines of text of the overlay.
+     */
+    private String[] buildOverlayLines()
+    {
+        String[] lines = new String[ STAGES + 2 ];
+        lines[0] = String.format( "render %.1f fps   acquire %.1f fps" , this.renderFps , this.acquireFps );
+        lines[1] = String.format( "%-14s%9s%9s%9s" , "stage (ms)" , "p50" , "p99" , "max" );
+        for( int s=0; s<STAGES; s++ ) {
+            if( this.counts[s] == 0 ) {
+                lines[ s+2 ] = String.format( "%-14s%9s%9s%9s" , STAGE_NAMES[s] , "-" , "-" , "-" );
+            } else {
+                lines[ s+2 ] = String.format( "%-14s%9.2f%9.2f%9.2f" , STAGE_NAMES[s] , this.medians[s] * 1.0e-6 , this.percentiles99[s] * 1.0e-6 , this.maxima[s] * 1.0e-6 );
+            }
+        }
+        return lines;
+    }
+    
+}
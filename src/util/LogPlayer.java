@@ -0,0 +1,498 @@
+package util;
+
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+
+
+/**
+ * Plays the frames of a {@link FrameLog} in its own thread, delivering them to {@link DepthFrameConsumer}s.
+ * <p>
+ * Frames are paced by their recorded timestamps, or by a fixed frame rate if one is set, scaled by a speed multiplier.
+ * Playback can be paused, stepped frame by frame, and moved to any frame.
+ * <p>
+ * The drift between the intended and the actual delivery time of every frame is measured,
+ * so that the accuracy of the pacing can be reported.
+ */
+public class LogPlayer
+{
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Minimum speed multiplier.
+     */
+    public static final double MIN_SPEED = 0.25;
+    
+    /**
+     * Speed multiplier that delivers the frames as fast as possible.
+     */
+    public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Time in nanoseconds before the delivery of a frame below which the player thread parks instead of waiting on the monitor,
+     * whose timeouts have millisecond resolution.
+     */
+    private static final long PARK_THRESHOLD = 2000000;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Log being played.
+     */
+    private FrameLog log;
+    
+    /**
+     * Consumers to which the frames are delivered.
+     */
+    private List<DepthFrameConsumer> consumers;
+    
+    /**
+     * Raw pixel values of the frame being delivered.
+     */
+    private byte[] pixels;
+    
+    /**
+     * Thread that delivers the frames.
+     */
+    private Thread thread;
+    
+    /**
+     * True while the player thread must keep running.
+     */
+    private boolean running;
+    
+    /**
+     * True if playback is paused.
+     */
+    private boolean paused;
+    
+    /**
+     * Number of frames to be delivered while paused.
+     */
+    private int pendingSteps;
+    
+    /**
+     * Index of the next frame to be delivered.
+     */
+    private int nextFrame;
+    
+    /**
+     * Index of the last delivered frame, or -1 if none has been delivered.
+     */
+    private volatile int currentFrame;
+    
+    /**
+     * Speed multiplier.
+     */
+    private double speed;
+    
+    /**
+     * Frame rate used to pace the frames, or 0 to pace them by their recorded timestamps.
+     */
+    private double fps;
+    
+    /**
+     * True if the timeline must be anchored again at the next frame, after a pause, a seek, or a change of speed.
+     */
+    private boolean rebase;
+    
+    /**
+     * Frame at which the timeline is anchored.
+     */
+    private int anchorFrame;
+    
+    /**
+     * Time in nanoseconds, as given by {@link System#nanoTime()}, at which {@link #anchorFrame} was delivered.
+     */
+    private long anchorTime;
+    
+    /**
+     * Drift in nanoseconds of the last paced frame.
+     */
+    private long lastDrift;
+    
+    /**
+     * Maximum drift in nanoseconds since the statistics were reset.
+     */
+    private long maxDrift;
+    
+    /**
+     * Sum of the drifts in nanoseconds since the statistics were reset.
+     */
+    private double driftSum;
+    
+    /**
+     * Number of drifts accumulated in {@link #driftSum}.
+     */
+    private long driftCount;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link LogPlayer}.
+     * <p>
+     * Playback starts at the first frame, at the recorded pace, when {@link #start()} is called.
+     * 
+     * @param frameLog  log to be played.
+     */
+    public LogPlayer( FrameLog frameLog )
+    {
+        this.log = frameLog;
+        this.consumers = new CopyOnWriteArrayList<DepthFrameConsumer>();
+        this.pixels = new byte[0];
+        this.currentFrame = -1;
+        this.speed = 1.0;
+        this.fps = 0.0;
+        this.rebase = true;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Adds a consumer to which the frames are delivered.
+     * <p>
+     * Consumers are called from the player thread.
+     * 
+     * @param consumer  consumer to be added.
+     */
+    public void addListener( DepthFrameConsumer consumer )
+    {
+        this.consumers.add( consumer );
+    }
+    
+    
+    /**
+     * Starts the player thread.
+     */
+    public synchronized void start()
+    {
+        if( this.thread != null ) {
+            throw new IllegalStateException( "The player has already been started." );
+        }
+        this.running = true;
+        this.thread = new Thread( this::play , "LogPlayer" );
+        this.thread.setDaemon( true );
+        this.thread.start();
+    }
+    
+    
+    /**
+     * Stops the player thread and waits for it to finish.
+     */
+    public void stop()
+    {
+        Thread playerThread;
+        synchronized( this ) {
+            this.running = false;
+            this.notifyAll();
+            playerThread = this.thread;
+        }
+        if( playerThread != null ) {
+            try {
+                playerThread.join();
+            } catch( InterruptedException e ) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    
+    /**
+     * Pauses playback.
+     */
+    public synchronized void pause()
+    {
+        this.paused = true;
+        this.notifyAll();
+    }
+    
+    
+    /**
+     * Resumes playback from the next frame.
+     */
+    public synchronized void resume()
+    {
+        this.paused = false;
+        this.pendingSteps = 0;
+        this.rebase = true;
+        this.notifyAll();
+    }
+    
+    
+    /**
+     * Returns true if playback is paused.
+     * 
+     * @return  true if playback is paused; false otherwise.
+     */
+    public synchronized boolean isPaused()
+    {
+        return this.paused;
+    }
+    
+    
+    /**
+     * Delivers the next frame while paused.
+     * <p>
+     * It has no effect if playback is not paused.
+     */
+    public synchronized void step()
+    {
+        if( this.paused ) {
+            this.pendingSteps++;
+            this.notifyAll();
+        }
+    }
+    
+    
+    /**
+     * Moves playback to a frame.
+     * <p>
+     * If playback is paused, the frame is delivered immediately.
+     * 
+     * @param k     index of the frame; it is clamped to the frames of the log.
+     */
+    public synchronized void seek( int k )
+    {
+        this.nextFrame = Math.max( 0 , Math.min( this.log.frameCount() - 1 , k ) );
+        this.pendingSteps = ( this.paused )? 1 : 0;
+        this.rebase = true;
+        this.notifyAll();
+    }
+    
+    
+    /**
+     * Sets the speed multiplier.
+     * 
+     * @param multiplier    speed multiplier; it is clamped to {@link #MIN_SPEED}, and {@link #MAX_SPEED} delivers the frames as fast as possible.
+     */
+    public synchronized void setSpeed( double multiplier )
+    {
+        this.speed = Math.max( MIN_SPEED , multiplier );
+        this.rebase = true;
+        this.notifyAll();
+    }
+    
+    
+    /**
+     * Returns the speed multiplier.
+     * 
+     * @return  speed multiplier.
+     */
+    public synchronized double getSpeed()
+    {
+        return this.speed;
+    }
+    
+    
+    /**
+     * Sets a fixed frame rate used to pace the frames instead of their recorded timestamps.
+     * 
+     * @param framesPerSecond   frame rate in Hz, or 0 to pace the frames by their recorded timestamps.
+     */
+    public synchronized void setFps( double framesPerSecond )
+    {
+        if( framesPerSecond < 0.0 ) {
+            throw new IllegalArgumentException( "The frame rate can not be negative." );
+        }
+        this.fps = framesPerSecond;
+        this.rebase = true;
+        this.notifyAll();
+    }
+    
+    
+    /**
+     * Returns the index of the last delivered frame.
+     * 
+     * @return  index of the last delivered frame, or -1 if none has been delivered.
+     */
+    public int currentFrame()
+    {
+        return this.currentFrame;
+    }
+    
+    
+    /**
+     * Returns the drift between the intended and the actual delivery time of the last paced frame.
+     * 
+     * @return  drift in nanoseconds; positive if the frame was delivered late.
+     */
+    public synchronized long lastDriftNanos()
+    {
+        return this.lastDrift;
+    }
+    
+    
+    /**
+     * Returns the maximum drift since the drift statistics were reset.
+     * 
+     * @return  maximum drift in nanoseconds.
+     */
+    public synchronized long maxDriftNanos()
+    {
+        return this.maxDrift;
+    }
+    
+    
+    /**
+     * Returns the mean drift since the drift statistics were reset.
+     * 
+     * @return  mean drift in nanoseconds, or 0 if no frame has been paced.
+     */
+    public synchronized double meanDriftNanos()
+    {
+        return ( this.driftCount > 0 )? this.driftSum / this.driftCount : 0.0;
+    }
+    
+    
+    /**
+     * Resets the drift statistics.
+     */
+    public synchronized void resetDriftStatistics()
+    {
+        this.lastDrift = 0;
+        this.maxDrift = 0;
+        this.driftSum = 0.0;
+        this.driftCount = 0;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Delivers the frames until {@link #stop()} is called.
+     */
+    private void play()
+    {
+        while( true ) {
+            int k;
+            long park = 0;
+            synchronized( this ) {
+                // Wait until there is a frame to be delivered,
+                while(  this.running  &&  ( ( this.paused  &&  this.pendingSteps == 0 )  ||  this.nextFrame >= this.log.frameCount() )  ) {
+                    try {
+                        this.wait();
+                    } catch( InterruptedException e ) {
+                        return;
+                    }
+                }
+                if( !this.running ) {
+                    return;
+                }
+                k = this.nextFrame;
+                if( this.paused ) {
+                    // Steps are delivered immediately.
+                    this.pendingSteps--;
+                    this.rebase = true;
+                    this.nextFrame = k + 1;
+                } else if( this.speed != MAX_SPEED ) {
+                    // and wait until its time, unless the state changes meanwhile.
+                    long now = System.nanoTime();
+                    if( this.rebase ) {
+                        this.anchorFrame = k;
+                        this.anchorTime = now;
+                        this.rebase = false;
+                    }
+                    long intended = this.anchorTime + (long)( ( this.frameTime( k ) - this.frameTime( this.anchorFrame ) ) / this.speed );
+                    long remaining = intended - now;
+                    if( remaining > PARK_THRESHOLD ) {
+                        try {
+                            this.wait( ( remaining - PARK_THRESHOLD/2 ) / 1000000 );
+                        } catch( InterruptedException e ) {
+                            return;
+                        }
+                        continue;
+                    } else if( remaining > 0 ) {
+                        park = remaining;
+                    } else {
+                        this.recordDrift( -remaining );
+                        this.nextFrame = k + 1;
+                    }
+                } else {
+                    this.nextFrame = k + 1;
+                }
+            }
+            // The last moments before the delivery are spent parked, which is more accurate than waiting on the monitor.
+            if( park > 0 ) {
+                LockSupport.parkNanos( park );
+                continue;
+            }
+            this.deliver( k );
+        }
+    }
+    
+    
+    /**
+     * Returns the time of a frame used to pace it.
+     * 
+     * @param k     index of the frame.
+     * @return  time of the frame in nanoseconds.
+     */
+    private long frameTime( int k )
+    {
+        if( this.fps > 0.0 ) {
+            return (long)( k * 1.0e9 / this.fps );
+        }
+        return this.log.timestamp( k );
+    }
+    
+    
+    /**
+     * Accumulates the drift of a frame in the drift statistics.
+     * 
+     * @param drift     drift in nanoseconds.
+     */
+    private void recordDrift( long drift )
+    {
+        this.lastDrift = drift;
+        this.maxDrift = Math.max( this.maxDrift , drift );
+        this.driftSum += drift;
+        this.driftCount++;
+    }
+    
+    
+    /**
+     * Delivers a frame to every consumer.
+     * 
+     * @param k     index of the frame.
+     */
+    private void deliver( int k )
+    {
+        int rows = this.log.rows( k );
+        int cols = this.log.cols( k );
+        if( this.pixels.length != rows*cols ) {
+            this.pixels = new byte[ rows*cols ];
+        }
+        this.log.frameInto( k , this.pixels );
+        long timestamp = this.log.timestamp( k );
+        for( DepthFrameConsumer consumer : this.consumers ) {
+            consumer.consumeFrame( this.pixels , rows , cols , timestamp );
+        }
+        this.currentFrame = k;
+    }
+    
+}
@@ -0,0 +1,176 @@
+package util;
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+
+/**
+ * Specification of a MaixSense-A010 in a setup with multiple cameras: serial port, color, binning, and frame rate.
+ * <p>
+ * Specifications are read from a text file with a camera per line, given as whitespace-separated fields:
+ * <pre>
+ * # port          color    binning  fps
+ * /dev/ttyUSB0    00FF00   100      20
+ * /dev/ttyUSB2    0000FF   100      20
+ * </pre>
+ * The color is given in hexadecimal RGB, and the binning is the number of rows and columns of the image (100, 50, or 25).
+ * Empty lines and lines starting with '#' are ignored.
+ */
+public class MaixSenseA010CameraSpec
+{
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Serial port to which the camera is connected.
+     */
+    private String port;
+    
+    /**
+     * Color used to represent the data of the camera, in ARGB.
+     */
+    private int color;
+    
+    /**
+     * Number of rows and columns of the images.
+     */
+    private int binning;
+    
+    /**
+     * Frame rate in Hz.
+     */
+    private int fps;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link MaixSenseA010CameraSpec}.
+     * 
+     * @param serialPort    serial port to which the camera is connected.
+     * @param rgb   color used to represent the data of the camera, in RGB.
+     * @param imageSize     number of rows and columns of the images: 100, 50, or 25.
+     * @param framesPerSecond   frame rate in Hz.
+     */
+    public MaixSenseA010CameraSpec( String serialPort , int rgb , int imageSize , int framesPerSecond )
+    {
+        if(  imageSize != 100  &&  imageSize != 50  &&  imageSize != 25  ) {
+            throw new IllegalArgumentException( "The binning must be 100, 50, or 25; found " + imageSize + "." );
+        }
+        if( framesPerSecond < 1 ) {
+            throw new IllegalArgumentException( "The frame rate must be positive." );
+        }
+        this.port = serialPort;
+        this.color = 0xFF000000 | rgb;
+        this.binning = imageSize;
+        this.fps = framesPerSecond;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Reads the specifications of the cameras from a file.
+     * 
+     * @param path  path to the file.
+     * @return  specifications of the cameras, in the order in which they appear in the file.
+     * @throws IOException  if the file can not be read.
+     * @throws IllegalArgumentException     if a line is not a valid specification.
+     */
+    public static List<MaixSenseA010CameraSpec> readAll( String path ) throws IOException
+    {
+        List<MaixSenseA010CameraSpec> specs = new ArrayList<MaixSenseA010CameraSpec>();
+        try( BufferedReader reader = new BufferedReader( new FileReader( path ) ) ) {
+            String line;
+            int lineNumber = 0;
+            while( ( line = reader.readLine() ) != null ) {
+                lineNumber++;
+                line = line.trim();
+                if(  line.isEmpty()  ||  line.startsWith( "#" )  ) {
+                    continue;
+                }
+                String[] fields = line.split( "\\s+" );
+                if( fields.length != 4 ) {
+                    throw new IllegalArgumentException( path + ":" + lineNumber + ": expected port, color, binning, and fps." );
+                }
+                try {
+                    specs.add( new MaixSenseA010CameraSpec( fields[0] , Integer.parseInt( fields[1] , 16 ) , Integer.parseInt( fields[2] ) , Integer.parseInt( fields[3] ) ) );
+                } catch( IllegalArgumentException e ) {
+                    throw new IllegalArgumentException( path + ":" + lineNumber + ": " + e.getMessage() , e );
+                }
+            }
+        }
+        return specs;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns the serial port to which the camera is connected.
+     * 
+     * @return  serial port to which the camera is connected.
+     */
+    public String port()
+    {
+        return this.port;
+    }
+    
+    
+    /**
+     * Returns the color used to represent the data of the camera.
+     * 
+     * @return  color in ARGB.
+     */
+    public int color()
+    {
+        return this.color;
+    }
+    
+    
+    /**
+     * Returns the number of rows and columns of the images.
+     * 
+     * @return  number of rows and columns of the images: 100, 50, or 25.
+     */
+    public int binning()
+    {
+        return this.binning;
+    }
+    
+    
+    /**
+     * Returns the frame rate.
+     * 
+     * @return  frame rate in Hz.
+     */
+    public int fps()
+    {
+        return this.fps;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public String toString()
+    {
+        return String.format( "%s (%06X, %dx%d, %d fps)" , this.port , this.color & 0xFFFFFF , this.binning , this.binning , this.fps );
+    }
+    
+}
@@ -8,26 +8,186 @@ import sensorCalibrationLibrary.depthCameras.DepthImage;
 
 /**
  * Adapts a {@link MaixSenseA010Image} to a {@link DepthImage}.
+ * <p>
+ * The pixel values of the image are copied into a primitive array when the image is set, and every method reads them from it.
+ * Raw pixel values, such as those of synthetic or recorded frames, can also be adapted with {@link #setPixels(byte[], int, int)}.
  */
 public class MaixSenseA010DepthImageAdapter
     implements DepthImage
 {
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Number of quantization units supported by the MaixSense-A010 (from 0 to 9).
+     */
+    private static final int QUANTIZATION_UNITS = 10;
+    
+    /**
+     * Value of {@link #regionOfInterest} when every pixel is inside the region of interest.
+     */
+    private static final int REGION_OF_INTEREST_NONE = 0;
+    
+    /**
+     * Value of {@link #regionOfInterest} when the region of interest is a circle.
+     */
+    private static final int REGION_OF_INTEREST_CIRCLE = 1;
+    
+    /**
+     * Value of {@link #regionOfInterest} when the region of interest is a rectangle.
+     */
+    private static final int REGION_OF_INTEREST_RECTANGLE = 2;
+    
+    /**
+     * Depth in meters for each quantization unit (first index) and unsigned pixel value (second index).
+     * 
+     * @see #depth(int, int)
+     */
+    private static final double[][] DEPTH_TABLE = new double[ QUANTIZATION_UNITS ][ 256 ];
+    
+    /**
+     * Same as {@link #DEPTH_TABLE} but in single precision, used by {@link #depthsInto(float[])}.
+     */
+    private static final float[][] DEPTH_TABLE_FLOAT = new float[ QUANTIZATION_UNITS ][ 256 ];
+    
+    /**
+     * Depth in millimeters for each quantization unit (first index) and unsigned pixel value (second index).
+     * 
+     * @see #depthsMillimetersInto(short[])
+     */
+    private static final short[][] DEPTH_TABLE_MILLIMETERS = new short[ QUANTIZATION_UNITS ][ 256 ];
+    
+    static {
+        for( int unit=0; unit<QUANTIZATION_UNITS; unit++ ) {
+            for( int value=0; value<256; value++ ) {
+                double depthInMillimeters;
+                if( unit == 0 ) {
+                    double depthSqrt = value / 5.1;
+                    depthInMillimeters = depthSqrt * depthSqrt;
+                } else {
+                    depthInMillimeters = unit * value;
+                }
+                DEPTH_TABLE[unit][value] = depthInMillimeters * 1.0e-3;
+                DEPTH_TABLE_FLOAT[unit][value] = (float)( depthInMillimeters * 1.0e-3 );
+                DEPTH_TABLE_MILLIMETERS[unit][value] = (short)Math.round( depthInMillimeters );
+            }
+        }
+    }
+    
+    
+    
     ////////////////////////////////////////////////////////////////
     // PRIVATE VARIABLES
     ////////////////////////////////////////////////////////////////
     
     /**
-     * {@link MaixSenseA010Image} to be adapted to a {@link DepthImage}.
+     * {@link MaixSenseA010Image} to be adapted to a {@link DepthImage}, or null if raw pixel values are adapted.
      */
     private MaixSenseA010Image image;
     
+    /**
+     * Raw pixel values of the image in row-major order.
+     */
+    private byte[] pixels;
+    
+    /**
+     * Array owned by the adapter where the pixel values of {@link #image} are copied.
+     */
+    private byte[] imagePixels;
+    
+    /**
+     * Number of rows of the image.
+     */
+    private int rows;
+    
+    /**
+     * Number of columns of the image.
+     */
+    private int cols;
+    
     /**
      * Quantization unit used to compute the depth from a pixel value.
      * 
-     * @see #depth(byte)
+     * @see #depth(int, int)
      */
     private int quantizationUnit;
     
+    /**
+     * Row of {@link #DEPTH_TABLE} selected by {@link #quantizationUnit}.
+     */
+    private double[] depthTable;
+    
+    /**
+     * Row of {@link #DEPTH_TABLE_FLOAT} selected by {@link #quantizationUnit}.
+     */
+    private float[] depthTableFloat;
+    
+    /**
+     * Row of {@link #DEPTH_TABLE_MILLIMETERS} selected by {@link #quantizationUnit}.
+     */
+    private short[] depthTableMillimeters;
+    
+    /**
+     * Kind of region of interest used to discard pixels in {@link #checkPixel(int, int)}.
+     * 
+     * @see #setCircularRegionOfInterest(double, double, double)
+     * @see #setRectangularRegionOfInterest(int, int, int, int)
+     */
+    private int regionOfInterest;
+    
+    /**
+     * Row of the center of the circular region of interest.
+     */
+    private double circleCenterRow;
+    
+    /**
+     * Column of the center of the circular region of interest.
+     */
+    private double circleCenterColumn;
+    
+    /**
+     * Squared radius of the circular region of interest.
+     */
+    private double circleRadiusSquared;
+    
+    /**
+     * First row (inclusive) of the rectangular region of interest.
+     */
+    private int rectangleRowMin;
+    
+    /**
+     * Last row (inclusive) of the rectangular region of interest.
+     */
+    private int rectangleRowMax;
+    
+    /**
+     * First column (inclusive) of the rectangular region of interest.
+     */
+    private int rectangleColumnMin;
+    
+    /**
+     * Last column (inclusive) of the rectangular region of interest.
+     */
+    private int rectangleColumnMax;
+    
+    /**
+     * Bitset with the pixels inside the region of interest, for an image of {@link #regionOfInterestRows} x {@link #regionOfInterestCols}.
+     * <p>
+     * It is computed lazily, and discarded when the region of interest or the image size change.
+     */
+    private long[] regionOfInterestBits;
+    
+    /**
+     * Number of rows of the image for which {@link #regionOfInterestBits} was computed.
+     */
+    private int regionOfInterestRows;
+    
+    /**
+     * Number of columns of the image for which {@link #regionOfInterestBits} was computed.
+     */
+    private int regionOfInterestCols;
+    
     
     
     ////////////////////////////////////////////////////////////////
@@ -41,7 +201,22 @@ public class MaixSenseA010DepthImageAdapter
      */
     public MaixSenseA010DepthImageAdapter( MaixSenseA010Image imageA010 )
     {
-        this.image = imageA010;
+        if( imageA010 != null ) {
+            this.setImage( imageA010 );
+        }
+        this.setQuantizationUnit( 0 );
+    }
+    
+    
+    /**
+     * Constructs a {@link MaixSenseA010DepthImageAdapter} with no image.
+     * <p>
+     * The image must be set with {@link #setImage(MaixSenseA010Image)} before the adapter is used.
+     * This allows the same adapter to be reused for every received frame.
+     */
+    public MaixSenseA010DepthImageAdapter()
+    {
+        this( null );
     }
     
     
@@ -55,7 +230,7 @@ public class MaixSenseA010DepthImageAdapter
      * 
      * @param unit  quantization unit.
      * 
-     * @see #depth(byte)
+     * @see #depth(int, int)
      */
     public void setQuantizationUnit( int unit )
     {
@@ -65,13 +240,120 @@ public class MaixSenseA010DepthImageAdapter
             this.quantizationUnit = 0;
             System.out.println( "Quantization unit must be in [0,10] interval; unit set to 0." );
         }
+        this.depthTable = DEPTH_TABLE[ this.quantizationUnit ];
+        this.depthTableFloat = DEPTH_TABLE_FLOAT[ this.quantizationUnit ];
+        this.depthTableMillimeters = DEPTH_TABLE_MILLIMETERS[ this.quantizationUnit ];
+    }
+    
+    
+    /**
+     * Sets the {@link MaixSenseA010Image} to be adapted.
+     * <p>
+     * Its pixel values are copied into an array owned by the adapter, which is only reallocated if the image size changes.
+     * 
+     * @param imageA010     {@link MaixSenseA010Image} to be adapted to a {@link DepthImage}.
+     */
+    public void setImage( MaixSenseA010Image imageA010 )
+    {
+        int imageRows = imageA010.rows();
+        int imageCols = imageA010.cols();
+        if(  this.imagePixels == null  ||  this.imagePixels.length != imageRows*imageCols  ) {
+            this.imagePixels = new byte[ imageRows*imageCols ];
+        }
+        pixelsOf( imageA010 , this.imagePixels );
+        this.image = imageA010;
+        this.pixels = this.imagePixels;
+        this.rows = imageRows;
+        this.cols = imageCols;
+    }
+    
+    
+    /**
+     * Sets raw pixel values to be adapted, as if they were the pixels of a {@link MaixSenseA010Image}.
+     * <p>
+     * The array is not copied, so it must not be modified while the adapter is being used.
+     * 
+     * @param values        raw pixel values in row-major order; its length must be at least {@code imageRows*imageCols}.
+     * @param imageRows     number of rows of the image.
+     * @param imageCols     number of columns of the image.
+     */
+    public void setPixels( byte[] values , int imageRows , int imageCols )
+    {
+        if( values.length < imageRows*imageCols ) {
+            throw new IllegalArgumentException( "Expected at least " + imageRows*imageCols + " pixel values, got " + values.length + "." );
+        }
+        this.image = null;
+        this.pixels = values;
+        this.rows = imageRows;
+        this.cols = imageCols;
+    }
+    
+    
+    /**
+     * Restricts the valid pixels to those inside a circle.
+     * 
+     * @param centerRow     row of the center of the circle.
+     * @param centerColumn  column of the center of the circle.
+     * @param radius        radius of the circle in pixels.
+     * 
+     * @see #checkPixel(int, int)
+     */
+    public void setCircularRegionOfInterest( double centerRow , double centerColumn , double radius )
+    {
+        this.regionOfInterest = REGION_OF_INTEREST_CIRCLE;
+        this.circleCenterRow = centerRow;
+        this.circleCenterColumn = centerColumn;
+        this.circleRadiusSquared = radius * radius;
+        this.regionOfInterestBits = null;
+    }
+    
+    
+    /**
+     * Restricts the valid pixels to those inside a rectangle.
+     * 
+     * @param rowMin        first row (inclusive) of the rectangle.
+     * @param columnMin     first column (inclusive) of the rectangle.
+     * @param rowMax        last row (inclusive) of the rectangle.
+     * @param columnMax     last column (inclusive) of the rectangle.
+     * 
+     * @see #checkPixel(int, int)
+     */
+    public void setRectangularRegionOfInterest( int rowMin , int columnMin , int rowMax , int columnMax )
+    {
+        this.regionOfInterest = REGION_OF_INTEREST_RECTANGLE;
+        this.rectangleRowMin = rowMin;
+        this.rectangleColumnMin = columnMin;
+        this.rectangleRowMax = rowMax;
+        this.rectangleColumnMax = columnMax;
+        this.regionOfInterestBits = null;
+    }
+    
+    
+    /**
+     * Removes the region of interest, so that every pixel can be valid.
+     */
+    public void clearRegionOfInterest()
+    {
+        this.regionOfInterest = REGION_OF_INTEREST_NONE;
+        this.regionOfInterestBits = null;
+    }
+    
+    
+    /**
+     * Returns the quantization unit used to compute the depth from the pixel values.
+     * 
+     * @return  quantization unit.
+     */
+    public int getQuantizationUnit()
+    {
+        return this.quantizationUnit;
     }
     
     
     /**
      * Returns the {@link MaixSenseA010Image} being adapted.
      * 
-     * @return  {@link MaixSenseA010Image} being adapted.
+     * @return  {@link MaixSenseA010Image} being adapted, or null if raw pixel values are being adapted.
      */
     public MaixSenseA010Image getMaixSenseA010Image()
     {
@@ -84,7 +366,7 @@ public class MaixSenseA010DepthImageAdapter
      */
     public int rows()
     {
-        return this.image.rows();
+        return this.rows;
     }
     
     
@@ -93,18 +375,91 @@ public class MaixSenseA010DepthImageAdapter
      */
     public int cols()
     {
-        return this.image.cols();
+        return this.cols;
     }
     
     
     /**
      * {@inheritDoc}
+     * <p>
+     * A pixel is valid if its value is neither 0 (no return) nor 255 (saturated), and it lies inside the region of interest, if any.
      */
     public boolean checkPixel( int i , int j )
     {
-        int pixelValueUnsignedByte = this.image.pixel( i , j );
-        double r = Math.sqrt( ( i - 50 ) * ( i - 50 ) + ( j - 50 ) * (j - 50 ) );
-        return ( 0 < pixelValueUnsignedByte  &&  pixelValueUnsignedByte < 255 /* && r < 50*/ );
+        int pixelValueUnsignedByte = this.pixels[ i*this.cols + j ] & 0xFF;
+        return ( 0 < pixelValueUnsignedByte  &&  pixelValueUnsignedByte < 255  &&  this.isInsideRegionOfInterest( i , j ) );
+    }
+    
+    
+    /**
+     * Computes the validity of every pixel of the image, as given by {@link #checkPixel(int, int)}.
+     * <p>
+     * Pixels are stored in row-major order: the validity of pixel (i,j) is written in {@code out[ i*cols() + j ]}.
+     * 
+     * @param out   array where the validity of the pixels is written; its length must be at least {@code rows()*cols()}.
+     * @return  number of valid pixels.
+     */
+    public int validityMaskInto( boolean[] out )
+    {
+        int pixelCount = this.rows * this.cols;
+        byte[] values = this.pixels;
+        long[] roi = this.regionOfInterestBits( this.rows , this.cols );
+        int count = 0;
+        for( int k=0; k<pixelCount; k++ ) {
+            // ( v - 1 ) as unsigned byte is below 254 only if v is neither 0 nor 255.
+            boolean valid = ( ( ( values[k] - 1 ) & 0xFF ) < 254 );
+            if( roi != null ) {
+                valid &= ( ( roi[ k >>> 6 ] >>> k ) & 1L ) != 0;
+            }
+            out[k] = valid;
+            if( valid ) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    
+    /**
+     * Computes the validity of every pixel of the image, as given by {@link #checkPixel(int, int)}, and stores it as a bitset.
+     * <p>
+     * The validity of pixel (i,j) is stored in the bit {@code k = i*cols() + j}, that is, bit {@code k & 63} of {@code out[ k >>> 6 ]}.
+     * Valid pixels can be traversed with {@link #nextValidPixel(long[], int)}.
+     * 
+     * @param out   array where the bitset is written; its length must be at least {@link #bitsetLength(int) bitsetLength}{@code ( rows()*cols() )}.
+     * @return  number of valid pixels.
+     */
+    public int validityBitsInto( long[] out )
+    {
+        int pixelCount = this.rows * this.cols;
+        int words = bitsetLength( pixelCount );
+        byte[] values = this.pixels;
+        // Fill the bitset from the pixel values.
+        long word = 0;
+        int k = 0;
+        for( ; k<pixelCount; k++ ) {
+            // ( v - 1 ) as unsigned byte is below 254 only if v is neither 0 nor 255.
+            if( ( ( values[k] - 1 ) & 0xFF ) < 254 ) {
+                word |= ( 1L << k );
+            }
+            if( ( k & 63 ) == 63 ) {
+                out[ k >>> 6 ] = word;
+                word = 0;
+            }
+        }
+        if( ( k & 63 ) != 0 ) {
+            out[ k >>> 6 ] = word;
+        }
+        // Intersect with the region of interest, and count.
+        long[] roi = this.regionOfInterestBits( this.rows , this.cols );
+        int count = 0;
+        for( int w=0; w<words; w++ ) {
+            if( roi != null ) {
+                out[w] &= roi[w];
+            }
+            count += Long.bitCount( out[w] );
+        }
+        return count;
     }
     
     
@@ -114,15 +469,253 @@ public class MaixSenseA010DepthImageAdapter
     public double depth( int i , int j )
     {
         // Take pixel byte and cast its unsigned representation to an int.
-        int pixelValueUnsignedByte = this.image.pixel( i , j ) & 0xFF ;
-        // The depth value depends on the quantization strategy.
-        if( this.quantizationUnit == 0 ) {
-            double depthSqrt = pixelValueUnsignedByte / 5.1;
-            double depthInMillimiters = depthSqrt * depthSqrt;
-            return depthInMillimiters * 1.0e-3;
-        } else {
-            return ( this.quantizationUnit * pixelValueUnsignedByte );
+        int pixelValueUnsignedByte = this.pixels[ i*this.cols + j ] & 0xFF;
+        // The depth value depends on the quantization strategy; it is precomputed in the table.
+        return this.depthTable[ pixelValueUnsignedByte ];
+    }
+    
+    
+    /**
+     * Computes the depth in meters of every pixel of the image.
+     * <p>
+     * Pixels are stored in row-major order: the depth of pixel (i,j) is written in {@code out[ i*cols() + j ]}.
+     * 
+     * @param out   array where the depths are written; its length must be at least {@code rows()*cols()}.
+     * @return  the same array passed as argument.
+     * 
+     * @see #depth(int, int)
+     */
+    public float[] depthsInto( float[] out )
+    {
+        return this.depthsInto( out , 0 , this.rows * this.cols );
+    }
+    
+    
+    /**
+     * Computes the depth in meters of a range of pixels of the image.
+     * <p>
+     * Pixels are indexed in row-major order, as in {@link #depthsInto(float[])}; only {@code out[from]} to {@code out[to-1]} are written,
+     * so disjoint ranges can be computed concurrently.
+     * 
+     * @param out   array where the depths are written; its length must be at least {@code to}.
+     * @param from  index of the first pixel.
+     * @param to    index after the last pixel.
+     * @return  the same array passed as argument.
+     */
+    public float[] depthsInto( float[] out , int from , int to )
+    {
+        byte[] values = this.pixels;
+        float[] table = this.depthTableFloat;
+        for( int k=from; k<to; k++ ) {
+            out[k] = table[ values[k] & 0xFF ];
+        }
+        return out;
+    }
+    
+    
+    /**
+     * Copies the raw value of every pixel of the image.
+     * <p>
+     * Pixels are stored in row-major order: the value of pixel (i,j) is written in {@code out[ i*cols() + j ]}.
+     * 
+     * @param out   array where the pixel values are written; its length must be at least {@code rows()*cols()}.
+     * @return  the same array passed as argument.
+     */
+    public byte[] pixelsInto( byte[] out )
+    {
+        System.arraycopy( this.pixels , 0 , out , 0 , this.rows * this.cols );
+        return out;
+    }
+    
+    
+    /**
+     * Returns the array holding the raw value of every pixel of the image, without copying it.
+     * <p>
+     * Pixels are stored in row-major order, and only the first {@link #pixelCount()} values belong to the image.
+     * The array must not be modified, and its content is only valid until another image is set.
+     * 
+     * @return  array holding the raw pixel values, or null if no image has been set.
+     */
+    public byte[] pixels()
+    {
+        return this.pixels;
+    }
+    
+    
+    /**
+     * Returns the number of pixels of the image.
+     * 
+     * @return  {@code rows()*cols()}.
+     */
+    public int pixelCount()
+    {
+        return this.rows * this.cols;
+    }
+    
+    
+    /**
+     * Computes the depth in millimeters of every pixel of the image.
+     * <p>
+     * Pixels are stored in row-major order: the depth of pixel (i,j) is written in {@code out[ i*cols() + j ]}.
+     * 
+     * @param out   array where the depths are written; its length must be at least {@code rows()*cols()}.
+     * @return  the same array passed as argument.
+     */
+    public short[] depthsMillimetersInto( short[] out )
+    {
+        int pixelCount = this.rows * this.cols;
+        byte[] values = this.pixels;
+        short[] table = this.depthTableMillimeters;
+        for( int k=0; k<pixelCount; k++ ) {
+            out[k] = table[ values[k] & 0xFF ];
+        }
+        return out;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Copies the raw pixel values of a {@link MaixSenseA010Image}.
+     * <p>
+     * Images that are handed over to other threads are copied with it, so that they do not depend on whether the driver reuses its images.
+     * 
+     * @param imageA010     image whose pixel values are copied.
+     * @param out   array where the pixel values are written in row-major order; its length must be at least {@code rows()*cols()} of the image.
+     * @return  the same array passed as argument.
+     */
+    public static byte[] pixelsOf( MaixSenseA010Image imageA010 , byte[] out )
+    {
+        int imageRows = imageA010.rows();
+        int imageCols = imageA010.cols();
+        int k = 0;
+        for( int i=0; i<imageRows; i++ ) {
+            for( int j=0; j<imageCols; j++ ) {
+                out[k++] = imageA010.pixel( i , j );
+            }
+        }
+        return out;
+    }
+    
+    
+    /**
+     * Returns the depth in meters that corresponds to a pixel value.
+     * 
+     * @param unit  quantization unit.
+     * @param pixelValue    unsigned pixel value, in [0,255].
+     * @return  depth in meters.
+     * 
+     * @see #setQuantizationUnit(int)
+     */
+    public static double pixelValueToDepth( int unit , int pixelValue )
+    {
+        return DEPTH_TABLE[ unit ][ pixelValue ];
+    }
+    
+    
+    /**
+     * Returns the number of words needed by a bitset that holds the validity of some pixels.
+     * 
+     * @param pixels    number of pixels.
+     * @return  number of words needed by the bitset.
+     * 
+     * @see #validityBitsInto(long[])
+     */
+    public static int bitsetLength( int pixels )
+    {
+        return ( ( pixels + 63 ) >>> 6 );
+    }
+    
+    
+    /**
+     * Returns the index of the first valid pixel whose index is equal or greater than a given one.
+     * <p>
+     * Valid pixels can be traversed with:
+     * <pre>
+     * for( int k = nextValidPixel( bits , 0 ); k &gt;= 0; k = nextValidPixel( bits , k+1 ) ) { ... }
+     * </pre>
+     * 
+     * @param bits          bitset filled with {@link #validityBitsInto(long[])}.
+     * @param fromIndex     index of the pixel from which the search starts.
+     * @return  index of the next valid pixel, or -1 if there are no more valid pixels.
+     */
+    public static int nextValidPixel( long[] bits , int fromIndex )
+    {
+        int w = fromIndex >>> 6;
+        if( w >= bits.length ) {
+            return -1;
+        }
+        long word = bits[w] & ( -1L << fromIndex );
+        while( word == 0 ) {
+            if( ++w == bits.length ) {
+                return -1;
+            }
+            word = bits[w];
+        }
+        return ( ( w << 6 ) + Long.numberOfTrailingZeros( word ) );
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns true if a pixel is inside the region of interest.
+     * 
+     * @param i     row of the pixel.
+     * @param j     column of the pixel.
+     * @return  true if the pixel is inside the region of interest; false otherwise.
+     */
+    private boolean isInsideRegionOfInterest( int i , int j )
+    {
+        switch( this.regionOfInterest ) {
+            case REGION_OF_INTEREST_CIRCLE:
+                double di = i - this.circleCenterRow;
+                double dj = j - this.circleCenterColumn;
+                return ( di*di + dj*dj < this.circleRadiusSquared );
+            case REGION_OF_INTEREST_RECTANGLE:
+                return ( this.rectangleRowMin <= i  &&  i <= this.rectangleRowMax  &&  this.rectangleColumnMin <= j  &&  j <= this.rectangleColumnMax );
+            default:
+                return true;
+        }
+    }
+    
+    
+    /**
+     * Returns the bitset of pixels inside the region of interest for an image of a given size.
+     * <p>
+     * The bitset is only recomputed when the region of interest or the image size change.
+     * 
+     * @param rows  number of rows of the image.
+     * @param cols  number of columns of the image.
+     * @return  bitset of pixels inside the region of interest, or null if there is no region of interest.
+     */
+    private long[] regionOfInterestBits( int rows , int cols )
+    {
+        if( this.regionOfInterest == REGION_OF_INTEREST_NONE ) {
+            return null;
+        }
+        if(  this.regionOfInterestBits == null  ||  this.regionOfInterestRows != rows  ||  this.regionOfInterestCols != cols  ) {
+            long[] bits = new long[ bitsetLength( rows*cols ) ];
+            int k = 0;
+            for( int i=0; i<rows; i++ ) {
+                for( int j=0; j<cols; j++ ) {
+                    if( this.isInsideRegionOfInterest( i , j ) ) {
+                        bits[ k >>> 6 ] |= ( 1L << k );
+                    }
+                    k++;
+                }
+            }
+            this.regionOfInterestBits = bits;
+            this.regionOfInterestRows = rows;
+            this.regionOfInterestCols = cols;
         }
+        return this.regionOfInterestBits;
     }
     
 }
@@ -0,0 +1,346 @@
+package util;
+
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import numericalLibrary.types.Vector3;
+import sensorCalibrationLibrary.depthCameras.DepthImage;
+import sensorCalibrationLibrary.depthCameras.maixSenseA010.MaixSenseA010DefaultCalibration;
+
+
+
+/**
+ * Transforms depth images to point clouds stored in primitive arrays, without allocating memory once warmed up.
+ * <p>
+ * The point of a pixel is its depth times the point that {@link MaixSenseA010DefaultCalibration} assigns to the same pixel when its depth is 1.
+ * We call the latter the unit-depth ray of the pixel.
+ * The unit-depth rays of every pixel are computed once per image size (one for each binning: 25x25, 50x50, 100x100),
+ * by asking the calibration for the point cloud of an image in which every pixel has depth 1, and then cached.
+ * <p>
+ * With a {@link StripeExecutor}, the rows of the image are split in stripes that are decoded and projected in parallel.
+ * Each stripe writes its points in its own region of the output, starting at the point of its first pixel,
+ * and the regions are then moved together so that points keep the row-major pixel order.
+ */
+public class MaixSenseA010PointCloudProjector
+{
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Calibration used to compute the unit-depth rays.
+     */
+    private MaixSenseA010DefaultCalibration calibration;
+    
+    /**
+     * Unit-depth rays computed so far, indexed by image size.
+     */
+    private Map<Integer,float[]> raysBySize;
+    
+    /**
+     * Unit-depth rays of the last image size used.
+     */
+    private float[] rays;
+    
+    /**
+     * Image size for which {@link #rays} was computed.
+     */
+    private int raysSize;
+    
+    /**
+     * Depths of the last projected image.
+     */
+    private float[] depths;
+    
+    /**
+     * Validity bitset of the last projected image.
+     */
+    private long[] validityBits;
+    
+    /**
+     * Executes {@link #projectionTask} on stripes of the image, or null to project the whole image in the calling thread.
+     */
+    private StripeExecutor executor;
+    
+    /**
+     * Task that decodes and projects a stripe of the image being projected.
+     */
+    private StripeTask projectionTask;
+    
+    /**
+     * Number of points of each stripe of the image being projected.
+     */
+    private int[] stripePointCounts;
+    
+    /**
+     * Image being projected.
+     */
+    private MaixSenseA010DepthImageAdapter stripeImage;
+    
+    /**
+     * Array where the points of the image being projected are written.
+     */
+    private float[] stripeXyz;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link MaixSenseA010PointCloudProjector}.
+     * 
+     * @param depthCameraCalibration    calibration used to transform depth images to point clouds.
+     */
+    public MaixSenseA010PointCloudProjector( MaixSenseA010DefaultCalibration depthCameraCalibration )
+    {
+        this.calibration = depthCameraCalibration;
+        this.raysBySize = new HashMap<Integer,float[]>();
+        this.raysSize = -1;
+        this.projectionTask = this::projectStripe;
+        this.stripePointCounts = new int[0];
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns the unit-depth rays of every pixel of an image with a given size.
+     * <p>
+     * The ray of pixel (i,j) is stored in {@code rays[ 3*k ]}, {@code rays[ 3*k+1 ]}, {@code rays[ 3*k+2 ]}, with {@code k = i*size + j}.
+     * The returned array is shared and must not be modified.
+     * 
+     * @param size  number of rows (and columns) of the image.
+     * @return  unit-depth rays of every pixel of the image.
+     */
+    public float[] unitDepthRays( int size )
+    {
+        if( size != this.raysSize ) {
+            float[] cached = this.raysBySize.get( size );
+            if( cached == null ) {
+                cached = this.computeUnitDepthRays( size );
+                this.raysBySize.put( size , cached );
+            }
+            this.rays = cached;
+            this.raysSize = size;
+        }
+        return this.rays;
+    }
+    
+    
+    /**
+     * Sets the executor used to project the images in stripes.
+     * <p>
+     * It must not be used by other threads while images are being projected.
+     * 
+     * @param stripeExecutor    executor used to project the images in stripes, or null to project them in the calling thread.
+     */
+    public void setStripeExecutor( StripeExecutor stripeExecutor )
+    {
+        this.executor = stripeExecutor;
+    }
+    
+    
+    /**
+     * Transforms a depth image to a point cloud.
+     * <p>
+     * Only valid pixels (see {@link MaixSenseA010DepthImageAdapter#checkPixel(int, int)}) produce points.
+     * Points are written consecutively in row-major pixel order, three coordinates per point.
+     * 
+     * @param image     depth image to be transformed.
+     * @param xyz       array where the coordinates of the points are written; its length must be at least {@link #pointCloudLength(int, int) pointCloudLength}{@code ( rows , cols )}.
+     * @return  number of points written in {@code xyz}.
+     */
+    public int pointCloudInto( MaixSenseA010DepthImageAdapter image , float[] xyz )
+    {
+        int rows = image.rows();
+        int cols = image.cols();
+        int pixels = rows * cols;
+        // Get the rays for this image size.
+        this.unitDepthRays( cols );
+        // Decode the validity of the whole image; depths are decoded by stripe.
+        if(  this.depths == null  ||  this.depths.length != pixels  ) {
+            this.depths = new float[ pixels ];
+            this.validityBits = new long[ MaixSenseA010DepthImageAdapter.bitsetLength( pixels ) ];
+        }
+        image.validityBitsInto( this.validityBits );
+        if( this.stripePointCounts.length < Math.max( rows , 1 ) ) {
+            this.stripePointCounts = new int[ Math.max( rows , 1 ) ];
+        }
+        // Decode and project each stripe in its own region of the output,
+        this.stripeImage = image;
+        this.stripeXyz = xyz;
+        int stripes;
+        if( this.executor == null ) {
+            this.projectStripe( 0 , 0 , rows );
+            stripes = 1;
+        } else {
+            stripes = this.executor.execute( rows , this.projectionTask );
+        }
+        this.stripeImage = null;
+        this.stripeXyz = null;
+        // and move the regions together.
+        int n = 0;
+        for( int s=0; s<stripes; s++ ) {
+            int start = 3 * ( s*rows/stripes ) * cols;
+            int length = 3 * this.stripePointCounts[s];
+            if( start != n ) {
+                System.arraycopy( xyz , start , xyz , n , length );
+            }
+            n += length;
+        }
+        return n/3;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns the length of an array able to hold the point cloud of an image of a given size.
+     * 
+     * @param rows  number of rows of the image.
+     * @param cols  number of columns of the image.
+     * @return  length of an array able to hold the point cloud of the image.
+     */
+    public static int pointCloudLength( int rows , int cols )
+    {
+        return ( 3 * rows * cols );
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Decodes and projects the pixels of a stripe of the image being projected.
+     * <p>
+     * The points are written from the point of the first pixel of the stripe, and their number is stored in {@link #stripePointCounts}.
+     * 
+     * @param stripe    index of the stripe.
+     * @param rowStart  first row of the stripe.
+     * @param rowEnd    row after the last row of the stripe.
+     */
+    private void projectStripe( int stripe , int rowStart , int rowEnd )
+    {
+        int cols = this.stripeImage.cols();
+        int from = rowStart * cols;
+        int to = rowEnd * cols;
+        float[] d = this.stripeImage.depthsInto( this.depths , from , to );
+        float[] r = this.rays;
+        float[] xyz = this.stripeXyz;
+        int n = 3*from;
+        for( int k = MaixSenseA010DepthImageAdapter.nextValidPixel( this.validityBits , from ); k >= 0  &&  k < to; k = MaixSenseA010DepthImageAdapter.nextValidPixel( this.validityBits , k+1 ) ) {
+            float depth = d[k];
+            int k3 = 3*k;
+            xyz[n++] = r[k3] * depth;
+            xyz[n++] = r[k3+1] * depth;
+            xyz[n++] = r[k3+2] * depth;
+        }
+        this.stripePointCounts[stripe] = n/3 - from;
+    }
+    
+    
+    /**
+     * Computes the unit-depth rays of every pixel of an image with a given size.
+     * 
+     * @param size  number of rows (and columns) of the image.
+     * @return  unit-depth rays of every pixel of the image.
+     */
+    private float[] computeUnitDepthRays( int size )
+    {
+        this.calibration.setImageSize( size );
+        List<Vector3> points = this.calibration.imageToPointCloud( new UnitDepthImage( size ) );
+        if( points.size() != size*size ) {
+            throw new IllegalStateException( "Calibration returned " + points.size() + " points for a " + size + "x" + size + " image with every pixel valid." );
+        }
+        float[] r = new float[ 3*size*size ];
+        int n = 0;
+        for( Vector3 point : points ) {
+            r[n++] = (float)point.x();
+            r[n++] = (float)point.y();
+            r[n++] = (float)point.z();
+        }
+        return r;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CLASSES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * {@link DepthImage} in which every pixel is valid and has depth 1.
+     */
+    private static class UnitDepthImage
+        implements DepthImage
+    {
+        // PRIVATE VARIABLES
+        
+        /**
+         * Number of rows (and columns) of the image.
+         */
+        private int size;
+        
+        
+        // PUBLIC CONSTRUCTORS
+        
+        /**
+         * Constructs a {@link UnitDepthImage}.
+         * 
+         * @param imageSize     number of rows (and columns) of the image.
+         */
+        public UnitDepthImage( int imageSize )
+        {
+            this.size = imageSize;
+        }
+        
+        
+        // PUBLIC METHODS
+        
+        /**
+         * {@inheritDoc}
+         */
+        public int rows()
+        {
+            return this.size;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public int cols()
+        {
+            return this.size;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public boolean checkPixel( int i , int j )
+        {
+            return true;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public double depth( int i , int j )
+        {
+            return 1.0;
+        }
+        
+    }
+    
+}
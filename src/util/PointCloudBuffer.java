@@ -0,0 +1,104 @@
+package util;
+
+
+
+/**
+ * Point cloud stored in a reusable primitive array, three coordinates per point.
+ */
+public class PointCloudBuffer
+{
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Coordinates of the points.
+     */
+    private float[] xyz;
+    
+    /**
+     * Number of points in {@link #xyz}.
+     */
+    private int count;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs an empty {@link PointCloudBuffer}.
+     */
+    public PointCloudBuffer()
+    {
+        this.xyz = new float[0];
+        this.count = 0;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Makes the buffer able to hold exactly a given number of points.
+     * <p>
+     * The array is only reallocated if its capacity changes; the points are discarded in that case.
+     * 
+     * @param points    number of points that the buffer must be able to hold.
+     */
+    public void setCapacity( int points )
+    {
+        if( this.xyz.length != 3*points ) {
+            this.xyz = new float[ 3*points ];
+            this.count = 0;
+        }
+    }
+    
+    
+    /**
+     * Returns the number of points that the buffer can hold.
+     * 
+     * @return  number of points that the buffer can hold.
+     */
+    public int capacity()
+    {
+        return ( this.xyz.length / 3 );
+    }
+    
+    
+    /**
+     * Returns the coordinates of the points.
+     * 
+     * @return  coordinates of the points.
+     */
+    public float[] xyz()
+    {
+        return this.xyz;
+    }
+    
+    
+    /**
+     * Returns the number of points in the buffer.
+     * 
+     * @return  number of points in the buffer.
+     */
+    public int count()
+    {
+        return this.count;
+    }
+    
+    
+    /**
+     * Sets the number of points in the buffer.
+     * 
+     * @param points    number of points in the buffer.
+     */
+    public void setCount( int points )
+    {
+        this.count = points;
+    }
+    
+}
@@ -0,0 +1,646 @@
+package util;
+
+
+
+/**
+ * Spatial index over a point cloud stored in a primitive array, for nearest neighbor, radius, and ray picking queries.
+ * <p>
+ * The space is divided in cubic cells, which are hashed into a table with as many buckets as points (rounded up to a power of two).
+ * {@link #build(float[], int)} sorts the points by bucket with a counting sort, so building takes time proportional to the number of points;
+ * it is meant to be called for every new point cloud.
+ * The points are copied in bucket order, together with the key of their cell, so cells that share a bucket are told apart and queries read contiguous memory.
+ * All the arrays are only reallocated when a point cloud has more points than any previous one, so neither building nor querying allocates memory in steady state.
+ * <p>
+ * Queries return the indices of the points in the array passed to {@link #build(float[], int)}.
+ * The cell size should be about the radius of the typical query: larger cells hold more points to check, smaller cells more cells to visit.
+ */
+public class PointCloudIndex
+{
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Minimum number of buckets of the hash table.
+     */
+    private static final int MIN_BUCKETS = 16;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Edge length of the cells.
+     */
+    private float cellSize;
+    
+    /**
+     * Inverse of {@link #cellSize}.
+     */
+    private float inverseCellSize;
+    
+    /**
+     * Number of indexed points.
+     */
+    private int count;
+    
+    /**
+     * Coordinates of the indexed points, in bucket order, three per point.
+     */
+    private float[] sortedXyz;
+    
+    /**
+     * Index in the original array of each point, in bucket order.
+     */
+    private int[] sortedIndices;
+    
+    /**
+     * Key of the cell of each point, in bucket order.
+     */
+    private long[] sortedKeys;
+    
+    /**
+     * Key of the cell of each point, in the original order.
+     */
+    private long[] pointKeys;
+    
+    /**
+     * Bucket of each point, in the original order.
+     */
+    private int[] pointBuckets;
+    
+    /**
+     * Position of the first point of each bucket in the sorted arrays; the points of bucket {@code b} go up to {@code bucketStarts[b+1]}.
+     */
+    private int[] bucketStarts;
+    
+    /**
+     * Number of buckets, a power of two.
+     */
+    private int buckets;
+    
+    /**
+     * 64 minus the base 2 logarithm of {@link #buckets}.
+     */
+    private int hashShift;
+    
+    /**
+     * Minimum x cell coordinate of the indexed points.
+     */
+    private int minCellX;
+    
+    /**
+     * Minimum y cell coordinate of the indexed points.
+     */
+    private int minCellY;
+    
+    /**
+     * Minimum z cell coordinate of the indexed points.
+     */
+    private int minCellZ;
+    
+    /**
+     * Maximum x cell coordinate of the indexed points.
+     */
+    private int maxCellX;
+    
+    /**
+     * Maximum y cell coordinate of the indexed points.
+     */
+    private int maxCellY;
+    
+    /**
+     * Maximum z cell coordinate of the indexed points.
+     */
+    private int maxCellZ;
+    
+    /**
+     * Interval of the parameter of the ray being picked, clipped to the indexed cells.
+     */
+    private float[] rayInterval;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs an empty {@link PointCloudIndex}.
+     * 
+     * @param cellEdge  edge length of the cells.
+     */
+    public PointCloudIndex( float cellEdge )
+    {
+        if( !( cellEdge > 0.0f ) ) {
+            throw new IllegalArgumentException( "The cell size must be positive." );
+        }
+        this.cellSize = cellEdge;
+        this.inverseCellSize = 1.0f / cellEdge;
+        this.sortedXyz = new float[0];
+        this.sortedIndices = new int[0];
+        this.sortedKeys = new long[0];
+        this.pointKeys = new long[0];
+        this.pointBuckets = new int[0];
+        this.rayInterval = new float[2];
+        this.bucketStarts = new int[ MIN_BUCKETS + 1 ];
+        this.buckets = MIN_BUCKETS;
+        this.hashShift = 64 - Integer.numberOfTrailingZeros( MIN_BUCKETS );
+        this.count = 0;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Indexes a point cloud, replacing the previous one.
+     * <p>
+     * The coordinates are copied, so the array can be modified afterwards.
+     * 
+     * @param xyz   coordinates of the points, three per point.
+     * @param pointCount    number of points.
+     */
+    public void build( float[] xyz , int pointCount )
+    {
+        this.ensureCapacity( pointCount );
+        int[] starts = this.bucketStarts;
+        for( int b=0; b<=this.buckets; b++ ) {
+            starts[b] = 0;
+        }
+        // Find the cell and the bucket of each point, and count the points of each bucket.
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        int maxZ = Integer.MIN_VALUE;
+        float inverse = this.inverseCellSize;
+        for( int i=0; i<pointCount; i++ ) {
+            int cx = VoxelGridFilter.voxelCoordinate( xyz[3*i] * inverse );
+            int cy = VoxelGridFilter.voxelCoordinate( xyz[3*i+1] * inverse );
+            int cz = VoxelGridFilter.voxelCoordinate( xyz[3*i+2] * inverse );
+            minX = Math.min( minX , cx );
+            minY = Math.min( minY , cy );
+            minZ = Math.min( minZ , cz );
+            maxX = Math.max( maxX , cx );
+            maxY = Math.max( maxY , cy );
+            maxZ = Math.max( maxZ , cz );
+            long key = VoxelGridFilter.key( cx , cy , cz );
+            int bucket = VoxelGridFilter.slot( key , this.hashShift );
+            this.pointKeys[i] = key;
+            this.pointBuckets[i] = bucket;
+            starts[bucket]++;
+        }
+        // Accumulate the counts, so that each bucket holds the position after its last point,
+        for( int b=1; b<this.buckets; b++ ) {
+            starts[b] += starts[b-1];
+        }
+        starts[ this.buckets ] = pointCount;
+        // and place the points from the end of their buckets, which leaves each bucket holding the position of its first point.
+        for( int i=pointCount-1; i>=0; i-- ) {
+            int position = --starts[ this.pointBuckets[i] ];
+            this.sortedKeys[position] = this.pointKeys[i];
+            this.sortedIndices[position] = i;
+            this.sortedXyz[ 3*position ] = xyz[3*i];
+            this.sortedXyz[ 3*position + 1 ] = xyz[3*i+1];
+            this.sortedXyz[ 3*position + 2 ] = xyz[3*i+2];
+        }
+        this.count = pointCount;
+        this.minCellX = minX;
+        this.minCellY = minY;
+        this.minCellZ = minZ;
+        this.maxCellX = maxX;
+        this.maxCellY = maxY;
+        this.maxCellZ = maxZ;
+    }
+    
+    
+    /**
+     * Returns the number of indexed points.
+     * 
+     * @return  number of indexed points.
+     */
+    public int count()
+    {
+        return this.count;
+    }
+    
+    
+    /**
+     * Returns the edge length of the cells.
+     * 
+     * @return  edge length of the cells.
+     */
+    public float cellSize()
+    {
+        return this.cellSize;
+    }
+    
+    
+    /**
+     * Finds the points within a distance of a query point.
+     * <p>
+     * The points are found in no particular order.
+     * 
+     * @param x     x coordinate of the query point.
+     * @param y     y coordinate of the query point.
+     * @param z     z coordinate of the query point.
+     * @param radius    maximum distance to the query point.
+     * @param out   array where the indices of the points are written; if there are more points than its length, only the first ones found are written.
+     * @return  number of points within the distance, which can be greater than the length of {@code out}.
+     */
+    public int radiusInto( float x , float y , float z , float radius , int[] out )
+    {
+        if(  this.count == 0  ||  !( radius >= 0.0f )  ) {
+            return 0;
+        }
+        float r2 = radius * radius;
+        float inverse = this.inverseCellSize;
+        int x0 = Math.max( this.minCellX , VoxelGridFilter.voxelCoordinate( ( x - radius ) * inverse ) );
+        int y0 = Math.max( this.minCellY , VoxelGridFilter.voxelCoordinate( ( y - radius ) * inverse ) );
+        int z0 = Math.max( this.minCellZ , VoxelGridFilter.voxelCoordinate( ( z - radius ) * inverse ) );
+        int x1 = Math.min( this.maxCellX , VoxelGridFilter.voxelCoordinate( ( x + radius ) * inverse ) );
+        int y1 = Math.min( this.maxCellY , VoxelGridFilter.voxelCoordinate( ( y + radius ) * inverse ) );
+        int z1 = Math.min( this.maxCellZ , VoxelGridFilter.voxelCoordinate( ( z + radius ) * inverse ) );
+        if(  x0 > x1  ||  y0 > y1  ||  z0 > z1  ) {
+            return 0;
+        }
+        int found = 0;
+        if( (long)( x1 - x0 + 1 ) * ( y1 - y0 + 1 ) * ( z1 - z0 + 1 ) > this.count ) {
+            // Visiting the cells would take longer than checking every point.
+            for( int p=0; p<this.count; p++ ) {
+                if( this.squaredDistance( p , x , y , z ) <= r2 ) {
+                    if( found < out.length ) {
+                        out[found] = this.sortedIndices[p];
+                    }
+                    found++;
+                }
+            }
+            return found;
+        }
+        for( int cz=z0; cz<=z1; cz++ ) {
+            for( int cy=y0; cy<=y1; cy++ ) {
+                for( int cx=x0; cx<=x1; cx++ ) {
+                    long key = VoxelGridFilter.key( cx , cy , cz );
+                    int bucket = VoxelGridFilter.slot( key , this.hashShift );
+                    for( int p=this.bucketStarts[bucket]; p<this.bucketStarts[bucket+1]; p++ ) {
+                        if(  this.sortedKeys[p] == key  &&  this.squaredDistance( p , x , y , z ) <= r2  ) {
+                            if( found < out.length ) {
+                                out[found] = this.sortedIndices[p];
+                            }
+                            found++;
+                        }
+                    }
+                }
+            }
+        }
+        return found;
+    }
+    
+    
+    /**
+     * Finds the nearest points to a query point.
+     * <p>
+     * The cells are visited in shells of increasing distance around the cell of the query point,
+     * until the nearest points found so far are closer than any point in the next shell.
+     * 
+     * @param x     x coordinate of the query point.
+     * @param y     y coordinate of the query point.
+     * @param z     z coordinate of the query point.
+     * @param k     number of points to be found.
+     * @param indices   array where the indices of the points are written, from nearest to farthest; its length must be at least {@code k}.
+     * @param distances     array where the distances of the points to the query point are written; its length must be at least {@code k}.
+     * @return  number of points found, {@code k} unless fewer points are indexed.
+     */
+    public int nearestInto( float x , float y , float z , int k , int[] indices , float[] distances )
+    {
+        if(  k <= 0  ||  this.count == 0  ) {
+            return 0;
+        }
+        // The nearest points found so far are kept in a max-heap on the squared distance, stored in the output arrays.
+        int found = 0;
+        float inverse = this.inverseCellSize;
+        int qx = VoxelGridFilter.voxelCoordinate( x * inverse );
+        int qy = VoxelGridFilter.voxelCoordinate( y * inverse );
+        int qz = VoxelGridFilter.voxelCoordinate( z * inverse );
+        int maxShell = Math.max( Math.max( Math.max( qx - this.minCellX , this.maxCellX - qx ) , Math.max( qy - this.minCellY , this.maxCellY - qy ) ) ,
+                                 Math.max( qz - this.minCellZ , this.maxCellZ - qz ) );
+        long visitedCells = 0;
+        for( int s=0; s<=maxShell; s++ ) {
+            if(  found == k  &&  distances[0] <= ( s - 1 ) * ( s - 1 ) * this.cellSize * this.cellSize  ) {
+                // Every point in this shell or beyond is at least (s-1) cells away.
+                break;
+            }
+            long side = 2L*s + 1;
+            visitedCells += side*side*side - ( side - 2 )*( side - 2 )*( side - 2 );
+            if( visitedCells > this.count ) {
+                // Visiting the cells would take longer than checking every point: start again with every point.
+                found = 0;
+                for( int p=0; p<this.count; p++ ) {
+                    found = offer( indices , distances , found , k , this.sortedIndices[p] , this.squaredDistance( p , x , y , z ) );
+                }
+                break;
+            }
+            int x0 = Math.max( this.minCellX , qx - s );
+            int y0 = Math.max( this.minCellY , qy - s );
+            int z0 = Math.max( this.minCellZ , qz - s );
+            int x1 = Math.min( this.maxCellX , qx + s );
+            int y1 = Math.min( this.maxCellY , qy + s );
+            int z1 = Math.min( this.maxCellZ , qz + s );
+            for( int cz=z0; cz<=z1; cz++ ) {
+                for( int cy=y0; cy<=y1; cy++ ) {
+                    // Inside the shell only the first and last cells of the row belong to it.
+                    boolean face = (  cz == qz - s  ||  cz == qz + s  ||  cy == qy - s  ||  cy == qy + s  );
+                    int step = face? 1 : 2*s;
+                    for( int cx=( face? x0 : qx - s ); cx<=x1; cx+=step ) {
+                        if( cx < x0 ) {
+                            continue;
+                        }
+                        long key = VoxelGridFilter.key( cx , cy , cz );
+                        int bucket = VoxelGridFilter.slot( key , this.hashShift );
+                        for( int p=this.bucketStarts[bucket]; p<this.bucketStarts[bucket+1]; p++ ) {
+                            if( this.sortedKeys[p] == key ) {
+                                found = offer( indices , distances , found , k , this.sortedIndices[p] , this.squaredDistance( p , x , y , z ) );
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        // Sort the heap from nearest to farthest, and take the square roots.
+        for( int end=found-1; end>0; end-- ) {
+            swap( indices , distances , 0 , end );
+            siftDown( indices , distances , 0 , end );
+        }
+        for( int i=0; i<found; i++ ) {
+            distances[i] = (float)Math.sqrt( distances[i] );
+        }
+        return found;
+    }
+    
+    
+    /**
+     * Finds the point closest to the origin of a ray among the points within a distance of the ray, e.g. to pick a point with the mouse.
+     * <p>
+     * The cells crossed by the ray are visited in order, from its origin or from where it enters the indexed points.
+     * 
+     * @param ox    x coordinate of the origin of the ray.
+     * @param oy    y coordinate of the origin of the ray.
+     * @param oz    z coordinate of the origin of the ray.
+     * @param dx    x component of the direction of the ray.
+     * @param dy    y component of the direction of the ray.
+     * @param dz    z component of the direction of the ray.
+     * @param tolerance     maximum distance between a point and the ray.
+     * @return  index of the picked point, or -1 if there are no points within the distance of the ray.
+     */
+    public int pick( float ox , float oy , float oz , float dx , float dy , float dz , float tolerance )
+    {
+        float length = (float)Math.sqrt( dx*dx + dy*dy + dz*dz );
+        if(  this.count == 0  ||  !( length > 0.0f )  ||  !( tolerance >= 0.0f )  ) {
+            return -1;
+        }
+        dx /= length;
+        dy /= length;
+        dz /= length;
+        // Clip the ray to the box of the indexed cells, enlarged by the tolerance.
+        float[] entry = this.rayInterval;
+        entry[0] = 0.0f;
+        entry[1] = Float.POSITIVE_INFINITY;
+        if(  !clip( ox , dx , this.minCellX * this.cellSize - tolerance , ( this.maxCellX + 1 ) * this.cellSize + tolerance , entry )  ||
+             !clip( oy , dy , this.minCellY * this.cellSize - tolerance , ( this.maxCellY + 1 ) * this.cellSize + tolerance , entry )  ||
+             !clip( oz , dz , this.minCellZ * this.cellSize - tolerance , ( this.maxCellZ + 1 ) * this.cellSize + tolerance , entry )  ) {
+            return -1;
+        }
+        float tEnter = entry[0];
+        float tExit = entry[1];
+        // Walk the cells crossed by the ray, checking the cells within the tolerance of each of them.
+        float inverse = this.inverseCellSize;
+        int margin = (int)Math.ceil( tolerance * inverse );
+        int cx = VoxelGridFilter.voxelCoordinate( ( ox + dx*tEnter ) * inverse );
+        int cy = VoxelGridFilter.voxelCoordinate( ( oy + dy*tEnter ) * inverse );
+        int cz = VoxelGridFilter.voxelCoordinate( ( oz + dz*tEnter ) * inverse );
+        int stepX = ( dx > 0.0f )? 1 : -1;
+        int stepY = ( dy > 0.0f )? 1 : -1;
+        int stepZ = ( dz > 0.0f )? 1 : -1;
+        float deltaX = ( dx != 0.0f )? Math.abs( this.cellSize / dx ) : Float.POSITIVE_INFINITY;
+        float deltaY = ( dy != 0.0f )? Math.abs( this.cellSize / dy ) : Float.POSITIVE_INFINITY;
+        float deltaZ = ( dz != 0.0f )? Math.abs( this.cellSize / dz ) : Float.POSITIVE_INFINITY;
+        float nextX = ( dx != 0.0f )? ( ( cx + ( ( stepX > 0 )? 1 : 0 ) ) * this.cellSize - ox ) / dx : Float.POSITIVE_INFINITY;
+        float nextY = ( dy != 0.0f )? ( ( cy + ( ( stepY > 0 )? 1 : 0 ) ) * this.cellSize - oy ) / dy : Float.POSITIVE_INFINITY;
+        float nextZ = ( dz != 0.0f )? ( ( cz + ( ( stepZ > 0 )? 1 : 0 ) ) * this.cellSize - oz ) / dz : Float.POSITIVE_INFINITY;
+        float tolerance2 = tolerance * tolerance;
+        // A point within the tolerance of a cell entered at t is at least at t - (margin+1)*diagonal along the ray.
+        float reach = ( margin + 1 ) * this.cellSize * 1.7320508f;
+        int best = -1;
+        float bestT = Float.POSITIVE_INFINITY;
+        float t = tEnter;
+        while(  t <= tExit  &&  t - reach < bestT  ) {
+            for( int z=Math.max( this.minCellZ , cz - margin ); z<=Math.min( this.maxCellZ , cz + margin ); z++ ) {
+                for( int y=Math.max( this.minCellY , cy - margin ); y<=Math.min( this.maxCellY , cy + margin ); y++ ) {
+                    for( int x=Math.max( this.minCellX , cx - margin ); x<=Math.min( this.maxCellX , cx + margin ); x++ ) {
+                        long key = VoxelGridFilter.key( x , y , z );
+                        int bucket = VoxelGridFilter.slot( key , this.hashShift );
+                        for( int p=this.bucketStarts[bucket]; p<this.bucketStarts[bucket+1]; p++ ) {
+                            if( this.sortedKeys[p] != key ) {
+                                continue;
+                            }
+                            float vx = this.sortedXyz[3*p] - ox;
+                            float vy = this.sortedXyz[3*p+1] - oy;
+                            float vz = this.sortedXyz[3*p+2] - oz;
+                            float along = vx*dx + vy*dy + vz*dz;
+                            if(  along >= 0.0f  &&  along < bestT  &&  vx*vx + vy*vy + vz*vz - along*along <= tolerance2  ) {
+                                best = this.sortedIndices[p];
+                                bestT = along;
+                            }
+                        }
+                    }
+                }
+            }
+            // Step to the next cell crossed by the ray.
+            if(  nextX <= nextY  &&  nextX <= nextZ  ) {
+                t = nextX;
+                nextX += deltaX;
+                cx += stepX;
+            } else if( nextY <= nextZ ) {
+                t = nextY;
+                nextY += deltaY;
+                cy += stepY;
+            } else {
+                t = nextZ;
+                nextZ += deltaZ;
+                cz += stepZ;
+            }
+        }
+        return best;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Makes the arrays able to index a given number of points.
+     * 
+     * @param points    number of points.
+     */
+    private void ensureCapacity( int points )
+    {
+        if( points > this.sortedIndices.length ) {
+            this.sortedXyz = new float[ 3*points ];
+            this.sortedIndices = new int[ points ];
+            this.sortedKeys = new long[ points ];
+            this.pointKeys = new long[ points ];
+            this.pointBuckets = new int[ points ];
+        }
+        int b = MIN_BUCKETS;
+        while( b < points ) {
+            b <<= 1;
+        }
+        if( b > this.buckets ) {
+            this.bucketStarts = new int[ b + 1 ];
+            this.buckets = b;
+            this.hashShift = 64 - Integer.numberOfTrailingZeros( b );
+        }
+    }
+    
+    
+    /**
+     * Returns the squared distance between an indexed point and a query point.
+     * 
+     * @param p     position of the indexed point in the sorted arrays.
+     * @param x     x coordinate of the query point.
+     * @param y     y coordinate of the query point.
+     * @param z     z coordinate of the query point.
+     * @return  squared distance between the points.
+     */
+    private float squaredDistance( int p , float x , float y , float z )
+    {
+        float ex = this.sortedXyz[3*p] - x;
+        float ey = this.sortedXyz[3*p+1] - y;
+        float ez = this.sortedXyz[3*p+2] - z;
+        return ( ex*ex + ey*ey + ez*ez );
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Offers a point to a max-heap of the nearest points found so far.
+     * 
+     * @param indices   indices of the points in the heap.
+     * @param squaredDistances  squared distances of the points in the heap.
+     * @param size  number of points in the heap.
+     * @param k     maximum number of points in the heap.
+     * @param index     index of the offered point.
+     * @param squaredDistance   squared distance of the offered point.
+     * @return  number of points in the heap after the offer.
+     */
+    private static int offer( int[] indices , float[] squaredDistances , int size , int k , int index , float squaredDistance )
+    {
+        if( size < k ) {
+            // Add the point at the end, and move it up.
+            int i = size;
+            while( i > 0 ) {
+                int parent = ( i - 1 ) / 2;
+                if( squaredDistances[parent] >= squaredDistance ) {
+                    break;
+                }
+                indices[i] = indices[parent];
+                squaredDistances[i] = squaredDistances[parent];
+                i = parent;
+            }
+            indices[i] = index;
+            squaredDistances[i] = squaredDistance;
+            return size + 1;
+        }
+        if( squaredDistance < squaredDistances[0] ) {
+            // Replace the farthest point.
+            indices[0] = index;
+            squaredDistances[0] = squaredDistance;
+            siftDown( indices , squaredDistances , 0 , size );
+        }
+        return size;
+    }
+    
+    
+    /**
+     * Moves an element of a max-heap down until its children are not greater.
+     * 
+     * @param indices   indices of the points in the heap.
+     * @param squaredDistances  squared distances of the points in the heap.
+     * @param i     position of the element.
+     * @param size  number of elements in the heap.
+     */
+    private static void siftDown( int[] indices , float[] squaredDistances , int i , int size )
+    {
+        while( true ) {
+            int largest = i;
+            int left = 2*i + 1;
+            int right = left + 1;
+            if(  left < size  &&  squaredDistances[left] > squaredDistances[largest]  ) {
+                largest = left;
+            }
+            if(  right < size  &&  squaredDistances[right] > squaredDistances[largest]  ) {
+                largest = right;
+            }
+            if( largest == i ) {
+                return;
+            }
+            swap( indices , squaredDistances , i , largest );
+            i = largest;
+        }
+    }
+    
+    
+    /**
+     * Swaps two elements of a heap.
+     * 
+     * @param indices   indices of the points in the heap.
+     * @param squaredDistances  squared distances of the points in the heap.
+     * @param a     position of the first element.
+     * @param b     position of the second element.
+     */
+    private static void swap( int[] indices , float[] squaredDistances , int a , int b )
+    {
+        int index = indices[a];
+        indices[a] = indices[b];
+        indices[b] = index;
+        float distance = squaredDistances[a];
+        squaredDistances[a] = squaredDistances[b];
+        squaredDistances[b] = distance;
+    }
+    
+    
+    /**
+     * Clips the parameter interval of a ray to a slab along one axis.
+     * 
+     * @param origin    coordinate of the origin of the ray along the axis.
+     * @param direction     component of the direction of the ray along the axis.
+     * @param min   minimum coordinate of the slab.
+     * @param max   maximum coordinate of the slab.
+     * @param interval  interval of the ray parameter, clipped in place.
+     * @return  true if the clipped interval is not empty; false otherwise.
+     */
+    private static boolean clip( float origin , float direction , float min , float max , float[] interval )
+    {
+        if( direction == 0.0f ) {
+            return (  origin >= min  &&  origin <= max  );
+        }
+        float t0 = ( min - origin ) / direction;
+        float t1 = ( max - origin ) / direction;
+        interval[0] = Math.max( interval[0] , Math.min( t0 , t1 ) );
+        interval[1] = Math.min( interval[1] , Math.max( t0 , t1 ) );
+        return ( interval[0] <= interval[1] );
+    }
+    
+}
@@ -0,0 +1,146 @@
+package util;
+
+
+import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PShape;
+
+
+
+/**
+ * {@link PShape} of points that is created once and then updated in place from a point cloud stored in a primitive array.
+ * <p>
+ * The shape holds as many vertices as the array can hold points.
+ * Vertices that are not used by the current point cloud are collapsed onto its first point, so they are not visible.
+ * The shape is only created again when the capacity of the array changes.
+ * <p>
+ * Points are drawn with a single color, or with a color per vertex, e.g. to tell apart the cameras of a {@link FusedPointCloud}.
+ */
+public class PointCloudShape
+{
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * {@link PShape} that holds the points.
+     */
+    private PShape shape;
+    
+    /**
+     * Number of vertices of {@link #shape}.
+     */
+    private int capacity;
+    
+    /**
+     * Color used to draw the points.
+     */
+    private int strokeColor;
+    
+    /**
+     * Color used to draw each vertex, or null if all of them are drawn with {@link #strokeColor}.
+     */
+    private int[] vertexColors;
+    
+    /**
+     * Weight used to draw the points.
+     */
+    private float strokeWeight;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link PointCloudShape}.
+     * 
+     * @param color     color used to draw the points.
+     * @param weight    weight used to draw the points.
+     */
+    public PointCloudShape( int color , float weight )
+    {
+        this.strokeColor = color;
+        this.strokeWeight = weight;
+    }
+    
+    
+    /**
+     * Constructs a {@link PointCloudShape} whose vertices are drawn with different colors.
+     * 
+     * @param colors    color used to draw each vertex; its length must be the number of points that the arrays passed to {@link #update(PApplet, float[], int)} can hold.
+     * @param weight    weight used to draw the points.
+     */
+    public PointCloudShape( int[] colors , float weight )
+    {
+        this.vertexColors = colors.clone();
+        this.strokeColor = ( colors.length > 0 )? colors[0] : 0;
+        this.strokeWeight = weight;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Updates the {@link PShape} with a point cloud.
+     * <p>
+     * Must be called from the animation thread.
+     * 
+     * @param sketch    {@link PApplet} used to create the {@link PShape}.
+     * @param xyz       coordinates of the points, three per point; its length determines the number of vertices of the shape.
+     * @param count     number of points in {@code xyz}.
+     * @return  updated {@link PShape}.
+     */
+    public PShape update( PApplet sketch , float[] xyz , int count )
+    {
+        // Create the shape only if the capacity changes.
+        int newCapacity = xyz.length / 3;
+        if(  this.vertexColors != null  &&  this.vertexColors.length != newCapacity  ) {
+            throw new IllegalArgumentException( "The point cloud holds " + newCapacity + " points, but there are " + this.vertexColors.length + " colors." );
+        }
+        if(  this.shape == null  ||  this.capacity != newCapacity  ) {
+            this.shape = sketch.createShape();
+            this.shape.beginShape( PConstants.POINTS );
+            this.shape.strokeWeight( this.strokeWeight );
+            this.shape.stroke( this.strokeColor );
+            for( int k=0; k<newCapacity; k++ ) {
+                if( this.vertexColors != null ) {
+                    this.shape.stroke( this.vertexColors[k] );
+                }
+                this.shape.vertex( 0 , 0 , 0 );
+            }
+            this.shape.endShape();
+            this.capacity = newCapacity;
+        }
+        // Move the vertices in place.
+        int n = 0;
+        for( int k=0; k<count; k++ ) {
+            this.shape.setVertex( k , xyz[n] , xyz[n+1] , xyz[n+2] );
+            n += 3;
+        }
+        // Collapse the unused vertices onto the first point.
+        for( int k=count; k<this.capacity; k++ ) {
+            this.shape.setVertex( k , xyz[0] , xyz[1] , xyz[2] );
+        }
+        this.shape.setVisible( count > 0 );
+        return this.shape;
+    }
+    
+    
+    /**
+     * Returns the {@link PShape} updated in the last call to {@link #update(PApplet, float[], int)}.
+     * <p>
+     * If the shape has not been updated so far, null is returned.
+     * 
+     * @return  {@link PShape} updated in the last call to {@link #update(PApplet, float[], int)}.
+     */
+    public PShape shape()
+    {
+        return this.shape;
+    }
+    
+}
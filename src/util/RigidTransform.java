@@ -0,0 +1,174 @@
+package util;
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+
+/**
+ * Rigid transformation (rotation followed by translation) applied to point clouds stored in primitive arrays.
+ * <p>
+ * It is used to express the point cloud of each camera in a common reference frame.
+ * Transformations are read from a text file with a camera per line, given by its serial port,
+ * the translation (x, y, z) in meters, and the rotation as a unit quaternion (w, x, y, z):
+ * <pre>
+ * # port          x     y     z       qw    qx    qy    qz
+ * /dev/ttyUSB0    0.0   0.0   0.0     1.0   0.0   0.0   0.0
+ * </pre>
+ * Empty lines and lines starting with '#' are ignored.
+ */
+public class RigidTransform
+{
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Rotation matrix stored in row-major order.
+     */
+    private float[] r;
+    
+    /**
+     * Translation.
+     */
+    private float[] t;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link RigidTransform} from a translation and a rotation quaternion.
+     * <p>
+     * The quaternion is normalized.
+     * 
+     * @param tx    x component of the translation.
+     * @param ty    y component of the translation.
+     * @param tz    z component of the translation.
+     * @param qw    real part of the rotation quaternion.
+     * @param qx    i component of the rotation quaternion.
+     * @param qy    j component of the rotation quaternion.
+     * @param qz    k component of the rotation quaternion.
+     */
+    public RigidTransform( double tx , double ty , double tz , double qw , double qx , double qy , double qz )
+    {
+        double norm = Math.sqrt( qw*qw + qx*qx + qy*qy + qz*qz );
+        if( norm == 0.0 ) {
+            throw new IllegalArgumentException( "The rotation quaternion can not be zero." );
+        }
+        qw /= norm;
+        qx /= norm;
+        qy /= norm;
+        qz /= norm;
+        this.r = new float[]{
+                (float)( 1.0 - 2.0*( qy*qy + qz*qz ) ) , (float)( 2.0*( qx*qy - qw*qz ) ) , (float)( 2.0*( qx*qz + qw*qy ) ) ,
+                (float)( 2.0*( qx*qy + qw*qz ) ) , (float)( 1.0 - 2.0*( qx*qx + qz*qz ) ) , (float)( 2.0*( qy*qz - qw*qx ) ) ,
+                (float)( 2.0*( qx*qz - qw*qy ) ) , (float)( 2.0*( qy*qz + qw*qx ) ) , (float)( 1.0 - 2.0*( qx*qx + qy*qy ) ) };
+        this.t = new float[]{ (float)tx , (float)ty , (float)tz };
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns the identity transformation.
+     * 
+     * @return  identity transformation.
+     */
+    public static RigidTransform identity()
+    {
+        return new RigidTransform( 0.0 , 0.0 , 0.0 , 1.0 , 0.0 , 0.0 , 0.0 );
+    }
+    
+    
+    /**
+     * Reads the transformation of each camera from a file.
+     * 
+     * @param path  path to the file.
+     * @return  transformation of each camera, indexed by serial port.
+     * @throws IOException  if the file can not be read.
+     * @throws IllegalArgumentException     if a line is not a valid transformation.
+     */
+    public static Map<String,RigidTransform> readAll( String path ) throws IOException
+    {
+        Map<String,RigidTransform> transforms = new LinkedHashMap<String,RigidTransform>();
+        try( BufferedReader reader = new BufferedReader( new FileReader( path ) ) ) {
+            String line;
+            int lineNumber = 0;
+            while( ( line = reader.readLine() ) != null ) {
+                lineNumber++;
+                line = line.trim();
+                if(  line.isEmpty()  ||  line.startsWith( "#" )  ) {
+                    continue;
+                }
+                String[] fields = line.split( "\\s+" );
+                if( fields.length != 8 ) {
+                    throw new IllegalArgumentException( path + ":" + lineNumber + ": expected port, translation, and rotation quaternion." );
+                }
+                double[] values = new double[7];
+                try {
+                    for( int i=0; i<values.length; i++ ) {
+                        values[i] = Double.parseDouble( fields[i+1] );
+                    }
+                    transforms.put( fields[0] , new RigidTransform( values[0] , values[1] , values[2] , values[3] , values[4] , values[5] , values[6] ) );
+                } catch( IllegalArgumentException e ) {
+                    throw new IllegalArgumentException( path + ":" + lineNumber + ": " + e.getMessage() , e );
+                }
+            }
+        }
+        return transforms;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Transforms the points of a point cloud.
+     * <p>
+     * The source and the destination can be the same array if the offsets are equal.
+     * 
+     * @param src   coordinates of the points to be transformed, three per point.
+     * @param srcOffset     index in {@code src} of the first coordinate.
+     * @param dst   array where the coordinates of the transformed points are written.
+     * @param dstOffset     index in {@code dst} of the first coordinate.
+     * @param count     number of points.
+     */
+    public void transform( float[] src , int srcOffset , float[] dst , int dstOffset , int count )
+    {
+        float r00 = this.r[0];
+        float r01 = this.r[1];
+        float r02 = this.r[2];
+        float r10 = this.r[3];
+        float r11 = this.r[4];
+        float r12 = this.r[5];
+        float r20 = this.r[6];
+        float r21 = this.r[7];
+        float r22 = this.r[8];
+        float tx = this.t[0];
+        float ty = this.t[1];
+        float tz = this.t[2];
+        int end = srcOffset + 3*count;
+        int j = dstOffset;
+        for( int i=srcOffset; i<end; i+=3 ) {
+            float x = src[i];
+            float y = src[i+1];
+            float z = src[i+2];
+            dst[j++] = r00*x + r01*y + r02*z + tx;
+            dst[j++] = r10*x + r11*y + r12*z + ty;
+            dst[j++] = r20*x + r21*y + r22*z + tz;
+        }
+    }
+    
+}
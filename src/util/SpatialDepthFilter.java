@@ -0,0 +1,562 @@
+package util;
+
+
+
+/**
+ * Filters each pixel of a depth frame with its neighbors in the same frame.
+ * <p>
+ * Three modes are available:
+ * <ul>
+ *  <li>{@link #MODE_MEDIAN_3X3}: median of the valid values in the 3x3 neighborhood of the pixel.</li>
+ *  <li>{@link #MODE_MEDIAN_5X5}: median of the valid values in the 5x5 neighborhood of the pixel.</li>
+ *  <li>{@link #MODE_BILATERAL}: average of the valid values in the 5x5 neighborhood of the pixel,
+ *      weighted by their distance to the pixel and by their difference with its value, so that edges are preserved.</li>
+ * </ul>
+ * Invalid pixels (those whose raw value is 0 or 255, as in {@link MaixSenseA010DepthImageAdapter#checkPixel(int, int)}) are output unchanged,
+ * and are not used to filter their neighbors.
+ * <p>
+ * Independently of the mode, small holes can be filled before filtering:
+ * an invalid pixel with enough valid values in its 3x3 neighborhood takes their median.
+ * Since only the values of the input are used, holes wider than two pixels are not filled.
+ * <p>
+ * The medians are computed with a histogram slid along each row, the weights of the bilateral filter are tabulated, and the scratch buffers are only reallocated when the image size changes,
+ * so filtering a frame does not allocate memory.
+ * The mode can be changed from any thread; it takes effect in the next frame.
+ */
+public class SpatialDepthFilter
+    implements DepthFrameFilter
+{
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Mode in which frames are not filtered, although holes can be filled.
+     */
+    public static final int MODE_NONE = 0;
+    
+    /**
+     * Mode in which each pixel is filtered with the median of its 3x3 neighborhood.
+     */
+    public static final int MODE_MEDIAN_3X3 = 1;
+    
+    /**
+     * Mode in which each pixel is filtered with the median of its 5x5 neighborhood.
+     */
+    public static final int MODE_MEDIAN_5X5 = 2;
+    
+    /**
+     * Mode in which each pixel is filtered with a bilateral filter over its 5x5 neighborhood.
+     */
+    public static final int MODE_BILATERAL = 3;
+    
+    /**
+     * Number of modes.
+     */
+    public static final int MODES = 4;
+    
+    /**
+     * Default standard deviation in pixels of the spatial weights of the bilateral filter.
+     */
+    public static final double DEFAULT_SIGMA_SPATIAL = 1.5;
+    
+    /**
+     * Default standard deviation in raw pixel values of the range weights of the bilateral filter.
+     */
+    public static final double DEFAULT_SIGMA_RANGE = 8.0;
+    
+    /**
+     * Default minimum number of valid values in the 3x3 neighborhood of an invalid pixel for it to be filled.
+     */
+    public static final int DEFAULT_MIN_HOLE_NEIGHBORS = 4;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Radius in pixels of the neighborhood of the bilateral filter.
+     */
+    private static final int BILATERAL_RADIUS = 2;
+    
+    /**
+     * Fixed-point value of a weight equal to 1 in the bilateral filter.
+     * <p>
+     * Weights are integers so that the sums of the filter do not form a chain of floating-point additions;
+     * with 25 products of two weights and values below 256, the sums fit in an int.
+     */
+    private static final int WEIGHT_ONE = 256;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Current mode.
+     */
+    private volatile int mode;
+    
+    /**
+     * True if holes are filled before filtering.
+     */
+    private volatile boolean holeFilling;
+    
+    /**
+     * Minimum number of valid values in the 3x3 neighborhood of an invalid pixel for it to be filled.
+     */
+    private int minHoleNeighbors;
+    
+    /**
+     * Spatial weight of each offset of the neighborhood of the bilateral filter, in row-major order, in units of 1/{@link #WEIGHT_ONE}.
+     */
+    private int[] spatialWeights;
+    
+    /**
+     * Range weight between each pair of raw pixel values, indexed by {@code ( center << 8 ) + value}, in units of 1/{@link #WEIGHT_ONE}; it is 0 if any of them is invalid.
+     */
+    private int[] rangeWeights;
+    
+    /**
+     * Frame with the holes filled, used as the input of the filter.
+     */
+    private byte[] filled;
+    
+    /**
+     * Values of the neighborhood of the hole being filled, partially sorted to compute their median.
+     */
+    private int[] neighbors;
+    
+    /**
+     * Histogram of the valid values of the neighborhood of the pixel being filtered with the median.
+     */
+    private int[] histogram;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link SpatialDepthFilter} with the default parameters, in {@link #MODE_NONE} and without hole filling.
+     */
+    public SpatialDepthFilter()
+    {
+        this( DEFAULT_SIGMA_SPATIAL , DEFAULT_SIGMA_RANGE , DEFAULT_MIN_HOLE_NEIGHBORS );
+    }
+    
+    
+    /**
+     * Constructs a {@link SpatialDepthFilter}, in {@link #MODE_NONE} and without hole filling.
+     * 
+     * @param sigmaSpatial  standard deviation in pixels of the spatial weights of the bilateral filter.
+     * @param sigmaRange    standard deviation in raw pixel values of the range weights of the bilateral filter.
+     * @param minHoleNeighbors  minimum number of valid values in the 3x3 neighborhood of an invalid pixel for it to be filled, in [1,8].
+     */
+    public SpatialDepthFilter( double sigmaSpatial , double sigmaRange , int minHoleNeighbors )
+    {
+        if(  !( sigmaSpatial > 0.0 )  ||  !( sigmaRange > 0.0 )  ) {
+            throw new IllegalArgumentException( "The standard deviations of the bilateral filter must be positive." );
+        }
+        if(  minHoleNeighbors < 1  ||  minHoleNeighbors > 8  ) {
+            throw new IllegalArgumentException( "The minimum number of neighbors to fill a hole must be in [1,8]." );
+        }
+        this.mode = MODE_NONE;
+        this.holeFilling = false;
+        this.minHoleNeighbors = minHoleNeighbors;
+        int size = 2*BILATERAL_RADIUS + 1;
+        this.spatialWeights = new int[ size*size ];
+        for( int di=-BILATERAL_RADIUS; di<=BILATERAL_RADIUS; di++ ) {
+            for( int dj=-BILATERAL_RADIUS; dj<=BILATERAL_RADIUS; dj++ ) {
+                this.spatialWeights[ ( di + BILATERAL_RADIUS )*size + ( dj + BILATERAL_RADIUS ) ] = (int)Math.round( WEIGHT_ONE * Math.exp( -( di*di + dj*dj ) / ( 2.0*sigmaSpatial*sigmaSpatial ) ) );
+            }
+        }
+        this.rangeWeights = new int[ 256*256 ];
+        for( int center=1; center<255; center++ ) {
+            for( int v=1; v<255; v++ ) {
+                int d = v - center;
+                this.rangeWeights[ ( center << 8 ) + v ] = (int)Math.round( WEIGHT_ONE * Math.exp( -( d*d ) / ( 2.0*sigmaRange*sigmaRange ) ) );
+            }
+        }
+        this.filled = new byte[0];
+        this.neighbors = new int[ size*size ];
+        this.histogram = new int[256];
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns the name of a mode.
+     * 
+     * @param mode  {@link #MODE_NONE}, {@link #MODE_MEDIAN_3X3}, {@link #MODE_MEDIAN_5X5}, or {@link #MODE_BILATERAL}.
+     * @return  name of the mode.
+     */
+    public static String modeName( int mode )
+    {
+        switch( mode ) {
+            case MODE_MEDIAN_3X3:
+                return "median 3x3";
+            case MODE_MEDIAN_5X5:
+                return "median 5x5";
+            case MODE_BILATERAL:
+                return "bilateral";
+            default:
+                return "none";
+        }
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Sets the mode; it takes effect in the next frame.
+     * 
+     * @param mode  {@link #MODE_NONE}, {@link #MODE_MEDIAN_3X3}, {@link #MODE_MEDIAN_5X5}, or {@link #MODE_BILATERAL}.
+     */
+    public void setMode( int mode )
+    {
+        if(  mode < 0  ||  mode >= MODES  ) {
+            throw new IllegalArgumentException( "Unknown spatial filter mode: " + mode );
+        }
+        this.mode = mode;
+    }
+    
+    
+    /**
+     * Returns the mode.
+     * 
+     * @return  {@link #MODE_NONE}, {@link #MODE_MEDIAN_3X3}, {@link #MODE_MEDIAN_5X5}, or {@link #MODE_BILATERAL}.
+     */
+    public int getMode()
+    {
+        return this.mode;
+    }
+    
+    
+    /**
+     * Sets the next mode, in the order {@link #MODE_NONE}, {@link #MODE_MEDIAN_3X3}, {@link #MODE_MEDIAN_5X5}, {@link #MODE_BILATERAL}.
+     * 
+     * @return  the new mode.
+     */
+    public int nextMode()
+    {
+        int next = ( this.mode + 1 ) % MODES;
+        this.setMode( next );
+        return next;
+    }
+    
+    
+    /**
+     * Enables or disables the filling of small holes before filtering; it takes effect in the next frame.
+     * 
+     * @param enabled   true to fill small holes; false otherwise.
+     */
+    public void setHoleFilling( boolean enabled )
+    {
+        this.holeFilling = enabled;
+    }
+    
+    
+    /**
+     * Returns true if small holes are filled before filtering.
+     * 
+     * @return  true if small holes are filled; false otherwise.
+     */
+    public boolean isHoleFilling()
+    {
+        return this.holeFilling;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isEnabled()
+    {
+        return (  this.mode != MODE_NONE  ||  this.holeFilling  );
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public boolean filter( byte[] in , int rows , int cols , byte[] out )
+    {
+        int currentMode = this.mode;
+        boolean fill = this.holeFilling;
+        if( currentMode == MODE_NONE ) {
+            if( !fill ) {
+                return false;
+            }
+            this.fillHoles( in , rows , cols , out );
+            return true;
+        }
+        byte[] src = in;
+        if( fill ) {
+            if( this.filled.length != rows*cols ) {
+                this.filled = new byte[ rows*cols ];
+            }
+            this.fillHoles( in , rows , cols , this.filled );
+            src = this.filled;
+        }
+        switch( currentMode ) {
+            case MODE_MEDIAN_3X3:
+                this.median( src , rows , cols , 1 , out );
+                break;
+            case MODE_MEDIAN_5X5:
+                this.median( src , rows , cols , 2 , out );
+                break;
+            default:
+                this.bilateral( src , rows , cols , out );
+                break;
+        }
+        return true;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Fills the invalid pixels that have enough valid values in their 3x3 neighborhood with their median.
+     * 
+     * @param in    raw pixel values in row-major order.
+     * @param rows  number of rows of the frame.
+     * @param cols  number of columns of the frame.
+     * @param out   array where the pixel values with the holes filled are written.
+     */
+    private void fillHoles( byte[] in , int rows , int cols , byte[] out )
+    {
+        for( int i=0; i<rows; i++ ) {
+            int iMin = Math.max( i-1 , 0 );
+            int iMax = Math.min( i+1 , rows-1 );
+            for( int j=0; j<cols; j++ ) {
+                int p = i*cols + j;
+                out[p] = in[p];
+                if( ( ( in[p] - 1 ) & 0xFF ) < 254 ) {
+                    continue;
+                }
+                int jMin = Math.max( j-1 , 0 );
+                int jMax = Math.min( j+1 , cols-1 );
+                int n = this.gatherValid( in , cols , iMin , iMax , jMin , jMax );
+                if( n >= this.minHoleNeighbors ) {
+                    out[p] = (byte)select( this.neighbors , n , n/2 );
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Replaces each valid pixel with the median of the valid values in its neighborhood.
+     * <p>
+     * A histogram of the neighborhood is slid along each row, so only the values of the columns that enter and leave it are visited,
+     * and the median is moved from its previous value, which is usually close.
+     * 
+     * @param in    raw pixel values in row-major order.
+     * @param rows  number of rows of the frame.
+     * @param cols  number of columns of the frame.
+     * @param radius    radius in pixels of the neighborhood.
+     * @param out   array where the filtered pixel values are written.
+     */
+    private void median( byte[] in , int rows , int cols , int radius , byte[] out )
+    {
+        int[] histogram = this.histogram;
+        for( int i=0; i<rows; i++ ) {
+            int iMin = Math.max( i-radius , 0 );
+            int iMax = Math.min( i+radius , rows-1 );
+            for( int v=0; v<256; v++ ) {
+                histogram[v] = 0;
+            }
+            int count = 0;
+            int median = 0;
+            // Number of values of the neighborhood smaller than the median.
+            int below = 0;
+            for( int j=-radius; j<cols; j++ ) {
+                // Add the column that enters the neighborhood,
+                int added = j + radius;
+                if( added < cols ) {
+                    for( int ii=iMin; ii<=iMax; ii++ ) {
+                        int v = in[ ii*cols + added ] & 0xFF;
+                        if( ( ( v - 1 ) & 0xFF ) < 254 ) {
+                            histogram[v]++;
+                            count++;
+                            if( v < median ) {
+                                below++;
+                            }
+                        }
+                    }
+                }
+                // and remove the one that leaves it.
+                int removed = j - radius - 1;
+                if( removed >= 0 ) {
+                    for( int ii=iMin; ii<=iMax; ii++ ) {
+                        int v = in[ ii*cols + removed ] & 0xFF;
+                        if( ( ( v - 1 ) & 0xFF ) < 254 ) {
+                            histogram[v]--;
+                            count--;
+                            if( v < median ) {
+                                below--;
+                            }
+                        }
+                    }
+                }
+                if( j < 0 ) {
+                    continue;
+                }
+                int p = i*cols + j;
+                if( ( ( in[p] - 1 ) & 0xFF ) >= 254 ) {
+                    out[p] = in[p];
+                    continue;
+                }
+                // Move the median to the value of rank count/2; the neighborhood contains at least the pixel itself.
+                int k = count >>> 1;
+                while( below > k ) {
+                    median--;
+                    below -= histogram[median];
+                }
+                while( below + histogram[median] <= k ) {
+                    below += histogram[median];
+                    median++;
+                }
+                out[p] = (byte)median;
+            }
+        }
+    }
+    
+    
+    /**
+     * Replaces each valid pixel with the average of the valid values in its neighborhood, weighted by distance and by difference of value.
+     * 
+     * @param in    raw pixel values in row-major order.
+     * @param rows  number of rows of the frame.
+     * @param cols  number of columns of the frame.
+     * @param out   array where the filtered pixel values are written.
+     */
+    private void bilateral( byte[] in , int rows , int cols , byte[] out )
+    {
+        int size = 2*BILATERAL_RADIUS + 1;
+        int[] spatial = this.spatialWeights;
+        int[] range = this.rangeWeights;
+        for( int i=0; i<rows; i++ ) {
+            int iMin = Math.max( i-BILATERAL_RADIUS , 0 );
+            int iMax = Math.min( i+BILATERAL_RADIUS , rows-1 );
+            for( int j=0; j<cols; j++ ) {
+                int p = i*cols + j;
+                int center = in[p] & 0xFF;
+                if( ( ( center - 1 ) & 0xFF ) >= 254 ) {
+                    out[p] = in[p];
+                    continue;
+                }
+                int jMin = Math.max( j-BILATERAL_RADIUS , 0 );
+                int jMax = Math.min( j+BILATERAL_RADIUS , cols-1 );
+                // Row of the range weights of the value of the pixel; invalid values weigh 0, so no branches are needed.
+                int rangeRow = center << 8;
+                int weightSum = 0;
+                int valueSum = 0;
+                for( int ii=iMin; ii<=iMax; ii++ ) {
+                    int row = ii*cols;
+                    int spatialRow = ( ii - i + BILATERAL_RADIUS )*size + BILATERAL_RADIUS - j;
+                    for( int jj=jMin; jj<=jMax; jj++ ) {
+                        int v = in[ row + jj ] & 0xFF;
+                        int w = spatial[ spatialRow + jj ] * range[ rangeRow + v ];
+                        weightSum += w;
+                        valueSum += w * v;
+                    }
+                }
+                // The weight of the pixel itself is 1, so the sum is never 0.
+                out[p] = (byte)( ( valueSum + ( weightSum >>> 1 ) ) / weightSum );
+            }
+        }
+    }
+    
+    
+    /**
+     * Copies the valid values of a rectangular neighborhood into {@link #neighbors}.
+     * 
+     * @param in    raw pixel values in row-major order.
+     * @param cols  number of columns of the frame.
+     * @param iMin  first row of the neighborhood.
+     * @param iMax  last row of the neighborhood.
+     * @param jMin  first column of the neighborhood.
+     * @param jMax  last column of the neighborhood.
+     * @return  number of valid values.
+     */
+    private int gatherValid( byte[] in , int cols , int iMin , int iMax , int jMin , int jMax )
+    {
+        int n = 0;
+        for( int ii=iMin; ii<=iMax; ii++ ) {
+            int row = ii*cols;
+            for( int jj=jMin; jj<=jMax; jj++ ) {
+                int v = in[ row + jj ] & 0xFF;
+                if( ( ( v - 1 ) & 0xFF ) < 254 ) {
+                    this.neighbors[n++] = v;
+                }
+            }
+        }
+        return n;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns the k-th smallest of some values, reordering them.
+     * 
+     * @param values    array that holds the values.
+     * @param n     number of values, which must be positive.
+     * @param k     rank of the returned value, in [0,n).
+     * @return  k-th smallest value.
+     */
+    private static int select( int[] values , int n , int k )
+    {
+        int left = 0;
+        int right = n - 1;
+        while( left < right ) {
+            // Partition around the middle value (Hoare), and keep the side that contains k.
+            int pivot = values[ ( left + right ) >>> 1 ];
+            int a = left;
+            int b = right;
+            while( a <= b ) {
+                while( values[a] < pivot ) {
+                    a++;
+                }
+                while( values[b] > pivot ) {
+                    b--;
+                }
+                if( a <= b ) {
+                    int t = values[a];
+                    values[a] = values[b];
+                    values[b] = t;
+                    a++;
+                    b--;
+                }
+            }
+            if( k <= b ) {
+                right = b;
+            } else if( k >= a ) {
+                left = a;
+            } else {
+                return values[k];
+            }
+        }
+        return values[k];
+    }
+    
+}
@@ -0,0 +1,236 @@
+package util;
+
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+
+/**
+ * Splits the rows of a frame in stripes, and processes them in parallel on a {@link ForkJoinPool} shared by every executor.
+ * <p>
+ * Since the pool is shared, the frames of several cameras processed at the same time are spread over all the cores,
+ * instead of saturating the thread that delivers the images of each camera.
+ * The stripes are given by tasks that write disjoint regions of preallocated outputs.
+ * The actions submitted to the pool are reused, so processing a frame does not allocate memory.
+ * <p>
+ * Each executor must be used from one thread at a time, e.g., the thread that delivers the images of a camera.
+ * With a single stripe, the task is run directly in the calling thread.
+ */
+public class StripeExecutor
+{
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Pool shared by every executor, with a thread per core.
+     */
+    private static final ForkJoinPool POOL = new ForkJoinPool( Runtime.getRuntime().availableProcessors() );
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Maximum number of stripes in which a frame is split.
+     */
+    private volatile int stripeCount;
+    
+    /**
+     * Action that processes each stripe of the current frame.
+     */
+    private StripeAction[] stripes;
+    
+    /**
+     * Action that forks the stripes of the current frame and waits for them.
+     */
+    private FrameAction frame;
+    
+    /**
+     * Task executed on the current frame.
+     */
+    private StripeTask task;
+    
+    /**
+     * Number of stripes of the current frame.
+     */
+    private int currentStripeCount;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link StripeExecutor}.
+     * 
+     * @param stripes   maximum number of stripes in which a frame is split; 1 processes frames in the calling thread.
+     */
+    public StripeExecutor( int stripes )
+    {
+        this.setStripeCount( stripes );
+        this.stripes = new StripeAction[0];
+        this.frame = new FrameAction();
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Sets the maximum number of stripes in which a frame is split; it takes effect in the next frame.
+     * 
+     * @param stripes   maximum number of stripes; 1 processes frames in the calling thread.
+     */
+    public void setStripeCount( int stripes )
+    {
+        if( stripes < 1 ) {
+            throw new IllegalArgumentException( "The number of stripes must be positive." );
+        }
+        this.stripeCount = stripes;
+    }
+    
+    
+    /**
+     * Returns the maximum number of stripes in which a frame is split.
+     * 
+     * @return  maximum number of stripes.
+     */
+    public int getStripeCount()
+    {
+        return this.stripeCount;
+    }
+    
+    
+    /**
+     * Executes a task on every stripe of a frame, and waits for all of them to finish.
+     * <p>
+     * Stripe {@code s} of {@code n} covers the rows from {@code s*rows/n} to {@code (s+1)*rows/n}, so stripes are in row order.
+     * 
+     * @param rows  number of rows of the frame.
+     * @param stripeTask    task executed on each stripe.
+     * @return  number of stripes in which the frame was split, never greater than {@code rows} (unless {@code rows} is 0).
+     */
+    public int execute( int rows , StripeTask stripeTask )
+    {
+        int n = Math.min( this.stripeCount , rows );
+        if( n <= 1 ) {
+            stripeTask.processStripe( 0 , 0 , rows );
+            return 1;
+        }
+        if( this.stripes.length < n ) {
+            StripeAction[] actions = new StripeAction[ n ];
+            for( int s=0; s<n; s++ ) {
+                actions[s] = new StripeAction();
+            }
+            this.stripes = actions;
+        }
+        for( int s=0; s<n; s++ ) {
+            this.stripes[s].rowStart = s*rows/n;
+            this.stripes[s].rowEnd = (s+1)*rows/n;
+            this.stripes[s].stripe = s;
+        }
+        this.task = stripeTask;
+        this.currentStripeCount = n;
+        this.frame.reinitialize();
+        try {
+            POOL.invoke( this.frame );
+        } finally {
+            this.task = null;
+        }
+        return n;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CLASSES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Forks the stripes of the current frame, processing the first one itself, and waits for the rest.
+     */
+    private class FrameAction
+        extends RecursiveAction
+    {
+        // PRIVATE CONSTANTS
+        
+        /**
+         * Serial version, since {@link RecursiveAction} is serializable.
+         */
+        private static final long serialVersionUID = 1L;
+        
+        
+        // PROTECTED METHODS
+        
+        /**
+         * {@inheritDoc}
+         */
+        protected void compute()
+        {
+            StripeAction[] actions = StripeExecutor.this.stripes;
+            int n = StripeExecutor.this.currentStripeCount;
+            for( int s=1; s<n; s++ ) {
+                actions[s].reinitialize();
+                actions[s].fork();
+            }
+            actions[0].compute();
+            for( int s=1; s<n; s++ ) {
+                actions[s].join();
+            }
+        }
+        
+    }
+    
+    
+    /**
+     * Processes a stripe of the current frame.
+     */
+    private class StripeAction
+        extends RecursiveAction
+    {
+        // PRIVATE CONSTANTS
+        
+        /**
+         * Serial version, since {@link RecursiveAction} is serializable.
+         */
+        private static final long serialVersionUID = 1L;
+        
+        
+        // PRIVATE VARIABLES
+        
+        /**
+         * Index of the stripe.
+         */
+        private int stripe;
+        
+        /**
+         * First row of the stripe.
+         */
+        private int rowStart;
+        
+        /**
+         * Row after the last row of the stripe.
+         */
+        private int rowEnd;
+        
+        
+        // PROTECTED METHODS
+        
+        /**
+         * {@inheritDoc}
+         */
+        protected void compute()
+        {
+            StripeExecutor.this.task.processStripe( this.stripe , this.rowStart , this.rowEnd );
+        }
+        
+    }
+    
+}
@@ -0,0 +1,22 @@
+package util;
+
+
+
+/**
+ * Work done on a stripe of consecutive rows of a frame, as executed by {@link StripeExecutor}.
+ */
+public interface StripeTask
+{
+    
+    /**
+     * Processes the rows of a stripe.
+     * <p>
+     * Stripes of the same frame can be processed concurrently, so each one must only write its own region of the output.
+     * 
+     * @param stripe    index of the stripe.
+     * @param rowStart  first row of the stripe.
+     * @param rowEnd    row after the last row of the stripe.
+     */
+    public void processStripe( int stripe , int rowStart , int rowEnd );
+    
+}
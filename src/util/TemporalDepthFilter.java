@@ -0,0 +1,383 @@
+package util;
+
+
+
+/**
+ * Filters each pixel of a depth frame with its values in the previous frames.
+ * <p>
+ * Two modes are available:
+ * <ul>
+ *  <li>{@link #MODE_EMA}: exponential moving average of the valid values of the pixel.</li>
+ *  <li>{@link #MODE_MEDIAN}: median of the valid values of the pixel in the last frames.</li>
+ * </ul>
+ * In both modes, a valid value that differs from the current estimate more than the outlier threshold is rejected, and the estimate is output instead.
+ * If a pixel is rejected in too many consecutive frames, its state is reset, since the scene has probably changed.
+ * Invalid values are output unchanged, and do not update the state of the pixel.
+ * <p>
+ * The state is stored in primitive arrays that are only reallocated when the image size changes (i.e., when the binning changes),
+ * so filtering a frame takes time proportional to the number of pixels and does not allocate memory.
+ * The mode can be changed from any thread; the state is reset when the change takes effect.
+ */
+public class TemporalDepthFilter
+    implements DepthFrameFilter
+{
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Mode in which frames are not filtered.
+     */
+    public static final int MODE_NONE = 0;
+    
+    /**
+     * Mode in which each pixel is filtered with an exponential moving average.
+     */
+    public static final int MODE_EMA = 1;
+    
+    /**
+     * Mode in which each pixel is filtered with the median of a sliding window.
+     */
+    public static final int MODE_MEDIAN = 2;
+    
+    /**
+     * Number of modes.
+     */
+    public static final int MODES = 3;
+    
+    /**
+     * Default weight of the new value in the exponential moving average.
+     */
+    public static final double DEFAULT_ALPHA = 0.3;
+    
+    /**
+     * Default number of frames of the sliding window.
+     */
+    public static final int DEFAULT_WINDOW = 5;
+    
+    /**
+     * Default maximum difference in raw pixel values between a value and the estimate for the value not to be rejected.
+     */
+    public static final int DEFAULT_OUTLIER_THRESHOLD = 20;
+    
+    /**
+     * Maximum number of frames of the sliding window.
+     */
+    public static final int MAX_WINDOW = 15;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Number of consecutive frames in which a pixel can be rejected before its state is reset.
+     */
+    private static final int MAX_CONSECUTIVE_REJECTIONS = 3;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Weight of the new value in the exponential moving average.
+     */
+    private float alpha;
+    
+    /**
+     * Number of frames of the sliding window.
+     */
+    private int window;
+    
+    /**
+     * Maximum difference between a value and the estimate for the value not to be rejected; 0 disables the outlier rejection.
+     */
+    private int outlierThreshold;
+    
+    /**
+     * Mode requested with {@link #setMode(int)}.
+     */
+    private volatile int requestedMode;
+    
+    /**
+     * Mode in which the state was computed.
+     */
+    private int mode;
+    
+    /**
+     * Estimate of each pixel, or a negative value if the pixel has no estimate.
+     */
+    private float[] estimate;
+    
+    /**
+     * Last values of each pixel, {@link #window} per pixel; 0 marks an empty slot.
+     */
+    private byte[] history;
+    
+    /**
+     * Number of consecutive frames in which each pixel has been rejected.
+     */
+    private byte[] rejections;
+    
+    /**
+     * Slot of the sliding window written in the current frame.
+     */
+    private int slot;
+    
+    /**
+     * Values of the sliding window of the pixel being filtered, sorted to compute their median.
+     */
+    private int[] sorted;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link TemporalDepthFilter} with the default parameters, in {@link #MODE_NONE}.
+     */
+    public TemporalDepthFilter()
+    {
+        this( DEFAULT_ALPHA , DEFAULT_WINDOW , DEFAULT_OUTLIER_THRESHOLD );
+    }
+    
+    
+    /**
+     * Constructs a {@link TemporalDepthFilter}, in {@link #MODE_NONE}.
+     * 
+     * @param alpha     weight of the new value in the exponential moving average, in (0,1].
+     * @param window    number of frames of the sliding window, in [1,{@link #MAX_WINDOW}].
+     * @param outlierThreshold  maximum difference in raw pixel values between a value and the estimate for the value not to be rejected; 0 disables the outlier rejection.
+     */
+    public TemporalDepthFilter( double alpha , int window , int outlierThreshold )
+    {
+        if(  !( alpha > 0.0 )  ||  alpha > 1.0  ) {
+            throw new IllegalArgumentException( "The weight of the exponential moving average must be in (0,1]." );
+        }
+        if(  window < 1  ||  window > MAX_WINDOW  ) {
+            throw new IllegalArgumentException( "The sliding window must have between 1 and " + MAX_WINDOW + " frames." );
+        }
+        if( outlierThreshold < 0 ) {
+            throw new IllegalArgumentException( "The outlier threshold can not be negative." );
+        }
+        this.alpha = (float)alpha;
+        this.window = window;
+        this.outlierThreshold = outlierThreshold;
+        this.requestedMode = MODE_NONE;
+        this.mode = MODE_NONE;
+        this.estimate = new float[0];
+        this.history = new byte[0];
+        this.rejections = new byte[0];
+        this.sorted = new int[ window ];
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns the name of a mode.
+     * 
+     * @param mode  {@link #MODE_NONE}, {@link #MODE_EMA}, or {@link #MODE_MEDIAN}.
+     * @return  name of the mode.
+     */
+    public static String modeName( int mode )
+    {
+        switch( mode ) {
+            case MODE_EMA:
+                return "EMA";
+            case MODE_MEDIAN:
+                return "median";
+            default:
+                return "none";
+        }
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Sets the mode; it takes effect in the next frame.
+     * 
+     * @param mode  {@link #MODE_NONE}, {@link #MODE_EMA}, or {@link #MODE_MEDIAN}.
+     */
+    public void setMode( int mode )
+    {
+        if(  mode < 0  ||  mode >= MODES  ) {
+            throw new IllegalArgumentException( "Unknown temporal filter mode: " + mode );
+        }
+        this.requestedMode = mode;
+    }
+    
+    
+    /**
+     * Returns the mode.
+     * 
+     * @return  {@link #MODE_NONE}, {@link #MODE_EMA}, or {@link #MODE_MEDIAN}.
+     */
+    public int getMode()
+    {
+        return this.requestedMode;
+    }
+    
+    
+    /**
+     * Sets the next mode, in the order {@link #MODE_NONE}, {@link #MODE_EMA}, {@link #MODE_MEDIAN}.
+     * 
+     * @return  the new mode.
+     */
+    public int nextMode()
+    {
+        int next = ( this.requestedMode + 1 ) % MODES;
+        this.setMode( next );
+        return next;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     * <p>
+     * It stays enabled for one more frame after {@link #MODE_NONE} is set, so the state is reset if another mode is set later.
+     */
+    public boolean isEnabled()
+    {
+        return (  this.requestedMode != MODE_NONE  ||  this.mode != MODE_NONE  );
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public boolean filter( byte[] in , int rows , int cols , byte[] out )
+    {
+        int pixels = rows * cols;
+        int requested = this.requestedMode;
+        if(  requested != this.mode  ||  this.estimate.length != pixels  ) {
+            this.mode = requested;
+            this.resize( pixels );
+        }
+        if( this.mode == MODE_NONE ) {
+            return false;
+        }
+        boolean median = ( this.mode == MODE_MEDIAN );
+        for( int p=0; p<pixels; p++ ) {
+            int value = in[p] & 0xFF;
+            if(  value == 0  ||  value == 255  ) {
+                // Invalid values do not update the state.
+                out[p] = in[p];
+                if( median ) {
+                    this.history[ p*this.window + this.slot ] = 0;
+                }
+                continue;
+            }
+            float current = this.estimate[p];
+            if(  this.outlierThreshold > 0  &&  current >= 0.0f  &&  Math.abs( value - current ) > this.outlierThreshold  ) {
+                if( this.rejections[p] < MAX_CONSECUTIVE_REJECTIONS ) {
+                    // Reject the value, and keep the estimate.
+                    this.rejections[p]++;
+                    out[p] = (byte)Math.round( current );
+                    if( median ) {
+                        this.history[ p*this.window + this.slot ] = 0;
+                    }
+                    continue;
+                }
+                // The value has been rejected for too long: start again from it.
+                this.resetPixel( p );
+                current = -1.0f;
+            }
+            this.rejections[p] = 0;
+            if( median ) {
+                this.history[ p*this.window + this.slot ] = (byte)value;
+                current = this.medianOf( p );
+            } else if( current < 0.0f ) {
+                current = value;
+            } else {
+                current += this.alpha * ( value - current );
+            }
+            this.estimate[p] = current;
+            out[p] = (byte)Math.round( current );
+        }
+        this.slot = ( this.slot + 1 ) % this.window;
+        return true;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Resets the state of every pixel, reallocating the arrays if the number of pixels changed.
+     * 
+     * @param pixels    number of pixels of the frames.
+     */
+    private void resize( int pixels )
+    {
+        if( this.estimate.length != pixels ) {
+            this.estimate = new float[ pixels ];
+            this.history = new byte[ pixels * this.window ];
+            this.rejections = new byte[ pixels ];
+        }
+        for( int p=0; p<pixels; p++ ) {
+            this.resetPixel( p );
+        }
+        this.slot = 0;
+    }
+    
+    
+    /**
+     * Resets the state of a pixel.
+     * 
+     * @param p     index of the pixel.
+     */
+    private void resetPixel( int p )
+    {
+        this.estimate[p] = -1.0f;
+        this.rejections[p] = 0;
+        int start = p * this.window;
+        for( int k=0; k<this.window; k++ ) {
+            this.history[ start + k ] = 0;
+        }
+    }
+    
+    
+    /**
+     * Returns the median of the values in the sliding window of a pixel, which must contain at least one value.
+     * 
+     * @param p     index of the pixel.
+     * @return  median of the values in the sliding window of the pixel.
+     */
+    private float medianOf( int p )
+    {
+        int start = p * this.window;
+        int n = 0;
+        for( int k=0; k<this.window; k++ ) {
+            int v = this.history[ start + k ] & 0xFF;
+            if( v != 0 ) {
+                // Insertion sort; the window is short.
+                int i = n++;
+                while(  i > 0  &&  this.sorted[i-1] > v  ) {
+                    this.sorted[i] = this.sorted[i-1];
+                    i--;
+                }
+                this.sorted[i] = v;
+            }
+        }
+        if( ( n & 1 ) == 1 ) {
+            return this.sorted[ n/2 ];
+        }
+        return 0.5f * ( this.sorted[ n/2 - 1 ] + this.sorted[ n/2 ] );
+    }
+    
+}
@@ -0,0 +1,232 @@
+package util;
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+
+/**
+ * Lock-free exchanger of data between a producer thread and a consumer thread.
+ * <p>
+ * Three slots are held: the back slot, owned by the producer; the front slot, owned by the consumer;
+ * and the middle slot, which holds the last published data not yet taken by the consumer.
+ * The producer writes into {@link #back()} and calls {@link #publish()}, which swaps the back and middle slots.
+ * The consumer calls {@link #update()}, which swaps the front and middle slots if new data has been published, and reads {@link #front()}.
+ * Neither thread ever blocks or allocates memory; if the producer is faster than the consumer, intermediate data is overwritten.
+ * <p>
+ * A timestamp can be published along with the data (see {@link #publish(long)}), for instance to measure the latency until it is consumed.
+ * 
+ * @param <T>   type of the data held in the slots.
+ */
+public class TripleBuffer<T>
+{
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Bit of {@link #middle} set when the middle slot holds data not yet taken by the consumer.
+     */
+    private static final int FRESH = 4;
+    
+    /**
+     * Mask that extracts the index of the middle slot from {@link #middle}.
+     */
+    private static final int INDEX_MASK = 3;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Slots.
+     */
+    private Object[] slots;
+    
+    /**
+     * Timestamp published with each slot.
+     */
+    private long[] timestamps;
+    
+    /**
+     * Index of the middle slot, and {@link #FRESH} bit.
+     */
+    private AtomicInteger middle;
+    
+    /**
+     * Index of the back slot; only accessed by the producer.
+     */
+    private int back;
+    
+    /**
+     * Index of the front slot; only accessed by the consumer.
+     */
+    private int front;
+    
+    /**
+     * Number of times {@link #publish()} has been called; only accessed by the producer.
+     */
+    private long published;
+    
+    /**
+     * Number of times {@link #update()} has taken new data; only accessed by the consumer.
+     */
+    private long taken;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link TripleBuffer} with three slots.
+     * <p>
+     * Initially, {@code a} is the front slot, {@code b} the middle slot, and {@code c} the back slot.
+     * 
+     * @param a     first slot.
+     * @param b     second slot.
+     * @param c     third slot.
+     */
+    public TripleBuffer( T a , T b , T c )
+    {
+        this.slots = new Object[]{ a , b , c };
+        this.timestamps = new long[ 3 ];
+        this.front = 0;
+        this.middle = new AtomicInteger( 1 );
+        this.back = 2;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns the back slot, where the producer writes the data to be published.
+     * <p>
+     * Must only be called from the producer thread.
+     * 
+     * @return  back slot.
+     */
+    @SuppressWarnings("unchecked")
+    public T back()
+    {
+        return (T)this.slots[ this.back ];
+    }
+    
+    
+    /**
+     * Replaces the object held in the back slot.
+     * <p>
+     * Useful when the data no longer fits in the object held in the back slot.
+     * Must only be called from the producer thread.
+     * 
+     * @param value     new object for the back slot.
+     */
+    public void replaceBack( T value )
+    {
+        this.slots[ this.back ] = value;
+    }
+    
+    
+    /**
+     * Publishes the data written in the back slot, with a timestamp of 0.
+     * <p>
+     * Must only be called from the producer thread.
+     */
+    public void publish()
+    {
+        this.publish( 0 );
+    }
+    
+    
+    /**
+     * Publishes the data written in the back slot, with a timestamp.
+     * <p>
+     * Must only be called from the producer thread.
+     * 
+     * @param timestamp     timestamp returned by {@link #frontTimestamp()} once the consumer takes the data.
+     */
+    public void publish( long timestamp )
+    {
+        this.timestamps[ this.back ] = timestamp;
+        this.back = this.middle.getAndSet( this.back | FRESH ) & INDEX_MASK;
+        this.published++;
+    }
+    
+    
+    /**
+     * Takes the last published data, if any has been published since the last call.
+     * <p>
+     * Must only be called from the consumer thread.
+     * 
+     * @return  true if {@link #front()} changed; false otherwise.
+     */
+    public boolean update()
+    {
+        if( ( this.middle.get() & FRESH ) == 0 ) {
+            return false;
+        }
+        this.front = this.middle.getAndSet( this.front ) & INDEX_MASK;
+        this.taken++;
+        return true;
+    }
+    
+    
+    /**
+     * Returns the front slot, which holds the data taken in the last call to {@link #update()}.
+     * <p>
+     * Must only be called from the consumer thread.
+     * 
+     * @return  front slot.
+     */
+    @SuppressWarnings("unchecked")
+    public T front()
+    {
+        return (T)this.slots[ this.front ];
+    }
+    
+    
+    /**
+     * Returns the timestamp published with the front slot.
+     * <p>
+     * Must only be called from the consumer thread.
+     * 
+     * @return  timestamp published with the data taken in the last call to {@link #update()}.
+     */
+    public long frontTimestamp()
+    {
+        return this.timestamps[ this.front ];
+    }
+    
+    
+    /**
+     * Returns the number of times data has been published.
+     * <p>
+     * Must only be called from the producer thread.
+     * 
+     * @return  number of times data has been published.
+     */
+    public long publishedCount()
+    {
+        return this.published;
+    }
+    
+    
+    /**
+     * Returns the number of times the consumer has taken new data.
+     * <p>
+     * Must only be called from the consumer thread.
+     * 
+     * @return  number of times the consumer has taken new data.
+     */
+    public long takenCount()
+    {
+        return this.taken;
+    }
+    
+}
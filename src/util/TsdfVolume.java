@@ -0,0 +1,564 @@
+package util;
+
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+
+
+/**
+ * Volume that accumulates the depth images of a stationary camera into a truncated signed distance function (TSDF).
+ * <p>
+ * The volume is a cube of {@code resolution^3} voxels, axis-aligned in the reference frame of the camera.
+ * Each voxel holds the weighted average of its signed distance to the observed surface along the ray of the pixel it projects onto,
+ * divided by the truncation distance and clamped to [-1,1], and the weight of that average, capped so that the volume adapts to changes of the scene.
+ * Both are stored in flat arrays outside the Java heap, indexed by {@code ( iz*resolution + iy )*resolution + ix}.
+ * <p>
+ * Voxels are projected onto the image by inverting the unit-depth rays of {@link MaixSenseA010PointCloudProjector}:
+ * the pixel coordinates are fitted as an affine function of the ray direction ({@code x/z}, {@code y/z}), which is exact for a pinhole calibration,
+ * and the depth of a voxel is measured along the ray of its pixel, as the depth of the image.
+ * <p>
+ * With a {@link StripeExecutor}, the slices of the volume (the planes of constant {@code iz}) are split in groups integrated in parallel.
+ * Integrating an image does not allocate memory unless the image size changes.
+ */
+public class TsdfVolume
+{
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Default truncation distance, in voxels.
+     */
+    public static final float DEFAULT_TRUNCATION_VOXELS = 4.0f;
+    
+    /**
+     * Default maximum weight of a voxel, in images.
+     */
+    public static final float DEFAULT_MAX_WEIGHT = 64.0f;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Number of voxels along each axis.
+     */
+    private int resolution;
+    
+    /**
+     * Edge length of the voxels.
+     */
+    private float voxelSize;
+    
+    /**
+     * x coordinate of the corner of the volume with the lowest coordinates.
+     */
+    private float originX;
+    
+    /**
+     * y coordinate of the corner of the volume with the lowest coordinates.
+     */
+    private float originY;
+    
+    /**
+     * z coordinate of the corner of the volume with the lowest coordinates.
+     */
+    private float originZ;
+    
+    /**
+     * Distance at which the signed distances are truncated.
+     */
+    private float truncation;
+    
+    /**
+     * Maximum weight of a voxel.
+     */
+    private float maxWeight;
+    
+    /**
+     * Truncated signed distance of each voxel, divided by {@link #truncation}.
+     */
+    private FloatBuffer distances;
+    
+    /**
+     * Weight of each voxel; 0 if the voxel has not been observed.
+     */
+    private FloatBuffer weights;
+    
+    /**
+     * Integrates {@link #integrationTask} on groups of slices, or null to integrate the whole volume in the calling thread.
+     */
+    private StripeExecutor executor;
+    
+    /**
+     * Task that integrates a group of slices of the volume.
+     */
+    private StripeTask integrationTask;
+    
+    /**
+     * Unit-depth rays for which the projection was fitted.
+     */
+    private float[] projectionRays;
+    
+    /**
+     * Number of rows (and columns) of the images for which the projection was fitted.
+     */
+    private int projectionSize;
+    
+    /**
+     * Coefficients of the column as a function of the ray direction: {@code col = c[0] + c[1]*x/z + c[2]*y/z}.
+     */
+    private double[] columnCoefficients;
+    
+    /**
+     * Coefficients of the row as a function of the ray direction: {@code row = r[0] + r[1]*x/z + r[2]*y/z}.
+     */
+    private double[] rowCoefficients;
+    
+    /**
+     * Inverse of the z coordinate of the unit-depth ray of each pixel.
+     */
+    private float[] inverseRayZ;
+    
+    /**
+     * Length of the unit-depth ray of each pixel.
+     */
+    private float[] rayLengths;
+    
+    /**
+     * Depth of each pixel of the image being integrated, or 0 if the pixel is not valid.
+     */
+    private float[] depths;
+    
+    /**
+     * Validity of each pixel of the image being integrated.
+     */
+    private boolean[] validity;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link TsdfVolume} with the default truncation distance and maximum weight.
+     * 
+     * @param voxelsPerAxis     number of voxels along each axis.
+     * @param voxelEdge     edge length of the voxels.
+     * @param cornerX   x coordinate of the corner of the volume with the lowest coordinates.
+     * @param cornerY   y coordinate of the corner of the volume with the lowest coordinates.
+     * @param cornerZ   z coordinate of the corner of the volume with the lowest coordinates.
+     */
+    public TsdfVolume( int voxelsPerAxis , float voxelEdge , float cornerX , float cornerY , float cornerZ )
+    {
+        this( voxelsPerAxis , voxelEdge , cornerX , cornerY , cornerZ , DEFAULT_TRUNCATION_VOXELS * voxelEdge , DEFAULT_MAX_WEIGHT );
+    }
+    
+    
+    /**
+     * Constructs a {@link TsdfVolume}.
+     * 
+     * @param voxelsPerAxis     number of voxels along each axis.
+     * @param voxelEdge     edge length of the voxels.
+     * @param cornerX   x coordinate of the corner of the volume with the lowest coordinates.
+     * @param cornerY   y coordinate of the corner of the volume with the lowest coordinates.
+     * @param cornerZ   z coordinate of the corner of the volume with the lowest coordinates.
+     * @param truncationDistance    distance at which the signed distances are truncated.
+     * @param maximumWeight     maximum weight of a voxel, in images.
+     */
+    public TsdfVolume( int voxelsPerAxis , float voxelEdge , float cornerX , float cornerY , float cornerZ , float truncationDistance , float maximumWeight )
+    {
+        if(  voxelsPerAxis < 1  ||  (long)voxelsPerAxis * voxelsPerAxis * voxelsPerAxis > Integer.MAX_VALUE / 4  ) {
+            throw new IllegalArgumentException( "Unsupported volume resolution: " + voxelsPerAxis );
+        }
+        if(  !( voxelEdge > 0.0f )  ||  !( truncationDistance > 0.0f )  ||  !( maximumWeight >= 1.0f )  ) {
+            throw new IllegalArgumentException( "The voxel size and the truncation distance must be positive, and the maximum weight at least 1." );
+        }
+        this.resolution = voxelsPerAxis;
+        this.voxelSize = voxelEdge;
+        this.originX = cornerX;
+        this.originY = cornerY;
+        this.originZ = cornerZ;
+        this.truncation = truncationDistance;
+        this.maxWeight = maximumWeight;
+        int voxels = voxelsPerAxis * voxelsPerAxis * voxelsPerAxis;
+        this.distances = ByteBuffer.allocateDirect( 4*voxels ).order( ByteOrder.nativeOrder() ).asFloatBuffer();
+        this.weights = ByteBuffer.allocateDirect( 4*voxels ).order( ByteOrder.nativeOrder() ).asFloatBuffer();
+        this.integrationTask = this::integrateSlices;
+        this.projectionSize = -1;
+        this.depths = new float[0];
+        this.validity = new boolean[0];
+        this.reset();
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Sets the executor used to integrate the slices of the volume in parallel.
+     * <p>
+     * It must not be used by other threads while images are being integrated.
+     * 
+     * @param stripeExecutor    executor used to integrate the slices in parallel, or null to integrate them in the calling thread.
+     */
+    public void setStripeExecutor( StripeExecutor stripeExecutor )
+    {
+        this.executor = stripeExecutor;
+    }
+    
+    
+    /**
+     * Marks every voxel as not observed.
+     */
+    public void reset()
+    {
+        int voxels = this.distances.capacity();
+        for( int v=0; v<voxels; v++ ) {
+            this.distances.put( v , 1.0f );
+            this.weights.put( v , 0.0f );
+        }
+    }
+    
+    
+    /**
+     * Integrates a depth image.
+     * 
+     * @param image     depth image to be integrated; it must be square.
+     * @param unitDepthRays     unit-depth rays of the pixels of the image, as returned by {@link MaixSenseA010PointCloudProjector#unitDepthRays(int)}.
+     */
+    public void integrate( MaixSenseA010DepthImageAdapter image , float[] unitDepthRays )
+    {
+        int rows = image.rows();
+        int cols = image.cols();
+        int pixels = rows * cols;
+        if( rows != cols ) {
+            throw new IllegalArgumentException( "Only square images can be integrated: " + rows + "x" + cols );
+        }
+        if(  unitDepthRays != this.projectionRays  ||  cols != this.projectionSize  ) {
+            this.fitProjection( unitDepthRays , cols );
+        }
+        // Decode the depths, with invalid pixels set to 0.
+        if( this.depths.length != pixels ) {
+            this.depths = new float[ pixels ];
+            this.validity = new boolean[ pixels ];
+        }
+        image.depthsInto( this.depths );
+        image.validityMaskInto( this.validity );
+        for( int k=0; k<pixels; k++ ) {
+            if( !this.validity[k] ) {
+                this.depths[k] = 0.0f;
+            }
+        }
+        // Integrate the slices.
+        if( this.executor == null ) {
+            this.integrateSlices( 0 , 0 , this.resolution );
+        } else {
+            this.executor.execute( this.resolution , this.integrationTask );
+        }
+    }
+    
+    
+    /**
+     * Extracts points of the fused surface: the zero crossings of the signed distance between observed neighboring voxels.
+     * <p>
+     * Each pair of neighbors along x, y, or z with opposite signs produces a point, linearly interpolated between them.
+     * Pairs in which a distance is truncated are skipped, so that the boundary between observed and occluded voxels is not extracted.
+     * 
+     * @param xyz   array where the coordinates of the points are written, three per point; extraction stops when it is full.
+     * @return  number of points written in {@code xyz}.
+     */
+    public int surfaceInto( float[] xyz )
+    {
+        int n = this.resolution;
+        int maxPoints = xyz.length / 3;
+        int count = 0;
+        int v = 0;
+        for( int iz=0; iz<n; iz++ ) {
+            for( int iy=0; iy<n; iy++ ) {
+                for( int ix=0; ix<n; ix++ , v++ ) {
+                    if( this.weights.get( v ) == 0.0f ) {
+                        continue;
+                    }
+                    float d = this.distances.get( v );
+                    if(  ix+1 < n  &&  count < maxPoints  ) {
+                        count = this.addCrossing( xyz , count , v , d , v+1 , ix , iy , iz , 0 );
+                    }
+                    if(  iy+1 < n  &&  count < maxPoints  ) {
+                        count = this.addCrossing( xyz , count , v , d , v+n , ix , iy , iz , 1 );
+                    }
+                    if(  iz+1 < n  &&  count < maxPoints  ) {
+                        count = this.addCrossing( xyz , count , v , d , v+n*n , ix , iy , iz , 2 );
+                    }
+                }
+            }
+        }
+        return count;
+    }
+    
+    
+    /**
+     * Returns the number of voxels along each axis.
+     * 
+     * @return  number of voxels along each axis.
+     */
+    public int resolution()
+    {
+        return this.resolution;
+    }
+    
+    
+    /**
+     * Returns the edge length of the voxels.
+     * 
+     * @return  edge length of the voxels.
+     */
+    public float voxelSize()
+    {
+        return this.voxelSize;
+    }
+    
+    
+    /**
+     * Returns the truncated signed distance of a voxel, divided by the truncation distance.
+     * 
+     * @param ix    index of the voxel along x.
+     * @param iy    index of the voxel along y.
+     * @param iz    index of the voxel along z.
+     * @return  truncated signed distance of the voxel, in [-1,1]; positive in front of the surface.
+     */
+    public float distance( int ix , int iy , int iz )
+    {
+        return this.distances.get( this.index( ix , iy , iz ) );
+    }
+    
+    
+    /**
+     * Returns the weight of a voxel.
+     * 
+     * @param ix    index of the voxel along x.
+     * @param iy    index of the voxel along y.
+     * @param iz    index of the voxel along z.
+     * @return  weight of the voxel; 0 if it has not been observed.
+     */
+    public float weight( int ix , int iy , int iz )
+    {
+        return this.weights.get( this.index( ix , iy , iz ) );
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns the index of a voxel in the arrays.
+     * 
+     * @param ix    index of the voxel along x.
+     * @param iy    index of the voxel along y.
+     * @param iz    index of the voxel along z.
+     * @return  index of the voxel.
+     */
+    private int index( int ix , int iy , int iz )
+    {
+        int n = this.resolution;
+        if(  ix < 0  ||  ix >= n  ||  iy < 0  ||  iy >= n  ||  iz < 0  ||  iz >= n  ) {
+            throw new IndexOutOfBoundsException( "Voxel (" + ix + "," + iy + "," + iz + ") is outside the volume." );
+        }
+        return ( iz*n + iy )*n + ix;
+    }
+    
+    
+    /**
+     * Fits the projection of the voxels onto the image from the unit-depth rays of its pixels.
+     * 
+     * @param rays  unit-depth rays of the pixels of the image.
+     * @param size  number of rows (and columns) of the image.
+     */
+    private void fitProjection( float[] rays , int size )
+    {
+        int pixels = size * size;
+        // Least squares fit of the row and the column as affine functions of ( x/z , y/z ).
+        double[][] normal = new double[3][3];
+        double[] columnRhs = new double[3];
+        double[] rowRhs = new double[3];
+        this.inverseRayZ = new float[ pixels ];
+        this.rayLengths = new float[ pixels ];
+        for( int k=0; k<pixels; k++ ) {
+            double x = rays[3*k];
+            double y = rays[3*k+1];
+            double z = rays[3*k+2];
+            if( !( z > 0.0 ) ) {
+                throw new IllegalArgumentException( "The unit-depth ray of pixel " + k + " does not point forward." );
+            }
+            this.inverseRayZ[k] = (float)( 1.0 / z );
+            this.rayLengths[k] = (float)Math.sqrt( x*x + y*y + z*z );
+            double[] f = { 1.0 , x/z , y/z };
+            for( int a=0; a<3; a++ ) {
+                for( int b=0; b<3; b++ ) {
+                    normal[a][b] += f[a] * f[b];
+                }
+                columnRhs[a] += f[a] * ( k % size );
+                rowRhs[a] += f[a] * ( k / size );
+            }
+        }
+        this.columnCoefficients = solve3( normal , columnRhs );
+        this.rowCoefficients = solve3( normal , rowRhs );
+        this.projectionRays = rays;
+        this.projectionSize = size;
+    }
+    
+    
+    /**
+     * Integrates the image being integrated into a group of slices of the volume.
+     * 
+     * @param stripe    index of the group of slices.
+     * @param sliceStart    first slice of the group.
+     * @param sliceEnd  slice after the last slice of the group.
+     */
+    private void integrateSlices( int stripe , int sliceStart , int sliceEnd )
+    {
+        int n = this.resolution;
+        int size = this.projectionSize;
+        float[] d = this.depths;
+        float inverseTruncation = 1.0f / this.truncation;
+        float c0 = (float)this.columnCoefficients[0];
+        float cu = (float)this.columnCoefficients[1];
+        float cv = (float)this.columnCoefficients[2];
+        float r0 = (float)this.rowCoefficients[0];
+        float ru = (float)this.rowCoefficients[1];
+        float rv = (float)this.rowCoefficients[2];
+        for( int iz=sliceStart; iz<sliceEnd; iz++ ) {
+            float z = this.originZ + ( iz + 0.5f ) * this.voxelSize;
+            if( !( z > 0.0f ) ) {
+                // Slices behind the camera are not observed.
+                continue;
+            }
+            float inverseZ = 1.0f / z;
+            // The pixel coordinates are affine in ix along each row of voxels.
+            float uStep = this.voxelSize * inverseZ;
+            float u0 = ( this.originX + 0.5f*this.voxelSize ) * inverseZ;
+            for( int iy=0; iy<n; iy++ ) {
+                float v = ( this.originY + ( iy + 0.5f ) * this.voxelSize ) * inverseZ;
+                // Shift by 0.5 so that truncation rounds to the nearest pixel.
+                float column = c0 + cu*u0 + cv*v + 0.5f;
+                float row = r0 + ru*u0 + rv*v + 0.5f;
+                float columnStep = cu * uStep;
+                float rowStep = ru * uStep;
+                int v0 = ( iz*n + iy )*n;
+                for( int ix=0; ix<n; ix++ , column += columnStep , row += rowStep ) {
+                    if(  !( column >= 0.0f )  ||  column >= size  ||  !( row >= 0.0f )  ||  row >= size  ) {
+                        continue;
+                    }
+                    int k = (int)row * size + (int)column;
+                    float depth = d[k];
+                    if( depth == 0.0f ) {
+                        continue;
+                    }
+                    // Signed distance along the ray of the pixel, positive in front of the surface.
+                    float sdf = ( depth - z * this.inverseRayZ[k] ) * this.rayLengths[k] * inverseTruncation;
+                    if( sdf < -1.0f ) {
+                        // Occluded by the surface.
+                        continue;
+                    }
+                    if( sdf > 1.0f ) {
+                        sdf = 1.0f;
+                    }
+                    int index = v0 + ix;
+                    float w = this.weights.get( index );
+                    this.distances.put( index , ( this.distances.get( index ) * w + sdf ) / ( w + 1.0f ) );
+                    this.weights.put( index , Math.min( w + 1.0f , this.maxWeight ) );
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Writes the zero crossing between a voxel and one of its neighbors, if there is one.
+     * 
+     * @param xyz   array where the coordinates of the point are written.
+     * @param count     number of points already written.
+     * @param v     index of the voxel.
+     * @param d     distance of the voxel.
+     * @param neighbor  index of the neighbor.
+     * @param ix    index of the voxel along x.
+     * @param iy    index of the voxel along y.
+     * @param iz    index of the voxel along z.
+     * @param axis  axis along which the neighbor lies: 0 for x, 1 for y, 2 for z.
+     * @return  number of points written, including the new one if any.
+     */
+    private int addCrossing( float[] xyz , int count , int v , float d , int neighbor , int ix , int iy , int iz , int axis )
+    {
+        if( this.weights.get( neighbor ) == 0.0f ) {
+            return count;
+        }
+        float dn = this.distances.get( neighbor );
+        if(  !( d >= 0.0f  &&  dn < 0.0f )  &&  !( d < 0.0f  &&  dn >= 0.0f )  ) {
+            return count;
+        }
+        if(  d >= 1.0f  ||  dn >= 1.0f  ||  d <= -1.0f  ||  dn <= -1.0f  ) {
+            // A crossing between truncated values is the boundary of an observed region, not a surface.
+            return count;
+        }
+        float t = d / ( d - dn );
+        float x = this.originX + ( ix + 0.5f + ( ( axis == 0 )? t : 0.0f ) ) * this.voxelSize;
+        float y = this.originY + ( iy + 0.5f + ( ( axis == 1 )? t : 0.0f ) ) * this.voxelSize;
+        float z = this.originZ + ( iz + 0.5f + ( ( axis == 2 )? t : 0.0f ) ) * this.voxelSize;
+        xyz[ 3*count ] = x;
+        xyz[ 3*count + 1 ] = y;
+        xyz[ 3*count + 2 ] = z;
+        return count + 1;
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Solves a 3x3 linear system with Cramer's rule.
+     * 
+     * @param a     matrix of the system.
+     * @param b     right hand side of the system.
+     * @return  solution of the system.
+     */
+    private static double[] solve3( double[][] a , double[] b )
+    {
+        double det = det3( a );
+        if( Math.abs( det ) < 1.0e-12 ) {
+            throw new IllegalStateException( "The projection can not be fitted from the unit-depth rays." );
+        }
+        double[] x = new double[3];
+        for( int c=0; c<3; c++ ) {
+            double[][] m = { a[0].clone() , a[1].clone() , a[2].clone() };
+            for( int r=0; r<3; r++ ) {
+                m[r][c] = b[r];
+            }
+            x[c] = det3( m ) / det;
+        }
+        return x;
+    }
+    
+    
+    /**
+     * Returns the determinant of a 3x3 matrix.
+     * 
+     * @param m     matrix, by rows.
+     * @return  determinant of the matrix.
+     */
+    private static double det3( double[][] m )
+    {
+        return ( m[0][0]*( m[1][1]*m[2][2] - m[1][2]*m[2][1] ) - m[0][1]*( m[1][0]*m[2][2] - m[1][2]*m[2][0] ) + m[0][2]*( m[1][0]*m[2][1] - m[1][1]*m[2][0] ) );
+    }
+    
+}
@@ -0,0 +1,450 @@
+package util;
+
+
+import java.util.Arrays;
+
+
+
+/**
+ * Downsamples point clouds stored in primitive arrays to a voxel grid, keeping a point per occupied voxel.
+ * <p>
+ * The kept point is either the centroid of the points that fall in the voxel ({@link #POLICY_CENTROID}),
+ * or the first of them ({@link #POLICY_FIRST_POINT}).
+ * Voxels are output in the order in which they are first occupied.
+ * <p>
+ * The integer coordinates of each voxel are packed in a long key, 21 bits per axis, and looked up in an open-addressing hash table.
+ * The table does not need to be cleared between point clouds: each slot is stamped with the generation in which it was written,
+ * and slots of older generations are empty.
+ * All the arrays are only reallocated when a point cloud has more points than any previous one,
+ * so downsampling takes time proportional to the number of points and does not allocate memory in steady state.
+ * <p>
+ * A point cloud can be given in several parts, e.g. the slices of a {@link FusedPointCloud}:
+ * <pre>
+ * filter.clear();
+ * filter.add( xyz , offset , count );
+ * ...
+ * int n = filter.pointsInto( out );
+ * </pre>
+ */
+public class VoxelGridFilter
+{
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Policy that keeps the centroid of the points of each voxel.
+     */
+    public static final int POLICY_CENTROID = 0;
+    
+    /**
+     * Policy that keeps the first point of each voxel.
+     */
+    public static final int POLICY_FIRST_POINT = 1;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE CONSTANTS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Number of bits of each voxel coordinate in a key.
+     */
+    private static final int KEY_BITS = 21;
+    
+    /**
+     * Mask of the bits of a voxel coordinate in a key.
+     */
+    private static final long KEY_MASK = ( 1L << KEY_BITS ) - 1;
+    
+    /**
+     * Minimum voxel coordinate that can be represented; smaller coordinates are clamped.
+     */
+    private static final int COORDINATE_MIN = -( 1 << ( KEY_BITS - 1 ) );
+    
+    /**
+     * Maximum voxel coordinate that can be represented; greater coordinates are clamped.
+     */
+    private static final int COORDINATE_MAX = ( 1 << ( KEY_BITS - 1 ) ) - 1;
+    
+    /**
+     * Multiplier of Fibonacci hashing, 2^64 divided by the golden ratio.
+     */
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE VARIABLES
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Leaf size requested with {@link #setLeafSize(float)}.
+     */
+    private volatile float requestedLeafSize;
+    
+    /**
+     * Policy requested with {@link #setPolicy(int)}.
+     */
+    private volatile int requestedPolicy;
+    
+    /**
+     * Inverse of the leaf size used with the current point cloud.
+     */
+    private float inverseLeafSize;
+    
+    /**
+     * Policy used with the current point cloud.
+     */
+    private int policy;
+    
+    /**
+     * Voxel stored in each slot of the hash table.
+     */
+    private int[] slotVoxels;
+    
+    /**
+     * Generation in which each slot of the hash table was written; slots of other generations are empty.
+     */
+    private int[] slotGenerations;
+    
+    /**
+     * Current generation, incremented with every point cloud.
+     */
+    private int generation;
+    
+    /**
+     * Number of bits that the hash of a key is shifted to obtain a slot.
+     */
+    private int hashShift;
+    
+    /**
+     * Key of each voxel.
+     */
+    private long[] voxelKeys;
+    
+    /**
+     * Sum of the coordinates of the points of each voxel, or coordinates of its first point, three per voxel.
+     */
+    private float[] voxelSums;
+    
+    /**
+     * Number of points of each voxel.
+     */
+    private int[] voxelCounts;
+    
+    /**
+     * Number of voxels occupied by the current point cloud.
+     */
+    private int voxelCount;
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC CONSTRUCTORS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Constructs a {@link VoxelGridFilter}.
+     * 
+     * @param leafSize  edge length of the voxels.
+     * @param pointPolicy   {@link #POLICY_CENTROID} or {@link #POLICY_FIRST_POINT}.
+     */
+    public VoxelGridFilter( float leafSize , int pointPolicy )
+    {
+        this.setLeafSize( leafSize );
+        this.setPolicy( pointPolicy );
+        this.slotVoxels = new int[0];
+        this.slotGenerations = new int[0];
+        this.voxelKeys = new long[0];
+        this.voxelSums = new float[0];
+        this.voxelCounts = new int[0];
+        this.resizeTable( 16 );
+        this.clear();
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PUBLIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Sets the edge length of the voxels; it takes effect in the next call to {@link #clear()}.
+     * 
+     * @param leafSize  edge length of the voxels.
+     */
+    public void setLeafSize( float leafSize )
+    {
+        if( !( leafSize > 0.0f ) ) {
+            throw new IllegalArgumentException( "The leaf size must be positive." );
+        }
+        this.requestedLeafSize = leafSize;
+    }
+    
+    
+    /**
+     * Returns the edge length of the voxels.
+     * 
+     * @return  edge length of the voxels.
+     */
+    public float getLeafSize()
+    {
+        return this.requestedLeafSize;
+    }
+    
+    
+    /**
+     * Sets the point kept for each voxel; it takes effect in the next call to {@link #clear()}.
+     * 
+     * @param pointPolicy   {@link #POLICY_CENTROID} or {@link #POLICY_FIRST_POINT}.
+     */
+    public void setPolicy( int pointPolicy )
+    {
+        if(  pointPolicy != POLICY_CENTROID  &&  pointPolicy != POLICY_FIRST_POINT  ) {
+            throw new IllegalArgumentException( "Unknown voxel grid policy: " + pointPolicy );
+        }
+        this.requestedPolicy = pointPolicy;
+    }
+    
+    
+    /**
+     * Returns the point kept for each voxel.
+     * 
+     * @return  {@link #POLICY_CENTROID} or {@link #POLICY_FIRST_POINT}.
+     */
+    public int getPolicy()
+    {
+        return this.requestedPolicy;
+    }
+    
+    
+    /**
+     * Starts a new point cloud, with no occupied voxels.
+     */
+    public void clear()
+    {
+        this.inverseLeafSize = 1.0f / this.requestedLeafSize;
+        this.policy = this.requestedPolicy;
+        this.voxelCount = 0;
+        this.generation++;
+        if( this.generation == 0 ) {
+            // The generation wrapped around: forget the stamps of old generations.
+            Arrays.fill( this.slotGenerations , 0 );
+            this.generation = 1;
+        }
+    }
+    
+    
+    /**
+     * Adds points to the current point cloud.
+     * 
+     * @param xyz   coordinates of the points, three per point.
+     * @param offset    index of the first point.
+     * @param count     number of points.
+     */
+    public void add( float[] xyz , int offset , int count )
+    {
+        this.ensureCapacity( this.voxelCount + count );
+        float inverse = this.inverseLeafSize;
+        boolean centroid = ( this.policy == POLICY_CENTROID );
+        int[] slots = this.slotVoxels;
+        int[] generations = this.slotGenerations;
+        int currentGeneration = this.generation;
+        int mask = slots.length - 1;
+        int end = 3*( offset + count );
+        for( int i=3*offset; i<end; i+=3 ) {
+            float x = xyz[i];
+            float y = xyz[i+1];
+            float z = xyz[i+2];
+            long key = key( voxelCoordinate( x * inverse ) , voxelCoordinate( y * inverse ) , voxelCoordinate( z * inverse ) );
+            // Find the slot of the voxel, or the empty slot where it must be inserted.
+            int slot = slot( key , this.hashShift );
+            int voxel = -1;
+            while( generations[slot] == currentGeneration ) {
+                int candidate = slots[slot];
+                if( this.voxelKeys[candidate] == key ) {
+                    voxel = candidate;
+                    break;
+                }
+                slot = ( slot + 1 ) & mask;
+            }
+            if( voxel < 0 ) {
+                // First point of the voxel.
+                voxel = this.voxelCount++;
+                slots[slot] = voxel;
+                generations[slot] = currentGeneration;
+                this.voxelKeys[voxel] = key;
+                this.voxelSums[ 3*voxel ] = x;
+                this.voxelSums[ 3*voxel + 1 ] = y;
+                this.voxelSums[ 3*voxel + 2 ] = z;
+                this.voxelCounts[voxel] = 1;
+            } else if( centroid ) {
+                this.voxelSums[ 3*voxel ] += x;
+                this.voxelSums[ 3*voxel + 1 ] += y;
+                this.voxelSums[ 3*voxel + 2 ] += z;
+                this.voxelCounts[voxel]++;
+            }
+        }
+    }
+    
+    
+    /**
+     * Returns the number of voxels occupied by the current point cloud.
+     * 
+     * @return  number of occupied voxels.
+     */
+    public int voxelCount()
+    {
+        return this.voxelCount;
+    }
+    
+    
+    /**
+     * Writes the point kept for each occupied voxel.
+     * 
+     * @param out   array where the coordinates of the points are written, three per point; its length must be at least {@code 3*voxelCount()}.
+     * @return  number of points written.
+     */
+    public int pointsInto( float[] out )
+    {
+        int n = this.voxelCount;
+        if( this.policy == POLICY_CENTROID ) {
+            for( int v=0; v<n; v++ ) {
+                float inverseCount = 1.0f / this.voxelCounts[v];
+                out[ 3*v ] = this.voxelSums[ 3*v ] * inverseCount;
+                out[ 3*v + 1 ] = this.voxelSums[ 3*v + 1 ] * inverseCount;
+                out[ 3*v + 2 ] = this.voxelSums[ 3*v + 2 ] * inverseCount;
+            }
+        } else {
+            System.arraycopy( this.voxelSums , 0 , out , 0 , 3*n );
+        }
+        return n;
+    }
+    
+    
+    /**
+     * Downsamples a point cloud.
+     * <p>
+     * The output can be the same array as the input.
+     * 
+     * @param xyz   coordinates of the points, three per point.
+     * @param count     number of points.
+     * @param out   array where the coordinates of the kept points are written; its length must be at least {@code 3*count}.
+     * @return  number of kept points.
+     */
+    public int filter( float[] xyz , int count , float[] out )
+    {
+        this.clear();
+        this.add( xyz , 0 , count );
+        return this.pointsInto( out );
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PACKAGE-PRIVATE STATIC METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Returns the voxel coordinate of a coordinate expressed in leaf sizes, clamped to the representable range.
+     * 
+     * @param scaled    coordinate divided by the leaf size.
+     * @return  voxel coordinate, the floor of {@code scaled}.
+     */
+    static int voxelCoordinate( float scaled )
+    {
+        if( !( scaled > COORDINATE_MIN ) ) {
+            return COORDINATE_MIN;
+        }
+        if( scaled >= COORDINATE_MAX ) {
+            return COORDINATE_MAX;
+        }
+        int c = (int)scaled;
+        return ( scaled < c )? c - 1 : c;
+    }
+    
+    
+    /**
+     * Packs the coordinates of a voxel in a key.
+     * 
+     * @param ix    x coordinate of the voxel.
+     * @param iy    y coordinate of the voxel.
+     * @param iz    z coordinate of the voxel.
+     * @return  key of the voxel.
+     */
+    static long key( int ix , int iy , int iz )
+    {
+        return ( ( ( ix & KEY_MASK ) << ( 2*KEY_BITS ) ) | ( ( iy & KEY_MASK ) << KEY_BITS ) | ( iz & KEY_MASK ) );
+    }
+    
+    
+    /**
+     * Returns the slot of a key in a hash table with a power of two number of slots, with Fibonacci hashing.
+     * 
+     * @param key   key of the voxel.
+     * @param shift     64 minus the base 2 logarithm of the number of slots.
+     * @return  slot of the key.
+     */
+    static int slot( long key , int shift )
+    {
+        return (int)( ( key * HASH_MULTIPLIER ) >>> shift );
+    }
+    
+    
+    
+    ////////////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+    ////////////////////////////////////////////////////////////////
+    
+    /**
+     * Makes the arrays able to hold a given number of voxels, keeping the current ones.
+     * 
+     * @param voxels    number of voxels.
+     */
+    private void ensureCapacity( int voxels )
+    {
+        if( voxels <= this.voxelCounts.length ) {
+            return;
+        }
+        int capacity = Math.max( voxels , 2*this.voxelCounts.length );
+        this.voxelKeys = Arrays.copyOf( this.voxelKeys , capacity );
+        this.voxelSums = Arrays.copyOf( this.voxelSums , 3*capacity );
+        this.voxelCounts = Arrays.copyOf( this.voxelCounts , capacity );
+        // Keep the load of the hash table at most 1/2.
+        int slots = this.slotVoxels.length;
+        while( slots < 2*capacity ) {
+            slots <<= 1;
+        }
+        if( slots != this.slotVoxels.length ) {
+            this.resizeTable( slots );
+        }
+    }
+    
+    
+    /**
+     * Reallocates the hash table, and inserts the current voxels again.
+     * 
+     * @param slots     number of slots, a power of two.
+     */
+    private void resizeTable( int slots )
+    {
+        this.slotVoxels = new int[ slots ];
+        this.slotGenerations = new int[ slots ];
+        this.hashShift = 64 - Integer.numberOfTrailingZeros( slots );
+        if( this.generation == 0 ) {
+            this.generation = 1;
+        }
+        int mask = slots - 1;
+        for( int v=0; v<this.voxelCount; v++ ) {
+            int slot = slot( this.voxelKeys[v] , this.hashShift );
+            while( this.slotGenerations[slot] == this.generation ) {
+                slot = ( slot + 1 ) & mask;
+            }
+            this.slotVoxels[slot] = v;
+            this.slotGenerations[slot] = this.generation;
+        }
+    }
+    
+}